@@ -0,0 +1,227 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import client.ui.ChatContentBenchmark;
+import server.DispatchBenchmark;
+
+/**
+ * 微基准的测量和输出
+ * 每项先预热一段时间，并据此确定每轮的次数，再测量若干轮，
+ * 报告每次操作的平均耗时、各轮的最小和最大值、分配的字节数，以及测量期间的GC次数和耗时，
+ * 轮间差距大说明结果不稳定，需要重跑或加长时间。
+ * 每组基准默认在单独的JVM中运行，前一组的JIT profile和堆状态不会影响后一组
+ *
+ * 配置(系统属性):
+ * bench.warmupMs 预热时间，默认1000毫秒
+ * bench.iterationMs 每轮时间，默认500毫秒
+ * bench.iterations 测量轮数，默认5
+ * bench.filter 只运行名字包含该字符串的项
+ * bench.fork 是否每组基准单独启动JVM，默认true
+ *
+ * 参数为要运行的基准类名，不指定时运行全部
+ */
+public class Bench {
+	
+	private static final long WARMUP_MS = Long.getLong("bench.warmupMs", 1000);
+	private static final long ITERATION_MS = Long.getLong("bench.iterationMs", 500);
+	private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+	private static final String FILTER = System.getProperty("bench.filter");
+	private static final boolean FORK = Boolean.parseBoolean(System.getProperty("bench.fork", "true"));
+	
+	/**
+	 * 所有基准，按顺序运行
+	 */
+	private static final String[] SUITES = {
+		ProtocolBenchmark.class.getName(),
+		DispatchBenchmark.class.getName(),
+		ChatContentBenchmark.class.getName(),
+	};
+	
+	/**
+	 * 防止被JIT优化掉
+	 */
+	public static long sink;
+	
+	/**
+	 * 运行参数中的基准，没有参数时运行所有基准
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		List<String> suites = Arrays.asList(args.length > 0 ? args : SUITES);
+		for(String suite : suites) {
+			if(FORK) {
+				fork(suite);
+			}else {
+				Class.forName(suite).getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+			}
+		}
+	}
+	
+	/**
+	 * 用同样的JVM参数和类路径启动新的JVM运行一组基准，等它结束
+	 * @param suite
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static void fork(String suite) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-Dbench.fork=false");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(Bench.class.getName());
+		command.add(suite);
+		
+		int exitCode = new ProcessBuilder(command).inheritIO().start().waitFor();
+		if(exitCode != 0) {
+			throw new IllegalStateException(suite + "运行失败，退出码" + exitCode);
+		}
+	}
+	
+	/**
+	 * 输出表头
+	 * @param title
+	 */
+	public static void header(String title) {
+		System.out.println();
+		System.out.println("== " + title);
+		System.out.println(String.format("%-44s %10s %10s %10s %10s %6s %8s", "项", "ns/op", "最小", "最大", "B/op", "GC", "GC ms"));
+	}
+	
+	/**
+	 * 测量并输出一项，名字不匹配过滤条件时跳过
+	 * @param name
+	 * @param op
+	 * @return 测量结果，跳过时为空
+	 */
+	public static Result run(String name, Runnable op) {
+		if(FILTER != null && !name.contains(FILTER)) {
+			return null;
+		}
+		
+		Result result = measure(op);
+		System.out.println(String.format("%-44s %10.1f %10.1f %10.1f %10d %6d %8d", name, result.nanos, result.minNanos,
+				result.maxNanos, result.allocatedBytes, result.gcCount, result.gcMillis));
+		return result;
+	}
+	
+	/**
+	 * 测量每次操作的平均耗时和分配的字节数，以及测量期间的GC
+	 * @param op
+	 * @return
+	 */
+	public static Result measure(Runnable op) {
+		//预热，同时估算每轮的次数
+		long warmupOps = 0;
+		int batch = 1;
+		long warmupStart = System.nanoTime();
+		long warmupEnd = warmupStart + WARMUP_MS * 1_000_000L;
+		long now;
+		while((now = System.nanoTime()) < warmupEnd) {
+			for(int i = 0; i < batch; ++i) {
+				op.run();
+			}
+			warmupOps += batch;
+			if(System.nanoTime() - now < 1_000_000L) {
+				batch = Math.min(batch * 2, 1 << 20);
+			}
+		}
+		double warmupNanosPerOp = (System.nanoTime() - warmupStart) / (double) warmupOps;
+		long opsPerIteration = Math.max(1, (long) (ITERATION_MS * 1_000_000L / warmupNanosPerOp));
+		
+		Result result = new Result();
+		result.minNanos = Double.MAX_VALUE;
+		long totalNanos = 0;
+		long startBytes = allocatedBytes();
+		long startGcCount = gcCount();
+		long startGcMillis = gcMillis();
+		for(int iteration = 0; iteration < ITERATIONS; ++iteration) {
+			long start = System.nanoTime();
+			for(long i = 0; i < opsPerIteration; ++i) {
+				op.run();
+			}
+			long nanos = System.nanoTime() - start;
+			totalNanos += nanos;
+			result.minNanos = Math.min(result.minNanos, nanos / (double) opsPerIteration);
+			result.maxNanos = Math.max(result.maxNanos, nanos / (double) opsPerIteration);
+		}
+		
+		long ops = opsPerIteration * ITERATIONS;
+		result.nanos = totalNanos / (double) ops;
+		result.allocatedBytes = (allocatedBytes() - startBytes) / ops;
+		result.gcCount = gcCount() - startGcCount;
+		result.gcMillis = gcMillis() - startGcMillis;
+		return result;
+	}
+	
+	/**
+	 * 当前线程已分配的字节数，只支持HotSpot
+	 * @return
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+	
+	/**
+	 * 所有收集器的GC次数
+	 * @return
+	 */
+	private static long gcCount() {
+		long count = 0;
+		for(GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, bean.getCollectionCount());
+		}
+		return count;
+	}
+	
+	/**
+	 * 所有收集器的GC耗时(毫秒)
+	 * @return
+	 */
+	private static long gcMillis() {
+		long millis = 0;
+		for(GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, bean.getCollectionTime());
+		}
+		return millis;
+	}
+	
+	public static class Result {
+		
+		/**
+		 * 平均耗时
+		 */
+		public double nanos;
+		
+		/**
+		 * 各轮中最快和最慢的平均耗时
+		 */
+		public double minNanos;
+		public double maxNanos;
+		
+		/**
+		 * 每次操作分配的字节数
+		 */
+		public long allocatedBytes;
+		
+		/**
+		 * 测量期间的GC次数和耗时(毫秒)
+		 */
+		public long gcCount;
+		public long gcMillis;
+	}
+}
@@ -0,0 +1,97 @@
+package bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import base.BinaryCodec;
+import base.ChatCmd;
+import base.JsonCodec;
+import base.MsgConst;
+
+/**
+ * 对比json-lib、JsonCodec和二进制协议的每条消息字节数、编解码耗时和内存分配
+ */
+public class CodecBenchmark {
+	
+	public static void main(String[] args) {
+		System.out.println(String.format("%-22s %-10s %8s %10s %10s %10s %10s", "消息", "格式", "字节",
+				"编码ns", "解码ns", "编码B/op", "解码B/op"));
+		for(ChatCmd cmd : buildSamples()) {
+			run(cmd);
+		}
+	}
+	
+	private static void run(ChatCmd cmd) {
+		String name = cmd.getCmd() + (cmd.getChatMsg() != null ? "(" + cmd.getChatMsg().length() + ")" : "")
+				+ (cmd.getUserNameList() != null ? "(" + cmd.getUserNameList().size() + ")" : "");
+		ChatCmd out = new ChatCmd();
+		
+		//原来的json-lib
+		String jsonLibLine = JsonLibCodec.buildCmdLine(cmd);
+		report(name, "json-lib", (jsonLibLine + "\n").getBytes(StandardCharsets.UTF_8).length,
+				() -> Bench.sink += (JsonLibCodec.buildCmdLine(cmd) + "\n").getBytes(StandardCharsets.UTF_8).length,
+				() -> {
+					JsonLibCodec.parseCmdLine(jsonLibLine, out);
+					Bench.sink += out.getCmd().length();
+				});
+		
+		//JsonCodec
+		byte[] json = JsonCodec.local().encodeLine(cmd);
+		report(name, "JsonCodec", json.length,
+				() -> Bench.sink += JsonCodec.local().encodeLine(cmd).length,
+				() -> {
+					JsonCodec.local().decode(json, 0, json.length - 1, out);
+					Bench.sink += out.getCmd().length();
+				});
+		
+		//二进制
+		byte[] binary = BinaryCodec.encode(cmd);
+		report(name, "binary", binary.length,
+				() -> Bench.sink += BinaryCodec.encode(cmd).length,
+				() -> {
+					BinaryCodec.decode(binary, BinaryCodec.LENGTH_FIELD_SIZE, binary.length - BinaryCodec.LENGTH_FIELD_SIZE, out);
+					Bench.sink += out.getCmd().length();
+				});
+	}
+	
+	private static void report(String name, String format, int bytes, Runnable encode, Runnable decode) {
+		Bench.Result encodeResult = Bench.measure(encode);
+		Bench.Result decodeResult = Bench.measure(decode);
+		System.out.println(String.format("%-22s %-10s %8d %10.1f %10.1f %10d %10d", name, format, bytes,
+				encodeResult.nanos, decodeResult.nanos, encodeResult.allocatedBytes, decodeResult.allocatedBytes));
+	}
+	
+	private static List<ChatCmd> buildSamples() {
+		List<ChatCmd> samples = new ArrayList<>();
+		
+		ChatCmd chat = new ChatCmd(MsgConst.CMD_CHAT_TO);
+		chat.setUserName("alice");
+		chat.setChatMsg("你好，今天下午开会吗？");
+		samples.add(chat);
+		
+		StringBuilder longMsg = new StringBuilder();
+		while(longMsg.length() < 2000) {
+			longMsg.append("at server.ChatServer.handle(ChatServer.java:159)\n");
+		}
+		ChatCmd longChat = new ChatCmd(MsgConst.CMD_CHAT_TO);
+		longChat.setUserName("alice");
+		longChat.setChatMsg(longMsg.toString());
+		samples.add(longChat);
+		
+		ChatCmd status = new ChatCmd(MsgConst.CMD_UPDATE_ONLINE_USER_LIST);
+		status.setUserName("bob");
+		status.setUserStatus(MsgConst.USER_STATUS_LOGIN);
+		samples.add(status);
+		
+		List<String> names = new ArrayList<>();
+		for(int i = 0; i < 100; ++i) {
+			names.add("user" + i);
+		}
+		ChatCmd login = new ChatCmd(MsgConst.CMD_LOGIN);
+		login.setUserNameList(names);
+		login.setBinaryVersion(BinaryCodec.VERSION);
+		samples.add(login);
+		return samples;
+	}
+}
@@ -0,0 +1,189 @@
+package bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+
+import base.ChatCmd;
+import base.JsonCodec;
+import base.MsgConst;
+import net.sf.json.util.JSONUtils;
+
+/**
+ * 随机生成消息，检查JsonCodec与原来的json-lib是否兼容
+ * 1. 字符串的转义与json-lib的JSONUtils.quote逐字节一致
+ * 2. JsonCodec能解析json-lib生成的行，结果与json-lib自己解析的一致
+ * 3. json-lib解析JsonCodec生成的行，结果与解析json-lib自己生成的行一致，即旧客户端看不出服务器换了编码
+ *
+ * 参数: [次数，默认100000] [随机种子，默认当前时间]，有不一致时打印前几条并以状态1退出
+ */
+public class JsonCompatCheck {
+	
+	/**
+	 * 最多打印的不一致数
+	 */
+	private static final int MAX_REPORTED = 10;
+	
+	private static final String[] CMDS = {MsgConst.CMD_LOGIN, MsgConst.CMD_LOGOUT, MsgConst.CMD_CHAT_TO,
+			MsgConst.CMD_UPDATE_ONLINE_USER_LIST};
+	
+	private static final String[] STATUSES = {null, MsgConst.USER_STATUS_LOGIN, MsgConst.USER_STATUS_LOGOUT};
+	
+	/**
+	 * 生成字符串用的字符，覆盖各条转义规则：引号、反斜杠、"</"、控制字符、0x80-0x9f、0x2000-0x20ff，
+	 * 以及普通ASCII、中文和代理对
+	 */
+	private static final String SPECIAL = "\"\\/<>{}[]:, \n\r\t\b\f\u0000\u001f\u007f\u0080\u009f\u00a0\u00e9\u2000\u2028\u20ff\u2100";
+	
+	private static int failures;
+	
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : System.currentTimeMillis();
+		Random random = new Random(seed);
+		System.out.println("次数" + count + "，随机种子" + seed);
+		
+		for(int i = 0; i < count; ++i) {
+			String text = randomString(random, 64);
+			checkQuote(text);
+			
+			ChatCmd cmd = randomCmd(random);
+			checkJsonLibToCodec(cmd);
+			checkCodecToJsonLib(cmd);
+		}
+		
+		System.out.println(failures == 0 ? "全部一致。" : "不一致" + failures + "条。");
+		if(failures > 0) {
+			System.exit(1);
+		}
+	}
+	
+	private static void checkQuote(String text) {
+		ChatCmd cmd = new ChatCmd(MsgConst.CMD_CHAT_TO);
+		cmd.setChatMsg(text);
+		String expected = "{\"" + MsgConst.FIELD_CMD + "\":\"" + MsgConst.CMD_CHAT_TO + "\",\"" + MsgConst.FIELD_CHAT_MSG + "\":"
+				+ JSONUtils.quote(text) + "}";
+		String actual = JsonCodec.local().encodeToString(cmd);
+		//不成对的代理字符两边都按UTF-8输出成'?'，按字节比较
+		if(!new String(expected.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8).equals(actual)) {
+			fail("转义不一致", text, expected, actual);
+		}
+	}
+	
+	private static void checkJsonLibToCodec(ChatCmd cmd) {
+		//按线路上的UTF-8字节比较，不成对的代理字符在发送时就变成了'?'
+		byte[] data = JsonLibCodec.buildCmdLine(cmd).getBytes(StandardCharsets.UTF_8);
+		String line = new String(data, StandardCharsets.UTF_8);
+		ChatCmd expected = new ChatCmd();
+		JsonLibCodec.parseCmdLine(line, expected);
+		
+		ChatCmd actual = new ChatCmd();
+		JsonCodec.local().decode(data, 0, data.length, actual);
+		if(!sameFields(expected, actual)) {
+			fail("JsonCodec解析json-lib的输出不一致", line, expected.toString(), actual.toString());
+		}
+	}
+	
+	private static void checkCodecToJsonLib(ChatCmd cmd) {
+		//旧客户端从原来的服务器收到的结果，json-lib把像JSON的字符串当成JSON的问题两边一样
+		String jsonLibLine = new String(JsonLibCodec.buildCmdLine(cmd).getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+		ChatCmd expected = new ChatCmd();
+		JsonLibCodec.parseCmdLine(jsonLibLine, expected);
+		
+		byte[] data = JsonCodec.local().encodeLine(cmd);
+		String line = new String(data, 0, data.length - 1, StandardCharsets.UTF_8);
+		ChatCmd actual = new ChatCmd();
+		JsonLibCodec.parseCmdLine(line, actual);
+		if(!sameFields(expected, actual)) {
+			fail("json-lib解析JsonCodec的输出不一致", line, expected.toString(), actual.toString());
+		}
+	}
+	
+	/**
+	 * 只比较json-lib版本支持的字段
+	 */
+	private static boolean sameFields(ChatCmd a, ChatCmd b) {
+		return Objects.equals(a.getCmd(), b.getCmd())
+				&& Objects.equals(a.getUserName(), b.getUserName())
+				&& Objects.equals(a.getTargetUserName(), b.getTargetUserName())
+				&& Objects.equals(a.getUserStatus(), b.getUserStatus())
+				&& Objects.equals(a.getErrMsg(), b.getErrMsg())
+				&& Objects.equals(a.getChatMsg(), b.getChatMsg())
+				&& Objects.equals(a.getUserNameList(), b.getUserNameList())
+				&& a.getBinaryVersion() == b.getBinaryVersion();
+	}
+	
+	private static void fail(String reason, String input, String expected, String actual) {
+		if(++failures <= MAX_REPORTED) {
+			System.out.println(reason + "\n  输入: " + visible(input) + "\n  期望: " + visible(expected) + "\n  实际: " + visible(actual));
+		}
+	}
+	
+	/**
+	 * 非ASCII可见字符显示成\\uXXXX，不受控制台编码影响
+	 */
+	private static String visible(String s) {
+		StringBuilder sb = new StringBuilder(s.length());
+		for(int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if(c >= 0x20 && c < 0x7f) {
+				sb.append(c);
+			}else {
+				sb.append(String.format("\\u%04x", (int) c));
+			}
+		}
+		return sb.toString();
+	}
+	
+	private static ChatCmd randomCmd(Random random) {
+		ChatCmd cmd = new ChatCmd(CMDS[random.nextInt(CMDS.length)]);
+		cmd.setUserName(random.nextBoolean() ? randomString(random, 16) : null);
+		cmd.setTargetUserName(random.nextInt(4) == 0 ? randomString(random, 16) : null);
+		cmd.setUserStatus(STATUSES[random.nextInt(STATUSES.length)]);
+		cmd.setErrMsg(random.nextInt(4) == 0 ? randomString(random, 32) : null);
+		cmd.setChatMsg(random.nextBoolean() ? randomString(random, 256) : null);
+		if(random.nextInt(3) == 0) {
+			int size = random.nextInt(8);
+			List<String> names = new ArrayList<>(size);
+			for(int i = 0; i < size; ++i) {
+				names.add(randomString(random, 16));
+			}
+			cmd.setUserNameList(names);
+		}
+		cmd.setBinaryVersion(random.nextInt(4) == 0 ? 1 + random.nextInt(3) : 0);
+		return cmd;
+	}
+	
+	private static String randomString(Random random, int maxLen) {
+		int len = random.nextInt(maxLen + 1);
+		StringBuilder sb = new StringBuilder(len);
+		for(int i = 0; i < len; ++i) {
+			switch (random.nextInt(6)) {
+			case 0:
+				sb.append(SPECIAL.charAt(random.nextInt(SPECIAL.length())));
+				break;
+			case 1:
+				//中文
+				sb.append((char) (0x4e00 + random.nextInt(0x5000)));
+				break;
+			case 2:
+				//代理对，偶尔是不成对的
+				int codePoint = 0x10000 + random.nextInt(0x100000);
+				sb.append(Character.highSurrogate(codePoint));
+				if(random.nextInt(8) != 0) {
+					sb.append(Character.lowSurrogate(codePoint));
+				}
+				break;
+			case 3:
+				sb.append((char) random.nextInt(0x10000));
+				break;
+			default:
+				sb.append((char) (0x20 + random.nextInt(0x5f)));
+				break;
+			}
+		}
+		return sb.toString();
+	}
+}
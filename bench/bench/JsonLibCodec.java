@@ -0,0 +1,81 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import base.ChatCmd;
+import base.MsgConst;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * 原来基于json-lib的JSON编解码，作为基准对比用
+ */
+public class JsonLibCodec {
+	
+	/**
+	 * 构造网络传输的数据行
+	 * @param cmd
+	 * @return
+	 */
+	public static String buildCmdLine(ChatCmd cmd) {
+		Map<String, Object> map = new HashMap<>();
+		map.put(MsgConst.FIELD_CMD, cmd.getCmd());
+		putIfNotNull(map, MsgConst.FIELD_USER_NAME, cmd.getUserName());
+		putIfNotNull(map, MsgConst.FIELD_TARGET_USER, cmd.getTargetUserName());
+		putIfNotNull(map, MsgConst.FIELD_USER_STATUS, cmd.getUserStatus());
+		putIfNotNull(map, MsgConst.FIELD_ERR_MSG, cmd.getErrMsg());
+		putIfNotNull(map, MsgConst.FIELD_CHAT_MSG, cmd.getChatMsg());
+		putIfNotNull(map, MsgConst.FIELD_USER_NAME_LIST, cmd.getUserNameList());
+		if(cmd.getBinaryVersion() > 0) {
+			map.put(MsgConst.FIELD_BINARY_VERSION, cmd.getBinaryVersion());
+		}
+		
+		return JSONObject.fromObject(map).toString();
+	}
+	
+	private static void putIfNotNull(Map<String, Object> map, String key, Object value) {
+		if(value != null) {
+			map.put(key, value);
+		}
+	}
+	
+	/**
+	 * 解析网络传输的数据行
+	 * @param line
+	 * @param cmd 解析结果，格式不对时命令为空
+	 */
+	public static void parseCmdLine(String line, ChatCmd cmd) {
+		cmd.reset();
+		JSONObject jsonObj;
+		try {
+			jsonObj = JSONObject.fromObject(line);
+		}catch (Exception e) {
+			e.printStackTrace();
+			return;
+		}
+		
+		cmd.setCmd(optString(jsonObj, MsgConst.FIELD_CMD));
+		cmd.setUserName(optString(jsonObj, MsgConst.FIELD_USER_NAME));
+		cmd.setTargetUserName(optString(jsonObj, MsgConst.FIELD_TARGET_USER));
+		cmd.setUserStatus(optString(jsonObj, MsgConst.FIELD_USER_STATUS));
+		cmd.setErrMsg(optString(jsonObj, MsgConst.FIELD_ERR_MSG));
+		cmd.setChatMsg(optString(jsonObj, MsgConst.FIELD_CHAT_MSG));
+		cmd.setBinaryVersion(jsonObj.optInt(MsgConst.FIELD_BINARY_VERSION, 0));
+		
+		JSONArray nameList = jsonObj.optJSONArray(MsgConst.FIELD_USER_NAME_LIST);
+		if(nameList != null) {
+			List<String> names = new ArrayList<>(nameList.size());
+			for(int i = 0; i < nameList.size(); ++i) {
+				names.add(nameList.getString(i));
+			}
+			cmd.setUserNameList(names);
+		}
+	}
+	
+	private static String optString(JSONObject jsonObj, String key) {
+		return jsonObj.has(key) ? jsonObj.getString(key) : null;
+	}
+}
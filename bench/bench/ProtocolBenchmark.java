@@ -0,0 +1,147 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import base.BinaryCodec;
+import base.ChatCmd;
+import base.JsonCodec;
+import base.MsgCompressor;
+import base.MsgConst;
+import base.NetUtils;
+
+/**
+ * 每种命令在不同负载大小下的编码、解码耗时和内存分配
+ * 覆盖NetUtils的字符串接口、JsonCodec的字节接口和二进制协议
+ */
+public class ProtocolBenchmark {
+	
+	/**
+	 * 聊天内容的字符数
+	 */
+	private static final int[] CHAT_SIZES = {16, 256, 4096, 65536};
+	
+	/**
+	 * 用户名单的人数
+	 */
+	private static final int[] LIST_SIZES = {10, 100, 1000};
+	
+	public static void main(String[] args) {
+		Bench.header("协议编解码");
+		for(Map.Entry<String, ChatCmd> sample : buildSamples().entrySet()) {
+			run(sample.getKey(), sample.getValue());
+		}
+		
+		MsgCompressor compressor = new MsgCompressor();
+		for(int size : CHAT_SIZES) {
+			String msg = chatMsg(size);
+			byte[] compressed = compressor.compress(msg);
+			if(compressed == null) {
+				//小于压缩阈值
+				continue;
+			}
+			Bench.run("chat(" + size + ") compress(" + compressed.length + "B)", () -> Bench.sink += compressor.compress(msg).length);
+			Bench.run("chat(" + size + ") decompress", () -> Bench.sink += compressor.decompress(compressed).length());
+		}
+		compressor.close();
+	}
+	
+	private static void run(String name, ChatCmd cmd) {
+		ChatCmd out = new ChatCmd();
+		
+		String line = NetUtils.buildCmdLine(cmd);
+		Bench.run(name + " NetUtils.build", () -> Bench.sink += NetUtils.buildCmdLine(cmd).length());
+		Bench.run(name + " NetUtils.parse", () -> {
+			NetUtils.parseCmdLine(line, out);
+			Bench.sink += out.getCmd().length();
+		});
+		
+		byte[] json = JsonCodec.local().encodeLine(cmd);
+		Bench.run(name + " json.encode(" + json.length + "B)", () -> Bench.sink += JsonCodec.local().encodeLine(cmd).length);
+		Bench.run(name + " json.decode", () -> {
+			JsonCodec.local().decode(json, 0, json.length - 1, out);
+			Bench.sink += out.getCmd().length();
+		});
+		
+		byte[] binary = BinaryCodec.encode(cmd);
+		Bench.run(name + " binary.encode(" + binary.length + "B)", () -> Bench.sink += BinaryCodec.encode(cmd).length);
+		Bench.run(name + " binary.decode", () -> {
+			BinaryCodec.decode(binary, BinaryCodec.LENGTH_FIELD_SIZE, binary.length - BinaryCodec.LENGTH_FIELD_SIZE, out);
+			Bench.sink += out.getCmd().length();
+		});
+	}
+	
+	/**
+	 * 每种命令的样本，聊天和名单按大小各一份
+	 * @return
+	 */
+	static Map<String, ChatCmd> buildSamples() {
+		Map<String, ChatCmd> samples = new LinkedHashMap<>();
+		
+		ChatCmd login = new ChatCmd(MsgConst.CMD_LOGIN);
+		login.setUserName("alice");
+		login.setBinaryVersion(BinaryCodec.VERSION);
+		login.setClientVersion(MsgConst.CLIENT_VERSION);
+		login.setRosterVersion("mvd9cucc:12345");
+		samples.put("login", login);
+		
+		for(int size : LIST_SIZES) {
+			ChatCmd loginResult = new ChatCmd(MsgConst.CMD_LOGIN);
+			loginResult.setUserNameList(userNames(size));
+			loginResult.setBinaryVersion(BinaryCodec.VERSION);
+			loginResult.setRosterVersion("mvd9cucc:12345");
+			samples.put("login-result(" + size + ")", loginResult);
+		}
+		
+		samples.put("logout", new ChatCmd(MsgConst.CMD_LOGOUT));
+		
+		for(int size : CHAT_SIZES) {
+			ChatCmd chat = new ChatCmd(MsgConst.CMD_CHAT_TO);
+			chat.setTargetUserName("bob");
+			chat.setChatMsg(chatMsg(size));
+			samples.put("chat_to(" + size + ")", chat);
+		}
+		
+		ChatCmd status = new ChatCmd(MsgConst.CMD_UPDATE_ONLINE_USER_LIST);
+		status.setUserName("bob");
+		status.setUserStatus(MsgConst.USER_STATUS_LOGIN);
+		samples.put("update_online_users", status);
+		
+		for(int size : LIST_SIZES) {
+			ChatCmd batch = new ChatCmd(MsgConst.CMD_UPDATE_ONLINE_USER_LIST);
+			batch.setLoginUserList(userNames(size));
+			batch.setLogoutUserList(new ArrayList<>());
+			batch.setRosterVersion("mvd9cucc:12345");
+			samples.put("update_online_users(" + size + ")", batch);
+		}
+		
+		ChatCmd roster = new ChatCmd(MsgConst.CMD_ROSTER);
+		roster.setUserNameList(userNames(1000));
+		samples.put("roster(1000)", roster);
+		return samples;
+	}
+	
+	public static List<String> userNames(int size) {
+		List<String> names = new ArrayList<>(size);
+		for(int i = 0; i < size; ++i) {
+			names.add("user" + i);
+		}
+		return names;
+	}
+	
+	/**
+	 * 中英文混合、带换行和引号的聊天内容
+	 * @param size
+	 * @return
+	 */
+	public static String chatMsg(int size) {
+		String pattern = "你好，今天下午开会吗？\"ok\" see you at 3pm\n";
+		StringBuilder msg = new StringBuilder(size);
+		while(msg.length() < size) {
+			msg.append(pattern, 0, Math.min(pattern.length(), size - msg.length()));
+		}
+		return msg.toString();
+	}
+}
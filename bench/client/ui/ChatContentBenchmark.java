@@ -0,0 +1,34 @@
+package client.ui;
+
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.image.BufferedImage;
+
+import bench.Bench;
+import bench.ProtocolBenchmark;
+
+/**
+ * 聊天记录排版的耗时和内存分配，每收到或发送一条消息都会排版一条，切换会话时排版一页
+ */
+public class ChatContentBenchmark {
+	
+	private static final int[] CHAT_SIZES = {16, 256, 4096};
+	
+	/**
+	 * 聊天框的宽度(像素)
+	 */
+	private static final int WIDTH = 760;
+	
+	public static void main(String[] args) {
+		//无界面环境也能取到字体度量
+		FontMetrics fm = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).createGraphics()
+				.getFontMetrics(new Font(Font.MONOSPACED, Font.PLAIN, 13));
+		
+		Bench.header("聊天记录排版");
+		for(int size : CHAT_SIZES) {
+			ChatMessage message = new ChatMessage("alice", System.currentTimeMillis(), ProtocolBenchmark.chatMsg(size));
+			Bench.run("layoutRow(" + size + ")",
+					() -> Bench.sink += TranscriptView.layoutRow(message, fm, WIDTH).height);
+		}
+	}
+}
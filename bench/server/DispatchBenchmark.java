@@ -0,0 +1,122 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import base.BinaryCodec;
+import base.ChatCmd;
+import base.FrameReader;
+import base.MsgConst;
+import bench.Bench;
+import bench.ProtocolBenchmark;
+
+/**
+ * 服务端处理一条命令的耗时和内存分配，从dealWithCmd开始到写出目标连接为止
+ * 连接不经过网络，写出直接在当前线程上写到丢弃数据的输出流
+ * 默认不记请求日志，加-Dchat.logLevel=INFO可以测量带日志的情况
+ */
+public class DispatchBenchmark {
+	
+	private static final int[] CHAT_SIZES = {16, 256, 4096};
+	
+	/**
+	 * 群聊房间的人数
+	 */
+	private static final int[] ROOM_SIZES = {100, 10000};
+	
+	public static void main(String[] args) {
+		if(System.getProperty("chat.logLevel") == null) {
+			System.setProperty("chat.logLevel", "WARN");
+		}
+		
+		Bench.header("命令分发");
+		ChatServer server = new ChatServer(0);
+		ChatClientSocket alice = login(server, "alice");
+		login(server, "bob");
+		
+		for(int size : CHAT_SIZES) {
+			ChatCmd chat = new ChatCmd(MsgConst.CMD_CHAT_TO);
+			chat.setTargetUserName("bob");
+			chat.setChatMsg(ProtocolBenchmark.chatMsg(size));
+			Bench.run("chat_to(" + size + ")", () -> server.dealWithCmd(alice, chat));
+		}
+		
+		ChatCmd offline = new ChatCmd(MsgConst.CMD_CHAT_TO);
+		offline.setTargetUserName("nobody");
+		offline.setChatMsg("hi");
+		Bench.run("chat_to 对方不在线", () -> server.dealWithCmd(alice, offline));
+		
+		ChatClientSocket carol = newClientSocket();
+		ChatCmd login = loginCmd("carol");
+		ChatCmd logout = new ChatCmd(MsgConst.CMD_LOGOUT);
+		Bench.run("login+logout", () -> {
+			server.dealWithCmd(carol, login);
+			server.dealWithCmd(carol, logout);
+		});
+		
+		ChatCmd unknown = new ChatCmd("unknown");
+		Bench.run("未知命令", () -> server.dealWithCmd(alice, unknown));
+		
+		for(int size : ROOM_SIZES) {
+			runRoom(server, size);
+		}
+	}
+	
+	/**
+	 * 群聊消息发给房间内所有成员
+	 * @param server
+	 * @param size
+	 */
+	private static void runRoom(ChatServer server, int size) {
+		String roomName = "room" + size;
+		ChatCmd create = new ChatCmd(MsgConst.CMD_ROOM_CREATE);
+		create.setRoomName(roomName);
+		ChatClientSocket owner = login(server, roomName + "-owner");
+		server.dealWithCmd(owner, create);
+		
+		ChatCmd join = new ChatCmd(MsgConst.CMD_ROOM_JOIN);
+		join.setRoomName(roomName);
+		for(int i = 1; i < size; ++i) {
+			server.dealWithCmd(login(server, roomName + "-" + i), join);
+		}
+		
+		ChatCmd roomMsg = new ChatCmd(MsgConst.CMD_ROOM_MSG);
+		roomMsg.setRoomName(roomName);
+		roomMsg.setChatMsg(ProtocolBenchmark.chatMsg(256));
+		Bench.run("room_msg(" + size + "人)", () -> server.dealWithCmd(owner, roomMsg));
+	}
+	
+	private static ChatClientSocket login(ChatServer server, String userName) {
+		ChatClientSocket clientSocket = newClientSocket();
+		server.dealWithCmd(clientSocket, loginCmd(userName));
+		return clientSocket;
+	}
+	
+	private static ChatCmd loginCmd(String userName) {
+		ChatCmd login = new ChatCmd(MsgConst.CMD_LOGIN);
+		login.setUserName(userName);
+		login.setBinaryVersion(BinaryCodec.VERSION);
+		login.setClientVersion(MsgConst.CLIENT_VERSION);
+		return login;
+	}
+	
+	/**
+	 * 不连网络的客户端连接，写出在当前线程上完成
+	 * @return
+	 */
+	private static ChatClientSocket newClientSocket() {
+		OutputStream discard = new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) {
+				Bench.sink += len;
+			}
+		};
+		return new ChatClientSocket(new Socket(), new FrameReader(new ByteArrayInputStream(new byte[0])), discard,
+				Runnable::run, new ServerMetrics());
+	}
+}
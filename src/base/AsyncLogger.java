@@ -0,0 +1,331 @@
+package base;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步日志
+ * 业务线程只把日志放进无锁的环形缓冲区，格式化和输出由后台线程完成，
+ * 缓冲区满时丢弃日志而不是等待，业务线程不会因为控制台或文件阻塞
+ *
+ * 配置(系统属性):
+ * chat.logLevel 日志级别，默认INFO
+ * chat.logSampleRate 每个连接每多少条请求记录一条，默认1即全部记录
+ * chat.logRedactChat 是否隐藏聊天内容，默认false
+ * chat.logBufferSize 缓冲区条数，取2的幂，默认8192
+ * chat.logFile 输出文件，默认输出到控制台
+ */
+public class AsyncLogger {
+	
+	/**
+	 * 日志级别
+	 */
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR
+	}
+	
+	private static final Level LEVEL = Level.valueOf(System.getProperty("chat.logLevel", Level.INFO.name()).toUpperCase());
+	
+	private static final int SAMPLE_RATE = Math.max(1, Integer.getInteger("chat.logSampleRate", 1));
+	
+	private static final boolean REDACT_CHAT = Boolean.getBoolean("chat.logRedactChat");
+	
+	private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+			.withZone(ZoneId.systemDefault());
+	
+	/**
+	 * 空闲时后台线程最长的等待时间
+	 */
+	private static final long IDLE_PARK_NANOS = 100_000_000L;
+	
+	private static final AsyncLogger INSTANCE = new AsyncLogger(Integer.getInteger("chat.logBufferSize", 8192),
+			System.getProperty("chat.logFile"));
+	
+	/**
+	 * 预先分配的日志条目，重复使用
+	 */
+	private final Entry[] entries;
+	
+	/**
+	 * 每个位置的序号，等于写入位置+1时表示可读，等于读取位置+容量时表示可写
+	 */
+	private final AtomicLongArray sequences;
+	
+	private final int mask;
+	
+	/**
+	 * 下一个写入位置，多个业务线程竞争
+	 */
+	private final AtomicLong tail = new AtomicLong();
+	
+	/**
+	 * 下一个读取位置，只有后台线程使用
+	 */
+	private long head;
+	
+	/**
+	 * 缓冲区满时丢弃的条数
+	 */
+	private final AtomicLong dropped = new AtomicLong();
+	
+	private final PrintWriter out;
+	
+	private final Thread drainer;
+	
+	/**
+	 * 后台线程是否在等待新日志
+	 */
+	private volatile boolean waiting;
+	
+	/**
+	 * 是否正在退出
+	 */
+	private volatile boolean stopping;
+	
+	private AsyncLogger(int bufferSize, String logFile) {
+		int capacity = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+		entries = new Entry[capacity];
+		sequences = new AtomicLongArray(capacity);
+		for(int i = 0; i < capacity; ++i) {
+			entries[i] = new Entry();
+			sequences.set(i, i);
+		}
+		mask = capacity - 1;
+		out = new PrintWriter(new BufferedWriter(openWriter(logFile), 64 * 1024), false);
+		
+		drainer = new Thread(this::drainLoop, "async-logger");
+		drainer.setDaemon(true);
+		drainer.start();
+		
+		//退出前把剩下的日志写完
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			stopping = true;
+			LockSupport.unpark(drainer);
+			try {
+				drainer.join(1000);
+			} catch (InterruptedException e) {
+			}
+		}));
+	}
+	
+	private static Writer openWriter(String logFile) {
+		if(logFile != null) {
+			try {
+				return new OutputStreamWriter(new FileOutputStream(logFile, true), StandardCharsets.UTF_8);
+			} catch (IOException e) {
+				System.err.println("无法打开日志文件" + logFile + "，输出到控制台: " + e.getMessage());
+			}
+		}
+		return new OutputStreamWriter(System.out);
+	}
+	
+	/**
+	 * 是否记录该级别的日志，拼接日志内容前先判断
+	 * @param level
+	 * @return
+	 */
+	public static boolean isEnabled(Level level) {
+		return level.compareTo(LEVEL) >= 0;
+	}
+	
+	public static void debug(SocketAddress address, String msg) {
+		log(Level.DEBUG, address, msg, null);
+	}
+	
+	public static void info(String msg) {
+		log(Level.INFO, null, msg, null);
+	}
+	
+	public static void info(SocketAddress address, String msg) {
+		log(Level.INFO, address, msg, null);
+	}
+	
+	public static void warn(String msg) {
+		log(Level.WARN, null, msg, null);
+	}
+	
+	public static void error(String msg, Throwable error) {
+		log(Level.ERROR, null, msg, error);
+	}
+	
+	public static void error(SocketAddress address, String msg, Throwable error) {
+		log(Level.ERROR, address, msg, error);
+	}
+	
+	/**
+	 * 记录一条日志，不会阻塞，缓冲区满时丢弃
+	 * @param level
+	 * @param address 客户端地址，可以为空
+	 * @param msg
+	 * @param error 可以为空
+	 */
+	public static void log(Level level, SocketAddress address, String msg, Throwable error) {
+		if(isEnabled(level)) {
+			INSTANCE.offer(level, address, msg, error);
+		}
+	}
+	
+	/**
+	 * 命令的日志形式，配置了隐藏聊天内容时只记录长度
+	 * 命令对象可能被重复使用，需在当前线程上调用
+	 * @param cmd
+	 * @return
+	 */
+	public static String describe(ChatCmd cmd) {
+		String chatMsg = cmd.getChatMsg();
+		if(!REDACT_CHAT || chatMsg == null) {
+			return cmd.toString();
+		}
+		
+		cmd.setChatMsg("<" + chatMsg.length() + "个字符>");
+		try {
+			return cmd.toString();
+		}finally {
+			cmd.setChatMsg(chatMsg);
+		}
+	}
+	
+	private void offer(Level level, SocketAddress address, String msg, Throwable error) {
+		long pos = tail.get();
+		while(true) {
+			long diff = sequences.get((int) pos & mask) - pos;
+			if(diff == 0) {
+				if(tail.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = tail.get();
+			}else if(diff < 0) {
+				//缓冲区满
+				dropped.incrementAndGet();
+				return;
+			}else {
+				pos = tail.get();
+			}
+		}
+		
+		int index = (int) pos & mask;
+		Entry entry = entries[index];
+		entry.time = System.currentTimeMillis();
+		entry.level = level;
+		entry.address = address;
+		entry.msg = msg;
+		entry.error = error;
+		sequences.lazySet(index, pos + 1);
+		
+		if(waiting) {
+			LockSupport.unpark(drainer);
+		}
+	}
+	
+	private void drainLoop() {
+		StringBuilder line = new StringBuilder(256);
+		while(true) {
+			boolean drained = drain(line);
+			reportDropped();
+			if(drained) {
+				continue;
+			}
+			
+			out.flush();
+			if(stopping) {
+				return;
+			}
+			
+			waiting = true;
+			if(isEmpty()) {
+				LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+			}
+			waiting = false;
+		}
+	}
+	
+	/**
+	 * 写出缓冲区里当前的日志，最多一圈，以便持续有日志时也能报告丢弃的条数
+	 * @param line
+	 * @return 是否写出了日志
+	 */
+	private boolean drain(StringBuilder line) {
+		boolean drained = false;
+		for(int i = 0; i < entries.length && !isEmpty(); ++i) {
+			int index = (int) head & mask;
+			Entry entry = entries[index];
+			line.setLength(0);
+			format(entry, line);
+			out.println(line);
+			if(entry.error != null) {
+				entry.error.printStackTrace(out);
+			}
+			entry.clear();
+			sequences.lazySet(index, head + entries.length);
+			++head;
+			drained = true;
+		}
+		return drained;
+	}
+	
+	private boolean isEmpty() {
+		return sequences.get((int) head & mask) != head + 1;
+	}
+	
+	private void reportDropped() {
+		long count = dropped.getAndSet(0);
+		if(count > 0) {
+			out.println(TIME_FORMAT.format(Instant.now()) + " " + Level.WARN + " 日志缓冲区已满，丢弃了" + count + "条日志。");
+		}
+	}
+	
+	private static void format(Entry entry, StringBuilder line) {
+		TIME_FORMAT.formatTo(Instant.ofEpochMilli(entry.time), line);
+		line.append(' ').append(entry.level).append(' ');
+		if(entry.address instanceof InetSocketAddress) {
+			InetSocketAddress inetAddress = (InetSocketAddress) entry.address;
+			line.append(inetAddress.getAddress()).append('-').append(inetAddress.getPort()).append(": ");
+		}else if(entry.address != null) {
+			line.append(entry.address).append(": ");
+		}
+		line.append(entry.msg);
+	}
+	
+	/**
+	 * 每个连接的请求日志采样，只能在处理该连接的线程上使用
+	 */
+	public static class Sampler {
+		
+		private int count;
+		
+		/**
+		 * 这一条请求是否记录
+		 * @return
+		 */
+		public boolean sample() {
+			return SAMPLE_RATE == 1 || count++ % SAMPLE_RATE == 0;
+		}
+	}
+	
+	private static class Entry {
+		long time;
+		Level level;
+		SocketAddress address;
+		String msg;
+		Throwable error;
+		
+		void clear() {
+			address = null;
+			msg = null;
+			error = null;
+		}
+	}
+}
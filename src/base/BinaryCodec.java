@@ -0,0 +1,414 @@
+package base;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 二进制协议编解码
+ * 帧格式: [4字节长度][1字节命令id][字段...]
+ * 字段格式: [1字节字段id][varint长度][内容]，字符串内容为UTF-8，列表内容为[varint个数]{[varint长度][UTF-8]}
+ * 不认识的字段按长度跳过，便于以后加字段
+ */
+public class BinaryCodec {
+	
+	/**
+	 * 当前版本
+	 */
+	public static final int VERSION = 1;
+	
+	/**
+	 * 长度前缀的字节数
+	 */
+	public static final int LENGTH_FIELD_SIZE = 4;
+	
+	/**
+	 * 帧内容最大长度
+	 */
+	public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+	
+	private static final byte CMD_ID_LOGIN = 1;
+	private static final byte CMD_ID_LOGOUT = 2;
+	private static final byte CMD_ID_CHAT_TO = 3;
+	private static final byte CMD_ID_UPDATE_ONLINE_USER_LIST = 4;
+	private static final byte CMD_ID_ROSTER = 5;
+	private static final byte CMD_ID_NODE_SYNC = 6;
+	private static final byte CMD_ID_HISTORY = 7;
+	private static final byte CMD_ID_ROOM_CREATE = 8;
+	private static final byte CMD_ID_ROOM_JOIN = 9;
+	private static final byte CMD_ID_ROOM_LEAVE = 10;
+	private static final byte CMD_ID_ROOM_MSG = 11;
+	private static final byte CMD_ID_PING = 12;
+	private static final byte CMD_ID_PONG = 13;
+	
+	private static final byte FIELD_ID_USER_NAME = 1;
+	private static final byte FIELD_ID_TARGET_USER = 2;
+	private static final byte FIELD_ID_USER_STATUS = 3;
+	private static final byte FIELD_ID_ERR_MSG = 4;
+	private static final byte FIELD_ID_CHAT_MSG = 5;
+	private static final byte FIELD_ID_USER_NAME_LIST = 6;
+	private static final byte FIELD_ID_BINARY_VERSION = 7;
+	private static final byte FIELD_ID_CLIENT_VERSION = 8;
+	private static final byte FIELD_ID_LOGIN_USER_LIST = 9;
+	private static final byte FIELD_ID_LOGOUT_USER_LIST = 10;
+	private static final byte FIELD_ID_ROSTER_VERSION = 11;
+	private static final byte FIELD_ID_SEQ = 12;
+	private static final byte FIELD_ID_TIME = 13;
+	private static final byte FIELD_ID_LIMIT = 14;
+	private static final byte FIELD_ID_DIRECTION = 15;
+	private static final byte FIELD_ID_ROOM_NAME = 16;
+	private static final byte FIELD_ID_COMPRESSION = 17;
+	private static final byte FIELD_ID_COMPRESSED_MSG = 18;
+	
+	/**
+	 * 编码成一帧，包含长度前缀
+	 * @param cmd
+	 * @return
+	 */
+	public static byte[] encode(ChatCmd cmd) {
+		ByteArrayBuilder out = new ByteArrayBuilder(64);
+		out.skip(LENGTH_FIELD_SIZE);
+		out.write(toCmdId(cmd.getCmd()));
+		writeStringField(out, FIELD_ID_USER_NAME, cmd.getUserName());
+		writeStringField(out, FIELD_ID_TARGET_USER, cmd.getTargetUserName());
+		writeStringField(out, FIELD_ID_USER_STATUS, cmd.getUserStatus());
+		writeStringField(out, FIELD_ID_ERR_MSG, cmd.getErrMsg());
+		writeStringField(out, FIELD_ID_CHAT_MSG, cmd.getChatMsg());
+		writeListField(out, FIELD_ID_USER_NAME_LIST, cmd.getUserNameList());
+		writeListField(out, FIELD_ID_LOGIN_USER_LIST, cmd.getLoginUserList());
+		writeListField(out, FIELD_ID_LOGOUT_USER_LIST, cmd.getLogoutUserList());
+		writeStringField(out, FIELD_ID_ROSTER_VERSION, cmd.getRosterVersion());
+		writeIntField(out, FIELD_ID_BINARY_VERSION, cmd.getBinaryVersion());
+		writeIntField(out, FIELD_ID_CLIENT_VERSION, cmd.getClientVersion());
+		writeIntField(out, FIELD_ID_SEQ, cmd.getSeq());
+		writeLongField(out, FIELD_ID_TIME, cmd.getTime());
+		writeIntField(out, FIELD_ID_LIMIT, cmd.getLimit());
+		writeStringField(out, FIELD_ID_DIRECTION, cmd.getDirection());
+		writeStringField(out, FIELD_ID_ROOM_NAME, cmd.getRoomName());
+		writeStringField(out, FIELD_ID_COMPRESSION, cmd.getCompression());
+		writeBytesField(out, FIELD_ID_COMPRESSED_MSG, cmd.getCompressedMsg());
+		
+		byte[] data = out.toByteArray();
+		writeInt(data, 0, data.length - LENGTH_FIELD_SIZE);
+		return data;
+	}
+	
+	/**
+	 * 读取长度前缀
+	 * @param buf
+	 * @param off
+	 * @return
+	 */
+	public static int readLength(byte[] buf, int off) {
+		return ((buf[off] & 0xff) << 24) | ((buf[off + 1] & 0xff) << 16) | ((buf[off + 2] & 0xff) << 8) | (buf[off + 3] & 0xff);
+	}
+	
+	/**
+	 * 解码一帧的内容(不含长度前缀)
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @param cmd 解码结果，不认识的命令为空
+	 * @throws IllegalArgumentException 帧内容不完整或长度超出帧
+	 */
+	public static void decode(byte[] buf, int off, int len, ChatCmd cmd) {
+		cmd.reset();
+		if(len < 1) {
+			throw new IllegalArgumentException("帧长度错误: " + len);
+		}
+		
+		int end = off + len;
+		int[] pos = {off};
+		cmd.setCmd(toCmd(buf[pos[0]++]));
+		
+		while(pos[0] < end) {
+			byte fieldId = buf[pos[0]++];
+			int fieldLen = readVarint(buf, pos, end);
+			//先比较剩余长度，避免相加溢出
+			if(fieldLen < 0 || fieldLen > end - pos[0]) {
+				throw new IllegalArgumentException("字段长度错误: " + fieldLen);
+			}
+			int fieldEnd = pos[0] + fieldLen;
+			
+			switch (fieldId) {
+			case FIELD_ID_USER_NAME:
+				cmd.setUserName(readString(buf, pos[0], fieldLen));
+				break;
+			case FIELD_ID_TARGET_USER:
+				cmd.setTargetUserName(readString(buf, pos[0], fieldLen));
+				break;
+			case FIELD_ID_USER_STATUS:
+				cmd.setUserStatus(readString(buf, pos[0], fieldLen));
+				break;
+			case FIELD_ID_ERR_MSG:
+				cmd.setErrMsg(readString(buf, pos[0], fieldLen));
+				break;
+			case FIELD_ID_CHAT_MSG:
+				cmd.setChatMsg(readString(buf, pos[0], fieldLen));
+				break;
+			case FIELD_ID_USER_NAME_LIST:
+				cmd.setUserNameList(readList(buf, pos[0], fieldEnd));
+				break;
+			case FIELD_ID_LOGIN_USER_LIST:
+				cmd.setLoginUserList(readList(buf, pos[0], fieldEnd));
+				break;
+			case FIELD_ID_LOGOUT_USER_LIST:
+				cmd.setLogoutUserList(readList(buf, pos[0], fieldEnd));
+				break;
+			case FIELD_ID_ROSTER_VERSION:
+				cmd.setRosterVersion(readString(buf, pos[0], fieldLen));
+				break;
+			case FIELD_ID_BINARY_VERSION:
+				cmd.setBinaryVersion(readVarint(buf, new int[] {pos[0]}, fieldEnd));
+				break;
+			case FIELD_ID_CLIENT_VERSION:
+				cmd.setClientVersion(readVarint(buf, new int[] {pos[0]}, fieldEnd));
+				break;
+			case FIELD_ID_SEQ:
+				cmd.setSeq(readVarint(buf, new int[] {pos[0]}, fieldEnd));
+				break;
+			case FIELD_ID_TIME:
+				cmd.setTime(readVarlong(buf, pos[0], fieldLen));
+				break;
+			case FIELD_ID_LIMIT:
+				cmd.setLimit(readVarint(buf, new int[] {pos[0]}, fieldEnd));
+				break;
+			case FIELD_ID_DIRECTION:
+				cmd.setDirection(readString(buf, pos[0], fieldLen));
+				break;
+			case FIELD_ID_ROOM_NAME:
+				cmd.setRoomName(readString(buf, pos[0], fieldLen));
+				break;
+			case FIELD_ID_COMPRESSION:
+				cmd.setCompression(readString(buf, pos[0], fieldLen));
+				break;
+			case FIELD_ID_COMPRESSED_MSG:
+				cmd.setCompressedMsg(Arrays.copyOfRange(buf, pos[0], fieldEnd));
+				break;
+			default:
+				break;
+			}
+			pos[0] = fieldEnd;
+		}
+	}
+	
+	private static byte toCmdId(String cmd) {
+		switch (cmd) {
+		case MsgConst.CMD_LOGIN:
+			return CMD_ID_LOGIN;
+		case MsgConst.CMD_LOGOUT:
+			return CMD_ID_LOGOUT;
+		case MsgConst.CMD_CHAT_TO:
+			return CMD_ID_CHAT_TO;
+		case MsgConst.CMD_UPDATE_ONLINE_USER_LIST:
+			return CMD_ID_UPDATE_ONLINE_USER_LIST;
+		case MsgConst.CMD_ROSTER:
+			return CMD_ID_ROSTER;
+		case MsgConst.CMD_NODE_SYNC:
+			return CMD_ID_NODE_SYNC;
+		case MsgConst.CMD_HISTORY:
+			return CMD_ID_HISTORY;
+		case MsgConst.CMD_ROOM_CREATE:
+			return CMD_ID_ROOM_CREATE;
+		case MsgConst.CMD_ROOM_JOIN:
+			return CMD_ID_ROOM_JOIN;
+		case MsgConst.CMD_ROOM_LEAVE:
+			return CMD_ID_ROOM_LEAVE;
+		case MsgConst.CMD_ROOM_MSG:
+			return CMD_ID_ROOM_MSG;
+		case MsgConst.CMD_PING:
+			return CMD_ID_PING;
+		case MsgConst.CMD_PONG:
+			return CMD_ID_PONG;
+		default:
+			throw new IllegalArgumentException("不支持的命令: " + cmd);
+		}
+	}
+	
+	private static String toCmd(byte cmdId) {
+		switch (cmdId) {
+		case CMD_ID_LOGIN:
+			return MsgConst.CMD_LOGIN;
+		case CMD_ID_LOGOUT:
+			return MsgConst.CMD_LOGOUT;
+		case CMD_ID_CHAT_TO:
+			return MsgConst.CMD_CHAT_TO;
+		case CMD_ID_UPDATE_ONLINE_USER_LIST:
+			return MsgConst.CMD_UPDATE_ONLINE_USER_LIST;
+		case CMD_ID_ROSTER:
+			return MsgConst.CMD_ROSTER;
+		case CMD_ID_NODE_SYNC:
+			return MsgConst.CMD_NODE_SYNC;
+		case CMD_ID_HISTORY:
+			return MsgConst.CMD_HISTORY;
+		case CMD_ID_ROOM_CREATE:
+			return MsgConst.CMD_ROOM_CREATE;
+		case CMD_ID_ROOM_JOIN:
+			return MsgConst.CMD_ROOM_JOIN;
+		case CMD_ID_ROOM_LEAVE:
+			return MsgConst.CMD_ROOM_LEAVE;
+		case CMD_ID_ROOM_MSG:
+			return MsgConst.CMD_ROOM_MSG;
+		case CMD_ID_PING:
+			return MsgConst.CMD_PING;
+		case CMD_ID_PONG:
+			return MsgConst.CMD_PONG;
+		default:
+			return null;
+		}
+	}
+	
+	private static void writeStringField(ByteArrayBuilder out, byte fieldId, String value) {
+		if(value == null) {
+			return;
+		}
+		
+		byte[] data = value.getBytes(StandardCharsets.UTF_8);
+		out.write(fieldId);
+		out.writeVarint(data.length);
+		out.write(data, 0, data.length);
+	}
+	
+	private static void writeBytesField(ByteArrayBuilder out, byte fieldId, byte[] value) {
+		if(value == null) {
+			return;
+		}
+		
+		out.write(fieldId);
+		out.writeVarint(value.length);
+		out.write(value, 0, value.length);
+	}
+	
+	private static void writeIntField(ByteArrayBuilder out, byte fieldId, int value) {
+		if(value <= 0) {
+			return;
+		}
+		
+		out.write(fieldId);
+		out.writeVarint(varintSize(value));
+		out.writeVarint(value);
+	}
+	
+	/**
+	 * 长整数按小端每字节7位写出，字段长度就是字节数
+	 * @param out
+	 * @param fieldId
+	 * @param value
+	 */
+	private static void writeLongField(ByteArrayBuilder out, byte fieldId, long value) {
+		if(value <= 0) {
+			return;
+		}
+		
+		int size = 1;
+		for(long v = value >>> 7; v != 0; v >>>= 7) {
+			++size;
+		}
+		out.write(fieldId);
+		out.writeVarint(size);
+		while((value & ~0x7fL) != 0) {
+			out.write((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+	
+	private static long readVarlong(byte[] buf, int off, int len) {
+		long value = 0;
+		for(int i = 0; i < len && i < 10; ++i) {
+			value |= (long) (buf[off + i] & 0x7f) << (7 * i);
+		}
+		return value;
+	}
+	
+	private static void writeListField(ByteArrayBuilder out, byte fieldId, List<String> values) {
+		if(values == null) {
+			return;
+		}
+		
+		byte[][] items = new byte[values.size()][];
+		int len = varintSize(items.length);
+		for(int i = 0; i < items.length; ++i) {
+			items[i] = values.get(i).getBytes(StandardCharsets.UTF_8);
+			len += varintSize(items[i].length) + items[i].length;
+		}
+		
+		out.write(fieldId);
+		out.writeVarint(len);
+		out.writeVarint(items.length);
+		for(byte[] item : items) {
+			out.writeVarint(item.length);
+			out.write(item, 0, item.length);
+		}
+	}
+	
+	/**
+	 * 读取列表，个数和每项的长度都不能超出字段
+	 * @param buf
+	 * @param off
+	 * @param end 字段的结束位置
+	 * @return
+	 */
+	private static List<String> readList(byte[] buf, int off, int end) {
+		int[] pos = {off};
+		int count = readVarint(buf, pos, end);
+		//每项至少有1字节的长度
+		if(count < 0 || count > end - pos[0]) {
+			throw new IllegalArgumentException("列表个数错误: " + count);
+		}
+		
+		List<String> values = new ArrayList<>(count);
+		for(int i = 0; i < count; ++i) {
+			int len = readVarint(buf, pos, end);
+			if(len < 0 || len > end - pos[0]) {
+				throw new IllegalArgumentException("列表项长度错误: " + len);
+			}
+			values.add(readString(buf, pos[0], len));
+			pos[0] += len;
+		}
+		return values;
+	}
+	
+	private static String readString(byte[] buf, int off, int len) {
+		return new String(buf, off, len, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * 读取varint
+	 * @param buf
+	 * @param pos 读取位置，读完后后移
+	 * @param end 不能读到的位置
+	 * @return
+	 */
+	static int readVarint(byte[] buf, int[] pos, int end) {
+		int value = 0;
+		for(int shift = 0; shift < 32; shift += 7) {
+			if(pos[0] >= end) {
+				throw new IllegalArgumentException("varint不完整");
+			}
+			byte b = buf[pos[0]++];
+			value |= (b & 0x7f) << shift;
+			if((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("varint过长");
+	}
+	
+	static int varintSize(int value) {
+		int size = 1;
+		while((value & ~0x7f) != 0) {
+			value >>>= 7;
+			++size;
+		}
+		return size;
+	}
+	
+	private static void writeInt(byte[] buf, int off, int value) {
+		buf[off] = (byte) (value >>> 24);
+		buf[off + 1] = (byte) (value >>> 16);
+		buf[off + 2] = (byte) (value >>> 8);
+		buf[off + 3] = (byte) value;
+	}
+}
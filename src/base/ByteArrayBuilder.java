@@ -0,0 +1,54 @@
+package base;
+
+import java.util.Arrays;
+
+/**
+ * 可增长的字节数组，不同步，用于编码
+ */
+class ByteArrayBuilder {
+	
+	private byte[] buf;
+	private int len;
+	
+	ByteArrayBuilder(int capacity) {
+		buf = new byte[capacity];
+	}
+	
+	void write(int b) {
+		ensure(1);
+		buf[len++] = (byte) b;
+	}
+	
+	void write(byte[] data, int off, int n) {
+		ensure(n);
+		System.arraycopy(data, off, buf, len, n);
+		len += n;
+	}
+	
+	void writeVarint(int value) {
+		while((value & ~0x7f) != 0) {
+			write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		write(value);
+	}
+	
+	/**
+	 * 跳过n个字节，稍后再填
+	 * @param n
+	 */
+	void skip(int n) {
+		ensure(n);
+		len += n;
+	}
+	
+	byte[] toByteArray() {
+		return Arrays.copyOf(buf, len);
+	}
+	
+	private void ensure(int n) {
+		if(len + n > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(len + n, buf.length * 2));
+		}
+	}
+}
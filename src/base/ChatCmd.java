@@ -0,0 +1,294 @@
+package base;
+
+import java.util.List;
+
+/**
+ * 客户端、服务端之间传输的一条命令
+ * 与传输格式(JSON行或二进制帧)无关，可以重复使用以减少对象创建
+ */
+public class ChatCmd {
+	
+	/**
+	 * 命令
+	 */
+	private String cmd;
+	
+	/**
+	 * 用户名
+	 */
+	private String userName;
+	
+	/**
+	 * 目标用户
+	 */
+	private String targetUserName;
+	
+	/**
+	 * 用户状态
+	 */
+	private String userStatus;
+	
+	/**
+	 * 错误信息
+	 */
+	private String errMsg;
+	
+	/**
+	 * 聊天内容
+	 */
+	private String chatMsg;
+	
+	/**
+	 * 用户名字列表
+	 */
+	private List<String> userNameList;
+	
+	/**
+	 * 二进制协议版本，0表示不使用
+	 */
+	private int binaryVersion;
+	
+	/**
+	 * 客户端版本，0表示老客户端
+	 */
+	private int clientVersion;
+	
+	/**
+	 * 批量更新时上线的用户
+	 */
+	private List<String> loginUserList;
+	
+	/**
+	 * 批量更新时下线的用户
+	 */
+	private List<String> logoutUserList;
+	
+	/**
+	 * 在线用户名单版本
+	 */
+	private String rosterVersion;
+	
+	/**
+	 * 聊天记录的序号或游标
+	 */
+	private int seq;
+	
+	/**
+	 * 聊天记录的时间
+	 */
+	private long time;
+	
+	/**
+	 * 聊天记录的条数
+	 */
+	private int limit;
+	
+	/**
+	 * 聊天记录的查询方向
+	 */
+	private String direction;
+	
+	/**
+	 * 群聊房间名
+	 */
+	private String roomName;
+	
+	/**
+	 * 支持或协商好的压缩算法
+	 */
+	private String compression;
+	
+	/**
+	 * 压缩后的聊天内容，有该字段时没有chatMsg
+	 */
+	private byte[] compressedMsg;
+	
+	public ChatCmd() {
+	}
+	
+	public ChatCmd(String cmd) {
+		this.cmd = cmd;
+	}
+	
+	/**
+	 * 清空所有字段，以便重复使用
+	 */
+	public void reset() {
+		cmd = null;
+		userName = null;
+		targetUserName = null;
+		userStatus = null;
+		errMsg = null;
+		chatMsg = null;
+		userNameList = null;
+		binaryVersion = 0;
+		clientVersion = 0;
+		loginUserList = null;
+		logoutUserList = null;
+		rosterVersion = null;
+		seq = 0;
+		time = 0;
+		limit = 0;
+		direction = null;
+		roomName = null;
+		compression = null;
+		compressedMsg = null;
+	}
+	
+	public String getCmd() {
+		return cmd;
+	}
+	
+	public void setCmd(String cmd) {
+		this.cmd = cmd;
+	}
+	
+	public String getUserName() {
+		return userName;
+	}
+	
+	public void setUserName(String userName) {
+		this.userName = userName;
+	}
+	
+	public String getTargetUserName() {
+		return targetUserName;
+	}
+	
+	public void setTargetUserName(String targetUserName) {
+		this.targetUserName = targetUserName;
+	}
+	
+	public String getUserStatus() {
+		return userStatus;
+	}
+	
+	public void setUserStatus(String userStatus) {
+		this.userStatus = userStatus;
+	}
+	
+	public String getErrMsg() {
+		return errMsg;
+	}
+	
+	public void setErrMsg(String errMsg) {
+		this.errMsg = errMsg;
+	}
+	
+	public String getChatMsg() {
+		return chatMsg;
+	}
+	
+	public void setChatMsg(String chatMsg) {
+		this.chatMsg = chatMsg;
+	}
+	
+	public List<String> getUserNameList() {
+		return userNameList;
+	}
+	
+	public void setUserNameList(List<String> userNameList) {
+		this.userNameList = userNameList;
+	}
+	
+	public int getBinaryVersion() {
+		return binaryVersion;
+	}
+	
+	public void setBinaryVersion(int binaryVersion) {
+		this.binaryVersion = binaryVersion;
+	}
+	
+	public int getClientVersion() {
+		return clientVersion;
+	}
+	
+	public void setClientVersion(int clientVersion) {
+		this.clientVersion = clientVersion;
+	}
+	
+	public List<String> getLoginUserList() {
+		return loginUserList;
+	}
+	
+	public void setLoginUserList(List<String> loginUserList) {
+		this.loginUserList = loginUserList;
+	}
+	
+	public List<String> getLogoutUserList() {
+		return logoutUserList;
+	}
+	
+	public void setLogoutUserList(List<String> logoutUserList) {
+		this.logoutUserList = logoutUserList;
+	}
+	
+	public String getRosterVersion() {
+		return rosterVersion;
+	}
+	
+	public void setRosterVersion(String rosterVersion) {
+		this.rosterVersion = rosterVersion;
+	}
+	
+	public int getSeq() {
+		return seq;
+	}
+	
+	public void setSeq(int seq) {
+		this.seq = seq;
+	}
+	
+	public long getTime() {
+		return time;
+	}
+	
+	public void setTime(long time) {
+		this.time = time;
+	}
+	
+	public int getLimit() {
+		return limit;
+	}
+	
+	public void setLimit(int limit) {
+		this.limit = limit;
+	}
+	
+	public String getDirection() {
+		return direction;
+	}
+	
+	public void setDirection(String direction) {
+		this.direction = direction;
+	}
+	
+	public String getRoomName() {
+		return roomName;
+	}
+	
+	public void setRoomName(String roomName) {
+		this.roomName = roomName;
+	}
+	
+	public String getCompression() {
+		return compression;
+	}
+	
+	public void setCompression(String compression) {
+		this.compression = compression;
+	}
+	
+	public byte[] getCompressedMsg() {
+		return compressedMsg;
+	}
+	
+	public void setCompressedMsg(byte[] compressedMsg) {
+		this.compressedMsg = compressedMsg;
+	}
+	
+	@Override
+	public String toString() {
+		return NetUtils.buildCmdLine(this);
+	}
+}
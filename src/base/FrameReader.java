@@ -0,0 +1,126 @@
+package base;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * 从阻塞流中读取命令，支持JSON行和二进制帧两种格式
+ * 不使用BufferedReader，这样登录协商后可以在同一个流上切换到二进制
+ */
+public class FrameReader {
+	
+	private static final int INITIAL_BUF_SIZE = 256;
+	
+	/**
+	 * 读过超过该大小的命令后缓冲区缩回初始大小，连接不一直占着最大的那条命令的内存
+	 */
+	private static final int MAX_RETAINED_SIZE = 64 * 1024;
+	
+	private final InputStream in;
+	
+	/**
+	 * 当前行或帧的数据
+	 */
+	private byte[] buf = new byte[INITIAL_BUF_SIZE];
+	
+	/**
+	 * 是否二进制格式
+	 */
+	private volatile boolean binary;
+	
+	public FrameReader(InputStream in) {
+		this.in = new BufferedInputStream(in);
+	}
+	
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+	}
+	
+	public boolean isBinary() {
+		return binary;
+	}
+	
+	/**
+	 * 读取一条命令
+	 * @param cmd 读取结果，格式不对时命令为空
+	 * @return 连接已断开时返回false
+	 * @throws IOException
+	 */
+	public boolean read(ChatCmd cmd) throws IOException {
+		boolean read = binary ? readFrame(cmd) : readLine(cmd);
+		//解码后命令不再引用缓冲区
+		if(buf.length > MAX_RETAINED_SIZE) {
+			buf = new byte[INITIAL_BUF_SIZE];
+		}
+		return read;
+	}
+	
+	private boolean readLine(ChatCmd cmd) throws IOException {
+		int len = 0;
+		int b;
+		while((b = in.read()) != '\n') {
+			if(b < 0) {
+				return false;
+			}
+			//与二进制帧一样限制长度
+			if(len >= BinaryCodec.MAX_FRAME_LENGTH) {
+				throw new IOException("行长度超过上限");
+			}
+			ensure(len + 1);
+			buf[len++] = (byte) b;
+		}
+		
+		//兼容\r\n
+		if(len > 0 && buf[len - 1] == '\r') {
+			--len;
+		}
+		JsonCodec.local().decode(buf, 0, len, cmd);
+		return true;
+	}
+	
+	private boolean readFrame(ChatCmd cmd) throws IOException {
+		ensure(BinaryCodec.LENGTH_FIELD_SIZE);
+		if(!readFully(BinaryCodec.LENGTH_FIELD_SIZE)) {
+			return false;
+		}
+		
+		int len = BinaryCodec.readLength(buf, 0);
+		if(len <= 0 || len > BinaryCodec.MAX_FRAME_LENGTH) {
+			throw new IOException("帧长度错误: " + len);
+		}
+		
+		ensure(len);
+		if(!readFully(len)) {
+			throw new EOFException();
+		}
+		
+		try {
+			BinaryCodec.decode(buf, 0, len, cmd);
+		}catch (Exception e) {
+			AsyncLogger.error("二进制帧格式错误。", e);
+			cmd.reset();
+		}
+		return true;
+	}
+	
+	private boolean readFully(int len) throws IOException {
+		int off = 0;
+		while(off < len) {
+			int n = in.read(buf, off, len - off);
+			if(n < 0) {
+				return false;
+			}
+			off += n;
+		}
+		return true;
+	}
+	
+	private void ensure(int len) {
+		if(len > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(len, buf.length * 2));
+		}
+	}
+}
@@ -0,0 +1,765 @@
+package base;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * 命令的JSON编解码，只处理MsgConst中的固定字段
+ * 直接在UTF-8字节上解析和输出，不经过json-lib的反射和中间对象，与原来的JSON格式完全兼容
+ * 实例不是线程安全的，通过local()获取当前线程的实例，内部缓冲区重复使用
+ */
+public class JsonCodec {
+	
+	private static final ThreadLocal<JsonCodec> LOCAL = ThreadLocal.withInitial(JsonCodec::new);
+	
+	private static final int FIELD_UNKNOWN = -1;
+	private static final int FIELD_CMD = 0;
+	private static final int FIELD_USER_NAME = 1;
+	private static final int FIELD_TARGET_USER = 2;
+	private static final int FIELD_USER_STATUS = 3;
+	private static final int FIELD_ERR_MSG = 4;
+	private static final int FIELD_CHAT_MSG = 5;
+	private static final int FIELD_USER_NAME_LIST = 6;
+	private static final int FIELD_BINARY_VERSION = 7;
+	private static final int FIELD_CLIENT_VERSION = 8;
+	private static final int FIELD_LOGIN_USER_LIST = 9;
+	private static final int FIELD_LOGOUT_USER_LIST = 10;
+	private static final int FIELD_ROSTER_VERSION = 11;
+	private static final int FIELD_SEQ = 12;
+	private static final int FIELD_TIME = 13;
+	private static final int FIELD_LIMIT = 14;
+	private static final int FIELD_DIRECTION = 15;
+	private static final int FIELD_ROOM_NAME = 16;
+	private static final int FIELD_COMPRESSION = 17;
+	private static final int FIELD_COMPRESSED_MSG = 18;
+	
+	/**
+	 * 字段名，下标与FIELD_*对应
+	 */
+	private static final byte[][] FIELD_NAMES = utf8(MsgConst.FIELD_CMD, MsgConst.FIELD_USER_NAME, MsgConst.FIELD_TARGET_USER,
+			MsgConst.FIELD_USER_STATUS, MsgConst.FIELD_ERR_MSG, MsgConst.FIELD_CHAT_MSG, MsgConst.FIELD_USER_NAME_LIST,
+			MsgConst.FIELD_BINARY_VERSION, MsgConst.FIELD_CLIENT_VERSION, MsgConst.FIELD_LOGIN_USER_LIST,
+			MsgConst.FIELD_LOGOUT_USER_LIST, MsgConst.FIELD_ROSTER_VERSION, MsgConst.FIELD_SEQ, MsgConst.FIELD_TIME,
+			MsgConst.FIELD_LIMIT, MsgConst.FIELD_DIRECTION, MsgConst.FIELD_ROOM_NAME,
+			MsgConst.FIELD_COMPRESSION, MsgConst.FIELD_COMPRESSED_MSG);
+	
+	/**
+	 * 命令的取值，解析时直接返回常量，不创建新字符串
+	 */
+	private static final String[] CMD_VALUES = {MsgConst.CMD_LOGIN, MsgConst.CMD_LOGOUT, MsgConst.CMD_CHAT_TO,
+			MsgConst.CMD_UPDATE_ONLINE_USER_LIST, MsgConst.CMD_ROSTER, MsgConst.CMD_NODE_SYNC, MsgConst.CMD_HISTORY,
+			MsgConst.CMD_ROOM_CREATE, MsgConst.CMD_ROOM_JOIN, MsgConst.CMD_ROOM_LEAVE, MsgConst.CMD_ROOM_MSG,
+			MsgConst.CMD_PING, MsgConst.CMD_PONG};
+	private static final byte[][] CMD_VALUE_BYTES = utf8(CMD_VALUES);
+	
+	/**
+	 * 用户状态的取值
+	 */
+	private static final String[] STATUS_VALUES = {MsgConst.USER_STATUS_LOGIN, MsgConst.USER_STATUS_LOGOUT};
+	private static final byte[][] STATUS_VALUE_BYTES = utf8(STATUS_VALUES);
+	
+	/**
+	 * 查询方向的取值
+	 */
+	private static final String[] DIRECTION_VALUES = {MsgConst.DIRECTION_BEFORE, MsgConst.DIRECTION_AFTER};
+	private static final byte[][] DIRECTION_VALUE_BYTES = utf8(DIRECTION_VALUES);
+	
+	/**
+	 * 压缩算法的取值
+	 */
+	private static final String[] COMPRESSION_VALUES = {MsgConst.COMPRESSION_DEFLATE};
+	private static final byte[][] COMPRESSION_VALUE_BYTES = utf8(COMPRESSION_VALUES);
+	
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	
+	/**
+	 * 缓冲区的初始大小
+	 */
+	private static final int INITIAL_CHARS_SIZE = 256;
+	private static final int INITIAL_OUT_SIZE = 512;
+	
+	/**
+	 * 每个线程保留的缓冲区上限，处理过超长的消息后缓冲区换回初始大小，不会一直占着内存
+	 */
+	private static final int MAX_RETAINED_SIZE = 64 * 1024;
+	
+	/**
+	 * 解析中的数据
+	 */
+	private byte[] in;
+	private int pos;
+	private int end;
+	
+	/**
+	 * 解析带转义的字符串时使用
+	 */
+	private char[] chars = new char[INITIAL_CHARS_SIZE];
+	
+	/**
+	 * 输出缓冲区
+	 */
+	private byte[] out = new byte[INITIAL_OUT_SIZE];
+	private int outLen;
+	
+	/**
+	 * 获取当前线程的实例
+	 * @return
+	 */
+	public static JsonCodec local() {
+		return LOCAL.get();
+	}
+	
+	/**
+	 * 解析一行JSON
+	 * @param data UTF-8数据，不含换行符
+	 * @param off
+	 * @param len
+	 * @param cmd 解析结果，格式不对时命令为空
+	 */
+	public void decode(byte[] data, int off, int len, ChatCmd cmd) {
+		cmd.reset();
+		in = data;
+		pos = off;
+		end = off + len;
+		try {
+			parseObject(cmd);
+		}catch (RuntimeException e) {
+			AsyncLogger.warn("JSON格式错误: " + e.getMessage());
+			cmd.reset();
+		}finally {
+			in = null;
+			if(chars.length > MAX_RETAINED_SIZE) {
+				chars = new char[INITIAL_CHARS_SIZE];
+			}
+		}
+	}
+	
+	/**
+	 * 编码成一行，包含换行符
+	 * @param cmd
+	 * @return
+	 */
+	public byte[] encodeLine(ChatCmd cmd) {
+		writeObject(cmd);
+		writeByte('\n');
+		byte[] line = Arrays.copyOf(out, outLen);
+		trimOut();
+		return line;
+	}
+	
+	/**
+	 * 编码成字符串，不含换行符
+	 * @param cmd
+	 * @return
+	 */
+	public String encodeToString(ChatCmd cmd) {
+		writeObject(cmd);
+		String line = new String(out, 0, outLen, StandardCharsets.UTF_8);
+		trimOut();
+		return line;
+	}
+	
+	private void trimOut() {
+		if(out.length > MAX_RETAINED_SIZE) {
+			out = new byte[INITIAL_OUT_SIZE];
+		}
+	}
+	
+	// ------------------------------ 解析 ------------------------------
+	
+	private void parseObject(ChatCmd cmd) {
+		skipWhitespace();
+		expect('{');
+		skipWhitespace();
+		if(peek() == '}') {
+			++pos;
+			return;
+		}
+		
+		while(true) {
+			skipWhitespace();
+			int field = readFieldName();
+			skipWhitespace();
+			expect(':');
+			skipWhitespace();
+			readFieldValue(field, cmd);
+			skipWhitespace();
+			
+			byte b = next();
+			if(b == '}') {
+				return;
+			}
+			if(b != ',') {
+				throw error("缺少','");
+			}
+		}
+	}
+	
+	/**
+	 * 读取字段名，与已知字段的字节直接比较
+	 * @return 字段下标，不认识的返回FIELD_UNKNOWN
+	 */
+	private int readFieldName() {
+		expect('"');
+		int start = pos;
+		while(peek() != '"') {
+			if(in[pos] == '\\') {
+				//字段名不会有转义，按不认识处理
+				pos = start - 1;
+				readString(null, null);
+				return FIELD_UNKNOWN;
+			}
+			++pos;
+		}
+		int field = indexOf(FIELD_NAMES, start, pos);
+		++pos;
+		return field;
+	}
+	
+	private void readFieldValue(int field, ChatCmd cmd) {
+		switch (field) {
+		case FIELD_CMD:
+			cmd.setCmd(readStringValue(CMD_VALUES, CMD_VALUE_BYTES));
+			break;
+		case FIELD_USER_NAME:
+			cmd.setUserName(readStringValue(null, null));
+			break;
+		case FIELD_TARGET_USER:
+			cmd.setTargetUserName(readStringValue(null, null));
+			break;
+		case FIELD_USER_STATUS:
+			cmd.setUserStatus(readStringValue(STATUS_VALUES, STATUS_VALUE_BYTES));
+			break;
+		case FIELD_ERR_MSG:
+			cmd.setErrMsg(readStringValue(null, null));
+			break;
+		case FIELD_CHAT_MSG:
+			cmd.setChatMsg(readStringValue(null, null));
+			break;
+		case FIELD_USER_NAME_LIST:
+			cmd.setUserNameList(readStringList());
+			break;
+		case FIELD_LOGIN_USER_LIST:
+			cmd.setLoginUserList(readStringList());
+			break;
+		case FIELD_LOGOUT_USER_LIST:
+			cmd.setLogoutUserList(readStringList());
+			break;
+		case FIELD_ROSTER_VERSION:
+			cmd.setRosterVersion(readStringValue(null, null));
+			break;
+		case FIELD_BINARY_VERSION:
+			cmd.setBinaryVersion(readInt());
+			break;
+		case FIELD_CLIENT_VERSION:
+			cmd.setClientVersion(readInt());
+			break;
+		case FIELD_SEQ:
+			cmd.setSeq(readInt());
+			break;
+		case FIELD_TIME:
+			cmd.setTime(readLong());
+			break;
+		case FIELD_LIMIT:
+			cmd.setLimit(readInt());
+			break;
+		case FIELD_DIRECTION:
+			cmd.setDirection(readStringValue(DIRECTION_VALUES, DIRECTION_VALUE_BYTES));
+			break;
+		case FIELD_ROOM_NAME:
+			cmd.setRoomName(readStringValue(null, null));
+			break;
+		case FIELD_COMPRESSION:
+			cmd.setCompression(readStringValue(COMPRESSION_VALUES, COMPRESSION_VALUE_BYTES));
+			break;
+		case FIELD_COMPRESSED_MSG:
+			cmd.setCompressedMsg(readBytesValue());
+			break;
+		default:
+			skipValue();
+			break;
+		}
+	}
+	
+	/**
+	 * 读取base64字符串表示的字节数组
+	 * @return
+	 */
+	private byte[] readBytesValue() {
+		String base64 = readStringValue(null, null);
+		return base64 == null ? null : Base64.getDecoder().decode(base64);
+	}
+	
+	private String readStringValue(String[] constants, byte[][] constantBytes) {
+		byte b = peek();
+		if(b == '"') {
+			return readString(constants, constantBytes);
+		}
+		
+		int start = pos;
+		skipValue();
+		if(pos - start == 4 && in[start] == 'n' && in[start + 1] == 'u' && in[start + 2] == 'l' && in[start + 3] == 'l') {
+			return null;
+		}
+		return new String(in, start, pos - start, StandardCharsets.UTF_8);
+	}
+	
+	private String readString(String[] constants, byte[][] constantBytes) {
+		expect('"');
+		int start = pos;
+		while(true) {
+			byte b = peek();
+			if(b == '"') {
+				break;
+			}
+			if(b == '\\') {
+				pos = start;
+				return readEscapedString();
+			}
+			++pos;
+		}
+		
+		int stringEnd = pos++;
+		if(constants != null) {
+			int index = indexOf(constantBytes, start, stringEnd);
+			if(index >= 0) {
+				return constants[index];
+			}
+		}
+		return new String(in, start, stringEnd - start, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * 读取带转义的字符串，pos指向开始引号后
+	 * @return
+	 */
+	private String readEscapedString() {
+		int len = 0;
+		while(true) {
+			if(len + 2 > chars.length) {
+				chars = Arrays.copyOf(chars, chars.length * 2);
+			}
+			
+			int b = next() & 0xff;
+			if(b == '"') {
+				break;
+			}
+			
+			if(b == '\\') {
+				chars[len++] = readEscape();
+			}else if(b < 0x80) {
+				chars[len++] = (char) b;
+			}else if(b < 0xe0) {
+				chars[len++] = (char) (((b & 0x1f) << 6) | (next() & 0x3f));
+			}else if(b < 0xf0) {
+				chars[len++] = (char) (((b & 0x0f) << 12) | ((next() & 0x3f) << 6) | (next() & 0x3f));
+			}else {
+				int codePoint = ((b & 0x07) << 18) | ((next() & 0x3f) << 12) | ((next() & 0x3f) << 6) | (next() & 0x3f);
+				chars[len++] = Character.highSurrogate(codePoint);
+				chars[len++] = Character.lowSurrogate(codePoint);
+			}
+		}
+		return new String(chars, 0, len);
+	}
+	
+	private char readEscape() {
+		byte b = next();
+		switch (b) {
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		case 'b':
+			return '\b';
+		case 'f':
+			return '\f';
+		case 'u':
+			int c = 0;
+			for(int i = 0; i < 4; ++i) {
+				c = (c << 4) | Character.digit(next(), 16);
+			}
+			if(c < 0) {
+				throw error("\\u转义错误");
+			}
+			return (char) c;
+		default:
+			// " \ / 
+			return (char) b;
+		}
+	}
+	
+	private List<String> readStringList() {
+		if(peek() == 'n') {
+			skipValue();
+			return null;
+		}
+		
+		List<String> values = new ArrayList<>();
+		expect('[');
+		skipWhitespace();
+		if(peek() == ']') {
+			++pos;
+			return values;
+		}
+		
+		while(true) {
+			skipWhitespace();
+			values.add(readStringValue(null, null));
+			skipWhitespace();
+			byte b = next();
+			if(b == ']') {
+				return values;
+			}
+			if(b != ',') {
+				throw error("缺少','");
+			}
+		}
+	}
+	
+	private int readInt() {
+		return (int) readLong();
+	}
+	
+	private long readLong() {
+		if(peek() == '"') {
+			return Long.parseLong(readString(null, null));
+		}
+		
+		int start = pos;
+		skipValue();
+		long value = 0;
+		boolean negative = false;
+		for(int i = start; i < pos; ++i) {
+			byte b = in[i];
+			if(b == '-' && i == start) {
+				negative = true;
+			}else if(b >= '0' && b <= '9') {
+				value = value * 10 + (b - '0');
+			}else {
+				//小数等情况只取整数部分
+				break;
+			}
+		}
+		return negative ? -value : value;
+	}
+	
+	/**
+	 * 跳过不认识的值
+	 */
+	private void skipValue() {
+		byte b = peek();
+		if(b == '"') {
+			++pos;
+			while(true) {
+				byte c = next();
+				if(c == '\\') {
+					next();
+				}else if(c == '"') {
+					return;
+				}
+			}
+		}
+		
+		if(b == '{' || b == '[') {
+			int depth = 0;
+			do {
+				byte c = peek();
+				if(c == '"') {
+					skipValue();
+					continue;
+				}
+				if(c == '{' || c == '[') {
+					++depth;
+				}else if(c == '}' || c == ']') {
+					--depth;
+				}
+				++pos;
+			}while(depth > 0);
+			return;
+		}
+		
+		//数字、true、false、null
+		while(pos < end) {
+			b = in[pos];
+			if(b == ',' || b == '}' || b == ']' || isWhitespace(b)) {
+				break;
+			}
+			++pos;
+		}
+	}
+	
+	private void skipWhitespace() {
+		while(pos < end && isWhitespace(in[pos])) {
+			++pos;
+		}
+	}
+	
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+	
+	private void expect(char c) {
+		if(next() != c) {
+			throw error("缺少'" + c + "'");
+		}
+	}
+	
+	private byte peek() {
+		if(pos >= end) {
+			throw error("数据不完整");
+		}
+		return in[pos];
+	}
+	
+	private byte next() {
+		byte b = peek();
+		++pos;
+		return b;
+	}
+	
+	private int indexOf(byte[][] candidates, int start, int stop) {
+		int len = stop - start;
+		for(int i = 0; i < candidates.length; ++i) {
+			byte[] candidate = candidates[i];
+			if(candidate.length != len) {
+				continue;
+			}
+			
+			int j = 0;
+			while(j < len && candidate[j] == in[start + j]) {
+				++j;
+			}
+			if(j == len) {
+				return i;
+			}
+		}
+		return FIELD_UNKNOWN;
+	}
+	
+	private IllegalArgumentException error(String msg) {
+		return new IllegalArgumentException(msg + ", 位置" + pos);
+	}
+	
+	// ------------------------------ 输出 ------------------------------
+	
+	private void writeObject(ChatCmd cmd) {
+		outLen = 0;
+		writeByte('{');
+		boolean first = writeStringField(FIELD_CMD, cmd.getCmd(), true);
+		first = writeStringField(FIELD_USER_NAME, cmd.getUserName(), first);
+		first = writeStringField(FIELD_TARGET_USER, cmd.getTargetUserName(), first);
+		first = writeStringField(FIELD_USER_STATUS, cmd.getUserStatus(), first);
+		first = writeStringField(FIELD_ERR_MSG, cmd.getErrMsg(), first);
+		first = writeStringField(FIELD_CHAT_MSG, cmd.getChatMsg(), first);
+		first = writeListField(FIELD_USER_NAME_LIST, cmd.getUserNameList(), first);
+		first = writeListField(FIELD_LOGIN_USER_LIST, cmd.getLoginUserList(), first);
+		first = writeListField(FIELD_LOGOUT_USER_LIST, cmd.getLogoutUserList(), first);
+		first = writeStringField(FIELD_ROSTER_VERSION, cmd.getRosterVersion(), first);
+		first = writeIntField(FIELD_BINARY_VERSION, cmd.getBinaryVersion(), first);
+		first = writeIntField(FIELD_CLIENT_VERSION, cmd.getClientVersion(), first);
+		first = writeIntField(FIELD_SEQ, cmd.getSeq(), first);
+		first = writeIntField(FIELD_TIME, cmd.getTime(), first);
+		first = writeIntField(FIELD_LIMIT, cmd.getLimit(), first);
+		first = writeStringField(FIELD_DIRECTION, cmd.getDirection(), first);
+		first = writeStringField(FIELD_ROOM_NAME, cmd.getRoomName(), first);
+		first = writeStringField(FIELD_COMPRESSION, cmd.getCompression(), first);
+		writeBytesField(FIELD_COMPRESSED_MSG, cmd.getCompressedMsg(), first);
+		writeByte('}');
+	}
+	
+	private boolean writeStringField(int field, String value, boolean first) {
+		if(value == null) {
+			return first;
+		}
+		
+		writeFieldName(field, first);
+		writeString(value);
+		return false;
+	}
+	
+	private boolean writeListField(int field, List<String> values, boolean first) {
+		if(values == null) {
+			return first;
+		}
+		
+		writeFieldName(field, first);
+		writeByte('[');
+		for(int i = 0; i < values.size(); ++i) {
+			if(i > 0) {
+				writeByte(',');
+			}
+			writeString(values.get(i));
+		}
+		writeByte(']');
+		return false;
+	}
+	
+	/**
+	 * 字节数组按base64输出，base64字符不需要转义
+	 * @param field
+	 * @param value
+	 * @param first
+	 * @return
+	 */
+	private boolean writeBytesField(int field, byte[] value, boolean first) {
+		if(value == null) {
+			return first;
+		}
+		
+		writeFieldName(field, first);
+		byte[] base64 = Base64.getEncoder().encode(value);
+		ensureOut(base64.length + 2);
+		out[outLen++] = '"';
+		System.arraycopy(base64, 0, out, outLen, base64.length);
+		outLen += base64.length;
+		out[outLen++] = '"';
+		return false;
+	}
+	
+	private boolean writeIntField(int field, long value, boolean first) {
+		if(value <= 0) {
+			return first;
+		}
+		
+		writeFieldName(field, first);
+		writeInt(value);
+		return false;
+	}
+	
+	private void writeFieldName(int field, boolean first) {
+		if(!first) {
+			writeByte(',');
+		}
+		
+		byte[] name = FIELD_NAMES[field];
+		ensureOut(name.length + 3);
+		out[outLen++] = '"';
+		System.arraycopy(name, 0, out, outLen, name.length);
+		outLen += name.length;
+		out[outLen++] = '"';
+		out[outLen++] = ':';
+	}
+	
+	/**
+	 * 输出字符串，转义规则与json-lib一致
+	 * @param value
+	 */
+	private void writeString(String value) {
+		int len = value.length();
+		//按全是ASCII预留，不够时再扩，不按最坏情况(每个字符6个字节)一次分配
+		ensureOut(len + 2);
+		byte[] buf = out;
+		int p = outLen;
+		buf[p++] = '"';
+		for(int i = 0; i < len; ++i) {
+			//一个字符最多6个字节，再加结尾的引号
+			if(buf.length - p < 7) {
+				outLen = p;
+				ensureOut(len - i + 7);
+				buf = out;
+			}
+			char c = value.charAt(i);
+			if(c >= 0x20 && c < 0x80) {
+				if(c == '"' || c == '\\') {
+					buf[p++] = '\\';
+				}else if(c == '/' && i > 0 && value.charAt(i - 1) == '<') {
+					buf[p++] = '\\';
+				}
+				buf[p++] = (byte) c;
+			}else if(c < 0x20) {
+				p = writeControlChar(buf, p, c);
+			}else if(c < 0x800) {
+				buf[p++] = (byte) (0xc0 | (c >> 6));
+				buf[p++] = (byte) (0x80 | (c & 0x3f));
+			}else if(Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				buf[p++] = (byte) (0xf0 | (codePoint >> 18));
+				buf[p++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				buf[p++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				buf[p++] = (byte) (0x80 | (codePoint & 0x3f));
+			}else if(Character.isSurrogate(c)) {
+				//不成对的代理字符
+				buf[p++] = '?';
+			}else {
+				buf[p++] = (byte) (0xe0 | (c >> 12));
+				buf[p++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buf[p++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		buf[p++] = '"';
+		outLen = p;
+	}
+	
+	private static int writeControlChar(byte[] buf, int p, char c) {
+		buf[p++] = '\\';
+		switch (c) {
+		case '\n':
+			buf[p++] = 'n';
+			return p;
+		case '\r':
+			buf[p++] = 'r';
+			return p;
+		case '\t':
+			buf[p++] = 't';
+			return p;
+		case '\b':
+			buf[p++] = 'b';
+			return p;
+		case '\f':
+			buf[p++] = 'f';
+			return p;
+		default:
+			buf[p++] = 'u';
+			buf[p++] = HEX[(c >> 12) & 0xf];
+			buf[p++] = HEX[(c >> 8) & 0xf];
+			buf[p++] = HEX[(c >> 4) & 0xf];
+			buf[p++] = HEX[c & 0xf];
+			return p;
+		}
+	}
+	
+	private void writeInt(long value) {
+		ensureOut(20);
+		if(value < 0) {
+			out[outLen++] = '-';
+			value = -value;
+		}
+		
+		int start = outLen;
+		do {
+			out[outLen++] = (byte) ('0' + value % 10);
+			value /= 10;
+		}while(value > 0);
+		
+		//倒序
+		for(int i = start, j = outLen - 1; i < j; ++i, --j) {
+			byte tmp = out[i];
+			out[i] = out[j];
+			out[j] = tmp;
+		}
+	}
+	
+	private void writeByte(int b) {
+		ensureOut(1);
+		out[outLen++] = (byte) b;
+	}
+	
+	private void ensureOut(int n) {
+		if(outLen + n > out.length) {
+			out = Arrays.copyOf(out, Math.max(outLen + n, out.length * 2));
+		}
+	}
+	
+	private static byte[][] utf8(String... values) {
+		byte[][] result = new byte[values.length][];
+		for(int i = 0; i < values.length; ++i) {
+			result[i] = values[i].getBytes(StandardCharsets.UTF_8);
+		}
+		return result;
+	}
+}
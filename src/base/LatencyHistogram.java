@@ -0,0 +1,116 @@
+package base;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 并发记录的耗时直方图
+ * 每个2的幂区间再均分成16个桶，误差不超过约6%
+ * 记录时桶计数是一次原子加，总数和总和用分段计数器，不加锁也不分配对象
+ */
+public class LatencyHistogram {
+	
+	/**
+	 * 每个2的幂区间的桶数(2的SUB_BUCKET_BITS次方)
+	 */
+	private static final int SUB_BUCKET_BITS = 4;
+	
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	
+	private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+	
+	private final LongAdder count = new LongAdder();
+	
+	private final LongAdder sum = new LongAdder();
+	
+	private final AtomicLong max = new AtomicLong();
+	
+	/**
+	 * 记录一个值，负数按0记录
+	 * @param value
+	 */
+	public void record(long value) {
+		if(value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucketOf(value));
+		count.increment();
+		sum.add(value);
+		long curMax;
+		while(value > (curMax = max.get()) && !max.compareAndSet(curMax, value)) {
+		}
+	}
+	
+	public long getCount() {
+		return count.sum();
+	}
+	
+	public long getMax() {
+		return max.get();
+	}
+	
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+	
+	/**
+	 * 百分位数，返回所在桶的上界
+	 * @param percentile 0-100
+	 * @return
+	 */
+	public long getPercentile(double percentile) {
+		//总数从桶里算，与正在进行的记录保持一致
+		long n = 0;
+		for(int i = 0; i < counts.length(); ++i) {
+			n += counts.get(i);
+		}
+		if(n == 0) {
+			return 0;
+		}
+		
+		long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+		long seen = 0;
+		for(int i = 0; i < counts.length(); ++i) {
+			seen += counts.get(i);
+			if(seen >= rank) {
+				return Math.min(upperBoundOf(i), max.get());
+			}
+		}
+		return max.get();
+	}
+	
+	/**
+	 * 清空，与记录同时进行时清空前后的少量数据可能算到任意一边
+	 */
+	public void reset() {
+		for(int i = 0; i < counts.length(); ++i) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+	
+	private static int bucketOf(long value) {
+		if(value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+	
+	private static long upperBoundOf(int bucket) {
+		if(bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		
+		int exp = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		long lower = (1L << exp) + (sub << (exp - SUB_BUCKET_BITS));
+		return lower + (1L << (exp - SUB_BUCKET_BITS)) - 1;
+	}
+}
@@ -0,0 +1,138 @@
+package base;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 聊天内容的压缩和解压，deflate算法
+ * 每个连接一个实例，Deflater、Inflater和输出缓冲区重复使用，只在第一次用到时创建；
+ * 实例不是线程安全的，压缩在发送线程上，解压在读取线程上，两边不共用对象
+ */
+public class MsgCompressor implements Closeable {
+	
+	/**
+	 * UTF-8字节数不小于该值的聊天内容才压缩，小的内容压缩后反而更大
+	 */
+	public static final int THRESHOLD = Integer.getInteger("chat.compressThreshold", 1024);
+	
+	/**
+	 * 解压后的最大长度，防止很小的数据解压出超大的内容
+	 */
+	private static final int MAX_LENGTH = BinaryCodec.MAX_FRAME_LENGTH;
+	
+	/**
+	 * 超过该大小的缓冲区用完不保留，偶尔的大消息不会一直占着内存
+	 */
+	private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+	
+	private Deflater deflater;
+	
+	private Inflater inflater;
+	
+	/**
+	 * 压缩的输出缓冲区
+	 */
+	private byte[] deflateBuffer = new byte[0];
+	
+	/**
+	 * 解压的输出缓冲区
+	 */
+	private byte[] inflateBuffer = new byte[0];
+	
+	/**
+	 * 压缩聊天内容
+	 * @param chatMsg
+	 * @return 内容太小或压缩后没有变小时为空，这时按原文发送
+	 */
+	public byte[] compress(String chatMsg) {
+		if(chatMsg == null || chatMsg.length() * 3 < THRESHOLD) {
+			return null;
+		}
+		byte[] data = chatMsg.getBytes(StandardCharsets.UTF_8);
+		if(data.length < THRESHOLD) {
+			return null;
+		}
+		
+		if(deflater == null) {
+			//聊天时要低延迟，用最快的级别，日志之类的文本也能压到几分之一
+			deflater = new Deflater(Deflater.BEST_SPEED);
+		}
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+		if(deflateBuffer.length < data.length) {
+			deflateBuffer = new byte[data.length];
+		}
+		
+		int len = 0;
+		while(!deflater.finished() && len < data.length) {
+			len += deflater.deflate(deflateBuffer, len, data.length - len);
+		}
+		//缓冲区写满还没结束说明没有变小
+		byte[] compressed = deflater.finished() && len < data.length ? Arrays.copyOf(deflateBuffer, len) : null;
+		if(deflateBuffer.length > MAX_RETAINED_BUFFER) {
+			deflateBuffer = new byte[0];
+		}
+		return compressed;
+	}
+	
+	/**
+	 * 解压聊天内容
+	 * @param compressedMsg
+	 * @return
+	 * @throws IllegalArgumentException 数据格式错误或解压后太大
+	 */
+	public String decompress(byte[] compressedMsg) {
+		if(inflater == null) {
+			inflater = new Inflater();
+		}
+		inflater.reset();
+		inflater.setInput(compressedMsg);
+		if(inflateBuffer.length == 0) {
+			inflateBuffer = new byte[Math.min(MAX_LENGTH, Math.max(4096, compressedMsg.length * 4))];
+		}
+		
+		int len = 0;
+		try {
+			while(!inflater.finished()) {
+				if(len == inflateBuffer.length) {
+					if(len >= MAX_LENGTH) {
+						throw new IllegalArgumentException("解压后超过最大长度");
+					}
+					inflateBuffer = Arrays.copyOf(inflateBuffer, Math.min(MAX_LENGTH, len * 2));
+				}
+				int n = inflater.inflate(inflateBuffer, len, inflateBuffer.length - len);
+				if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IllegalArgumentException("压缩数据不完整");
+				}
+				len += n;
+			}
+		}catch (DataFormatException e) {
+			throw new IllegalArgumentException("压缩数据格式错误: " + e.getMessage());
+		}
+		String chatMsg = new String(inflateBuffer, 0, len, StandardCharsets.UTF_8);
+		if(inflateBuffer.length > MAX_RETAINED_BUFFER) {
+			inflateBuffer = new byte[0];
+		}
+		return chatMsg;
+	}
+	
+	/**
+	 * 释放本地内存
+	 */
+	@Override
+	public void close() {
+		if(deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+		if(inflater != null) {
+			inflater.end();
+			inflater = null;
+		}
+	}
+}
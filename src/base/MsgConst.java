@@ -1,74 +1,218 @@
-package base;
-
-/**
- * 客户端、服务端通信的字段常量
- */
-public class MsgConst {
-	
-	/**
-	 * 命令字段
-	 */
-	public static final String FIELD_CMD = "cmd";
-	/**
-	 * 登录
-	 */
-	public static final String CMD_LOGIN = "login";
-	
-	/**
-	 * 登出
-	 */
-	public static final String CMD_LOGOUT = "logout";
-	
-	
-	/**
-	 * 对某人聊天
-	 */
-	public static final String CMD_CHAT_TO = "chat_to";
-	
-	/**
-	 * 更新用户在线列表
-	 */
-	public static final String CMD_UPDATE_ONLINE_USER_LIST = "update_online_users";
-	
-	
-	/**
-	 * 用户名
-	 */
-	public static final String FIELD_USER_NAME = "userName";
-	
-	/**
-	 * 目标用户
-	 */
-	public static final String FIELD_TARGET_USER = "targetUserName";
-	
-	/**
-	 * 用户状态
-	 */
-	public static final String FIELD_USER_STATUS = "userStatus";
-	
-	/**
-	 * 用户状态-登录
-	 */
-	public static final String USER_STATUS_LOGIN = "login";
-	
-	/**
-	 * 用户状态-登出
-	 */
-	public static final String USER_STATUS_LOGOUT = "logout";
-	
-	
-	/**
-	 * 错误信息
-	 */
-	public static final String FIELD_ERR_MSG = "errMsg";
-	
-	/**
-	 * 用户名字列表
-	 */
-	public static final String FIELD_USER_NAME_LIST = "userNameList";
-	
-	/**
-	 * 聊天内容
-	 */
-	public static final String FIELD_CHAT_MSG = "chatMsg";
-}
+package base;
+
+/**
+ * 客户端、服务端通信的字段常量
+ */
+public class MsgConst {
+	
+	/**
+	 * 命令字段
+	 */
+	public static final String FIELD_CMD = "cmd";
+	/**
+	 * 登录
+	 */
+	public static final String CMD_LOGIN = "login";
+	
+	/**
+	 * 登出
+	 */
+	public static final String CMD_LOGOUT = "logout";
+	
+	
+	/**
+	 * 对某人聊天
+	 */
+	public static final String CMD_CHAT_TO = "chat_to";
+	
+	/**
+	 * 更新用户在线列表
+	 */
+	public static final String CMD_UPDATE_ONLINE_USER_LIST = "update_online_users";
+	
+	/**
+	 * 登录后继续发送的在线用户名单分段，名单太大时不放在一个登录结果里
+	 */
+	public static final String CMD_ROSTER = "roster";
+	
+	/**
+	 * 集群节点之间同步本节点的在线用户，userName为节点id，userNameList为该节点上的全部用户
+	 */
+	public static final String CMD_NODE_SYNC = "node_sync";
+	
+	/**
+	 * 查询与某个用户的聊天记录，targetUserName为对方，seq或time为游标，direction为方向，limit为条数；
+	 * 服务端按seq从小到大每条消息返回一帧history，userName为发送人，最后返回一帧不带seq的history，limit为本页条数
+	 */
+	public static final String CMD_HISTORY = "history";
+	
+	/**
+	 * 创建群聊房间，roomName为房间名，创建人自动加入；服务端返回同样的命令，失败时带errMsg
+	 * 房间只在一个服务端节点内有效，集群模式下不跨节点
+	 */
+	public static final String CMD_ROOM_CREATE = "room_create";
+	
+	/**
+	 * 加入房间，服务端返回同样的命令，失败时带errMsg，成功时limit为房间人数
+	 */
+	public static final String CMD_ROOM_JOIN = "room_join";
+	
+	/**
+	 * 退出房间，最后一个成员退出后房间删除
+	 */
+	public static final String CMD_ROOM_LEAVE = "room_leave";
+	
+	/**
+	 * 房间消息，发给房间内除发送人以外的所有成员，转发时userName为发送人
+	 */
+	public static final String CMD_ROOM_MSG = "room_msg";
+	
+	/**
+	 * 心跳，连接空闲一段时间后服务端发出，客户端回复pong；客户端也可以发，服务端同样回复
+	 * 回复之前连接没有任何数据时服务端断开连接
+	 */
+	public static final String CMD_PING = "ping";
+	
+	/**
+	 * 心跳回复
+	 */
+	public static final String CMD_PONG = "pong";
+	
+	
+	/**
+	 * 用户名
+	 */
+	public static final String FIELD_USER_NAME = "userName";
+	
+	/**
+	 * 目标用户
+	 */
+	public static final String FIELD_TARGET_USER = "targetUserName";
+	
+	/**
+	 * 用户状态
+	 */
+	public static final String FIELD_USER_STATUS = "userStatus";
+	
+	/**
+	 * 用户状态-登录
+	 */
+	public static final String USER_STATUS_LOGIN = "login";
+	
+	/**
+	 * 用户状态-登出
+	 */
+	public static final String USER_STATUS_LOGOUT = "logout";
+	
+	
+	/**
+	 * 错误信息
+	 */
+	public static final String FIELD_ERR_MSG = "errMsg";
+	
+	/**
+	 * 用户名字列表
+	 */
+	public static final String FIELD_USER_NAME_LIST = "userNameList";
+	
+	/**
+	 * 聊天内容
+	 */
+	public static final String FIELD_CHAT_MSG = "chatMsg";
+	
+	/**
+	 * 二进制协议版本，登录时客户端带上自己支持的版本，服务端同意时在登录结果里返回
+	 */
+	public static final String FIELD_BINARY_VERSION = "binaryVersion";
+	
+	/**
+	 * 客户端版本，登录时带上，服务端据此决定用哪些新格式，老客户端没有该字段
+	 */
+	public static final String FIELD_CLIENT_VERSION = "clientVersion";
+	
+	/**
+	 * 客户端版本-支持批量更新在线用户
+	 */
+	public static final int CLIENT_VERSION_PRESENCE_BATCH = 1;
+	
+	/**
+	 * 客户端版本-支持在线用户名单增量同步
+	 */
+	public static final int CLIENT_VERSION_ROSTER_DELTA = 2;
+	
+	/**
+	 * 客户端版本-会回复心跳，老客户端空闲时服务端不发心跳也不断开
+	 */
+	public static final int CLIENT_VERSION_HEARTBEAT = 3;
+	
+	/**
+	 * 当前客户端版本
+	 */
+	public static final int CLIENT_VERSION = CLIENT_VERSION_HEARTBEAT;
+	
+	/**
+	 * 批量更新时上线的用户名字列表
+	 */
+	public static final String FIELD_LOGIN_USER_LIST = "loginUserList";
+	
+	/**
+	 * 批量更新时下线的用户名字列表
+	 */
+	public static final String FIELD_LOGOUT_USER_LIST = "logoutUserList";
+	
+	/**
+	 * 在线用户名单版本，登录时客户端带上上次的版本，服务端只发之后的变化；
+	 * 服务端在完整的名单和每次名单变化里带上新的版本
+	 */
+	public static final String FIELD_ROSTER_VERSION = "rosterVersion";
+	
+	/**
+	 * 聊天记录中消息的序号，每个会话从1开始；查询时为游标，不包括游标本身，0表示从最新的开始
+	 */
+	public static final String FIELD_SEQ = "seq";
+	
+	/**
+	 * 聊天记录中消息的时间(毫秒)；查询时没有seq可以按时间定位
+	 */
+	public static final String FIELD_TIME = "time";
+	
+	/**
+	 * 查询的条数，返回时为本页实际条数
+	 */
+	public static final String FIELD_LIMIT = "limit";
+	
+	/**
+	 * 查询方向
+	 */
+	public static final String FIELD_DIRECTION = "direction";
+	
+	/**
+	 * 查询方向-游标之前，默认
+	 */
+	public static final String DIRECTION_BEFORE = "before";
+	
+	/**
+	 * 查询方向-游标之后
+	 */
+	public static final String DIRECTION_AFTER = "after";
+	
+	/**
+	 * 群聊房间名
+	 */
+	public static final String FIELD_ROOM_NAME = "roomName";
+	
+	/**
+	 * 压缩算法，登录时客户端带上自己支持的算法，服务端同意时在登录结果里返回
+	 */
+	public static final String FIELD_COMPRESSION = "compression";
+	
+	/**
+	 * 压缩算法-deflate(zlib格式)
+	 */
+	public static final String COMPRESSION_DEFLATE = "deflate";
+	
+	/**
+	 * 压缩后的聊天内容，代替chatMsg，只发给协商了压缩的一方；JSON中为base64，二进制协议中为原始字节
+	 */
+	public static final String FIELD_COMPRESSED_MSG = "compressedMsg";
+}
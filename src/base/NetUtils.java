@@ -1,25 +1,25 @@
-package base;
-
-import java.util.HashMap;
-import java.util.Map;
-
-import net.sf.json.JSONObject;
-
-public class NetUtils {
-	
-	/**
-	 * 构造网络传输的数据行
-	 * @param cmd
-	 * @param otherField
-	 * @return
-	 */
-	public static String buildCmdLine(String cmd, Object...otherField) {
-		Map<String, Object> map = new HashMap<>();
-		map.put(MsgConst.FIELD_CMD, cmd);
-		for (int i = 0; i < otherField.length; i += 2) {
-			map.put((String) otherField[i], otherField[i + 1]);
-		}
-		
-		return JSONObject.fromObject(map).toString();
-	}
-}
+package base;
+
+import java.nio.charset.StandardCharsets;
+
+public class NetUtils {
+	
+	/**
+	 * 构造网络传输的数据行
+	 * @param cmd
+	 * @return
+	 */
+	public static String buildCmdLine(ChatCmd cmd) {
+		return JsonCodec.local().encodeToString(cmd);
+	}
+	
+	/**
+	 * 解析网络传输的数据行
+	 * @param line
+	 * @param cmd 解析结果，格式不对时命令为空
+	 */
+	public static void parseCmdLine(String line, ChatCmd cmd) {
+		byte[] data = line.getBytes(StandardCharsets.UTF_8);
+		JsonCodec.local().decode(data, 0, data.length, cmd);
+	}
+}
@@ -1,285 +1,630 @@
-package client.net;
-
-import java.io.BufferedReader;
-import java.io.Closeable;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.function.BiConsumer;
-import java.util.function.Consumer;
-
-import org.apache.commons.lang.StringUtils;
-
-import base.MsgConst;
-import base.NetUtils;
-import net.sf.json.JSONArray;
-import net.sf.json.JSONObject;
-
-/**
- * 聊天客户端
- */
-public class ChatClient implements Closeable {
-	private Socket socket;
-	private PrintWriter socketWriter;
-	private BufferedReader socketReader;
-	
-	/**
-	 * 线程池
-	 */
-	private ExecutorService threadPool;
-	/**
-	 * 是否运行
-	 */
-	private volatile boolean run;
-	
-	/**
-	 * 成功登录的回调
-	 */
-	private volatile BiConsumer<Boolean, String> loginSuccessCallback;
-	
-	/**
-	 * 监听聊天信息
-	 */
-	private volatile BiConsumer<String, String> chatMsgListener;
-	
-	/**
-	 * 用户状态改变监听
-	 */
-	private volatile BiConsumer<Boolean, String> userChgListener;
-	
-	/**
-	 * 在线用户名字
-	 */
-	private Set<String> onlineUserNameSet;
-	
-	/**
-	 * 当前用户名
-	 */
-	private String curUserName;
-
-	public ChatClient(String host, int port) throws UnknownHostException, IOException {
-		socket = new Socket(host, port);
-		socketWriter = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "utf-8"));
-		socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-		
-		//限定两个线程
-		threadPool = Executors.newFixedThreadPool(2);
-		//监听服务端消息
-		threadPool.execute(this::listenServer);
-		
-		run = true;
-		
-		onlineUserNameSet = new HashSet<String>();
-	}
-	
-	
-	/**
-	 * 登录
-	 * @param userName
-	 */
-	public void login(String userName, BiConsumer<Boolean, String> callBack) {
-		curUserName = userName;
-		loginSuccessCallback = callBack;
-		writeToServerAsy(NetUtils.buildCmdLine(MsgConst.CMD_LOGIN, MsgConst.FIELD_USER_NAME, userName));
-	}
-	
-
-	
-	/**
-	 * 监听服务端消息
-	 */
-	private void listenServer() {
-		while(run) {
-			try {
-				String line = socketReader.readLine();
-				System.out.println("收到服务器的信息：" + line);
-				JSONObject jsonObj = getJsonObjFromStr(line);
-				if(null == jsonObj) {
-					continue;
-				}
-				
-				String cmd = jsonObj.optString(MsgConst.FIELD_CMD, "");
-				switch (cmd) {
-				// 登录
-				case MsgConst.CMD_LOGIN:
-					dealLogin(jsonObj);
-					break;
-				// 登出
-				case MsgConst.CMD_LOGOUT:
-					break;
-				//处理聊天
-				case MsgConst.CMD_CHAT_TO:
-					dealChatTo(jsonObj);
-					break;
-				//更新用户列表
-				case MsgConst.CMD_UPDATE_ONLINE_USER_LIST:
-					dealUpdateUserList(jsonObj);
-					break;
-				}
-				
-				
-			} catch (IOException e) {
-			}
-		}
-	}
-	
-	/**
-	 * 更新用户列表
-	 * @param jsonObj
-	 */
-	private void dealUpdateUserList(JSONObject jsonObj) {
-		String userName = jsonObj.getString(MsgConst.FIELD_USER_NAME);
-		String status = jsonObj.getString(MsgConst.FIELD_USER_STATUS);
-		
-		boolean isLogin = status.equals(MsgConst.USER_STATUS_LOGIN);
-		//有用户登录
-		if(isLogin) {
-			onlineUserNameSet.add(userName);
-		}else {
-			//有用户退出
-			onlineUserNameSet.remove(userName);
-		}
-		
-		if(null != userChgListener) {
-			userChgListener.accept(isLogin, userName);
-		}
-	}
-
-	/**
-	 * 设置用户监听
-	 * @param userChgListener
-	 */
-	public void setUserChgListener(BiConsumer<Boolean, String> userChgListener) {
-		this.userChgListener = userChgListener;
-	}
-
-
-	/**
-	 * 聊天处理
-	 * @param jsonObj
-	 */
-	private void dealChatTo(JSONObject jsonObj) {
-		if(chatMsgListener == null) {
-			return;
-		}
-		
-		chatMsgListener.accept(jsonObj.getString(MsgConst.FIELD_USER_NAME), jsonObj.getString(MsgConst.FIELD_CHAT_MSG));
-	}
-	
-
-	public void setChatMsgListener(BiConsumer<String, String> chatMsgListener) {
-		this.chatMsgListener = chatMsgListener;
-	}
-
-
-	/**
-	 * 登录
-	 * @param jsonObj 
-	 */
-	private void dealLogin(JSONObject jsonObj) {
-		String errMsg = jsonObj.optString(MsgConst.FIELD_ERR_MSG, "");
-		boolean isSucess = StringUtils.isEmpty(errMsg);
-		if(isSucess) {
-			//所有在线用户名字
-			JSONArray nameList = jsonObj.optJSONArray(MsgConst.FIELD_USER_NAME_LIST);
-			for(int i = 0; i < nameList.size(); ++i) {
-				onlineUserNameSet.add(nameList.getString(i));
-			}
-		}
-		
-		
-		if(loginSuccessCallback != null) {
-			loginSuccessCallback.accept(isSucess, errMsg);
-		}
-	}
-
-
-	private JSONObject getJsonObjFromStr(String line) {
-		return JSONObject.fromObject(line);
-	}
-
-
-	/**
-	 * 异步写消息到服务端
-	 * @param msg
-	 */
-	private void writeToServerAsy(String msg) {
-		threadPool.execute(() ->{
-			socketWriter.println(msg);
-			socketWriter.flush();
-		});
-	}
-	
-
-	@Override
-	public void close() throws IOException {
-		run = false;
-		if(threadPool != null) {
-			try {
-				threadPool.shutdownNow();
-			}catch (Exception e) {
-				e.printStackTrace();
-			}
-		}
-		
-		if(socket != null) {
-			try {
-				socket.close();
-			}catch (Exception e) {
-				e.printStackTrace();
-			}
-		}
-	}
-
-	/**
-	 * 登出
-	 */
-	public void logout() {
-		if(StringUtils.isEmpty(curUserName)) {
-			return;
-		}
-		
-		writeToServerAsy(NetUtils.buildCmdLine(MsgConst.CMD_LOGOUT));
-	}
-
-
-	/**
-	 * 获取所有用户列表
-	 * @return
-	 */
-	public List<String> getOnlineUserList() {
-		return new ArrayList<>(onlineUserNameSet);
-	}
-
-
-	/**
-	 * 发送消息到指定对象
-	 * @param curChatToUserName
-	 * @param msg
-	 */
-	public void sendChatMsg(String curChatToUserName, String msg) {
-		writeToServerAsy(NetUtils.buildCmdLine(MsgConst.CMD_CHAT_TO, 
-												MsgConst.FIELD_TARGET_USER, curChatToUserName,
-												MsgConst.FIELD_CHAT_MSG, msg));
-	}
-
-	/**
-	 * 获取当前用户名
-	 * @return
-	 */
-	public String getCurUserName() {
-		return curUserName;
-	}
-}
+package client.net;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.apache.commons.lang.StringUtils;
+
+import base.AsyncLogger;
+import base.BinaryCodec;
+import base.ChatCmd;
+import base.FrameReader;
+import base.JsonCodec;
+import base.MsgCompressor;
+import base.MsgConst;
+
+/**
+ * 聊天客户端
+ */
+public class ChatClient implements Closeable {
+	private Socket socket;
+	private OutputStream socketWriter;
+	private FrameReader socketReader;
+	
+	/**
+	 * 是否使用二进制协议，登录成功时由服务端确定
+	 */
+	private volatile boolean binary;
+	
+	/**
+	 * 是否压缩大的聊天内容，登录成功时由服务端确定
+	 */
+	private volatile boolean compression;
+	
+	/**
+	 * 压缩在写线程上，解压在监听线程上
+	 */
+	private final MsgCompressor compressor = new MsgCompressor();
+	
+	/**
+	 * 线程池
+	 */
+	private ExecutorService threadPool;
+	
+	/**
+	 * 线程池是否由外部共享，共享时关闭客户端不关闭线程池
+	 */
+	private boolean sharedThreadPool;
+	
+	/**
+	 * 待发送的命令，同一时间只有一个任务在写，保证发送顺序
+	 */
+	private final Queue<ChatCmd> pendingWrites = new ConcurrentLinkedQueue<>();
+	
+	/**
+	 * 是否已有写任务
+	 */
+	private final AtomicBoolean writeScheduled = new AtomicBoolean();
+	/**
+	 * 是否运行
+	 */
+	private volatile boolean run;
+	
+	/**
+	 * 成功登录的回调
+	 */
+	private volatile BiConsumer<Boolean, String> loginSuccessCallback;
+	
+	/**
+	 * 监听聊天信息
+	 */
+	private volatile BiConsumer<String, String> chatMsgListener;
+	
+	/**
+	 * 还没设置聊天监听时收到的聊天，设置监听时按顺序交给它
+	 * 登录成功后服务端马上发离线消息，可能比聊天窗口设置监听早到；超过上限的丢弃
+	 */
+	private final List<String[]> pendingChats = new ArrayList<>();
+	
+	/**
+	 * 等待监听的聊天最多保存的条数
+	 */
+	private static final int MAX_PENDING_CHATS = 10000;
+	
+	/**
+	 * 用户状态改变监听，参数为上线和下线的用户
+	 */
+	private volatile BiConsumer<List<String>, List<String>> userChgListener;
+	
+	/**
+	 * 聊天记录监听，参数为对方用户名和一页记录
+	 */
+	private volatile BiConsumer<String, List<ChatCmd>> historyListener;
+	
+	/**
+	 * 群聊监听，参数为房间消息或创建、加入、退出房间的结果
+	 */
+	private volatile Consumer<ChatCmd> roomListener;
+	
+	/**
+	 * 正在接收的一页聊天记录，只在监听线程中使用
+	 */
+	private List<ChatCmd> historyPage = new ArrayList<>();
+	
+	/**
+	 * 在线用户名字，不可变的集合
+	 * 只有监听线程修改，批量改完后整体替换；其他线程直接拿当前的集合，不用复制也不用加锁
+	 */
+	private volatile PersistentNameSet onlineUsers = PersistentNameSet.EMPTY;
+	
+	/**
+	 * 在线用户名单的版本，重新登录时带上，服务端只发之后的变化
+	 * 为空表示名单不完整，需要全量
+	 */
+	private volatile String rosterVersion;
+	
+	/**
+	 * 收到消息的日志采样
+	 */
+	private final AsyncLogger.Sampler logSampler = new AsyncLogger.Sampler();
+	
+	/**
+	 * 当前用户名
+	 */
+	private String curUserName;
+	
+	public ChatClient(String host, int port) throws UnknownHostException, IOException {
+		//限定两个线程
+		this(host, port, Executors.newFixedThreadPool(2));
+		sharedThreadPool = false;
+	}
+	
+	/**
+	 * 使用共享的线程池，监听占用其中一个线程，发送按需占用
+	 * 用于同一进程里模拟大量客户端
+	 * @param host
+	 * @param port
+	 * @param threadPool
+	 * @throws UnknownHostException
+	 * @throws IOException
+	 */
+	public ChatClient(String host, int port, ExecutorService threadPool) throws UnknownHostException, IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		socketWriter = new BufferedOutputStream(socket.getOutputStream());
+		socketReader = new FrameReader(socket.getInputStream());
+		
+		//要在监听线程启动前初始化，否则监听线程可能直接退出或拿到空的集合
+		run = true;
+		
+		this.threadPool = threadPool;
+		sharedThreadPool = true;
+		//监听服务端消息
+		threadPool.execute(this::listenServer);
+	}
+	
+	
+	/**
+	 * 登录
+	 * @param userName
+	 */
+	public void login(String userName, BiConsumer<Boolean, String> callBack) {
+		curUserName = userName;
+		loginSuccessCallback = callBack;
+		ChatCmd loginCmd = new ChatCmd(MsgConst.CMD_LOGIN);
+		loginCmd.setUserName(userName);
+		//告诉服务端支持的二进制协议版本，老服务端会忽略
+		loginCmd.setBinaryVersion(BinaryCodec.VERSION);
+		loginCmd.setClientVersion(MsgConst.CLIENT_VERSION);
+		loginCmd.setRosterVersion(rosterVersion);
+		loginCmd.setCompression(MsgConst.COMPRESSION_DEFLATE);
+		writeToServerAsy(loginCmd);
+	}
+	
+	
+	
+	/**
+	 * 监听服务端消息
+	 */
+	private void listenServer() {
+		ChatCmd cmd = new ChatCmd();
+		while(run) {
+			try {
+				if(!socketReader.read(cmd)) {
+					//服务端已断开
+					break;
+				}
+				if(AsyncLogger.isEnabled(AsyncLogger.Level.INFO) && logSampler.sample()) {
+					AsyncLogger.info("收到服务器的信息：" + AsyncLogger.describe(cmd));
+				}
+				if(null == cmd.getCmd()) {
+					continue;
+				}
+				
+				switch (cmd.getCmd()) {
+				// 登录
+				case MsgConst.CMD_LOGIN:
+					dealLogin(cmd);
+					break;
+				// 登出
+				case MsgConst.CMD_LOGOUT:
+					break;
+				//处理聊天
+				case MsgConst.CMD_CHAT_TO:
+					dealChatTo(cmd);
+					break;
+				//更新用户列表
+				case MsgConst.CMD_UPDATE_ONLINE_USER_LIST:
+					dealUpdateUserList(cmd);
+					break;
+				//登录后的名单分段
+				case MsgConst.CMD_ROSTER:
+					updateUserList(cmd.getUserNameList(), null);
+					rosterVersion = cmd.getRosterVersion();
+					break;
+				//聊天记录
+				case MsgConst.CMD_HISTORY:
+					dealHistory(cmd);
+					break;
+				//群聊
+				case MsgConst.CMD_ROOM_CREATE:
+				case MsgConst.CMD_ROOM_JOIN:
+				case MsgConst.CMD_ROOM_LEAVE:
+				case MsgConst.CMD_ROOM_MSG:
+					dealRoom(cmd);
+					break;
+				//服务端的心跳，回复后服务端知道连接还活着
+				case MsgConst.CMD_PING:
+					writeToServerAsy(new ChatCmd(MsgConst.CMD_PONG));
+					break;
+				}
+				
+				
+			} catch (IOException e) {
+			}
+		}
+	}
+	
+	/**
+	 * 更新用户列表
+	 * @param cmd
+	 */
+	private void dealUpdateUserList(ChatCmd cmd) {
+		List<String> loginUsers;
+		List<String> logoutUsers;
+		if(cmd.getLoginUserList() != null || cmd.getLogoutUserList() != null) {
+			//批量更新
+			loginUsers = cmd.getLoginUserList();
+			logoutUsers = cmd.getLogoutUserList();
+		}else {
+			boolean isLogin = MsgConst.USER_STATUS_LOGIN.equals(cmd.getUserStatus());
+			List<String> users = Collections.singletonList(cmd.getUserName());
+			loginUsers = isLogin ? users : null;
+			logoutUsers = isLogin ? null : users;
+		}
+		
+		updateUserList(loginUsers, logoutUsers);
+		if(cmd.getRosterVersion() != null) {
+			rosterVersion = cmd.getRosterVersion();
+		}
+	}
+	
+	/**
+	 * 更新在线用户并通知变化
+	 * @param loginUsers
+	 * @param logoutUsers
+	 */
+	private void updateUserList(List<String> loginUsers, List<String> logoutUsers) {
+		//批量更新里可能有自己或已经知道的用户，只通知真正变化的
+		PersistentNameSet.Editor editor = onlineUsers.edit();
+		List<String> addedUsers = new ArrayList<>();
+		if(loginUsers != null) {
+			for(String userName : loginUsers) {
+				//有用户登录
+				if(!userName.equals(curUserName) && editor.add(userName)) {
+					addedUsers.add(userName);
+				}
+			}
+		}
+		
+		List<String> removedUsers = new ArrayList<>();
+		if(logoutUsers != null) {
+			for(String userName : logoutUsers) {
+				//有用户退出
+				if(editor.remove(userName)) {
+					removedUsers.add(userName);
+				}
+			}
+		}
+		onlineUsers = editor.done();
+		
+		if(null != userChgListener && (!addedUsers.isEmpty() || !removedUsers.isEmpty())) {
+			userChgListener.accept(addedUsers, removedUsers);
+		}
+	}
+	
+	/**
+	 * 设置用户监听
+	 * @param userChgListener
+	 */
+	public void setUserChgListener(BiConsumer<List<String>, List<String>> userChgListener) {
+		this.userChgListener = userChgListener;
+	}
+	
+	
+	/**
+	 * 聊天处理
+	 * @param cmd
+	 */
+	private void dealChatTo(ChatCmd cmd) {
+		BiConsumer<String, String> listener;
+		synchronized(pendingChats) {
+			listener = chatMsgListener;
+			if(listener == null) {
+				if(pendingChats.size() < MAX_PENDING_CHATS) {
+					pendingChats.add(new String[] {cmd.getUserName(), chatMsg(cmd)});
+				}
+				return;
+			}
+		}
+		
+		listener.accept(cmd.getUserName(), chatMsg(cmd));
+	}
+	
+	
+	/**
+	 * 设置聊天监听，先把之前收到的聊天按顺序交给它
+	 * 在锁内交出，期间新到的聊天等在后面，顺序不变
+	 * @param chatMsgListener
+	 */
+	public void setChatMsgListener(BiConsumer<String, String> chatMsgListener) {
+		synchronized(pendingChats) {
+			this.chatMsgListener = chatMsgListener;
+			if(chatMsgListener == null) {
+				return;
+			}
+			
+			for(String[] chat : pendingChats) {
+				chatMsgListener.accept(chat[0], chat[1]);
+			}
+			pendingChats.clear();
+		}
+	}
+	
+	
+	/**
+	 * 聊天记录，收集到结束命令后一起回调
+	 * @param cmd
+	 */
+	private void dealHistory(ChatCmd cmd) {
+		if(cmd.getSeq() > 0) {
+			//监听线程复用cmd，需要复制
+			ChatCmd message = new ChatCmd(MsgConst.CMD_HISTORY);
+			message.setUserName(cmd.getUserName());
+			message.setChatMsg(chatMsg(cmd));
+			message.setSeq(cmd.getSeq());
+			message.setTime(cmd.getTime());
+			historyPage.add(message);
+			return;
+		}
+		
+		List<ChatCmd> page = historyPage;
+		historyPage = new ArrayList<>();
+		if(historyListener != null) {
+			historyListener.accept(cmd.getTargetUserName(), page);
+		}
+	}
+	
+	/**
+	 * 群聊消息和房间操作的结果
+	 * @param cmd
+	 */
+	private void dealRoom(ChatCmd cmd) {
+		if(roomListener == null) {
+			return;
+		}
+		
+		//监听线程复用cmd，需要复制
+		ChatCmd roomCmd = new ChatCmd(cmd.getCmd());
+		roomCmd.setRoomName(cmd.getRoomName());
+		roomCmd.setUserName(cmd.getUserName());
+		roomCmd.setChatMsg(cmd.getCompressedMsg() == null ? cmd.getChatMsg() : chatMsg(cmd));
+		roomCmd.setErrMsg(cmd.getErrMsg());
+		roomCmd.setLimit(cmd.getLimit());
+		roomListener.accept(roomCmd);
+	}
+	
+	/**
+	 * 设置群聊监听
+	 * @param roomListener
+	 */
+	public void setRoomListener(Consumer<ChatCmd> roomListener) {
+		this.roomListener = roomListener;
+	}
+	
+	/**
+	 * 设置聊天记录监听
+	 * @param historyListener
+	 */
+	public void setHistoryListener(BiConsumer<String, List<ChatCmd>> historyListener) {
+		this.historyListener = historyListener;
+	}
+	
+	
+	/**
+	 * 登录
+	 * @param cmd 
+	 */
+	private void dealLogin(ChatCmd cmd) {
+		String errMsg = StringUtils.defaultString(cmd.getErrMsg());
+		boolean isSucess = StringUtils.isEmpty(errMsg);
+		if(isSucess) {
+			if(cmd.getUserNameList() != null) {
+				//所有在线用户名字，之前的名单作废
+				PersistentNameSet.Editor editor = PersistentNameSet.EMPTY.edit();
+				for(String userName : cmd.getUserNameList()) {
+					editor.add(userName);
+				}
+				if(curUserName != null) {
+					editor.remove(curUserName);
+				}
+				onlineUsers = editor.done();
+			}else {
+				//上次登录之后的变化
+				updateUserList(cmd.getLoginUserList(), cmd.getLogoutUserList());
+			}
+			//全量名单还有后续分段时没有版本
+			rosterVersion = cmd.getRosterVersion();
+			
+			//服务端同意后，之后的收发都用二进制协议
+			if(cmd.getBinaryVersion() > 0) {
+				binary = true;
+				socketReader.setBinary(true);
+			}
+			compression = MsgConst.COMPRESSION_DEFLATE.equals(cmd.getCompression());
+		}
+		
+		
+		if(loginSuccessCallback != null) {
+			loginSuccessCallback.accept(isSucess, errMsg);
+		}
+	}
+	
+	
+	/**
+	 * 异步写消息到服务端
+	 * @param cmd
+	 */
+	private void writeToServerAsy(ChatCmd cmd) {
+		pendingWrites.add(cmd);
+		scheduleWrite();
+	}
+	
+	/**
+	 * 协商了压缩时，大的聊天内容压缩后发送，在写线程上执行
+	 * @param cmd
+	 */
+	private void compress(ChatCmd cmd) {
+		if(!compression || cmd.getChatMsg() == null || cmd.getChatMsg().length() * 3 < MsgCompressor.THRESHOLD) {
+			return;
+		}
+		
+		byte[] compressedMsg = compressor.compress(cmd.getChatMsg());
+		if(compressedMsg != null) {
+			cmd.setCompressedMsg(compressedMsg);
+			cmd.setChatMsg(null);
+		}
+	}
+	
+	/**
+	 * 聊天内容的原文，压缩的内容在监听线程上解压
+	 * @param cmd
+	 * @return
+	 */
+	private String chatMsg(ChatCmd cmd) {
+		if(cmd.getCompressedMsg() == null) {
+			return cmd.getChatMsg();
+		}
+		
+		try {
+			return compressor.decompress(cmd.getCompressedMsg());
+		}catch (IllegalArgumentException e) {
+			AsyncLogger.warn("解压聊天内容失败: " + e.getMessage());
+			return "";
+		}
+	}
+	
+	private void scheduleWrite() {
+		if(writeScheduled.compareAndSet(false, true)) {
+			threadPool.execute(this::writePending);
+		}
+	}
+	
+	/**
+	 * 写出所有待发送的命令，最后统一flush
+	 */
+	private void writePending() {
+		try {
+			ChatCmd cmd;
+			while((cmd = pendingWrites.poll()) != null) {
+				compress(cmd);
+				byte[] data = binary ? BinaryCodec.encode(cmd) : JsonCodec.local().encodeLine(cmd);
+				socketWriter.write(data);
+			}
+			socketWriter.flush();
+		} catch (IOException e) {
+			AsyncLogger.error("发送消息失败。", e);
+		} finally {
+			writeScheduled.set(false);
+			//释放标记前又加入的命令
+			if(!pendingWrites.isEmpty() && run) {
+				scheduleWrite();
+			}
+		}
+	}
+	
+	
+	@Override
+	public void close() throws IOException {
+		run = false;
+		if(threadPool != null && !sharedThreadPool) {
+			try {
+				threadPool.shutdownNow();
+			}catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		
+		if(socket != null) {
+			try {
+				socket.close();
+			}catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * 登出
+	 */
+	public void logout() {
+		if(StringUtils.isEmpty(curUserName)) {
+			return;
+		}
+		
+		writeToServerAsy(new ChatCmd(MsgConst.CMD_LOGOUT));
+	}
+	
+	
+	/**
+	 * 获取所有在线用户，返回当前的不可变集合，之后的变化不影响它
+	 * @return
+	 */
+	public PersistentNameSet getOnlineUsers() {
+		return onlineUsers;
+	}
+	
+	
+	/**
+	 * 发送消息到指定对象
+	 * @param curChatToUserName
+	 * @param msg
+	 */
+	public void sendChatMsg(String curChatToUserName, String msg) {
+		ChatCmd chatCmd = new ChatCmd(MsgConst.CMD_CHAT_TO);
+		chatCmd.setTargetUserName(curChatToUserName);
+		chatCmd.setChatMsg(msg);
+		writeToServerAsy(chatCmd);
+	}
+	
+	/**
+	 * 创建、加入或退出群聊房间，结果通过群聊监听返回
+	 * @param cmd MsgConst.CMD_ROOM_CREATE、CMD_ROOM_JOIN或CMD_ROOM_LEAVE
+	 * @param roomName
+	 */
+	public void changeRoom(String cmd, String roomName) {
+		ChatCmd roomCmd = new ChatCmd(cmd);
+		roomCmd.setRoomName(roomName);
+		writeToServerAsy(roomCmd);
+	}
+	
+	/**
+	 * 发送群聊消息
+	 * @param roomName
+	 * @param msg
+	 */
+	public void sendRoomMsg(String roomName, String msg) {
+		ChatCmd roomCmd = new ChatCmd(MsgConst.CMD_ROOM_MSG);
+		roomCmd.setRoomName(roomName);
+		roomCmd.setChatMsg(msg);
+		writeToServerAsy(roomCmd);
+	}
+	
+	/**
+	 * 查询和某个用户的聊天记录，结果通过聊天记录监听返回
+	 * @param peerUserName
+	 * @param seq 游标，不包括游标本身，为0时向前查询从最新开始，向后查询从最早开始
+	 * @param before 是否查询游标之前的
+	 * @param limit 条数
+	 */
+	public void requestHistory(String peerUserName, int seq, boolean before, int limit) {
+		ChatCmd historyCmd = new ChatCmd(MsgConst.CMD_HISTORY);
+		historyCmd.setTargetUserName(peerUserName);
+		historyCmd.setSeq(seq);
+		historyCmd.setLimit(limit);
+		historyCmd.setDirection(before ? MsgConst.DIRECTION_BEFORE : MsgConst.DIRECTION_AFTER);
+		writeToServerAsy(historyCmd);
+	}
+	
+	/**
+	 * 获取当前用户名
+	 * @return
+	 */
+	public String getCurUserName() {
+		return curUserName;
+	}
+}
@@ -0,0 +1,331 @@
+package client.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import base.LatencyHistogram;
+
+/**
+ * 无界面的压测工具，在一个进程里模拟大量客户端
+ * 按设定的速度建立连接并登录，然后按流量模式互相发送chat_to，
+ * 最后报告吞吐量以及连接、登录、端到端消息的耗时分布
+ *
+ * 参数为key=value，例如: users=2000 ramp=500 duration=30 rate=1 pattern=random size=64
+ * 比较服务器bio和virtual模式的方法和结果见doc/loadtest-bio-virtual.md
+ */
+public class LoadGenerator {
+	
+	/**
+	 * 流量模式
+	 */
+	private enum Pattern {
+		/**
+		 * 随机发给任意一个其他用户
+		 */
+		RANDOM,
+		/**
+		 * 两两成对互发
+		 */
+		PAIRS,
+		/**
+		 * 都发给少数几个热点用户
+		 */
+		HOTSPOT
+	}
+	
+	private final String host;
+	private final int port;
+	
+	/**
+	 * 模拟的用户数
+	 */
+	private final int users;
+	
+	/**
+	 * 每秒建立的连接数
+	 */
+	private final int rampPerSecond;
+	
+	/**
+	 * 发送消息的持续时间(秒)
+	 */
+	private final int durationSeconds;
+	
+	/**
+	 * 每个用户每秒发送的消息数
+	 */
+	private final double ratePerUser;
+	
+	private final Pattern pattern;
+	
+	/**
+	 * 热点模式下的热点用户数
+	 */
+	private final int hotUsers;
+	
+	/**
+	 * 消息内容的字节数
+	 */
+	private final int messageSize;
+	
+	private final String namePrefix;
+	
+	private final ExecutorService threadPool;
+	
+	private final List<ChatClient> clients = new ArrayList<>();
+	
+	/**
+	 * 与clients一一对应的用户名
+	 */
+	private final List<String> userNames = new ArrayList<>();
+	
+	/**
+	 * 登录成功的客户端在clients中的下标，由登录结果的回调记录
+	 */
+	private final Set<Integer> loggedIn = ConcurrentHashMap.newKeySet();
+	
+	/**
+	 * 登录成功的客户端和用户名，只在它们之间发送消息
+	 */
+	private final List<ChatClient> senders = new ArrayList<>();
+	private final List<String> senderNames = new ArrayList<>();
+	
+	private final LatencyHistogram connectLatency = new LatencyHistogram();
+	private final LatencyHistogram loginLatency = new LatencyHistogram();
+	private final LatencyHistogram messageLatency = new LatencyHistogram();
+	
+	private final AtomicLong connectFailed = new AtomicLong();
+	private final AtomicLong loginFailed = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+	
+	private LoadGenerator(Map<String, String> options) {
+		host = options.getOrDefault("host", "127.0.0.1");
+		port = Integer.parseInt(options.getOrDefault("port", "9999"));
+		users = Integer.parseInt(options.getOrDefault("users", "100"));
+		if(users < 2) {
+			//至少要有发送方和另一个接收方
+			throw new IllegalArgumentException("users至少为2: " + users);
+		}
+		rampPerSecond = Integer.parseInt(options.getOrDefault("ramp", "100"));
+		durationSeconds = Integer.parseInt(options.getOrDefault("duration", "10"));
+		ratePerUser = Double.parseDouble(options.getOrDefault("rate", "1"));
+		pattern = Pattern.valueOf(options.getOrDefault("pattern", "random").toUpperCase());
+		hotUsers = Math.max(1, Math.min(users, Integer.parseInt(options.getOrDefault("hot", "10"))));
+		messageSize = Integer.parseInt(options.getOrDefault("size", "64"));
+		namePrefix = options.getOrDefault("prefix", "load" + Long.toString(System.currentTimeMillis() % 100000, 36) + "-");
+		threadPool = newThreadPool();
+	}
+	
+	/**
+	 * 每个模拟用户的监听占用一个线程，支持时使用虚拟线程
+	 * 项目按JDK8编译，所以通过反射获取，JDK21以下退回普通线程池
+	 * @return
+	 */
+	private static ExecutorService newThreadPool() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(r -> {
+				Thread thread = new Thread(r, "load-client");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+	
+	private void run() throws InterruptedException {
+		System.out.println(String.format("目标 %s:%d，用户%d，每秒连接%d，持续%d秒，每用户每秒%.2f条，模式%s，消息%d字节",
+				host, port, users, rampPerSecond, durationSeconds, ratePerUser, pattern, messageSize));
+		
+		long rampStart = System.nanoTime();
+		connectAndLogin();
+		double rampSeconds = (System.nanoTime() - rampStart) / 1e9;
+		System.out.println(String.format("登录完成: %d个用户，用时%.2f秒，连接失败%d，登录失败%d",
+				senders.size(), rampSeconds, connectFailed.get(), loginFailed.get()));
+		
+		if(senders.size() > 1) {
+			long sendStart = System.nanoTime();
+			sendMessages();
+			double sendSeconds = (System.nanoTime() - sendStart) / 1e9;
+			
+			//等待还在路上的消息
+			Thread.sleep(2000);
+			System.out.println(String.format("发送%d条，收到%d条，发送吞吐%.0f条/秒，接收吞吐%.0f条/秒",
+					sent.get(), received.get(), sent.get() / sendSeconds, received.get() / sendSeconds));
+		}
+		
+		printLatency("连接", connectLatency);
+		printLatency("登录", loginLatency);
+		printLatency("消息", messageLatency);
+		
+		for(ChatClient client : clients) {
+			try {
+				client.close();
+			}catch (Exception e) {
+			}
+		}
+		threadPool.shutdownNow();
+	}
+	
+	/**
+	 * 按设定的速度建立连接并登录，等待所有登录结果
+	 * @throws InterruptedException
+	 */
+	private void connectAndLogin() throws InterruptedException {
+		CountDownLatch loginLatch = new CountDownLatch(users);
+		long start = System.nanoTime();
+		for(int i = 0; i < users; ++i) {
+			//第i个连接应当开始的时间
+			long due = start + i * 1_000_000_000L / rampPerSecond;
+			long wait = due - System.nanoTime();
+			if(wait > 0) {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			}
+			
+			ChatClient client;
+			long connectStart = System.nanoTime();
+			try {
+				client = new ChatClient(host, port, threadPool);
+			}catch (Exception e) {
+				connectFailed.incrementAndGet();
+				loginLatch.countDown();
+				continue;
+			}
+			connectLatency.record(System.nanoTime() - connectStart);
+			client.setChatMsgListener(this::onChatMsg);
+			
+			String userName = namePrefix + i;
+			int index = clients.size();
+			long loginStart = System.nanoTime();
+			client.login(userName, (isSuccess, errMsg) -> {
+				if(isSuccess) {
+					loginLatency.record(System.nanoTime() - loginStart);
+					loggedIn.add(index);
+				}else {
+					loginFailed.incrementAndGet();
+				}
+				loginLatch.countDown();
+			});
+			clients.add(client);
+			userNames.add(userName);
+		}
+		
+		if(!loginLatch.await(30, TimeUnit.SECONDS)) {
+			System.out.println("等待登录结果超时，还有" + loginLatch.getCount() + "个用户");
+		}
+		
+		//登录失败或超时的客户端不发送也不作为接收方
+		for(int i = 0; i < clients.size(); ++i) {
+			if(loggedIn.contains(i)) {
+				senders.add(clients.get(i));
+				senderNames.add(userNames.get(i));
+			}
+		}
+	}
+	
+	/**
+	 * 按总速率发送消息，发送时间写在消息开头，接收方据此计算端到端耗时
+	 * 按计划时间而不是上一条的完成时间发送，服务端变慢时不会少发
+	 * @throws InterruptedException
+	 */
+	private void sendMessages() throws InterruptedException {
+		double totalRate = ratePerUser * senders.size();
+		long start = System.nanoTime();
+		long end = start + durationSeconds * 1_000_000_000L;
+		long count = 0;
+		StringBuilder padding = new StringBuilder();
+		while(padding.length() < messageSize) {
+			padding.append('x');
+		}
+		
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long now;
+		while((now = System.nanoTime()) < end) {
+			long due = (long) ((now - start) / 1e9 * totalRate);
+			for(; count < due; ++count) {
+				int from = (int) (count % senders.size());
+				int to = pickTarget(from, random);
+				senders.get(from).sendChatMsg(senderNames.get(to), System.nanoTime() + ":" + padding);
+				sent.incrementAndGet();
+			}
+			TimeUnit.MILLISECONDS.sleep(1);
+		}
+	}
+	
+	private int pickTarget(int from, ThreadLocalRandom random) {
+		int userCount = senders.size();
+		switch (pattern) {
+		case PAIRS:
+			int partner = from ^ 1;
+			return partner < userCount ? partner : (from + 1) % userCount;
+		case HOTSPOT:
+			int hot = random.nextInt(Math.min(hotUsers, userCount));
+			return hot != from ? hot : (hot + 1) % userCount;
+		default:
+			int to = random.nextInt(userCount - 1);
+			return to >= from ? to + 1 : to;
+		}
+	}
+	
+	private void onChatMsg(String userName, String msg) {
+		received.incrementAndGet();
+		int sep = msg.indexOf(':');
+		if(sep > 0) {
+			try {
+				messageLatency.record(System.nanoTime() - Long.parseLong(msg.substring(0, sep)));
+			}catch (NumberFormatException e) {
+			}
+		}
+	}
+	
+	private static void printLatency(String name, LatencyHistogram histogram) {
+		System.out.println(String.format("%s耗时(毫秒) 次数%d 平均%.2f p50 %.2f p90 %.2f p99 %.2f p99.9 %.2f 最大%.2f",
+				name, histogram.getCount(), histogram.getMean() / 1e6,
+				histogram.getPercentile(50) / 1e6, histogram.getPercentile(90) / 1e6,
+				histogram.getPercentile(99) / 1e6, histogram.getPercentile(99.9) / 1e6,
+				histogram.getMax() / 1e6));
+	}
+	
+	/**
+	 * 参数: host port users ramp duration rate pattern(random|pairs|hotspot) hot size prefix，格式为key=value
+	 * @param args
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		Map<String, String> options = new HashMap<>();
+		for(String arg : args) {
+			int eq = arg.indexOf('=');
+			if(eq <= 0) {
+				System.out.println("参数格式应为key=value: " + arg);
+				return;
+			}
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		
+		//每条消息都记日志会拖慢压测本身
+		if(System.getProperty("chat.logLevel") == null) {
+			System.setProperty("chat.logLevel", "WARN");
+		}
+		
+		LoadGenerator generator;
+		try {
+			generator = new LoadGenerator(options);
+		}catch (IllegalArgumentException e) {
+			System.out.println("参数错误: " + e.getMessage());
+			return;
+		}
+		generator.run();
+		System.exit(0);
+	}
+}
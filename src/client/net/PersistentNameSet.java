@@ -0,0 +1,457 @@
+package client.net;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 不可变的用户名集合，修改时返回新的集合，未变的部分与原集合共用
+ * 按哈希值每5位一层的前缀树(HAMT)保存，查找和单个修改都是O(log32 N)。
+ * 批量修改用{@link Editor}，批量期间新建的节点直接原地修改，只复制与原集合共用的节点；
+ * 完成后得到新的集合，原集合不受影响，可以在任意线程上同时读取
+ */
+public final class PersistentNameSet implements Iterable<String> {
+	
+	public static final PersistentNameSet EMPTY = new PersistentNameSet(null, 0);
+	
+	/**
+	 * 每层用哈希值的位数
+	 */
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+	
+	/**
+	 * 最大深度，32位哈希每层5位是7层，哈希相同时再多一层冲突节点
+	 */
+	private static final int MAX_DEPTH = 8;
+	
+	private final Node root;
+	
+	private final int size;
+	
+	private PersistentNameSet(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public boolean contains(String name) {
+		return root != null && root.contains(0, hash(name), name);
+	}
+	
+	/**
+	 * 添加一个用户名
+	 * @param name
+	 * @return 已存在时返回自身
+	 */
+	public PersistentNameSet with(String name) {
+		Editor editor = edit();
+		editor.add(name);
+		return editor.done();
+	}
+	
+	/**
+	 * 删除一个用户名
+	 * @param name
+	 * @return 不存在时返回自身
+	 */
+	public PersistentNameSet without(String name) {
+		Editor editor = edit();
+		editor.remove(name);
+		return editor.done();
+	}
+	
+	/**
+	 * 开始批量修改
+	 * @return
+	 */
+	public Editor edit() {
+		return new Editor(root, size);
+	}
+	
+	@Override
+	public Iterator<String> iterator() {
+		return new NameIterator(root);
+	}
+	
+	private static int hash(String name) {
+		int h = name.hashCode();
+		return h ^ (h >>> 16);
+	}
+	
+	/**
+	 * 批量修改，只在一个线程上使用
+	 * 批量期间新建的节点属于这次修改，再次修改时不复制；{@link #done()}之后不能再用
+	 */
+	public static final class Editor {
+		
+		/**
+		 * 这次修改的标记，节点的标记相同时可以原地修改
+		 */
+		private Object owner = new Object();
+		
+		private Node root;
+		
+		private int size;
+		
+		/**
+		 * 最近一次修改是否有变化
+		 */
+		private final boolean[] changed = new boolean[1];
+		
+		private Editor(Node root, int size) {
+			this.root = root;
+			this.size = size;
+		}
+		
+		/**
+		 * 添加一个用户名
+		 * @param name
+		 * @return 原来不存在时返回true
+		 */
+		public boolean add(String name) {
+			ensureEditable();
+			changed[0] = false;
+			int hash = hash(name);
+			root = root == null ? new BitmapNode(owner, 0, new Object[0]).add(owner, 0, hash, name, changed)
+					: root.add(owner, 0, hash, name, changed);
+			if(changed[0]) {
+				++size;
+			}
+			return changed[0];
+		}
+		
+		/**
+		 * 删除一个用户名
+		 * @param name
+		 * @return 原来存在时返回true
+		 */
+		public boolean remove(String name) {
+			ensureEditable();
+			if(root == null) {
+				return false;
+			}
+			
+			changed[0] = false;
+			root = root.remove(owner, 0, hash(name), name, changed);
+			if(changed[0]) {
+				--size;
+			}
+			return changed[0];
+		}
+		
+		/**
+		 * 结束修改，返回新的集合，之后再修改也不会影响返回的集合
+		 * @return
+		 */
+		public PersistentNameSet done() {
+			ensureEditable();
+			owner = null;
+			return size == 0 ? EMPTY : new PersistentNameSet(root, size);
+		}
+		
+		private void ensureEditable() {
+			if(owner == null) {
+				throw new IllegalStateException("批量修改已经结束");
+			}
+		}
+	}
+	
+	/**
+	 * 前缀树的节点，数组中的元素是用户名或下一层的节点
+	 */
+	private abstract static class Node {
+		
+		/**
+		 * 创建这个节点的批量修改
+		 */
+		final Object owner;
+		
+		Object[] array;
+		
+		Node(Object owner, Object[] array) {
+			this.owner = owner;
+			this.array = array;
+		}
+		
+		abstract boolean contains(int shift, int hash, String name);
+		
+		abstract Node add(Object owner, int shift, int hash, String name, boolean[] changed);
+		
+		/**
+		 * @return 删除后为空时返回null
+		 */
+		abstract Node remove(Object owner, int shift, int hash, String name, boolean[] changed);
+		
+		/**
+		 * 只剩一个用户名时返回它，父节点直接保存用户名，不保留只有一项的节点
+		 * @return
+		 */
+		String singleName() {
+			return array.length == 1 && array[0] instanceof String ? (String) array[0] : null;
+		}
+	}
+	
+	/**
+	 * 按哈希值的5位分32个位置，用位图记录哪些位置有元素，数组只保存有元素的位置
+	 */
+	private static final class BitmapNode extends Node {
+		
+		int bitmap;
+		
+		BitmapNode(Object owner, int bitmap, Object[] array) {
+			super(owner, array);
+			this.bitmap = bitmap;
+		}
+		
+		@Override
+		boolean contains(int shift, int hash, String name) {
+			int bit = bit(hash, shift);
+			if((bitmap & bit) == 0) {
+				return false;
+			}
+			
+			Object entry = array[index(bit)];
+			if(entry instanceof Node) {
+				return ((Node) entry).contains(shift + BITS, hash, name);
+			}
+			return name.equals(entry);
+		}
+		
+		@Override
+		Node add(Object owner, int shift, int hash, String name, boolean[] changed) {
+			int bit = bit(hash, shift);
+			int index = index(bit);
+			if((bitmap & bit) == 0) {
+				changed[0] = true;
+				Object[] newArray = new Object[array.length + 1];
+				System.arraycopy(array, 0, newArray, 0, index);
+				newArray[index] = name;
+				System.arraycopy(array, index, newArray, index + 1, array.length - index);
+				return editable(owner, bitmap | bit, newArray);
+			}
+			
+			Object entry = array[index];
+			Object newEntry;
+			if(entry instanceof Node) {
+				newEntry = ((Node) entry).add(owner, shift + BITS, hash, name, changed);
+			}else if(name.equals(entry)) {
+				return this;
+			}else {
+				changed[0] = true;
+				newEntry = createNode(owner, shift + BITS, (String) entry, name, hash);
+			}
+			return newEntry == entry ? this : setEntry(owner, index, newEntry);
+		}
+		
+		@Override
+		Node remove(Object owner, int shift, int hash, String name, boolean[] changed) {
+			int bit = bit(hash, shift);
+			if((bitmap & bit) == 0) {
+				return this;
+			}
+			
+			int index = index(bit);
+			Object entry = array[index];
+			if(entry instanceof Node) {
+				Node child = ((Node) entry).remove(owner, shift + BITS, hash, name, changed);
+				if(child == entry) {
+					return this;
+				}
+				if(child != null) {
+					String single = child.singleName();
+					return setEntry(owner, index, single != null ? single : child);
+				}
+			}else if(!name.equals(entry)) {
+				return this;
+			}
+			
+			changed[0] = true;
+			if(array.length == 1) {
+				return null;
+			}
+			Object[] newArray = new Object[array.length - 1];
+			System.arraycopy(array, 0, newArray, 0, index);
+			System.arraycopy(array, index + 1, newArray, index, newArray.length - index);
+			return editable(owner, bitmap & ~bit, newArray);
+		}
+		
+		private Node setEntry(Object owner, int index, Object entry) {
+			if(owner == this.owner) {
+				array[index] = entry;
+				return this;
+			}
+			Object[] newArray = array.clone();
+			newArray[index] = entry;
+			return new BitmapNode(owner, bitmap, newArray);
+		}
+		
+		private Node editable(Object owner, int bitmap, Object[] array) {
+			if(owner == this.owner) {
+				this.bitmap = bitmap;
+				this.array = array;
+				return this;
+			}
+			return new BitmapNode(owner, bitmap, array);
+		}
+		
+		private int index(int bit) {
+			return Integer.bitCount(bitmap & (bit - 1));
+		}
+		
+		private static int bit(int hash, int shift) {
+			return 1 << ((hash >>> shift) & MASK);
+		}
+		
+		/**
+		 * 两个用户名落在同一位置时往下分一层，哈希值完全相同时放到冲突节点
+		 */
+		private static Node createNode(Object owner, int shift, String existing, String name, int hash) {
+			int existingHash = hash(existing);
+			if(existingHash == hash) {
+				return new CollisionNode(owner, hash, new Object[] {existing, name});
+			}
+			
+			int existingBit = bit(existingHash, shift);
+			int bit = bit(hash, shift);
+			if(existingBit == bit) {
+				return new BitmapNode(owner, bit, new Object[] {createNode(owner, shift + BITS, existing, name, hash)});
+			}
+			Object[] array = (existingBit & (bit - 1)) != 0 ? new Object[] {existing, name} : new Object[] {name, existing};
+			return new BitmapNode(owner, existingBit | bit, array);
+		}
+	}
+	
+	/**
+	 * 哈希值完全相同的用户名，按顺序比较
+	 */
+	private static final class CollisionNode extends Node {
+		
+		final int hash;
+		
+		CollisionNode(Object owner, int hash, Object[] array) {
+			super(owner, array);
+			this.hash = hash;
+		}
+		
+		@Override
+		boolean contains(int shift, int hash, String name) {
+			return hash == this.hash && indexOf(name) >= 0;
+		}
+		
+		@Override
+		Node add(Object owner, int shift, int hash, String name, boolean[] changed) {
+			if(hash != this.hash) {
+				//哈希值不同，在这一层分开
+				changed[0] = true;
+				BitmapNode node = new BitmapNode(owner, BitmapNode.bit(this.hash, shift), new Object[] {this});
+				return node.add(owner, shift, hash, name, changed);
+			}
+			if(indexOf(name) >= 0) {
+				return this;
+			}
+			
+			changed[0] = true;
+			Object[] newArray = new Object[array.length + 1];
+			System.arraycopy(array, 0, newArray, 0, array.length);
+			newArray[array.length] = name;
+			if(owner == this.owner) {
+				array = newArray;
+				return this;
+			}
+			return new CollisionNode(owner, hash, newArray);
+		}
+		
+		@Override
+		Node remove(Object owner, int shift, int hash, String name, boolean[] changed) {
+			int index = hash == this.hash ? indexOf(name) : -1;
+			if(index < 0) {
+				return this;
+			}
+			
+			changed[0] = true;
+			if(array.length == 1) {
+				return null;
+			}
+			Object[] newArray = new Object[array.length - 1];
+			System.arraycopy(array, 0, newArray, 0, index);
+			System.arraycopy(array, index + 1, newArray, index, newArray.length - index);
+			if(owner == this.owner) {
+				array = newArray;
+				return this;
+			}
+			return new CollisionNode(owner, hash, newArray);
+		}
+		
+		private int indexOf(String name) {
+			for(int i = 0; i < array.length; ++i) {
+				if(name.equals(array[i])) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+	
+	/**
+	 * 深度优先遍历，用显式的栈保存每层的数组和位置
+	 */
+	private static final class NameIterator implements Iterator<String> {
+		
+		private final Object[][] arrays = new Object[MAX_DEPTH][];
+		
+		private final int[] positions = new int[MAX_DEPTH];
+		
+		private int depth = -1;
+		
+		private String next;
+		
+		NameIterator(Node root) {
+			if(root != null) {
+				arrays[++depth] = root.array;
+			}
+			advance();
+		}
+		
+		private void advance() {
+			next = null;
+			while(depth >= 0) {
+				Object[] array = arrays[depth];
+				if(positions[depth] == array.length) {
+					--depth;
+					continue;
+				}
+				
+				Object entry = array[positions[depth]++];
+				if(entry instanceof Node) {
+					arrays[++depth] = ((Node) entry).array;
+					positions[depth] = 0;
+				}else {
+					next = (String) entry;
+					return;
+				}
+			}
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+		
+		@Override
+		public String next() {
+			if(next == null) {
+				throw new NoSuchElementException();
+			}
+			String result = next;
+			advance();
+			return result;
+		}
+	}
+}
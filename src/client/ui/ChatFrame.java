@@ -1,340 +1,430 @@
-package client.ui;
-
-import java.awt.Color;
-import java.awt.event.WindowAdapter;
-import java.awt.event.WindowEvent;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-
-import javax.swing.DefaultListModel;
-import javax.swing.JButton;
-import javax.swing.JFrame;
-import javax.swing.JLabel;
-import javax.swing.JList;
-import javax.swing.JPanel;
-import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
-import javax.swing.ListSelectionModel;
-import javax.swing.SwingUtilities;
-
-import org.apache.commons.lang.StringUtils;
-
-import client.ClientLauncher;
-
-public class ChatFrame extends JFrame {
-	
-	/**
-	 * 用户列表
-	 */
-	private DefaultListModel<UserListItem> userListModel;
-	
-	/**
-	 * 用户列表滚动面板
-	 */
-	private JScrollPane userListScrollPane;
-	
-	/**
-	 * 聊天滚动面板
-	 */
-	private JScrollPane chatScrollPane;
-	
-	/**
-	 * 聊天文本框
-	 */
-	private JTextArea chatTextArea;
-	
-	/**
-	 * 聊天输入文本框
-	 */
-	private JTextArea chatInputArea;
-	
-	/**
-	 * 当前的聊天对象
-	 */
-	private String curChatToUserName;
-	
-	/**
-	 * 保存每个人的聊天记录
-	 */
-	private Map<String, String> chatContentMap;
-	
-	/**
-	 * 未读名单
-	 */
-	private Set<String> unReadName;
-	
-	private JList<UserListItem> userList;
-	
-	
-
-	public ChatFrame(JFrame parent) {
-		chatContentMap = new HashMap<String, String>();
-		unReadName = new HashSet<>();
-		//监听聊天信息
-		ClientLauncher.netClient.setChatMsgListener(this::chatMsgCallBack);
-		ClientLauncher.netClient.setUserChgListener(this::userChgCallBack);
-
-		setTitle(ClientLauncher.netClient.getCurUserName());
-		// 设置大小
-		setSize(1000, 500);
-		// 关闭窗口
-		addWindowListener(new WindowAdapter() {
-			public void windowClosing(WindowEvent e) {
-				super.windowClosing(e);
-				try {
-					ClientLauncher.netClient.logout();
-				} catch (Exception e1) {
-					e1.printStackTrace();
-				}
-				// 让父窗口显示
-				parent.setVisible(true);
-			}
-		});
-
-		initPanelCont();
-		// 设置窗口屏幕居中
-		setLocationRelativeTo(null);
-		// 设置可见
-		setVisible(true);
-		// 不可改变大小
-		setResizable(false);
-	}
-	
-	/**
-	 * 用户变化监听
-	 * @param isLogin
-	 * @param userName
-	 */
-	private void userChgCallBack(boolean isLogin, String userName) {
-		SwingUtilities.invokeLater(() -> {
-			if(isLogin) {
-				addNewUser(userName);
-			}else {
-				if(userName.equals(curChatToUserName)) {
-					chatScrollPane.setColumnHeaderView(new JLabel(userName + "  (已下线)"));
-				}
-				
-				removeUserListItem(userName);
-				removeUnRead(userName);
-				chatContentMap.remove(userName);
-			}
-		});
-	}
-	
-	private void removeUserListItem(String userName) {
-		for(int i = 0; i < userListModel.size(); ++i) {
-			UserListItem item = userListModel.get(i);
-			if(item.getUserName().equals(userName)) {
-				userListModel.remove(i);
-				return;
-			}
-		}
-	}
-	
-	/**
-	 * 监听聊天信息
-	 * @param userName
-	 * @param chatMsg
-	 */
-	private void chatMsgCallBack(String userName, String chatMsg) {
-		SwingUtilities.invokeLater(() ->{
-			//当前聊天框是对方时,直接添加
-			if(StringUtils.isNotEmpty(curChatToUserName) && curChatToUserName.equals(userName)) {
-				addMsgToCurChatContentTextArea(userName, chatMsg);
-				return;
-			}
-			
-			//添加信息到目标的聊天记录里
-			addMsgToChatMsgMap(userName, chatMsg);
-			//添加未读名单
-			addUnRead(userName);
-		});
-	}
-
-	/**
-	 * 添加未读名单
-	 * @param userName
-	 */
-	private void addUnRead(String userName) {
-		unReadName.add(userName);
-		userListScrollPane.setColumnHeaderView(new JLabel("在线用户-新消息！"));
-		
-		removeUserListItem(userName);
-		addNewUser(userName);
-	}
-	
-	private void removeUnRead(String userName) {
-		unReadName.remove(userName);
-		if(unReadName.isEmpty()) {
-			userListScrollPane.setColumnHeaderView(new JLabel("在线用户"));
-		}
-		userList.revalidate();
-	}
-
-	/**
-	 * 添加信息到目标的聊天记录里
-	 * @param userName
-	 * @param chatMsg
-	 */
-	private void addMsgToChatMsgMap(String userName, String chatMsg) {
-		String lastContent = chatContentMap.getOrDefault(userName, "");
-		lastContent += buildChatContentToShow(userName, chatMsg);
-		chatContentMap.put(userName, lastContent);
-	}
-
-	/**
-	 * 初始化页面内容
-	 */
-	private void initPanelCont() {
-		JPanel contPanel = new JPanel();
-		setContentPane(contPanel);
-		// 清空默认布局
-		contPanel.setLayout(null);
-
-		userListModel = new DefaultListModel<UserListItem>();
-		// 用户列表
-		userList = new JList<>(userListModel);
-		userList.addListSelectionListener(e -> {
-			UserListItem item = userList.getSelectedValue();
-			if(item == null) {
-				return;
-			}
-			
-			String userName = item.getUserName();
-			changeCurUserToChat(userName);
-		});
-		userList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-		
-		userListScrollPane = new JScrollPane(userList);
-		userListScrollPane.setColumnHeaderView(new JLabel("在线用户"));
-		userListScrollPane.setBounds(5, 5, 200, 465);
-		contPanel.add(userListScrollPane);
-
-		
-		//初始化用户列表
-		initUserList();
-		
-		//聊天框
-		chatTextArea = new JTextArea();
-		chatTextArea.setEditable(false);
-		chatTextArea.setLineWrap(true);
-		chatTextArea.setBackground(new Color(255, 255, 255));
-		chatScrollPane = new JScrollPane(chatTextArea);
-		chatScrollPane.setBounds(210, 5, 780, 310);
-		contPanel.add(chatScrollPane);
-		
-		//输入框
-		chatInputArea = new JTextArea();
-		chatInputArea.setLineWrap(true);
-		JScrollPane chatInputScrollPane = new JScrollPane(chatInputArea);
-		chatInputScrollPane.setBounds(210, 320, 780, 110);
-		contPanel.add(chatInputScrollPane);
-		
-		JButton sendBtn = new JButton("发送");
-		sendBtn.setBounds(885, 435, 100, 30);
-		sendBtn.addActionListener(e -> {
-			sendChatMsg();
-		});
-		contPanel.add(sendBtn);
-	}
-
-	/**
-	 * 发送消息
-	 */
-	private void sendChatMsg() {
-		if(StringUtils.isEmpty(curChatToUserName)) {
-			UiUtils.showMsg("请选择用户");
-			return;
-		}
-		
-		
-		String msg = chatInputArea.getText();
-		if(StringUtils.isEmpty(msg)) {
-			UiUtils.showMsg("请输入");
-			return;
-		}
-		
-		chatInputArea.setText("");
-		addMsgToCurChatContentTextArea(ClientLauncher.netClient.getCurUserName(), msg);
-		//发送
-		ClientLauncher.netClient.sendChatMsg(curChatToUserName, msg);
-	}
-	
-	/**
-	 * 添加聊天信息到文本框
-	 * @param userName
-	 * @param msg
-	 */
-	private void addMsgToCurChatContentTextArea(String userName, String msg) {
-		String content = buildChatContentToShow(userName, msg);
-		chatTextArea.append(content);
-	}
-
-	/**
-	 * 构建显示的内容
-	 * @param userName
-	 * @param msg
-	 * @return
-	 */
-	private String buildChatContentToShow(String userName, String msg) {
-		String content = String.format(" %s %s\n             %s\n\n", userName, getCurTimeFormat(), msg);
-		return content;
-	}
-	
-	/**
-	 * 获取当前时间
-	 * @return
-	 */
-	private String getCurTimeFormat() {
-		return LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd hh:mm:ss"));
-	}
-
-	/**
-	 * 初始化用户列表
-	 */
-	private void initUserList() {
-		List<String> userList = ClientLauncher.netClient.getOnlineUserList();
-		
-		for(String name : userList) {
-			addNewUser(name);
-		}
-	}
-
-	/**
-	 * 往用户列表中添加新用户
-	 * @param name
-	 */
-	private void addNewUser(String name) {
-		UserListItem item = new UserListItem(name, unReadName);
-		userListModel.add(0, item);
-	}
-	
-	/**
-	 * 切换当前聊天对象
-	 * @param userName
-	 */
-	private void changeCurUserToChat(String userName) {
-		if(curChatToUserName != null) {
-			chatContentMap.put(curChatToUserName, chatTextArea.getText());
-		}
-		
-		chatScrollPane.setColumnHeaderView(new JLabel(userName));
-		curChatToUserName = userName;
-		
-		String lastChatContent = chatContentMap.get(curChatToUserName);
-		if(StringUtils.isNotEmpty(lastChatContent)) {
-			chatTextArea.setText(lastChatContent);
-		}else {
-			chatTextArea.setText("");
-		}
-		
-		removeUnRead(userName);
-	}
-	
-
-}
+package client.ui;
+
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.swing.JButton;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+import org.apache.commons.lang.StringUtils;
+
+import client.ClientLauncher;
+
+public class ChatFrame extends JFrame {
+	
+	/**
+	 * 用户列表，有未读的排在前面，其余按用户名排序
+	 */
+	private RosterListModel userListModel;
+	
+	/**
+	 * 用户列表的过滤输入框
+	 */
+	private JTextField userFilterField;
+	
+	/**
+	 * 用户列表滚动面板
+	 */
+	private JScrollPane userListScrollPane;
+	
+	/**
+	 * 聊天滚动面板
+	 */
+	private JScrollPane chatScrollPane;
+	
+	/**
+	 * 聊天记录显示
+	 */
+	private TranscriptView transcriptView;
+	
+	/**
+	 * 聊天输入文本框
+	 */
+	private JTextArea chatInputArea;
+	
+	/**
+	 * 当前的聊天对象
+	 */
+	private String curChatToUserName;
+	
+	/**
+	 * 当前的聊天对象是否已下线，下线后记录保留到切换会话
+	 */
+	private boolean curChatToUserOffline;
+	
+	/**
+	 * 保存每个人的聊天记录
+	 */
+	private Map<String, ConversationHistory> chatHistoryMap;
+	
+	private JList<UserListItem> userList;
+	
+	/**
+	 * 用户列表和聊天框的标题，内容变化时只改文字
+	 */
+	private JLabel userListHeader;
+	private JLabel chatHeader;
+	
+	/**
+	 * 网络事件到界面线程的桥，每帧批量处理一次
+	 */
+	private EdtEventBridge<NetEvent> eventBridge;
+	
+	
+	
+	public ChatFrame(JFrame parent) {
+		chatHistoryMap = new HashMap<String, ConversationHistory>();
+		eventBridge = new EdtEventBridge<>(this::applyNetEvents);
+		//监听聊天信息
+		ClientLauncher.netClient.setChatMsgListener(this::chatMsgCallBack);
+		ClientLauncher.netClient.setUserChgListener(this::userChgCallBack);
+		
+		setTitle(ClientLauncher.netClient.getCurUserName());
+		// 设置大小
+		setSize(1000, 500);
+		// 关闭窗口
+		addWindowListener(new WindowAdapter() {
+			public void windowClosing(WindowEvent e) {
+				super.windowClosing(e);
+				//删除写到文件里的聊天记录
+				chatHistoryMap.values().forEach(ConversationHistory::close);
+				chatHistoryMap.clear();
+				try {
+					ClientLauncher.netClient.logout();
+				} catch (Exception e1) {
+					e1.printStackTrace();
+				}
+				// 让父窗口显示
+				parent.setVisible(true);
+			}
+		});
+		
+		initPanelCont();
+		// 设置窗口屏幕居中
+		setLocationRelativeTo(null);
+		// 设置可见
+		setVisible(true);
+		// 不可改变大小
+		setResizable(false);
+	}
+	
+	/**
+	 * 用户变化监听，在监听线程上调用，只提交事件
+	 * @param loginUsers
+	 * @param logoutUsers
+	 */
+	private void userChgCallBack(List<String> loginUsers, List<String> logoutUsers) {
+		eventBridge.post(new NetEvent(loginUsers, logoutUsers));
+	}
+	
+	/**
+	 * 监听聊天信息，在监听线程上调用，只提交事件
+	 * @param userName
+	 * @param chatMsg
+	 */
+	private void chatMsgCallBack(String userName, String chatMsg) {
+		eventBridge.post(new NetEvent(userName, chatMsg));
+	}
+	
+	/**
+	 * 在界面线程上批量处理一帧内的网络事件
+	 * 聊天记录按顺序更新；列表、标题和聊天框每个用户只按最后的状态更新一次
+	 * @param events
+	 */
+	private void applyNetEvents(List<NetEvent> events) {
+		//每个用户最后是否在线
+		Map<String, Boolean> changedUsers = new LinkedHashMap<>();
+		//有新消息的用户，按最后一条消息的顺序，最后的排在列表最前面
+		Set<String> newUnread = new LinkedHashSet<>();
+		boolean curChatChanged = false;
+		for(NetEvent event : events) {
+			if(event.chatMsg != null) {
+				addMsgToChatHistory(event.userName, event.userName, event.chatMsg);
+				//当前聊天框是对方时直接显示，否则添加未读名单
+				if(event.userName.equals(curChatToUserName)) {
+					curChatChanged = true;
+					continue;
+				}
+				markChanged(changedUsers, event.userName, true);
+				newUnread.remove(event.userName);
+				newUnread.add(event.userName);
+				continue;
+			}
+			
+			for(String userName : event.loginUsers) {
+				//发过消息的用户可能已经在列表里
+				markChanged(changedUsers, userName, true);
+			}
+			for(String userName : event.logoutUsers) {
+				markChanged(changedUsers, userName, false);
+				newUnread.remove(userName);
+				//正在看的会话保留记录
+				if(!userName.equals(curChatToUserName)) {
+					ConversationHistory history = chatHistoryMap.remove(userName);
+					if(history != null) {
+						history.close();
+					}
+				}
+			}
+		}
+		
+		for(Map.Entry<String, Boolean> entry : changedUsers.entrySet()) {
+			String userName = entry.getKey();
+			if(entry.getValue()) {
+				userListModel.add(userName);
+			}else {
+				userListModel.remove(userName);
+			}
+			if(userName.equals(curChatToUserName)) {
+				curChatToUserOffline = !entry.getValue();
+				chatHeader.setText(curChatToUserOffline ? userName + "  (已下线)" : userName);
+			}
+		}
+		for(String userName : newUnread) {
+			userListModel.markUnread(userName);
+		}
+		if(!changedUsers.isEmpty()) {
+			updateUserListHeader();
+		}
+		if(curChatChanged) {
+			transcriptView.messageAppended();
+		}
+	}
+	
+	private static void markChanged(Map<String, Boolean> changedUsers, String userName, boolean online) {
+		changedUsers.remove(userName);
+		changedUsers.put(userName, online);
+	}
+	
+	/**
+	 * 清除未读，用户移回按用户名排序的位置，保持选中
+	 * @param userName
+	 */
+	private void removeUnRead(String userName) {
+		if(userListModel.clearUnread(userName)) {
+			selectCurUser();
+			updateUserListHeader();
+		}
+	}
+	
+	/**
+	 * 在用户列表中选中当前的聊天对象，被过滤掉时清除选中
+	 */
+	private void selectCurUser() {
+		int index = curChatToUserName == null ? -1 : userListModel.indexOf(curChatToUserName);
+		if(index < 0) {
+			userList.clearSelection();
+			return;
+		}
+		
+		if(userList.getSelectedIndex() != index) {
+			userList.setSelectedIndex(index);
+		}
+		userList.ensureIndexIsVisible(index);
+	}
+	
+	/**
+	 * 按未读人数更新用户列表的标题
+	 */
+	private void updateUserListHeader() {
+		userListHeader.setText(userListModel.getUnreadCount() == 0 ? "在线用户" : "在线用户-新消息！");
+	}
+	
+	/**
+	 * 添加信息到会话的聊天记录里，只追加到最后一块
+	 * @param chatToUserName 会话的对方
+	 * @param sender
+	 * @param chatMsg
+	 */
+	private void addMsgToChatHistory(String chatToUserName, String sender, String chatMsg) {
+		getChatHistory(chatToUserName).append(new ChatMessage(sender, System.currentTimeMillis(), chatMsg));
+	}
+	
+	private ConversationHistory getChatHistory(String chatToUserName) {
+		return chatHistoryMap.computeIfAbsent(chatToUserName, k -> new ConversationHistory());
+	}
+	
+	/**
+	 * 初始化页面内容
+	 */
+	private void initPanelCont() {
+		JPanel contPanel = new JPanel();
+		setContentPane(contPanel);
+		// 清空默认布局
+		contPanel.setLayout(null);
+		
+		//用户过滤，输入时马上过滤列表
+		userFilterField = new JTextField();
+		userFilterField.setToolTipText("按用户名过滤");
+		userFilterField.getDocument().addDocumentListener(new DocumentListener() {
+			@Override
+			public void insertUpdate(DocumentEvent e) {
+				filterUserList();
+			}
+			
+			@Override
+			public void removeUpdate(DocumentEvent e) {
+				filterUserList();
+			}
+			
+			@Override
+			public void changedUpdate(DocumentEvent e) {
+				filterUserList();
+			}
+		});
+		userFilterField.setBounds(5, 5, 200, 25);
+		contPanel.add(userFilterField);
+		
+		userListModel = new RosterListModel();
+		// 用户列表
+		userList = new JList<>(userListModel);
+		userList.addListSelectionListener(e -> {
+			UserListItem item = userList.getSelectedValue();
+			//列表变化时重新选中的还是当前的聊天对象，不用切换
+			if(item == null || item.getUserName().equals(curChatToUserName)) {
+				return;
+			}
+			
+			String userName = item.getUserName();
+			changeCurUserToChat(userName);
+		});
+		userList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		//固定行高和宽度，列表变化时不用逐行计算大小
+		userList.setFixedCellHeight(20);
+		userList.setFixedCellWidth(180);
+		
+		userListScrollPane = new JScrollPane(userList);
+		userListHeader = new JLabel("在线用户");
+		userListScrollPane.setColumnHeaderView(userListHeader);
+		userListScrollPane.setBounds(5, 35, 200, 435);
+		contPanel.add(userListScrollPane);
+		
+		
+		//初始化用户列表
+		initUserList();
+		
+		//聊天框
+		transcriptView = new TranscriptView();
+		chatScrollPane = new JScrollPane(transcriptView);
+		chatHeader = new JLabel();
+		chatScrollPane.setColumnHeaderView(chatHeader);
+		chatScrollPane.setBounds(210, 5, 780, 310);
+		contPanel.add(chatScrollPane);
+		
+		//输入框
+		chatInputArea = new JTextArea();
+		chatInputArea.setLineWrap(true);
+		JScrollPane chatInputScrollPane = new JScrollPane(chatInputArea);
+		chatInputScrollPane.setBounds(210, 320, 780, 110);
+		contPanel.add(chatInputScrollPane);
+		
+		JButton sendBtn = new JButton("发送");
+		sendBtn.setBounds(885, 435, 100, 30);
+		sendBtn.addActionListener(e -> {
+			sendChatMsg();
+		});
+		contPanel.add(sendBtn);
+	}
+	
+	/**
+	 * 发送消息
+	 */
+	private void sendChatMsg() {
+		if(StringUtils.isEmpty(curChatToUserName)) {
+			UiUtils.showMsg("请选择用户");
+			return;
+		}
+		
+		
+		String msg = chatInputArea.getText();
+		if(StringUtils.isEmpty(msg)) {
+			UiUtils.showMsg("请输入");
+			return;
+		}
+		
+		chatInputArea.setText("");
+		addMsgToChatHistory(curChatToUserName, ClientLauncher.netClient.getCurUserName(), msg);
+		transcriptView.messageAppended();
+		//发送
+		ClientLauncher.netClient.sendChatMsg(curChatToUserName, msg);
+	}
+	
+	/**
+	 * 初始化用户列表
+	 */
+	private void initUserList() {
+		for(String name : ClientLauncher.netClient.getOnlineUsers()) {
+			userListModel.add(name);
+		}
+	}
+	
+	/**
+	 * 按输入框的文字过滤用户列表，保持当前聊天对象的选中
+	 */
+	private void filterUserList() {
+		userListModel.setFilter(userFilterField.getText());
+		selectCurUser();
+	}
+	
+	/**
+	 * 切换当前聊天对象
+	 * @param userName
+	 */
+	private void changeCurUserToChat(String userName) {
+		//离开已下线用户的会话时丢弃记录
+		if(curChatToUserOffline && !userName.equals(curChatToUserName)) {
+			ConversationHistory history = chatHistoryMap.remove(curChatToUserName);
+			if(history != null) {
+				history.close();
+			}
+		}
+		
+		chatHeader.setText(userName);
+		curChatToUserName = userName;
+		curChatToUserOffline = false;
+		
+		//只排版最后一页，往上滚动时再排版更早的
+		transcriptView.setHistory(getChatHistory(userName));
+		
+		removeUnRead(userName);
+	}
+	
+	/**
+	 * 网络事件，聊天消息或用户上下线
+	 */
+	private static class NetEvent {
+		final String userName;
+		final String chatMsg;
+		final List<String> loginUsers;
+		final List<String> logoutUsers;
+		
+		NetEvent(String userName, String chatMsg) {
+			this.userName = userName;
+			this.chatMsg = chatMsg;
+			this.loginUsers = null;
+			this.logoutUsers = null;
+		}
+		
+		NetEvent(List<String> loginUsers, List<String> logoutUsers) {
+			this.userName = null;
+			this.chatMsg = null;
+			this.loginUsers = loginUsers;
+			this.logoutUsers = logoutUsers;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package client.ui;
+
+/**
+ * 一条聊天记录，只保存原始内容，显示时再格式化
+ */
+public class ChatMessage {
+	
+	/**
+	 * 发送人
+	 */
+	private final String sender;
+	
+	/**
+	 * 收发时间(毫秒)
+	 */
+	private final long time;
+	
+	private final String chatMsg;
+	
+	public ChatMessage(String sender, long time, String chatMsg) {
+		this.sender = sender;
+		this.time = time;
+		this.chatMsg = chatMsg;
+	}
+	
+	public String getSender() {
+		return sender;
+	}
+	
+	public long getTime() {
+		return time;
+	}
+	
+	public String getChatMsg() {
+		return chatMsg;
+	}
+}
@@ -0,0 +1,245 @@
+package client.ui;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import base.AsyncLogger;
+
+/**
+ * 一个会话的聊天记录
+ * 按固定条数分块保存结构化的记录，追加只写最后一块；内存中的块数或字符数超过上限时，
+ * 最早的整块写到临时文件里，读取时再按块读回，只缓存最近读过的几块。
+ * 只在界面线程上使用，不是线程安全的
+ */
+public class ConversationHistory implements Closeable {
+	
+	/**
+	 * 每块的条数
+	 */
+	static final int CHUNK_SIZE = 256;
+	
+	/**
+	 * 每个会话留在内存中的最多块数和字符数，超过时最早的块写到文件里
+	 */
+	private static final int MAX_MEMORY_CHUNKS = Math.max(1, Integer.getInteger("chat.historyMemoryChunks", 8));
+	private static final long MAX_MEMORY_CHARS = Long.getLong("chat.historyMemoryChars", 1024 * 1024);
+	
+	/**
+	 * 从文件读回的块最多缓存的个数
+	 */
+	private static final int MAX_LOADED_CHUNKS = 4;
+	
+	/**
+	 * 写文件或读文件失败时代替丢失的记录
+	 */
+	private static final ChatMessage LOST_MESSAGE = new ChatMessage("", 0, "(聊天记录读取失败)");
+	
+	/**
+	 * 所有块，写到文件的块只保留位置
+	 */
+	private final List<Chunk> chunks = new ArrayList<>();
+	
+	/**
+	 * 总条数
+	 */
+	private int size;
+	
+	/**
+	 * 内存中的第一块，之前的都在文件里
+	 */
+	private int firstMemoryChunk;
+	
+	/**
+	 * 内存中记录的字符数
+	 */
+	private long memoryChars;
+	
+	/**
+	 * 写出的块，第一次写出时才创建
+	 */
+	private File spillFile;
+	private RandomAccessFile spillAccess;
+	
+	/**
+	 * 从文件读回的块，按访问顺序淘汰
+	 */
+	private final Map<Integer, ChatMessage[]> loadedChunks = new LinkedHashMap<Integer, ChatMessage[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, ChatMessage[]> eldest) {
+			return size() > MAX_LOADED_CHUNKS;
+		}
+	};
+	
+	/**
+	 * 追加一条记录
+	 * @param message
+	 */
+	public void append(ChatMessage message) {
+		int offset = size % CHUNK_SIZE;
+		if(offset == 0) {
+			chunks.add(new Chunk());
+		}
+		
+		Chunk chunk = chunks.get(chunks.size() - 1);
+		chunk.messages[offset] = message;
+		int chars = length(message);
+		chunk.chars += chars;
+		memoryChars += chars;
+		++size;
+		evict();
+	}
+	
+	/**
+	 * 总条数，包括写到文件里的
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * 取一条记录，在文件里时读回整块
+	 * @param index 从0开始，越早越小
+	 * @return
+	 */
+	public ChatMessage get(int index) {
+		if(index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+		}
+		
+		int chunkIndex = index / CHUNK_SIZE;
+		ChatMessage[] messages = chunks.get(chunkIndex).messages;
+		if(messages == null) {
+			messages = load(chunkIndex);
+		}
+		return messages[index % CHUNK_SIZE];
+	}
+	
+	/**
+	 * 内存超过上限时把最早的整块写到文件里，正在追加的最后一块不写
+	 */
+	private void evict() {
+		while(firstMemoryChunk < chunks.size() - 1
+				&& (chunks.size() - firstMemoryChunk > MAX_MEMORY_CHUNKS || memoryChars > MAX_MEMORY_CHARS)) {
+			Chunk chunk = chunks.get(firstMemoryChunk++);
+			spill(chunk);
+			memoryChars -= chunk.chars;
+			chunk.messages = null;
+		}
+	}
+	
+	private void spill(Chunk chunk) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			for(ChatMessage message : chunk.messages) {
+				out.writeLong(message.getTime());
+				writeString(out, message.getSender());
+				writeString(out, message.getChatMsg());
+			}
+			
+			if(spillAccess == null) {
+				spillFile = File.createTempFile("chat-history-", ".dat");
+				spillFile.deleteOnExit();
+				spillAccess = new RandomAccessFile(spillFile, "rw");
+			}
+			chunk.offset = spillAccess.length();
+			chunk.length = bytes.size();
+			spillAccess.seek(chunk.offset);
+			spillAccess.write(bytes.toByteArray());
+		}catch (IOException e) {
+			//内存上限优先，写不出去的记录丢弃
+			AsyncLogger.error("聊天记录写入文件失败。", e);
+			chunk.offset = -1;
+		}
+	}
+	
+	private ChatMessage[] load(int chunkIndex) {
+		ChatMessage[] messages = loadedChunks.get(chunkIndex);
+		if(messages != null) {
+			return messages;
+		}
+		
+		messages = new ChatMessage[CHUNK_SIZE];
+		Chunk chunk = chunks.get(chunkIndex);
+		try {
+			if(chunk.offset < 0 || spillAccess == null) {
+				throw new IOException("记录没有写入文件或已删除");
+			}
+			
+			byte[] data = new byte[chunk.length];
+			spillAccess.seek(chunk.offset);
+			spillAccess.readFully(data);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			for(int i = 0; i < messages.length; ++i) {
+				long time = in.readLong();
+				String sender = readString(in);
+				messages[i] = new ChatMessage(sender, time, readString(in));
+			}
+		}catch (IOException e) {
+			AsyncLogger.warn("聊天记录读取失败: " + e.getMessage());
+			Arrays.fill(messages, LOST_MESSAGE);
+		}
+		
+		loadedChunks.put(chunkIndex, messages);
+		return messages;
+	}
+	
+	/**
+	 * 删除写出的文件
+	 */
+	@Override
+	public void close() {
+		loadedChunks.clear();
+		if(spillAccess == null) {
+			return;
+		}
+		
+		try {
+			spillAccess.close();
+		}catch (IOException e) {
+		}
+		spillFile.delete();
+		spillAccess = null;
+	}
+	
+	private static int length(ChatMessage message) {
+		return message.getSender().length() + message.getChatMsg().length();
+	}
+	
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] data = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(data.length);
+		out.write(data);
+	}
+	
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] data = new byte[in.readInt()];
+		in.readFully(data);
+		return new String(data, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * 一块记录，写到文件后只保留位置
+	 */
+	private static class Chunk {
+		ChatMessage[] messages = new ChatMessage[CHUNK_SIZE];
+		long chars;
+		long offset;
+		int length;
+	}
+}
@@ -0,0 +1,96 @@
+package client.ui;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * 网络线程到界面线程的事件桥
+ * 网络线程只把事件放进无锁队列，界面线程每帧取出所有积压的事件一次处理，最多约每秒60次；
+ * 事件再多，界面线程上也只有一个待执行的任务
+ * @param <E>
+ */
+public class EdtEventBridge<E> {
+	
+	/**
+	 * 两次处理的最小间隔
+	 */
+	private static final long FRAME_NANOS = TimeUnit.SECONDS.toNanos(1) / 60;
+	
+	private final Queue<E> events = new ConcurrentLinkedQueue<>();
+	
+	/**
+	 * 是否已经安排了处理，保证界面线程上只有一个待执行的任务
+	 */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	
+	/**
+	 * 批量处理，在界面线程上调用
+	 */
+	private final Consumer<List<E>> handler;
+	
+	/**
+	 * 距离上次处理不到一帧时延后处理，只在界面线程上使用
+	 */
+	private final Timer delayTimer;
+	
+	/**
+	 * 上次处理的时间，只在界面线程上使用
+	 */
+	private long lastFlushTime;
+	
+	public EdtEventBridge(Consumer<List<E>> handler) {
+		this.handler = handler;
+		delayTimer = new Timer(0, e -> flush());
+		delayTimer.setRepeats(false);
+		lastFlushTime = System.nanoTime() - FRAME_NANOS;
+	}
+	
+	/**
+	 * 提交一个事件，可以在任意线程调用
+	 * @param event
+	 */
+	public void post(E event) {
+		events.add(event);
+		if(scheduled.compareAndSet(false, true)) {
+			SwingUtilities.invokeLater(this::schedule);
+		}
+	}
+	
+	/**
+	 * 距离上次处理够一帧时马上处理，否则等到下一帧
+	 */
+	private void schedule() {
+		long wait = lastFlushTime + FRAME_NANOS - System.nanoTime();
+		if(wait <= 0) {
+			flush();
+			return;
+		}
+		
+		//向上取整到毫秒，不会早于一帧
+		delayTimer.setInitialDelay((int) TimeUnit.NANOSECONDS.toMillis(wait + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+		delayTimer.restart();
+	}
+	
+	private void flush() {
+		//先清除标记，处理期间提交的事件会安排下一帧
+		scheduled.set(false);
+		lastFlushTime = System.nanoTime();
+		
+		List<E> batch = new ArrayList<>();
+		E event;
+		while((event = events.poll()) != null) {
+			batch.add(event);
+		}
+		if(!batch.isEmpty()) {
+			handler.accept(batch);
+		}
+	}
+}
@@ -0,0 +1,444 @@
+package client.ui;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import javax.swing.AbstractListModel;
+
+/**
+ * 在线用户列表的数据
+ * 有未读消息的排在前面，越新的越靠前，其余按用户名排序。用户保存在按顺序排列、记录子树大小的树堆里，
+ * 加上用户名到节点的索引，上下线和未读状态变化都是O(log N)，只通知变化的那一行。
+ * 可以按用户名过滤，过滤后只显示包含过滤文字的用户。
+ * 只在界面线程上使用，不是线程安全的
+ */
+public class RosterListModel extends AbstractListModel<UserListItem> {
+	
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * 用户名到节点
+	 */
+	private final Map<String, Node> nodes = new HashMap<>();
+	
+	private Node root;
+	
+	/**
+	 * 有未读消息的用户数
+	 */
+	private int unreadCount;
+	
+	/**
+	 * 下一个未读序号，越大越新
+	 */
+	private long nextUnreadSeq = 1;
+	
+	/**
+	 * 过滤文字(小写)，为空时不过滤
+	 */
+	private String filter = "";
+	
+	/**
+	 * 过滤后的用户，与树的顺序一致，不过滤时为空
+	 */
+	private List<Node> filtered;
+	
+	private final Random random = new Random();
+	
+	@Override
+	public int getSize() {
+		return filtered != null ? filtered.size() : size(root);
+	}
+	
+	@Override
+	public UserListItem getElementAt(int index) {
+		if(filtered != null) {
+			return filtered.get(index).item;
+		}
+		if(index < 0 || index >= size(root)) {
+			throw new IndexOutOfBoundsException("index: " + index + ", size: " + size(root));
+		}
+		return select(root, index).item;
+	}
+	
+	/**
+	 * 用户在列表中的位置
+	 * @param userName
+	 * @return 不在列表中或被过滤掉时返回-1
+	 */
+	public int indexOf(String userName) {
+		Node node = nodes.get(userName);
+		return node == null ? -1 : viewIndex(node);
+	}
+	
+	public boolean contains(String userName) {
+		return nodes.containsKey(userName);
+	}
+	
+	/**
+	 * 有未读消息的用户数
+	 * @return
+	 */
+	public int getUnreadCount() {
+		return unreadCount;
+	}
+	
+	/**
+	 * 添加用户，已在列表中时不变
+	 * @param userName
+	 */
+	public void add(String userName) {
+		if(nodes.containsKey(userName)) {
+			return;
+		}
+		
+		Node node = new Node(new UserListItem(userName), random.nextInt());
+		nodes.put(userName, node);
+		insert(node);
+	}
+	
+	/**
+	 * 删除用户
+	 * @param userName
+	 */
+	public void remove(String userName) {
+		Node node = nodes.remove(userName);
+		if(node == null) {
+			return;
+		}
+		
+		if(node.unreadSeq > 0) {
+			--unreadCount;
+		}
+		delete(node);
+	}
+	
+	/**
+	 * 标记有新消息，移到最前面；不在列表中时先添加
+	 * @param userName
+	 */
+	public void markUnread(String userName) {
+		add(userName);
+		Node node = nodes.get(userName);
+		if(node.unreadSeq == 0) {
+			++unreadCount;
+		}
+		move(node, nextUnreadSeq++);
+	}
+	
+	/**
+	 * 清除未读标记，回到按用户名排序的位置
+	 * @param userName
+	 * @return 原来有未读时返回true
+	 */
+	public boolean clearUnread(String userName) {
+		Node node = nodes.get(userName);
+		if(node == null || node.unreadSeq == 0) {
+			return false;
+		}
+		
+		--unreadCount;
+		move(node, 0);
+		return true;
+	}
+	
+	/**
+	 * 设置过滤文字，忽略大小写，只显示用户名包含过滤文字的用户
+	 * 在原来的文字后追加时只过滤已经过滤出来的用户
+	 * @param text 为空时显示全部
+	 */
+	public void setFilter(String text) {
+		String newFilter = text == null ? "" : text.trim().toLowerCase(Locale.ROOT);
+		if(newFilter.equals(filter)) {
+			return;
+		}
+		
+		int oldSize = getSize();
+		List<Node> source = filtered != null && newFilter.contains(filter) ? filtered : null;
+		filter = newFilter;
+		if(filter.isEmpty()) {
+			filtered = null;
+		}else if(source != null) {
+			List<Node> result = new ArrayList<>();
+			for(Node node : source) {
+				if(matches(node)) {
+					result.add(node);
+				}
+			}
+			filtered = result;
+		}else {
+			filtered = new ArrayList<>();
+			collectMatches(root, filtered);
+		}
+		
+		//整个列表换掉，选中状态由调用方恢复
+		if(oldSize > 0) {
+			fireIntervalRemoved(this, 0, oldSize - 1);
+		}
+		int newSize = getSize();
+		if(newSize > 0) {
+			fireIntervalAdded(this, 0, newSize - 1);
+		}
+	}
+	
+	private void insert(Node node) {
+		root = insert(root, node);
+		if(filtered == null) {
+			int index = rank(node);
+			fireIntervalAdded(this, index, index);
+		}else if(matches(node)) {
+			int index = -filteredSearch(node) - 1;
+			filtered.add(index, node);
+			fireIntervalAdded(this, index, index);
+		}
+	}
+	
+	private void delete(Node node) {
+		int index = viewIndex(node);
+		root = delete(root, node);
+		if(index < 0) {
+			return;
+		}
+		if(filtered != null) {
+			filtered.remove(index);
+		}
+		fireIntervalRemoved(this, index, index);
+	}
+	
+	/**
+	 * 改变未读序号，位置不变时只通知内容变化，否则通知删除和添加
+	 * @param node
+	 * @param unreadSeq
+	 */
+	private void move(Node node, long unreadSeq) {
+		int oldIndex = viewIndex(node);
+		root = delete(root, node);
+		if(filtered != null && oldIndex >= 0) {
+			filtered.remove(oldIndex);
+		}
+		
+		node.unreadSeq = unreadSeq;
+		node.item.setUnread(unreadSeq > 0);
+		node.left = null;
+		node.right = null;
+		node.size = 1;
+		root = insert(root, node);
+		if(oldIndex < 0) {
+			return;
+		}
+		
+		int newIndex;
+		if(filtered != null) {
+			newIndex = -filteredSearch(node) - 1;
+			filtered.add(newIndex, node);
+		}else {
+			newIndex = rank(node);
+		}
+		if(newIndex == oldIndex) {
+			fireContentsChanged(this, newIndex, newIndex);
+		}else {
+			fireIntervalRemoved(this, oldIndex, oldIndex);
+			fireIntervalAdded(this, newIndex, newIndex);
+		}
+	}
+	
+	/**
+	 * 节点在当前显示的列表中的位置
+	 * @param node
+	 * @return 被过滤掉时返回-1
+	 */
+	private int viewIndex(Node node) {
+		if(filtered == null) {
+			return rank(node);
+		}
+		int index = filteredSearch(node);
+		return index >= 0 ? index : -1;
+	}
+	
+	private int filteredSearch(Node node) {
+		return Collections.binarySearch(filtered, node, RosterListModel::compare);
+	}
+	
+	private boolean matches(Node node) {
+		return node.lowerName.contains(filter);
+	}
+	
+	private void collectMatches(Node node, List<Node> result) {
+		//按顺序遍历，用显式的栈避免递归过深
+		List<Node> stack = new ArrayList<>();
+		while(node != null || !stack.isEmpty()) {
+			while(node != null) {
+				stack.add(node);
+				node = node.left;
+			}
+			node = stack.remove(stack.size() - 1);
+			if(matches(node)) {
+				result.add(node);
+			}
+			node = node.right;
+		}
+	}
+	
+	/**
+	 * 排序：有未读的在前，越新的越靠前，其余按用户名
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	private static int compare(Node a, Node b) {
+		if(a.unreadSeq != b.unreadSeq) {
+			if(a.unreadSeq == 0 || b.unreadSeq == 0) {
+				return a.unreadSeq == 0 ? 1 : -1;
+			}
+			return Long.compare(b.unreadSeq, a.unreadSeq);
+		}
+		return a.item.getUserName().compareTo(b.item.getUserName());
+	}
+	
+	private int rank(Node node) {
+		int index = 0;
+		Node cur = root;
+		while(cur != null) {
+			int c = compare(node, cur);
+			if(c < 0) {
+				cur = cur.left;
+			}else {
+				index += size(cur.left);
+				if(c == 0) {
+					return index;
+				}
+				++index;
+				cur = cur.right;
+			}
+		}
+		throw new IllegalStateException("用户不在列表中: " + node.item.getUserName());
+	}
+	
+	private static Node select(Node cur, int index) {
+		while(true) {
+			int leftSize = size(cur.left);
+			if(index < leftSize) {
+				cur = cur.left;
+			}else if(index == leftSize) {
+				return cur;
+			}else {
+				index -= leftSize + 1;
+				cur = cur.right;
+			}
+		}
+	}
+	
+	private static Node insert(Node cur, Node node) {
+		if(cur == null) {
+			return node;
+		}
+		if(node.priority > cur.priority) {
+			//新节点作为子树的根，原来的子树按新节点分成两半
+			Node[] parts = new Node[2];
+			split(cur, node, parts);
+			node.left = parts[0];
+			node.right = parts[1];
+			return update(node);
+		}
+		if(compare(node, cur) < 0) {
+			cur.left = insert(cur.left, node);
+		}else {
+			cur.right = insert(cur.right, node);
+		}
+		return update(cur);
+	}
+	
+	private static Node delete(Node cur, Node node) {
+		int c = compare(node, cur);
+		if(c == 0) {
+			return merge(cur.left, cur.right);
+		}
+		if(c < 0) {
+			cur.left = delete(cur.left, node);
+		}else {
+			cur.right = delete(cur.right, node);
+		}
+		return update(cur);
+	}
+	
+	/**
+	 * 把子树分成小于key和大于key的两部分
+	 * @param cur
+	 * @param key
+	 * @param parts
+	 */
+	private static void split(Node cur, Node key, Node[] parts) {
+		if(cur == null) {
+			parts[0] = null;
+			parts[1] = null;
+			return;
+		}
+		if(compare(cur, key) < 0) {
+			split(cur.right, key, parts);
+			cur.right = parts[0];
+			parts[0] = update(cur);
+		}else {
+			split(cur.left, key, parts);
+			cur.left = parts[1];
+			parts[1] = update(cur);
+		}
+	}
+	
+	/**
+	 * 合并两棵子树，left中的都小于right中的
+	 * @param left
+	 * @param right
+	 * @return
+	 */
+	private static Node merge(Node left, Node right) {
+		if(left == null) {
+			return right;
+		}
+		if(right == null) {
+			return left;
+		}
+		if(left.priority > right.priority) {
+			left.right = merge(left.right, right);
+			return update(left);
+		}
+		right.left = merge(left, right.left);
+		return update(right);
+	}
+	
+	private static Node update(Node node) {
+		node.size = size(node.left) + size(node.right) + 1;
+		return node;
+	}
+	
+	private static int size(Node node) {
+		return node == null ? 0 : node.size;
+	}
+	
+	/**
+	 * 树堆的节点，按排序是二叉查找树，按随机优先级是堆，期望高度O(log N)
+	 */
+	private static class Node {
+		final UserListItem item;
+		final String lowerName;
+		final int priority;
+		
+		/**
+		 * 未读序号，0表示没有未读
+		 */
+		long unreadSeq;
+		int size = 1;
+		Node left;
+		Node right;
+		
+		Node(UserListItem item, int priority) {
+			this.item = item;
+			this.lowerName = item.getUserName().toLowerCase(Locale.ROOT);
+			this.priority = priority;
+		}
+	}
+}
@@ -0,0 +1,495 @@
+package client.ui;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Toolkit;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.JComponent;
+import javax.swing.JViewport;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.UIManager;
+import javax.swing.event.ChangeListener;
+
+/**
+ * 聊天记录的显示，放在JScrollPane里使用
+ * 直接从会话的聊天记录取数据，只排版最近的若干条，滚动到顶部时再往前排版一页，滚动到底部时再往后排版一页；
+ * 已排版的行最多保留MAX_ROWS条，超过时丢掉离可见区域远的一头，滚动回去时重新排版。
+ * 绘制时按行的位置二分查找，只画可见的行。切换会话只排版一页，与记录的条数无关
+ */
+public class TranscriptView extends JComponent implements Scrollable {
+	
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * 切换会话和滚动到顶部时每次排版的条数
+	 */
+	static final int PAGE_SIZE = 100;
+	
+	/**
+	 * 最多保留的已排版行数，远大于一屏，丢掉的行不会在可见区域附近
+	 */
+	static final int MAX_ROWS = 5 * PAGE_SIZE;
+	
+	/**
+	 * 边距和内容的缩进(像素)
+	 */
+	private static final int PADDING = 4;
+	private static final int INDENT = 40;
+	
+	private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd hh:mm:ss");
+	
+	private static final Color HEADER_COLOR = new Color(0, 102, 204);
+	
+	/**
+	 * 当前会话的聊天记录
+	 */
+	private ConversationHistory history;
+	
+	/**
+	 * 排版窗口对应的记录下标范围[windowStart, windowEnd)
+	 */
+	private int windowStart;
+	private int windowEnd;
+	
+	/**
+	 * 窗口是否包含最后一条记录，是时新追加的记录直接排版，否则滚动到底部时再排版
+	 */
+	private boolean following;
+	
+	/**
+	 * 已排版的行，对应记录windowStart开始的rows.size()条，宽度确定后排版到windowEnd
+	 */
+	private final List<Row> rows = new ArrayList<>();
+	
+	/**
+	 * 每行的顶部位置，最后多一项是总高度
+	 */
+	private int[] rowTops = new int[PAGE_SIZE + 1];
+	
+	/**
+	 * 排版时的宽度，宽度变化时重新排版
+	 */
+	private int layoutWidth = -1;
+	
+	/**
+	 * 正在往前或往后排版，期间的滚动事件不再触发
+	 */
+	private boolean loading;
+	
+	private final ChangeListener viewportListener = e -> {
+		JViewport viewport = (JViewport) e.getSource();
+		if(loading || history == null) {
+			return;
+		}
+		
+		int y = viewport.getViewPosition().y;
+		//不在滚动事件里改变大小
+		if(windowStart > 0 && y == 0) {
+			loading = true;
+			SwingUtilities.invokeLater(this::loadOlder);
+		}else if(!following && y + viewport.getExtentSize().height >= viewport.getViewSize().height) {
+			loading = true;
+			SwingUtilities.invokeLater(this::loadNewer);
+		}
+	};
+	
+	public TranscriptView() {
+		setOpaque(true);
+		setBackground(Color.WHITE);
+		setFont(UIManager.getFont("TextArea.font"));
+	}
+	
+	/**
+	 * 切换显示的会话，只排版最后一页并滚动到底部
+	 * @param history 为空时清空
+	 */
+	public void setHistory(ConversationHistory history) {
+		this.history = history;
+		windowEnd = history == null ? 0 : history.size();
+		windowStart = Math.max(0, windowEnd - PAGE_SIZE);
+		following = true;
+		rows.clear();
+		layoutWidth = -1;
+		refresh(true);
+	}
+	
+	/**
+	 * 当前会话追加了记录，只排版新的行；原来在底部时滚动到底部，丢掉窗口前面超出的行
+	 * 不在底部且窗口已满时不再跟随，新的记录等滚动到底部时再排版
+	 */
+	public void messageAppended() {
+		if(history == null || !following) {
+			return;
+		}
+		
+		boolean atBottom = isAtBottom();
+		int count = history.size() - windowStart;
+		if(count > MAX_ROWS) {
+			if(!atBottom) {
+				following = false;
+				return;
+			}
+			dropFirst(count - MAX_ROWS);
+		}
+		windowEnd = history.size();
+		refresh(atBottom);
+	}
+	
+	/**
+	 * 往前排版一页，保持当前看到的内容不动，超过MAX_ROWS时丢掉窗口后面的行
+	 */
+	private void loadOlder() {
+		try {
+			if(history == null || windowStart == 0 || layoutWidth < 0) {
+				return;
+			}
+			
+			int newStart = Math.max(0, windowStart - PAGE_SIZE);
+			FontMetrics fm = getFontMetrics(getFont());
+			List<Row> older = new ArrayList<>(windowStart - newStart);
+			for(int i = newStart; i < windowStart; ++i) {
+				older.add(layoutRow(history.get(i), fm, layoutWidth));
+			}
+			rows.addAll(0, older);
+			windowStart = newStart;
+			computeRowTops(0);
+			int addedHeight = rowTops[older.size()] - rowTops[0];
+			if(windowEnd - windowStart > MAX_ROWS) {
+				dropLast(windowEnd - windowStart - MAX_ROWS);
+			}
+			
+			scrollBy(addedHeight);
+		}finally {
+			loading = false;
+		}
+	}
+	
+	/**
+	 * 往后排版一页，保持当前看到的内容不动，超过MAX_ROWS时丢掉窗口前面的行
+	 */
+	private void loadNewer() {
+		try {
+			if(history == null || following || layoutWidth < 0) {
+				return;
+			}
+			
+			windowEnd = Math.min(history.size(), windowEnd + PAGE_SIZE);
+			following = windowEnd == history.size();
+			ensureLayout();
+			int removedHeight = 0;
+			if(windowEnd - windowStart > MAX_ROWS) {
+				removedHeight = dropFirst(windowEnd - windowStart - MAX_ROWS);
+			}
+			
+			scrollBy(-removedHeight);
+		}finally {
+			loading = false;
+		}
+	}
+	
+	/**
+	 * 丢掉窗口前面的count条
+	 * @param count
+	 * @return 减少的高度
+	 */
+	private int dropFirst(int count) {
+		int height = 0;
+		int n = Math.min(count, rows.size());
+		if(n > 0) {
+			height = rowTops[n] - rowTops[0];
+			rows.subList(0, n).clear();
+			computeRowTops(0);
+		}
+		windowStart += count;
+		return height;
+	}
+	
+	/**
+	 * 丢掉窗口后面的count条，之后不再跟随新的记录
+	 * @param count
+	 */
+	private void dropLast(int count) {
+		windowEnd -= count;
+		int keep = windowEnd - windowStart;
+		if(rows.size() > keep) {
+			rows.subList(keep, rows.size()).clear();
+		}
+		following = false;
+	}
+	
+	/**
+	 * 窗口前面增减了行后更新大小，滚动位置移动dy，看到的内容不动
+	 * @param dy
+	 */
+	private void scrollBy(int dy) {
+		JViewport viewport = getViewport();
+		revalidate();
+		if(viewport != null) {
+			viewport.setViewSize(getPreferredSize());
+			Point position = viewport.getViewPosition();
+			viewport.setViewPosition(new Point(position.x, Math.max(0, position.y + dy)));
+		}
+		repaint();
+	}
+	
+	/**
+	 * 排版新增的行，更新大小
+	 * @param scrollToBottom
+	 */
+	private void refresh(boolean scrollToBottom) {
+		ensureLayout();
+		revalidate();
+		JViewport viewport = getViewport();
+		if(viewport != null) {
+			//马上更新大小，滚动位置按新的大小计算
+			viewport.setViewSize(getPreferredSize());
+			if(scrollToBottom) {
+				int y = Math.max(0, getHeight() - viewport.getExtentSize().height);
+				viewport.setViewPosition(new Point(0, y));
+			}
+		}
+		repaint();
+	}
+	
+	/**
+	 * 宽度变化时重新排版窗口内的行，否则只排版窗口内还没排版的记录
+	 */
+	private void ensureLayout() {
+		int width = getAvailableWidth();
+		if(width <= 0 || history == null) {
+			return;
+		}
+		
+		FontMetrics fm = getFontMetrics(getFont());
+		int from = rows.size();
+		if(width != layoutWidth) {
+			layoutWidth = width;
+			rows.clear();
+			from = 0;
+		}
+		
+		int count = windowEnd - windowStart;
+		for(int i = rows.size(); i < count; ++i) {
+			rows.add(layoutRow(history.get(windowStart + i), fm, width));
+		}
+		if(from < rows.size()) {
+			computeRowTops(from);
+		}
+	}
+	
+	/**
+	 * 从第from行开始计算每行的位置
+	 * @param from
+	 */
+	private void computeRowTops(int from) {
+		if(rowTops.length < rows.size() + 1) {
+			rowTops = Arrays.copyOf(rowTops, Math.max(rows.size() + 1, rowTops.length * 2));
+		}
+		
+		if(from == 0) {
+			rowTops[0] = PADDING;
+		}
+		for(int i = from; i < rows.size(); ++i) {
+			rowTops[i + 1] = rowTops[i] + rows.get(i).height;
+		}
+	}
+	
+	/**
+	 * 排版一条记录：第一行是发送人和时间，下面是缩进后按宽度折行的内容，最后空一行
+	 * @param message
+	 * @param fm
+	 * @param width
+	 * @return
+	 */
+	static Row layoutRow(ChatMessage message, FontMetrics fm, int width) {
+		List<String> lines = new ArrayList<>();
+		int maxWidth = Math.max(fm.charWidth('W'), width - INDENT - PADDING);
+		String text = message.getChatMsg();
+		int lineStart = 0;
+		int lineWidth = 0;
+		for(int i = 0; i < text.length(); ) {
+			int codePoint = text.codePointAt(i);
+			int next = i + Character.charCount(codePoint);
+			if(codePoint == '\n') {
+				lines.add(text.substring(lineStart, i));
+				lineStart = next;
+				lineWidth = 0;
+			}else {
+				int charWidth = fm.charWidth(codePoint);
+				if(lineWidth + charWidth > maxWidth && i > lineStart) {
+					lines.add(text.substring(lineStart, i));
+					lineStart = i;
+					lineWidth = 0;
+				}
+				lineWidth += charWidth;
+			}
+			i = next;
+		}
+		lines.add(text.substring(lineStart));
+		
+		Row row = new Row();
+		row.header = message.getSender() + "  " + formatTime(message.getTime());
+		row.lines = lines.toArray(new String[lines.size()]);
+		row.height = (row.lines.length + 2) * fm.getHeight();
+		return row;
+	}
+	
+	/**
+	 * 格式化收发时间
+	 * @param time
+	 * @return
+	 */
+	static String formatTime(long time) {
+		return LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()).format(TIME_FORMAT);
+	}
+	
+	@Override
+	protected void paintComponent(Graphics g) {
+		ensureLayout();
+		Rectangle clip = g.getClipBounds();
+		g.setColor(getBackground());
+		g.fillRect(clip.x, clip.y, clip.width, clip.height);
+		if(rows.isEmpty()) {
+			return;
+		}
+		
+		Graphics2D g2 = (Graphics2D) g;
+		Object hints = Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+		if(hints instanceof Map) {
+			g2.addRenderingHints((Map<?, ?>) hints);
+		}else {
+			g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		}
+		
+		FontMetrics fm = g.getFontMetrics(getFont());
+		int lineHeight = fm.getHeight();
+		int clipBottom = clip.y + clip.height;
+		for(int i = findRow(clip.y); i < rows.size() && rowTops[i] < clipBottom; ++i) {
+			Row row = rows.get(i);
+			int baseline = rowTops[i] + fm.getAscent();
+			g.setColor(HEADER_COLOR);
+			g.drawString(row.header, PADDING, baseline);
+			g.setColor(getForeground());
+			for(String line : row.lines) {
+				baseline += lineHeight;
+				//只画与裁剪区相交的行
+				if(baseline + fm.getDescent() >= clip.y && baseline - fm.getAscent() < clipBottom) {
+					g.drawString(line, INDENT, baseline);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * 二分查找包含y的行
+	 * @param y
+	 * @return
+	 */
+	private int findRow(int y) {
+		int low = 0;
+		int high = rows.size() - 1;
+		while(low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if(rowTops[mid] <= y) {
+				low = mid;
+			}else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+	
+	private boolean isAtBottom() {
+		JViewport viewport = getViewport();
+		if(viewport == null) {
+			return true;
+		}
+		return viewport.getViewPosition().y + viewport.getExtentSize().height >= getHeight() - PADDING;
+	}
+	
+	private JViewport getViewport() {
+		return getParent() instanceof JViewport ? (JViewport) getParent() : null;
+	}
+	
+	private int getAvailableWidth() {
+		JViewport viewport = getViewport();
+		return viewport != null ? viewport.getWidth() : getWidth();
+	}
+	
+	@Override
+	public void addNotify() {
+		super.addNotify();
+		JViewport viewport = getViewport();
+		if(viewport != null) {
+			viewport.addChangeListener(viewportListener);
+		}
+	}
+	
+	@Override
+	public void removeNotify() {
+		JViewport viewport = getViewport();
+		if(viewport != null) {
+			viewport.removeChangeListener(viewportListener);
+		}
+		super.removeNotify();
+	}
+	
+	@Override
+	public Dimension getPreferredSize() {
+		ensureLayout();
+		int height = rows.isEmpty() ? 0 : rowTops[rows.size()] + PADDING;
+		return new Dimension(getAvailableWidth(), height);
+	}
+	
+	@Override
+	public Dimension getPreferredScrollableViewportSize() {
+		return getPreferredSize();
+	}
+	
+	@Override
+	public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+		return getFontMetrics(getFont()).getHeight();
+	}
+	
+	@Override
+	public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+		return orientation == SwingConstants.VERTICAL ? visibleRect.height : visibleRect.width;
+	}
+	
+	@Override
+	public boolean getScrollableTracksViewportWidth() {
+		return true;
+	}
+	
+	@Override
+	public boolean getScrollableTracksViewportHeight() {
+		//内容不满一屏时铺满，背景一致
+		JViewport viewport = getViewport();
+		return viewport != null && viewport.getHeight() > getPreferredSize().height;
+	}
+	
+	/**
+	 * 排版后的一条记录
+	 */
+	static class Row {
+		String header;
+		String[] lines;
+		int height;
+	}
+}
@@ -1,33 +1,42 @@
-package client.ui;
-
-import java.util.Set;
-
-/**
- * 用户列表项 
- */
-public class UserListItem {
-	
-	private String userName;
-	private Set<String> newMsgUser;
-	
-	public UserListItem(String userName, Set<String> newMsgUser) {
-		this.userName = userName;
-		this.newMsgUser = newMsgUser;
-	}
-
-	
-	public String getUserName() {
-		return userName;
-	}
-
-	@Override
-	public String toString() {
-		String result = userName;
-		if(newMsgUser.contains(userName)) {
-			result += "  (新消息)";
-		}
-		return result;
-	}
-	
-	
-}
+package client.ui;
+
+/**
+ * 用户列表项
+ */
+public class UserListItem {
+	
+	private final String userName;
+	
+	private boolean unread;
+	
+	/**
+	 * 显示的文字，列表重绘时直接返回，未读状态变化时才重新生成
+	 */
+	private String displayText;
+	
+	public UserListItem(String userName) {
+		this.userName = userName;
+		this.displayText = userName;
+	}
+	
+	
+	public String getUserName() {
+		return userName;
+	}
+	
+	public boolean isUnread() {
+		return unread;
+	}
+	
+	void setUnread(boolean unread) {
+		this.unread = unread;
+		displayText = unread ? userName + "  (新消息)" : userName;
+	}
+	
+	@Override
+	public String toString() {
+		return displayText;
+	}
+
+
+}
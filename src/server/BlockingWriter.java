@@ -0,0 +1,105 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 阻塞模式下的写出阶段
+ * 在写线程池上取出发送队列中的帧，合并到一个缓冲区后一次写出并flush
+ */
+class BlockingWriter implements Runnable {
+	
+	/**
+	 * 每次最多取出的帧数
+	 */
+	private static final int BATCH_SIZE = 64;
+	
+	/**
+	 * 合并缓冲区大小
+	 */
+	private static final int BUFFER_SIZE = 8 * 1024;
+	
+	private final OutboundQueue queue;
+	
+	private final OutputStream outputStream;
+	
+	private final Executor executor;
+	
+	private final ByteBuffer[] batch = new ByteBuffer[BATCH_SIZE];
+	
+	/**
+	 * 合并缓冲区，第一次写出时才分配
+	 */
+	private byte[] buffer;
+	
+	BlockingWriter(OutboundQueue queue, OutputStream outputStream, Executor executor) {
+		this.queue = queue;
+		this.outputStream = outputStream;
+		this.executor = executor;
+	}
+	
+	/**
+	 * 安排写出
+	 */
+	void schedule() {
+		try {
+			executor.execute(this);
+		} catch (RejectedExecutionException e) {
+			//服务器已停止
+			queue.close();
+		}
+	}
+	
+	@Override
+	public void run() {
+		if(buffer == null) {
+			buffer = new byte[BUFFER_SIZE];
+		}
+		
+		try {
+			int count;
+			while((count = queue.poll(batch)) > 0) {
+				writeBatch(count);
+				outputStream.flush();
+				//flush之后才算写出，通知写出标记
+				for(int i = 0; i < count; ++i) {
+					queue.written(batch[i]);
+					batch[i] = null;
+				}
+			}
+		} catch (IOException e) {
+			//对方已断开，丢弃剩余的帧
+			queue.close();
+			Arrays.fill(batch, null);
+		} finally {
+			queue.flushed();
+		}
+	}
+	
+	private void writeBatch(int count) throws IOException {
+		int len = 0;
+		for(int i = 0; i < count; ++i) {
+			ByteBuffer frame = batch[i];
+			
+			//帧可能是多个接收方共享的只读数据，只能复制出来写
+			while(frame.hasRemaining()) {
+				if(len == buffer.length) {
+					outputStream.write(buffer, 0, len);
+					len = 0;
+				}
+				
+				int n = Math.min(frame.remaining(), buffer.length - len);
+				frame.get(buffer, len, n);
+				len += n;
+			}
+		}
+		
+		if(len > 0) {
+			outputStream.write(buffer, 0, len);
+		}
+	}
+}
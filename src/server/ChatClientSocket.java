@@ -1,50 +1,381 @@
-package server;
-
-import java.io.BufferedReader;
-import java.io.PrintWriter;
-import java.net.Socket;
-
-/**
- * 客户端的Socket信息
- */
-public class ChatClientSocket {
-
-	/**
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import base.AsyncLogger;
+import base.FrameReader;
+import base.MsgCompressor;
+
+/**
+ * 客户端的Socket信息
+ */
+public class ChatClientSocket {
+	
+	/**
+	 * 发送队列最大帧数
+	 */
+	private static final int OUTBOUND_QUEUE_CAPACITY = 1024;
+	
+	/**
+	 * 发送队列的低水位和高水位(字节)，超过高水位后跳过上下线通知，降到低水位以下时补发
+	 */
+	private static final long OUTBOUND_LOW_WATER = Long.getLong("chat.outboundLowWater", 256 * 1024);
+	private static final long OUTBOUND_HIGH_WATER = Long.getLong("chat.outboundHighWater", 1024 * 1024);
+	
+	/**
+	 * 发送队列的字节数上限，超过时断开连接
+	 */
+	private static final long OUTBOUND_MAX_BYTES = Long.getLong("chat.outboundMaxBytes", 8 * 1024 * 1024);
+	
+	/**
+	 * 超过高水位持续该时间(毫秒)仍有新帧时断开连接
+	 */
+	private static final long SLOW_CONSUMER_MS = Long.getLong("chat.slowConsumerMs", 10000);
+	
+	/**
 	 * 用户名名
-	 */
-	private String userName;
-	
-	
-
-
-	private Socket socket;
-	private BufferedReader reader;
-	private PrintWriter writer;
-
-	public ChatClientSocket(Socket socket, BufferedReader reader, PrintWriter writer) {
-		this.socket = socket;
-		this.reader = reader;
-		this.writer = writer;
-	}
-
-	public Socket getSocket() {
-		return socket;
-	}
-
-	public BufferedReader getReader() {
-		return reader;
-	}
-
-	public PrintWriter getWriter() {
-		return writer;
-	}
-	
-	public String getUserName() {
-		return userName;
-	}
-
-	public void setUserName(String userName) {
-		this.userName = userName;
-	}
-
-}
+	 */
+	private String userName;
+	
+	/**
+	 * 客户端地址
+	 */
+	private InetSocketAddress remoteAddress;
+	
+	private Socket socket;
+	private FrameReader reader;
+	private OutputStream outputStream;
+	
+	/**
+	 * 是否使用二进制协议，登录时协商
+	 */
+	private volatile boolean binary;
+	
+	/**
+	 * 客户端版本，老客户端为0
+	 */
+	private volatile int clientVersion;
+	
+	/**
+	 * 是否协商了压缩，登录时协商
+	 */
+	private volatile boolean compression;
+	
+	/**
+	 * 解压该连接发来的压缩内容，只在读取该连接的线程上使用，第一次用到时创建
+	 */
+	private MsgCompressor compressor;
+	
+	/**
+	 * 非阻塞模式下的连接
+	 */
+	private NioConnection nioConnection;
+	
+	/**
+	 * 发送队列，由写出阶段写到socket，发送线程不会被慢的接收方阻塞
+	 */
+	private final OutboundQueue outboundQueue;
+	
+	/**
+	 * 请求日志采样，只在读取该连接的线程上使用
+	 */
+	private final AsyncLogger.Sampler logSampler = new AsyncLogger.Sampler();
+	
+	/**
+	 * 登录后分配的会话id，未登录时为-1
+	 */
+	private volatile int sessionId = -1;
+	
+	private static final AtomicIntegerFieldUpdater<ChatClientSocket> SESSION_ID = AtomicIntegerFieldUpdater.newUpdater(ChatClientSocket.class, "sessionId");
+	
+	/**
+	 * 最近一次聊天目标的会话id和名字，只在读取该连接的线程上使用
+	 * 名字是目标会话自己的用户名对象，按id取到的会话用户名还是它时才是同一个会话
+	 */
+	private int chatTargetId = -1;
+	private String chatTargetName;
+	
+	/**
+	 * 加入的群聊房间
+	 */
+	private final Set<ChatRoom> rooms = ConcurrentHashMap.newKeySet();
+	
+	/**
+	 * 上下线通知的状态，发送、跳过和补发都在该锁内进行
+	 */
+	private final Object presenceLock = new Object();
+	
+	/**
+	 * 已发出的上下线通知对应的名单版本
+	 */
+	private long presenceVersion;
+	
+	/**
+	 * 是否有上下线通知因为拥塞被跳过，补发之前后面的通知也都跳过，保证版本连续
+	 */
+	private boolean presenceStale;
+	
+	/**
+	 * 拥塞解除时补发上下线通知，登录后由服务端设置
+	 */
+	private volatile Runnable presenceResync;
+	
+	/**
+	 * 最后读到数据时空闲检查的刻度
+	 */
+	private volatile long lastReadTick;
+	
+	/**
+	 * 空闲检查的到期刻度和是否已发心跳，只在检查线程上使用
+	 */
+	private long idleDeadline;
+	private boolean pinged;
+	
+	ChatClientSocket(Socket socket, FrameReader reader, OutputStream outputStream, Executor writerExecutor, ServerMetrics metrics) {
+		this.socket = socket;
+		this.outboundQueue = new OutboundQueue(OUTBOUND_QUEUE_CAPACITY, metrics);
+		this.reader = reader;
+		this.outputStream = outputStream;
+		this.remoteAddress = (InetSocketAddress) socket.getRemoteSocketAddress();
+		outboundQueue.setBackpressure(OUTBOUND_LOW_WATER, OUTBOUND_HIGH_WATER, OUTBOUND_MAX_BYTES, SLOW_CONSUMER_MS, newPressureListener());
+		
+		BlockingWriter writer = new BlockingWriter(outboundQueue, outputStream, writerExecutor);
+		outboundQueue.setFlushTrigger(writer::schedule);
+	}
+	
+	ChatClientSocket(NioConnection nioConnection, ServerMetrics metrics) {
+		this.nioConnection = nioConnection;
+		this.outboundQueue = new OutboundQueue(OUTBOUND_QUEUE_CAPACITY, metrics);
+		this.remoteAddress = nioConnection.getRemoteAddress();
+		outboundQueue.setBackpressure(OUTBOUND_LOW_WATER, OUTBOUND_HIGH_WATER, OUTBOUND_MAX_BYTES, SLOW_CONSUMER_MS, newPressureListener());
+		
+		outboundQueue.setFlushTrigger(nioConnection::requestFlush);
+	}
+	
+	private OutboundQueue.PressureListener newPressureListener() {
+		return new OutboundQueue.PressureListener() {
+			@Override
+			public void onDrained() {
+				Runnable resync = presenceResync;
+				if(resync != null) {
+					resync.run();
+				}
+			}
+			
+			@Override
+			public void onOverflow() {
+				AsyncLogger.warn(remoteAddress + " 接收太慢，发送队列超过上限，断开连接。");
+				disconnect();
+			}
+		};
+	}
+	
+	/**
+	 * 断开连接，可以在任意线程调用，读取线程随后按正常断开处理
+	 */
+	void disconnect() {
+		if(nioConnection != null) {
+			nioConnection.requestClose();
+			return;
+		}
+		
+		try {
+			socket.close();
+		}catch (IOException e) {
+		}
+	}
+	
+	/**
+	 * 发送一帧，不阻塞
+	 * @param frame
+	 * @return 帧太大、发送队列已满或连接已关闭时返回false
+	 */
+	boolean send(ByteBuffer frame) {
+		if(frame.remaining() > OUTBOUND_MAX_BYTES) {
+			//内容太大是发送方的问题，只丢弃这一帧，不断开接收方
+			AsyncLogger.warn(remoteAddress + " 帧大小" + frame.remaining() + "超过发送队列上限，已丢弃。");
+			return false;
+		}
+		return outboundQueue.offer(frame);
+	}
+	
+	public Socket getSocket() {
+		return socket;
+	}
+	
+	public FrameReader getReader() {
+		return reader;
+	}
+	
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+	
+	public boolean isBinary() {
+		return binary;
+	}
+	
+	/**
+	 * 切换协议，之后收发都按新格式
+	 * @param binary
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+		if(reader != null) {
+			reader.setBinary(binary);
+		}
+	}
+	
+	public int getClientVersion() {
+		return clientVersion;
+	}
+	
+	public void setClientVersion(int clientVersion) {
+		this.clientVersion = clientVersion;
+	}
+	
+	public boolean isCompression() {
+		return compression;
+	}
+	
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+	
+	MsgCompressor getCompressor() {
+		if(compressor == null) {
+			compressor = new MsgCompressor();
+		}
+		return compressor;
+	}
+	
+	/**
+	 * 连接关闭时释放解压器的本地内存
+	 */
+	void closeCompressor() {
+		if(compressor != null) {
+			compressor.close();
+			compressor = null;
+		}
+	}
+	
+	NioConnection getNioConnection() {
+		return nioConnection;
+	}
+	
+	OutboundQueue getOutboundQueue() {
+		return outboundQueue;
+	}
+	
+	AsyncLogger.Sampler getLogSampler() {
+		return logSampler;
+	}
+	
+	int getSessionId() {
+		return sessionId;
+	}
+	
+	void setSessionId(int sessionId) {
+		this.sessionId = sessionId;
+	}
+	
+	/**
+	 * 清除会话id
+	 * @return 原来的会话id，已经清除过时为-1
+	 */
+	int clearSessionId() {
+		return SESSION_ID.getAndSet(this, -1);
+	}
+	
+	int getChatTargetId() {
+		return chatTargetId;
+	}
+	
+	String getChatTargetName() {
+		return chatTargetName;
+	}
+	
+	void setChatTarget(int chatTargetId, String chatTargetName) {
+		this.chatTargetId = chatTargetId;
+		this.chatTargetName = chatTargetName;
+	}
+	
+	Object getPresenceLock() {
+		return presenceLock;
+	}
+	
+	long getPresenceVersion() {
+		return presenceVersion;
+	}
+	
+	void setPresenceVersion(long presenceVersion) {
+		this.presenceVersion = presenceVersion;
+	}
+	
+	boolean isPresenceStale() {
+		return presenceStale;
+	}
+	
+	void setPresenceStale(boolean presenceStale) {
+		this.presenceStale = presenceStale;
+	}
+	
+	void setPresenceResync(Runnable presenceResync) {
+		this.presenceResync = presenceResync;
+	}
+	
+	long getLastReadTick() {
+		return lastReadTick;
+	}
+	
+	/**
+	 * 记下读到数据的刻度，刻度没变时不写，每条命令只多一次读
+	 * @param tick
+	 */
+	void setLastReadTick(long tick) {
+		if(lastReadTick != tick) {
+			lastReadTick = tick;
+		}
+	}
+	
+	long getIdleDeadline() {
+		return idleDeadline;
+	}
+	
+	void setIdleDeadline(long idleDeadline) {
+		this.idleDeadline = idleDeadline;
+	}
+	
+	boolean isPinged() {
+		return pinged;
+	}
+	
+	void setPinged(boolean pinged) {
+		this.pinged = pinged;
+	}
+	
+	Set<ChatRoom> getRooms() {
+		return rooms;
+	}
+	
+	public InetSocketAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+	
+	public String getUserName() {
+		return userName;
+	}
+	
+	public void setUserName(String userName) {
+		this.userName = userName;
+	}
+
+}
@@ -0,0 +1,115 @@
+package server;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * 群聊房间
+ * 成员按会话id存成位图，加入和退出时复制一份新的位图，发消息时遍历当前的位图不需要加锁；
+ * 一万个成员的位图只有一千多字节，遍历时按字跳过没有成员的部分
+ */
+class ChatRoom {
+	
+	/**
+	 * 加入的结果：房间已关闭、这次加入的、之前已经是成员
+	 */
+	static final int JOIN_CLOSED = 0;
+	static final int JOIN_ADDED = 1;
+	static final int JOIN_ALREADY_MEMBER = 2;
+	
+	private final String name;
+	
+	/**
+	 * 成员的会话id位图，只替换不修改
+	 */
+	private volatile long[] members = new long[0];
+	
+	/**
+	 * 成员数
+	 */
+	private int size;
+	
+	/**
+	 * 最后一个成员退出后关闭，之后不能再加入
+	 */
+	private boolean closed;
+	
+	ChatRoom(String name) {
+		this.name = name;
+	}
+	
+	String getName() {
+		return name;
+	}
+	
+	/**
+	 * 加入
+	 * @param sessionId
+	 * @return JOIN_CLOSED、JOIN_ADDED或JOIN_ALREADY_MEMBER，调用方据此只撤销自己设置的位
+	 */
+	synchronized int join(int sessionId) {
+		if(closed) {
+			return JOIN_CLOSED;
+		}
+		
+		int word = sessionId >>> 6;
+		long bit = 1L << sessionId;
+		long[] current = members;
+		if(word < current.length && (current[word] & bit) != 0) {
+			return JOIN_ALREADY_MEMBER;
+		}
+		
+		long[] updated = Arrays.copyOf(current, Math.max(current.length, word + 1));
+		updated[word] |= bit;
+		members = updated;
+		++size;
+		return JOIN_ADDED;
+	}
+	
+	/**
+	 * 退出，没有成员时关闭
+	 * @param sessionId
+	 * @return 退出后房间是否已关闭
+	 */
+	synchronized boolean leave(int sessionId) {
+		int word = sessionId >>> 6;
+		long bit = 1L << sessionId;
+		long[] current = members;
+		if(word < current.length && (current[word] & bit) != 0) {
+			long[] updated = current.clone();
+			updated[word] &= ~bit;
+			members = updated;
+			--size;
+		}
+		
+		if(size == 0) {
+			closed = true;
+		}
+		return closed;
+	}
+	
+	boolean contains(int sessionId) {
+		long[] current = members;
+		int word = sessionId >>> 6;
+		return word < current.length && (current[word] & (1L << sessionId)) != 0;
+	}
+	
+	synchronized int size() {
+		return size;
+	}
+	
+	/**
+	 * 按id顺序遍历成员，遍历的是调用时的成员
+	 * @param action
+	 */
+	void forEachMember(IntConsumer action) {
+		long[] current = members;
+		for(int word = 0; word < current.length; ++word) {
+			long bits = current[word];
+			while(bits != 0) {
+				action.accept((word << 6) + Long.numberOfTrailingZeros(bits));
+				bits &= bits - 1;
+			}
+		}
+	}
+}
@@ -1,302 +1,1415 @@
-package server;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-import org.apache.commons.lang.StringUtils;
-
-import base.MsgConst;
-import base.NetUtils;
-import net.sf.json.JSONObject;
-
-
-/**
- * 聊天服务 
- */
-public class ChatServer {
-	
-	/**
-	 * 端口
-	 */
-	private int port;
-	
-	/**
-	 * 是否运行
-	 */
-	private volatile boolean run;
-	
-	private Map<String, ChatClientSocket> userMap;
-
-	public ChatServer(int port) {
-		this.port = port;
-		run = true;
-		userMap = new ConcurrentHashMap<String, ChatClientSocket>();
-	}
-
-
-	private void start() throws IOException {
-		//创建线程池
-		ExecutorService executorService = Executors.newCachedThreadPool();
-		
-		try(ServerSocket serverSocket = new ServerSocket(this.port)){
-			System.out.println("启动服务器成功。");
-			while(run) {
-				Socket socket = serverSocket.accept();
-				//在其他线程上处理socket
-				executorService.execute(() -> handle(socket));
-			}
-		}
-		
-		//停止线程池
-		executorService.shutdownNow();
-	}
-
-	/**
-	 * 处理socket
-	 * @param socket
-	 */
-	private void handle(Socket socket) {
-		try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-	         PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "utf-8"))) {
-			
-			ChatClientSocket clientSocket = new ChatClientSocket(socket, reader, writer);
-			while (run) {
-				String line = reader.readLine();
-				if (line == null) {
-					// 客户端已断开
-					printClientInfoLog(socket, "断开连接。");
-					return;
-				}
-				
-				printClientInfoLog(socket, "发送请求-" + line);
-				JSONObject jsonObj = getJsonObj(line);
-				if(null == jsonObj) {
-					continue;
-				}
-				
-				//处理命令
-				deaWithCmd(jsonObj, clientSocket);
-			}
-
-		} catch (Exception e) {
-			e.printStackTrace();
-			printClientInfoLog(socket, "断开连接。");
-		}
-	}
-
-
-	/**
-	 * 处理客户端的命令
-	 * @param socket
-	 * @param jsonObj
-	 * @param writer 
-	 * @param socket 
-	 * @return
-	 */
-	private void deaWithCmd(JSONObject jsonObj, ChatClientSocket clientSocket) {
-		try {
-			String cmd = jsonObj.getString(MsgConst.FIELD_CMD);
-			switch (cmd) {
-			// 登录
-			case MsgConst.CMD_LOGIN:
-				doLogin(jsonObj, clientSocket);
-				break;
-			// 登出
-			case MsgConst.CMD_LOGOUT:
-				doLogout(jsonObj, clientSocket);
-				break;
-			case MsgConst.CMD_CHAT_TO:
-				doChat(jsonObj, clientSocket);
-				break;
-			}
-		}catch (Exception e) {
-			e.printStackTrace();
-		}
-	}
-
-	/**
-	 * 退出
-	 * @param jsonObj
-	 * @param clientSocket
-	 */
-	private void doLogout(JSONObject jsonObj, ChatClientSocket clientSocket) {
-		removeOnlineUser(clientSocket.getUserName());
-	}
-
-
-	/**
-	 * 聊天处理
-	 * @param jsonObj
-	 * @param clientSocket
-	 */
-	private void doChat(JSONObject jsonObj, ChatClientSocket clientSocket) {
-		String srcUser = clientSocket.getUserName();
-		if(StringUtils.isEmpty(srcUser)) {
-			//未登录
-			return;
-		}
-		
-		String tarUser = jsonObj.getString(MsgConst.FIELD_TARGET_USER);
-		ChatClientSocket tarSocket = userMap.get(tarUser);
-		if(tarSocket == null) {
-			//通知该客户端该用户已下线
-			notifyRefreshUserOnlineList(tarUser, MsgConst.USER_STATUS_LOGOUT, clientSocket);
-			return;
-		}
-		
-		
-		String chatMsg = jsonObj.getString(MsgConst.FIELD_CHAT_MSG);
-		//发送消息到目标客户端
-		writeMsg(tarSocket, NetUtils.buildCmdLine(MsgConst.CMD_CHAT_TO, 
-												 MsgConst.FIELD_CHAT_MSG, chatMsg,
-												 MsgConst.FIELD_USER_NAME, srcUser));
-	}
-
-
-
-	/**
-	 * 登录
-	 * @param jsonObj 
-	 * @param writer 
-	 * @param socket 
-	 */
-	private void doLogin(JSONObject jsonObj, ChatClientSocket clientSocket) {
-		String userName = jsonObj.optString(MsgConst.FIELD_USER_NAME, "");
-		if(StringUtils.isEmpty(userName)) {
-			writeMsg(clientSocket, NetUtils.buildCmdLine(MsgConst.CMD_LOGIN, MsgConst.FIELD_ERR_MSG, "用户名不能为空！"));
-			return;
-		}
-		
-		if(isUserNameExist(userName)) {
-			writeMsg(clientSocket, NetUtils.buildCmdLine(MsgConst.CMD_LOGIN, MsgConst.FIELD_ERR_MSG, "该用户名已被使用！"));
-			return;	
-		}
-		
-		//获取所有在线的成员
-		List<String> onlineUserName = getAllOnlineUsersName();
-		//添加在线成员
-		addOnlineUser(userName, clientSocket);
-		
-		//设置用户名
-		clientSocket.setUserName(userName);
-		writeMsg(clientSocket, NetUtils.buildCmdLine(MsgConst.CMD_LOGIN, MsgConst.FIELD_USER_NAME_LIST, onlineUserName));
-	}
-	
-	/**
-	 * 添加在线用户
-	 * @param userName
-	 * @param socket
-	 */
-	private void addOnlineUser(String userName, ChatClientSocket socket) {
-		//通过所有用户有人上线了
-		notifyRefreshUserOnlineList(userName, MsgConst.USER_STATUS_LOGIN);
-		//添加到在线用户列表
-		userMap.put(userName, socket);
-	}
-	
-	private void removeOnlineUser(String userName) {
-		userMap.remove(userName);
-		//通过所有用户有人上线了
-		notifyRefreshUserOnlineList(userName, MsgConst.USER_STATUS_LOGOUT);
-	}
-
-	/**
-	 * 通知所有客户端更新在线用户列表
-	 * @param userName
-	 * @param status
-	 */
-	private void notifyRefreshUserOnlineList(String userName, String status) {
-		String refreshCmd = NetUtils.buildCmdLine(MsgConst.CMD_UPDATE_ONLINE_USER_LIST, MsgConst.FIELD_USER_NAME, userName, MsgConst.FIELD_USER_STATUS, status);
-		for(ChatClientSocket clientSocket : userMap.values()) {
-			try {
-				writeMsg(clientSocket, refreshCmd);
-			}catch (Exception e) {
-			}
-		}
-	}
-	
-	/**
-	 * 通知单个客户端有用户下线
-	 * @param tarUser
-	 * @param userStatusLogout
-	 * @param clientSocket
-	 */
-	private void notifyRefreshUserOnlineList(String userName, String status, ChatClientSocket clientSocket) {
-		String refreshCmd = NetUtils.buildCmdLine(MsgConst.CMD_UPDATE_ONLINE_USER_LIST, MsgConst.FIELD_USER_NAME, userName, MsgConst.FIELD_USER_STATUS, status);
-		try {
-			writeMsg(clientSocket, refreshCmd);
-		} catch (Exception e) {
-		}
-	}
-
-
-	/**
-	 * 获取所有在线用户的用户名
-	 * @return
-	 */
-	private List<String> getAllOnlineUsersName() {
-		List<String> onlineUserName = new ArrayList<>(userMap.size());
-		userMap.keySet().stream().forEach(name -> {
-			onlineUserName.add(name);
-		});
-		return onlineUserName;
-	}
-
-
-	/**
-	 * 检查用户名是否存在
-	 * @param userName
-	 * @return
-	 */
-	private synchronized boolean isUserNameExist(String userName) {
-		return userMap.containsKey(userName);
-	}
-
-
-	private void writeMsg(ChatClientSocket clientSocket, String msg) {
-		PrintWriter writer = clientSocket.getWriter();
-		writer.println(msg);
-		writer.flush();
-	}
-
-
-	private JSONObject getJsonObj(String line) {
-		try {
-			return JSONObject.fromObject(line);
-		}catch (Exception e) {
-			e.printStackTrace();
-		}
-		
-		return null;
-	}
-	
-	/**
-	 * 打印客户端的日志
-	 * @param socket
-	 * @param msg
-	 */
-	private void printClientInfoLog(Socket socket, String msg) {
-		System.out.println(String.format("%s-%d: %s", socket.getInetAddress(), socket.getPort(), msg));
-	}
-
-
-	public static void main(String[] args) throws IOException {
-		//绑定到9999端口
-		ChatServer server = new ChatServer(9999);
-		//启动服务器
-		server.start();
-	}
-}
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.commons.lang.StringUtils;
+
+import base.AsyncLogger;
+import base.BinaryCodec;
+import base.ChatCmd;
+import base.FrameReader;
+import base.MsgConst;
+
+
+/**
+ * 聊天服务 
+ */
+public class ChatServer {
+	
+	/**
+	 * 合并用户上下线通知的时间窗口(毫秒)，0表示每个事件立即通知
+	 */
+	private static final long PRESENCE_WINDOW_MS = Long.getLong("chat.presenceWindowMs", 50);
+	
+	/**
+	 * 保留的名单变化条数，客户端落后超过这么多时发全量名单
+	 */
+	private static final int ROSTER_LOG_SIZE = Integer.getInteger("chat.rosterLogSize", 10000);
+	
+	/**
+	 * 全量名单每帧最多的用户数
+	 */
+	private static final int ROSTER_CHUNK_SIZE = 1000;
+	
+	/**
+	 * 本机指标接口的端口，0表示不开启
+	 */
+	private static final int METRICS_PORT = Integer.getInteger("chat.metricsPort", 0);
+	
+	/**
+	 * 本节点在集群中的id，0表示不组成集群
+	 */
+	private static final int NODE_ID = Integer.getInteger("chat.nodeId", 0);
+	
+	/**
+	 * 接收其他节点连接的端口
+	 */
+	private static final int CLUSTER_PORT = Integer.getInteger("chat.clusterPort", 9100);
+	
+	/**
+	 * 集群所有节点，格式为id@host:port，逗号分隔
+	 */
+	private static final String CLUSTER_PEERS = System.getProperty("chat.clusterPeers", "");
+	
+	/**
+	 * 接收其他节点连接时绑定的地址，为空时用集群节点列表中本节点的地址，列表中没有本节点时只绑定本机回环地址
+	 */
+	private static final String CLUSTER_BIND = System.getProperty("chat.clusterBind", "");
+	
+	/**
+	 * 集群节点间握手用的共享密钥，组成集群时必须配置
+	 */
+	private static final String CLUSTER_SECRET = System.getProperty("chat.clusterSecret", "");
+	
+	/**
+	 * 离线消息目录，为空时不保存离线消息
+	 */
+	private static final String OFFLINE_DIR = System.getProperty("chat.offlineDir", "offline");
+	
+	/**
+	 * 离线消息分段文件大小
+	 */
+	private static final int OFFLINE_SEGMENT_SIZE = Integer.getInteger("chat.offlineSegmentSize", 16 * 1024 * 1024);
+	
+	/**
+	 * 离线消息刷盘间隔(毫秒)
+	 */
+	private static final long OFFLINE_SYNC_MS = Long.getLong("chat.offlineSyncMs", 200);
+	
+	/**
+	 * 每个用户最多保存的离线消息数
+	 */
+	private static final int OFFLINE_MAX_PER_USER = Integer.getInteger("chat.offlineMaxPerUser", 1000);
+	
+	/**
+	 * 每个用户的离线消息最多占用的字节数
+	 */
+	private static final long OFFLINE_MAX_USER_BYTES = Long.getLong("chat.offlineMaxUserBytes", 4 * 1024 * 1024);
+	
+	/**
+	 * 离线消息分段文件最多占用的磁盘空间(字节)
+	 */
+	private static final long OFFLINE_MAX_BYTES = Long.getLong("chat.offlineMaxBytes", 1024L * 1024 * 1024);
+	
+	/**
+	 * 每批发送的离线消息数，一批写出后再发下一批
+	 */
+	private static final int OFFLINE_BATCH_SIZE = 64;
+	
+	/**
+	 * 聊天记录目录，为空时不保存聊天记录
+	 */
+	private static final String HISTORY_DIR = System.getProperty("chat.historyDir", "history");
+	
+	/**
+	 * 内存中缓存的会话数
+	 */
+	private static final int HISTORY_CACHE_SIZE = Integer.getInteger("chat.historyCacheSize", 256);
+	
+	/**
+	 * 聊天记录写入文件的间隔(毫秒)
+	 */
+	private static final long HISTORY_FLUSH_MS = Long.getLong("chat.historyFlushMs", 200);
+	
+	/**
+	 * 连接没有任何数据多久(毫秒)后发心跳，0表示不检查空闲连接
+	 */
+	private static final long IDLE_TIMEOUT_MS = Long.getLong("chat.idleTimeoutMs", 60000);
+	
+	/**
+	 * 发出心跳后等待回复的时间(毫秒)，超时断开连接
+	 */
+	private static final long PONG_TIMEOUT_MS = Long.getLong("chat.pongTimeoutMs", 15000);
+	
+	/**
+	 * 空闲检查时间轮每格的时间(毫秒)
+	 */
+	private static final long IDLE_TICK_MS = Long.getLong("chat.idleTickMs", 1000);
+	
+	/**
+	 * 端口
+	 */
+	private int port;
+	
+	/**
+	 * 是否运行
+	 */
+	private volatile boolean run;
+	
+	/**
+	 * 连接处理模式
+	 */
+	private ServerMode mode;
+	
+	/**
+	 * 非阻塞模式下事件循环线程数
+	 */
+	private int ioThreads;
+	
+	/**
+	 * 在线会话，按名字占用，按id发送
+	 */
+	private SessionRegistry sessions;
+	
+	/**
+	 * 群聊房间，只包括本节点的成员
+	 */
+	private RoomRegistry rooms;
+	
+	/**
+	 * 带版本的在线用户名单
+	 */
+	private Roster roster;
+	
+	/**
+	 * 合并上下线通知，为空时立即通知
+	 */
+	private PresenceBatcher presenceBatcher;
+	
+	/**
+	 * 不合并时逐个发送上下线通知的线程，在名单的锁外按版本顺序发送
+	 */
+	private ExecutorService presenceNotifier;
+	
+	/**
+	 * 运行指标
+	 */
+	private final ServerMetrics metrics = new ServerMetrics();
+	
+	/**
+	 * 集群节点，不组成集群时为空
+	 */
+	private ClusterNode cluster;
+	
+	/**
+	 * 离线消息，不保存时为空
+	 */
+	private OfflineStore offlineStore;
+	
+	/**
+	 * 聊天记录，不保存时为空
+	 */
+	private HistoryStore historyStore;
+	
+	/**
+	 * 空闲连接和拥塞的发送队列检查；不检查空闲连接时只检查发送队列
+	 */
+	private IdleReaper idleReaper;
+	
+	/**
+	 * 空闲超时和心跳超时的刻度数
+	 */
+	private final long idleTicks = Math.max(1, IDLE_TIMEOUT_MS / IDLE_TICK_MS);
+	private final long pongTicks = Math.max(1, PONG_TIMEOUT_MS / IDLE_TICK_MS);
+	
+	/**
+	 * 心跳帧，只在空闲检查线程上使用
+	 */
+	private final SharedFrame pingFrame = new SharedFrame(new ChatCmd(MsgConst.CMD_PING));
+	
+	public ChatServer(int port) {
+		this(port, ServerMode.BIO, Runtime.getRuntime().availableProcessors());
+	}
+	
+	public ChatServer(int port, ServerMode mode, int ioThreads) {
+		this.port = port;
+		this.mode = mode;
+		this.ioThreads = ioThreads;
+		run = true;
+		sessions = new SessionRegistry();
+		rooms = new RoomRegistry();
+		roster = new Roster(ROSTER_LOG_SIZE, this::onRosterChange);
+		if(PRESENCE_WINDOW_MS > 0) {
+			presenceBatcher = new PresenceBatcher(PRESENCE_WINDOW_MS, this::notifyRefreshUserOnlineList);
+		}else {
+			presenceNotifier = Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, "presence-notifier");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		idleReaper = new IdleReaper(IDLE_TICK_MS, Math.max(IDLE_TIMEOUT_MS, PONG_TIMEOUT_MS), this::checkIdle);
+	}
+	
+	
+	private void start() throws IOException {
+		MetricsEndpoint metricsEndpoint = null;
+		if(METRICS_PORT > 0) {
+			metricsEndpoint = new MetricsEndpoint(METRICS_PORT, () -> metrics.snapshot(sessions, rooms));
+			metricsEndpoint.start();
+		}
+		if(!OFFLINE_DIR.isEmpty()) {
+			offlineStore = new OfflineStore(new File(OFFLINE_DIR), OFFLINE_SEGMENT_SIZE, OFFLINE_SYNC_MS, OFFLINE_MAX_PER_USER,
+					OFFLINE_MAX_USER_BYTES, OFFLINE_MAX_BYTES);
+			offlineStore.open();
+		}
+		if(!HISTORY_DIR.isEmpty()) {
+			historyStore = new HistoryStore(new File(HISTORY_DIR), HISTORY_CACHE_SIZE, HISTORY_FLUSH_MS);
+			historyStore.open();
+		}
+		if(NODE_ID > 0) {
+			cluster = new ClusterNode(this, NODE_ID, CLUSTER_BIND, CLUSTER_PORT, CLUSTER_PEERS, CLUSTER_SECRET);
+			cluster.start();
+		}
+		idleReaper.start();
+		
+		try {
+			switch (mode) {
+			case NIO:
+				startNio();
+				break;
+			case VIRTUAL:
+				startBio(newVirtualThreadExecutor());
+				break;
+			default:
+				startBio(Executors.newCachedThreadPool());
+				break;
+			}
+		}finally {
+			if(presenceBatcher != null) {
+				presenceBatcher.shutdown();
+			}
+			if(presenceNotifier != null) {
+				presenceNotifier.shutdownNow();
+			}
+			idleReaper.shutdown();
+			if(metricsEndpoint != null) {
+				metricsEndpoint.stop();
+			}
+			if(cluster != null) {
+				cluster.stop();
+			}
+			if(offlineStore != null) {
+				offlineStore.close();
+			}
+			if(historyStore != null) {
+				historyStore.close();
+			}
+		}
+	}
+	
+	/**
+	 * 创建每个任务一个虚拟线程的线程池
+	 * 项目按JDK8编译，所以通过反射获取，JDK21以下退回普通线程池
+	 * @return
+	 */
+	private ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			AsyncLogger.warn("当前JDK不支持虚拟线程，使用普通线程池。");
+			return Executors.newCachedThreadPool();
+		}
+	}
+	
+	/**
+	 * 阻塞模式启动，每个连接占用线程池的一个线程
+	 * @param executorService
+	 * @throws IOException
+	 */
+	private void startBio(ExecutorService executorService) throws IOException {
+		try(ServerSocket serverSocket = new ServerSocket(this.port)){
+			AsyncLogger.info("启动服务器成功(" + mode + ")。");
+			while(run) {
+				Socket socket = serverSocket.accept();
+				//在其他线程上处理socket
+				executorService.execute(() -> handle(socket, executorService));
+			}
+		}
+		
+		//停止线程池
+		executorService.shutdownNow();
+	}
+	
+	/**
+	 * 非阻塞模式启动，固定数量的事件循环线程处理所有连接
+	 * @throws IOException
+	 */
+	private void startNio() throws IOException {
+		NioEventLoop[] eventLoops = new NioEventLoop[ioThreads];
+		for(int i = 0; i < eventLoops.length; ++i) {
+			eventLoops[i] = new NioEventLoop(this, i);
+			eventLoops[i].start();
+		}
+		
+		try(ServerSocketChannel serverChannel = ServerSocketChannel.open()){
+			serverChannel.bind(new InetSocketAddress(this.port));
+			AsyncLogger.info("启动服务器成功(NIO, " + ioThreads + "个事件循环)。");
+			int next = 0;
+			while(run) {
+				SocketChannel channel = serverChannel.accept();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				printClientInfoLog(channel.getRemoteAddress(), "建立连接。");
+				//轮流分配给事件循环
+				eventLoops[next].register(channel);
+				next = (next + 1) % eventLoops.length;
+			}
+		}
+		
+		for(NioEventLoop eventLoop : eventLoops) {
+			eventLoop.shutdown();
+		}
+	}
+	
+	/**
+	 * 处理socket
+	 * @param socket
+	 * @param writerExecutor 执行写出的线程池
+	 */
+	private void handle(Socket socket, ExecutorService writerExecutor) {
+		ChatClientSocket clientSocket = null;
+		try (InputStream inputStream = socket.getInputStream();
+	         OutputStream outputStream = socket.getOutputStream()) {
+			
+			FrameReader reader = new FrameReader(metrics.countBytesIn(inputStream));
+			clientSocket = new ChatClientSocket(socket, reader, outputStream, writerExecutor, metrics);
+			onClientOpened(clientSocket);
+			ChatCmd cmd = new ChatCmd();
+			while (run) {
+				if (!reader.read(cmd)) {
+					// 客户端已断开
+					return;
+				}
+				
+				dealWithCmd(clientSocket, cmd);
+			}
+		
+		} catch (Exception e) {
+			AsyncLogger.error(socket.getRemoteSocketAddress(), "连接异常。", e);
+		} finally {
+			if(clientSocket != null) {
+				onClientClosed(clientSocket);
+			}
+		}
+	}
+	
+	/**
+	 * 处理客户端发来的一条命令
+	 * @param clientSocket
+	 * @param cmd
+	 */
+	void dealWithCmd(ChatClientSocket clientSocket, ChatCmd cmd) {
+		clientSocket.setLastReadTick(idleReaper.currentTick());
+		//按连接采样，命令对象会被重复使用，所以在当前线程上转成字符串
+		if(AsyncLogger.isEnabled(AsyncLogger.Level.INFO) && clientSocket.getLogSampler().sample()) {
+			printClientInfoLog(clientSocket.getRemoteAddress(), "发送请求-" + AsyncLogger.describe(cmd));
+		}
+		if(null == cmd.getCmd()) {
+			return;
+		}
+		
+		//处理命令
+		String cmdName = cmd.getCmd();
+		long start = System.nanoTime();
+		deaWithCmd(cmd, clientSocket);
+		metrics.recordCommand(cmdName, System.nanoTime() - start);
+	}
+	
+	/**
+	 * 客户端建立连接
+	 * @param clientSocket
+	 */
+	void onClientOpened(ChatClientSocket clientSocket) {
+		metrics.connectionOpened();
+		//拥塞的连接即使不再有新帧也按时长断开
+		clientSocket.getOutboundQueue().setCongestionWatcher(idleReaper::watchCongested);
+		if(IDLE_TIMEOUT_MS > 0) {
+			idleReaper.register(clientSocket);
+		}
+	}
+	
+	/**
+	 * 客户端断开连接
+	 * @param clientSocket
+	 */
+	void onClientClosed(ChatClientSocket clientSocket) {
+		//没有先登出就断开，或者因为接收太慢被断开
+		removeOnlineUser(clientSocket);
+		clientSocket.getOutboundQueue().close();
+		clientSocket.closeCompressor();
+		metrics.connectionClosed();
+		printClientInfoLog(clientSocket.getRemoteAddress(), "断开连接。");
+	}
+	
+	
+	/**
+	 * 处理客户端的命令
+	 * @param cmd
+	 * @param clientSocket 
+	 * @return
+	 */
+	private void deaWithCmd(ChatCmd cmd, ChatClientSocket clientSocket) {
+		try {
+			switch (cmd.getCmd()) {
+			// 登录
+			case MsgConst.CMD_LOGIN:
+				doLogin(cmd, clientSocket);
+				break;
+			// 登出
+			case MsgConst.CMD_LOGOUT:
+				doLogout(cmd, clientSocket);
+				break;
+			case MsgConst.CMD_CHAT_TO:
+				doChat(cmd, clientSocket);
+				break;
+			case MsgConst.CMD_HISTORY:
+				doHistory(cmd, clientSocket);
+				break;
+			case MsgConst.CMD_ROOM_CREATE:
+			case MsgConst.CMD_ROOM_JOIN:
+			case MsgConst.CMD_ROOM_LEAVE:
+				doRoomMembership(cmd, clientSocket);
+				break;
+			case MsgConst.CMD_ROOM_MSG:
+				doRoomMsg(cmd, clientSocket);
+				break;
+			case MsgConst.CMD_PING:
+				writeMsg(clientSocket, new ChatCmd(MsgConst.CMD_PONG));
+				break;
+			//收到数据时已经记下，不用处理
+			case MsgConst.CMD_PONG:
+				break;
+			}
+		}catch (Exception e) {
+			AsyncLogger.error(clientSocket.getRemoteAddress(), "处理请求失败。", e);
+		}
+	}
+	
+	/**
+	 * 检查到期的空闲连接，在空闲检查线程上调用
+	 * 期间读到过数据的按最后读取的刻度重新计时；空闲超时后先发心跳，
+	 * 心跳超时还没有数据的下线并断开。老客户端不回复心跳，只重新计时；未登录的连接空闲超时直接断开
+	 * @param clientSocket
+	 * @param now 当前刻度
+	 * @return 下次检查的刻度，小于0时不再检查
+	 */
+	private long checkIdle(ChatClientSocket clientSocket, long now) {
+		if(clientSocket.getOutboundQueue().isClosed()) {
+			//已断开
+			return -1;
+		}
+		
+		long lastReadTick = clientSocket.getLastReadTick();
+		if(now - lastReadTick < idleTicks) {
+			clientSocket.setPinged(false);
+			return lastReadTick + idleTicks;
+		}
+		
+		boolean online = clientSocket.getSessionId() >= 0;
+		if(online && !clientSocket.isPinged()) {
+			if(clientSocket.getClientVersion() < MsgConst.CLIENT_VERSION_HEARTBEAT) {
+				return now + idleTicks;
+			}
+			
+			clientSocket.setPinged(true);
+			metrics.heartbeatSent();
+			writeFrame(clientSocket, pingFrame);
+			return now + pongTicks;
+		}
+		
+		metrics.idleReaped();
+		printClientInfoLog(clientSocket.getRemoteAddress(), online ? "心跳超时，断开连接。" : "长时间未登录，断开连接。");
+		removeOnlineUser(clientSocket);
+		clientSocket.disconnect();
+		return -1;
+	}
+	
+	/**
+	 * 退出
+	 * @param cmd
+	 * @param clientSocket
+	 */
+	private void doLogout(ChatCmd cmd, ChatClientSocket clientSocket) {
+		removeOnlineUser(clientSocket);
+	}
+	
+	
+	/**
+	 * 聊天处理
+	 * @param cmd
+	 * @param clientSocket
+	 */
+	private void doChat(ChatCmd cmd, ChatClientSocket clientSocket) {
+		String srcUser = clientSocket.getUserName();
+		if(StringUtils.isEmpty(srcUser)) {
+			//未登录
+			return;
+		}
+		
+		String tarUser = cmd.getTargetUserName();
+		if(StringUtils.isEmpty(tarUser)) {
+			//没有目标
+			return;
+		}
+		ChatClientSocket tarSocket = findChatTarget(clientSocket, tarUser);
+		//压缩的内容发给协商了压缩的目标时原样转发，聊天记录也保存压缩的数据，查询时再解压；
+		//只有目标不支持压缩、不在线或在其他节点上时才解压
+		byte[] compressedMsg = cmd.getCompressedMsg();
+		boolean relayCompressed = compressedMsg != null && tarSocket != null && tarSocket.isCompression();
+		String chatMsg = null;
+		if(!relayCompressed) {
+			chatMsg = plainChatMsg(cmd, clientSocket);
+			if(chatMsg == null) {
+				return;
+			}
+		}
+		
+		if(tarSocket == null) {
+			if(cluster != null && cluster.forwardChat(srcUser, tarUser, chatMsg)) {
+				//目标在其他节点上，两边节点各记一份
+				recordHistory(srcUser, tarUser, chatMsg, compressedMsg);
+				return;
+			}
+			
+			recordHistory(srcUser, tarUser, chatMsg, compressedMsg);
+			storeOfflineMessage(tarUser, srcUser, chatMsg);
+			//通知该客户端该用户已下线
+			notifyRefreshUserOnlineList(tarUser, MsgConst.USER_STATUS_LOGOUT, clientSocket);
+			return;
+		}
+		
+		
+		ChatCmd chatCmd = new ChatCmd(MsgConst.CMD_CHAT_TO);
+		if(relayCompressed) {
+			chatCmd.setCompressedMsg(compressedMsg);
+			metrics.compressedRelayed(1);
+		}else {
+			chatCmd.setChatMsg(chatMsg);
+		}
+		chatCmd.setUserName(srcUser);
+		recordHistory(srcUser, tarUser, chatMsg, compressedMsg);
+		//发送消息到目标客户端
+		writeMsg(tarSocket, chatCmd);
+	}
+	
+	/**
+	 * 取聊天目标的会话
+	 * 目标按名字查找一次后记下会话id，之后和同一目标的聊天按id取会话，不再查名字表；
+	 * id可能已经释放又分给了别人，取到的会话用户名不是记下的那个时重新查找
+	 * @param clientSocket 发送方
+	 * @param tarUser
+	 * @return 目标不在本节点上线时为空
+	 */
+	private ChatClientSocket findChatTarget(ChatClientSocket clientSocket, String tarUser) {
+		String targetName = clientSocket.getChatTargetName();
+		if(targetName != null && targetName.equals(tarUser)) {
+			int id = clientSocket.getChatTargetId();
+			ChatClientSocket tarSocket = sessions.get(id);
+			if(tarSocket != null && tarSocket.getUserName() == targetName && tarSocket.getSessionId() == id) {
+				return tarSocket;
+			}
+		}
+		
+		ChatClientSocket tarSocket = sessions.find(tarUser);
+		if(tarSocket == null) {
+			clientSocket.setChatTarget(-1, null);
+		}else {
+			clientSocket.setChatTarget(tarSocket.getSessionId(), tarSocket.getUserName());
+		}
+		return tarSocket;
+	}
+	
+	/**
+	 * 取聊天内容的原文，压缩的内容用发送方连接上的解压器解压
+	 * @param cmd
+	 * @param clientSocket 发送方
+	 * @return 压缩数据有误时为空
+	 */
+	private String plainChatMsg(ChatCmd cmd, ChatClientSocket clientSocket) {
+		if(cmd.getCompressedMsg() == null) {
+			return cmd.getChatMsg();
+		}
+		return decompress(cmd.getCompressedMsg(), clientSocket);
+	}
+	
+	/**
+	 * 用连接上的解压器解压，在该连接的读取线程上调用
+	 * @param compressedMsg
+	 * @param clientSocket
+	 * @return 压缩数据有误时为空
+	 */
+	private String decompress(byte[] compressedMsg, ChatClientSocket clientSocket) {
+		try {
+			metrics.decompressed();
+			return clientSocket.getCompressor().decompress(compressedMsg);
+		}catch (IllegalArgumentException e) {
+			AsyncLogger.warn(clientSocket.getRemoteAddress() + " 解压聊天内容失败: " + e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * 查询和某个用户的聊天记录
+	 * 每条记录一个history命令，按序号从小到大，最后一个不带序号的history命令表示结束，limit为条数
+	 * 压缩保存的记录发给协商了压缩的客户端时原样发送，否则在这里解压
+	 * @param cmd
+	 * @param clientSocket
+	 */
+	private void doHistory(ChatCmd cmd, ChatClientSocket clientSocket) {
+		String userName = clientSocket.getUserName();
+		String peer = cmd.getTargetUserName();
+		if(StringUtils.isEmpty(userName) || StringUtils.isEmpty(peer)) {
+			//未登录
+			return;
+		}
+		
+		List<HistoryStore.HistoryMessage> messages = historyStore == null ? new ArrayList<>()
+				: historyStore.page(userName, peer, cmd.getSeq(), cmd.getTime(),
+						!MsgConst.DIRECTION_AFTER.equals(cmd.getDirection()), cmd.getLimit());
+		sendHistory(clientSocket, peer, messages, 0, null);
+	}
+	
+	/**
+	 * 从第from条开始发送一页聊天记录，发完后发送结束命令
+	 * 和离线消息一样只在发送队列有空间时入队，放不下的等前面的帧写出后在写出的线程上接着发，
+	 * 一页大消息不会超过发送队列的上限而断开查询的客户端；连接断开时剩下的不再发送
+	 * @param clientSocket
+	 * @param peer
+	 * @param messages
+	 * @param from
+	 * @param fromFrame 上次放不下的第from条已编码的帧，没有时为空
+	 */
+	private void sendHistory(ChatClientSocket clientSocket, String peer, List<HistoryStore.HistoryMessage> messages, int from,
+			ByteBuffer fromFrame) {
+		OutboundQueue queue = clientSocket.getOutboundQueue();
+		int next = from;
+		ByteBuffer frame = fromFrame;
+		while(next < messages.size()) {
+			if(frame == null) {
+				frame = SharedFrame.encode(historyCmd(clientSocket, peer, messages.get(next)), clientSocket.isBinary());
+			}
+			if(!queue.offerIfRoom(frame)) {
+				//一条就超过高水位的大消息只在队列空的时候单独发送
+				if(next > from || queue.size() > 0) {
+					break;
+				}
+				clientSocket.send(frame);
+			}
+			frame = null;
+			++next;
+		}
+		
+		if(next < messages.size()) {
+			int resume = next;
+			ByteBuffer resumeFrame = frame;
+			queue.offerMarker(() -> sendHistory(clientSocket, peer, messages, resume, resumeFrame));
+			return;
+		}
+		
+		ChatCmd endCmd = new ChatCmd(MsgConst.CMD_HISTORY);
+		endCmd.setTargetUserName(peer);
+		endCmd.setLimit(messages.size());
+		writeMsg(clientSocket, endCmd);
+	}
+	
+	private ChatCmd historyCmd(ChatClientSocket clientSocket, String peer, HistoryStore.HistoryMessage message) {
+		ChatCmd historyCmd = new ChatCmd(MsgConst.CMD_HISTORY);
+		historyCmd.setTargetUserName(peer);
+		historyCmd.setUserName(message.sender);
+		if(message.compressedMsg == null) {
+			historyCmd.setChatMsg(message.chatMsg);
+		}else if(clientSocket.isCompression()) {
+			historyCmd.setCompressedMsg(message.compressedMsg);
+			metrics.compressedRelayed(1);
+		}else {
+			historyCmd.setChatMsg(StringUtils.defaultString(decompress(message.compressedMsg, clientSocket)));
+		}
+		historyCmd.setSeq(message.seq);
+		historyCmd.setTime(message.time);
+		return historyCmd;
+	}
+	
+	/**
+	 * 创建、加入或退出群聊房间，结果用同样的命令返回，失败时带错误信息
+	 * @param cmd
+	 * @param clientSocket
+	 */
+	private void doRoomMembership(ChatCmd cmd, ChatClientSocket clientSocket) {
+		String roomName = cmd.getRoomName();
+		String errMsg;
+		if(StringUtils.isEmpty(clientSocket.getUserName())) {
+			errMsg = "未登录！";
+		}else if(StringUtils.isEmpty(roomName)) {
+			errMsg = "房间名不能为空！";
+		}else if(MsgConst.CMD_ROOM_CREATE.equals(cmd.getCmd())) {
+			errMsg = rooms.create(roomName, clientSocket);
+		}else if(MsgConst.CMD_ROOM_JOIN.equals(cmd.getCmd())) {
+			errMsg = rooms.join(roomName, clientSocket);
+		}else {
+			errMsg = rooms.leave(roomName, clientSocket);
+		}
+		
+		ChatCmd resultCmd = new ChatCmd(cmd.getCmd());
+		resultCmd.setRoomName(roomName);
+		resultCmd.setErrMsg(errMsg);
+		ChatRoom room = errMsg == null ? rooms.get(roomName) : null;
+		if(room != null && !MsgConst.CMD_ROOM_LEAVE.equals(cmd.getCmd())) {
+			//加入后的成员数
+			resultCmd.setLimit(room.size());
+		}
+		writeMsg(clientSocket, resultCmd);
+	}
+	
+	/**
+	 * 群聊消息，每种格式只编码一次，所有成员的发送队列共享同一份数据
+	 * @param cmd
+	 * @param clientSocket
+	 */
+	private void doRoomMsg(ChatCmd cmd, ChatClientSocket clientSocket) {
+		String srcUser = clientSocket.getUserName();
+		int srcId = clientSocket.getSessionId();
+		ChatRoom room = cmd.getRoomName() == null ? null : rooms.get(cmd.getRoomName());
+		if(StringUtils.isEmpty(srcUser) || room == null || !room.contains(srcId)) {
+			//未登录或不是成员
+			return;
+		}
+		
+		//压缩的内容原样发给协商了压缩的成员，不支持压缩的成员用第一次需要时解压出的原文
+		byte[] compressedMsg = cmd.getCompressedMsg();
+		ChatCmd roomCmd = newRoomMsg(room, srcUser);
+		roomCmd.setChatMsg(cmd.getChatMsg());
+		roomCmd.setCompressedMsg(compressedMsg);
+		SharedFrame frame = new SharedFrame(roomCmd);
+		SharedFrame[] plainFrame = {compressedMsg == null ? frame : null};
+		int[] count = new int[2];
+		room.forEachMember(id -> {
+			if(id == srcId) {
+				return;
+			}
+			
+			ChatClientSocket tarSocket = sessions.get(id);
+			//会话id可能刚被释放又分给了别人
+			if(tarSocket == null || !tarSocket.getRooms().contains(room)) {
+				return;
+			}
+			
+			if(compressedMsg != null && tarSocket.isCompression()) {
+				writeFrame(tarSocket, frame);
+				++count[1];
+			}else {
+				if(plainFrame[0] == null) {
+					ChatCmd plainCmd = newRoomMsg(room, srcUser);
+					plainCmd.setChatMsg(StringUtils.defaultString(plainChatMsg(cmd, clientSocket)));
+					plainFrame[0] = new SharedFrame(plainCmd);
+				}
+				writeFrame(tarSocket, plainFrame[0]);
+			}
+			++count[0];
+		});
+		metrics.roomDelivered(count[0]);
+		metrics.compressedRelayed(count[1]);
+	}
+	
+	private static ChatCmd newRoomMsg(ChatRoom room, String srcUser) {
+		ChatCmd roomCmd = new ChatCmd(MsgConst.CMD_ROOM_MSG);
+		roomCmd.setRoomName(room.getName());
+		roomCmd.setUserName(srcUser);
+		return roomCmd;
+	}
+	
+	/**
+	 * 记录聊天记录
+	 * @param srcUser
+	 * @param tarUser
+	 * @param chatMsg
+	 * @param compressedMsg 压缩的内容，不为空时保存压缩的数据
+	 */
+	private void recordHistory(String srcUser, String tarUser, String chatMsg, byte[] compressedMsg) {
+		if(historyStore != null) {
+			historyStore.append(srcUser, tarUser, chatMsg, compressedMsg);
+		}
+	}
+	
+	
+	
+	/**
+	 * 登录
+	 * @param cmd 
+	 * @param clientSocket 
+	 */
+	private void doLogin(ChatCmd cmd, ChatClientSocket clientSocket) {
+		String userName = cmd.getUserName();
+		if(StringUtils.isEmpty(userName)) {
+			writeLoginErr(clientSocket, "用户名不能为空！");
+			return;
+		}
+		
+		//同一连接换名字登录时先退出原来的
+		if(!userName.equals(clientSocket.getUserName())) {
+			removeOnlineUser(clientSocket);
+		}
+		
+		//集群模式下同名的本节点登录和其他节点上线互斥，直到上线通知发出
+		Lock nameLock = cluster != null ? cluster.nameLock(userName) : null;
+		if(nameLock != null) {
+			nameLock.lock();
+		}
+		try {
+			joinOnlineUser(cmd, clientSocket);
+		}finally {
+			if(nameLock != null) {
+				nameLock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * 占用用户名并上线
+	 * @param cmd
+	 * @param clientSocket
+	 */
+	private void joinOnlineUser(ChatCmd cmd, ChatClientSocket clientSocket) {
+		String userName = cmd.getUserName();
+		//原子地占用用户名，同名同时登录只有一个成功
+		if((cluster != null && cluster.isRemoteUser(userName)) || !sessions.claim(userName, clientSocket)) {
+			writeLoginErr(clientSocket, "该用户名已被使用！");
+			return;	
+		}
+		
+		//设置用户名
+		clientSocket.setUserName(userName);
+		clientSocket.setClientVersion(cmd.getClientVersion());
+		//客户端支持压缩时同意，之后大的聊天内容可以压缩后收发
+		clientSocket.setCompression(MsgConst.COMPRESSION_DEFLATE.equals(cmd.getCompression()));
+		//客户端支持二进制协议时同意使用，登录结果本身还是JSON
+		int binaryVersion = Math.min(cmd.getBinaryVersion(), BinaryCodec.VERSION);
+		//老客户端不认识增量，总是发全量
+		String knownVersion = cmd.getClientVersion() >= MsgConst.CLIENT_VERSION_ROSTER_DELTA ? cmd.getRosterVersion() : null;
+		
+		//名单的锁内只取名单和版本，编码、发送和离线消息都在锁外。
+		//上线前先标记为需要补发，期间的变化通知都跳过；名单和离线消息发出、添加在线成员后，
+		//从名单的版本补发到最新，客户端收到的版本仍然连续。离线消息排在上线后别人发来的消息前面
+		clientSocket.setPresenceResync(() -> resyncPresence(clientSocket));
+		Roster.RosterSync sync = roster.join(userName, knownVersion);
+		synchronized(clientSocket.getPresenceLock()) {
+			clientSocket.setPresenceVersion(sync.rawVersion);
+			clientSocket.setPresenceStale(true);
+		}
+		writeLoginResult(clientSocket, sync, binaryVersion);
+		deliverOfflineMessages(clientSocket, userName);
+		sessions.activate(clientSocket);
+		resyncPresence(clientSocket, false);
+		//发出离线消息到上线之间又有别人发的离线消息；还有一批没写出时由它写出后接着发
+		deliverOfflineMessages(clientSocket, userName);
+		if(cluster != null) {
+			cluster.publish(userName, true);
+		}
+	}
+	
+	/**
+	 * 保存离线消息
+	 * @param tarUser
+	 * @param srcUser
+	 * @param chatMsg
+	 */
+	private void storeOfflineMessage(String tarUser, String srcUser, String chatMsg) {
+		if(offlineStore != null && offlineStore.append(tarUser, srcUser, chatMsg)) {
+			metrics.offlineStored();
+		}
+	}
+	
+	/**
+	 * 按顺序分批发送离线消息，一批写出后才标记为已送达，再发下一批
+	 * 只在发送队列有空间时入队，放不下的等前面的帧写出后再发，不会因为离线消息多而断开连接；
+	 * 连接断开时没写出的消息留在存储里，下次登录重发
+	 * @param clientSocket
+	 * @param userName
+	 */
+	private void deliverOfflineMessages(ChatClientSocket clientSocket, String userName) {
+		if(offlineStore == null) {
+			return;
+		}
+		
+		List<OfflineStore.OfflineMessage> messages = offlineStore.take(userName, clientSocket, OFFLINE_BATCH_SIZE);
+		if(messages.isEmpty()) {
+			return;
+		}
+		
+		OutboundQueue queue = clientSocket.getOutboundQueue();
+		int sent = 0;
+		for(OfflineStore.OfflineMessage message : messages) {
+			ChatCmd chatCmd = new ChatCmd(MsgConst.CMD_CHAT_TO);
+			chatCmd.setChatMsg(message.chatMsg);
+			chatCmd.setUserName(message.sender);
+			ByteBuffer frame = SharedFrame.encode(chatCmd, clientSocket.isBinary());
+			if(!queue.offerIfRoom(frame)) {
+				//一条就超过高水位的大消息只在队列空的时候单独发送，超过上限时send丢弃它，同样算作已发
+				if(sent > 0 || queue.size() > 0) {
+					break;
+				}
+				clientSocket.send(frame);
+			}
+			++sent;
+		}
+		
+		//这一批都没放下时也放标记，等前面的帧写出后重试
+		int count = sent;
+		if(!queue.offerMarker(() -> onOfflineWritten(clientSocket, userName, count))) {
+			offlineStore.ack(userName, clientSocket, 0);
+		}
+	}
+	
+	/**
+	 * 一批离线消息已写出，标记为已送达后发送下一批，在写出的线程上调用
+	 * @param clientSocket
+	 * @param userName
+	 * @param count
+	 */
+	private void onOfflineWritten(ChatClientSocket clientSocket, String userName, int count) {
+		int delivered = offlineStore.ack(userName, clientSocket, count);
+		if(delivered > 0) {
+			metrics.offlineDelivered(delivered);
+			printClientInfoLog(clientSocket.getRemoteAddress(), "发送离线消息" + delivered + "条。");
+		}
+		deliverOfflineMessages(clientSocket, userName);
+	}
+	
+	/**
+	 * 返回登录成功和在线用户名单
+	 * 增量时只发客户端上次之后的变化；全量名单太大时分成多帧，最后一帧带上版本
+	 * @param clientSocket
+	 * @param sync
+	 * @param binaryVersion
+	 */
+	private void writeLoginResult(ChatClientSocket clientSocket, Roster.RosterSync sync, int binaryVersion) {
+		ChatCmd loginCmd = new ChatCmd(MsgConst.CMD_LOGIN);
+		loginCmd.setBinaryVersion(binaryVersion);
+		if(clientSocket.isCompression()) {
+			loginCmd.setCompression(MsgConst.COMPRESSION_DEFLATE);
+		}
+		
+		List<String> snapshot = sync.snapshot;
+		int chunkEnd = snapshot == null ? 0 : snapshot.size();
+		if(snapshot == null) {
+			loginCmd.setLoginUserList(sync.loginUsers);
+			loginCmd.setLogoutUserList(sync.logoutUsers);
+			loginCmd.setRosterVersion(sync.version);
+		}else if(clientSocket.getClientVersion() < MsgConst.CLIENT_VERSION_ROSTER_DELTA) {
+			loginCmd.setUserNameList(snapshot);
+		}else {
+			chunkEnd = Math.min(snapshot.size(), ROSTER_CHUNK_SIZE);
+			loginCmd.setUserNameList(snapshot.subList(0, chunkEnd));
+			if(chunkEnd == snapshot.size()) {
+				loginCmd.setRosterVersion(sync.version);
+			}
+		}
+		writeMsg(clientSocket, loginCmd);
+		if(binaryVersion > 0) {
+			clientSocket.setBinary(true);
+		}
+		
+		//剩下的分段
+		while(snapshot != null && chunkEnd < snapshot.size()) {
+			int chunkStart = chunkEnd;
+			chunkEnd = Math.min(snapshot.size(), chunkStart + ROSTER_CHUNK_SIZE);
+			ChatCmd rosterCmd = new ChatCmd(MsgConst.CMD_ROSTER);
+			rosterCmd.setUserNameList(snapshot.subList(chunkStart, chunkEnd));
+			if(chunkEnd == snapshot.size()) {
+				rosterCmd.setRosterVersion(sync.version);
+			}
+			writeMsg(clientSocket, rosterCmd);
+		}
+	}
+	
+	/**
+	 * 返回登录失败
+	 * @param clientSocket
+	 * @param errMsg
+	 */
+	private void writeLoginErr(ChatClientSocket clientSocket, String errMsg) {
+		ChatCmd loginCmd = new ChatCmd(MsgConst.CMD_LOGIN);
+		loginCmd.setErrMsg(errMsg);
+		writeMsg(clientSocket, loginCmd);
+	}
+	
+	/**
+	 * 释放用户名和会话，通知其他用户下线
+	 * @param clientSocket
+	 */
+	private void removeOnlineUser(ChatClientSocket clientSocket) {
+		//会话id释放后可能分给别人，先退出房间
+		rooms.leaveAll(clientSocket);
+		String userName = sessions.release(clientSocket);
+		if(userName != null) {
+			roster.leave(userName);
+			if(cluster != null) {
+				cluster.publish(userName, false);
+			}
+		}
+	}
+	
+	/**
+	 * 本节点的在线用户名
+	 * @return
+	 */
+	List<String> getLocalUserNames() {
+		List<String> userNames = new ArrayList<>(sessions.size());
+		sessions.forEach(clientSocket -> userNames.add(clientSocket.getUserName()));
+		return userNames;
+	}
+	
+	/**
+	 * 按名字取本节点的会话，包括正在登录的
+	 * @param userName
+	 * @return
+	 */
+	ChatClientSocket findClaimedSession(String userName) {
+		return sessions.claimed(userName);
+	}
+	
+	/**
+	 * 同名用户在id更小的节点上登录，让本节点的用户下线，连接保留，可以换名字重新登录
+	 * @param clientSocket
+	 */
+	void evictLocalUser(ChatClientSocket clientSocket) {
+		removeOnlineUser(clientSocket);
+		writeLoginErr(clientSocket, "该用户名已在其他节点登录！");
+		printClientInfoLog(clientSocket.getRemoteAddress(), "同名用户在其他节点登录，已下线。");
+	}
+	
+	/**
+	 * 其他节点的用户上线
+	 * @param userName
+	 */
+	void remoteJoin(String userName) {
+		roster.join(userName);
+	}
+	
+	/**
+	 * 其他节点的用户下线
+	 * @param userName
+	 */
+	void remoteLeave(String userName) {
+		roster.leave(userName);
+	}
+	
+	/**
+	 * 其他节点转发来的聊天，目标已不在本节点时作为离线消息保存
+	 * @param srcUser
+	 * @param tarUser
+	 * @param chatMsg
+	 */
+	void deliverChat(String srcUser, String tarUser, String chatMsg) {
+		recordHistory(srcUser, tarUser, chatMsg, null);
+		ChatClientSocket tarSocket = sessions.find(tarUser);
+		if(tarSocket == null) {
+			storeOfflineMessage(tarUser, srcUser, chatMsg);
+			return;
+		}
+		
+		ChatCmd chatCmd = new ChatCmd(MsgConst.CMD_CHAT_TO);
+		chatCmd.setChatMsg(chatMsg);
+		chatCmd.setUserName(srcUser);
+		writeMsg(tarSocket, chatCmd);
+	}
+	
+	/**
+	 * 名单变化，在名单的锁内按版本顺序调用，只排进队列，由通知线程在锁外发送
+	 * @param userName
+	 * @param isLogin
+	 * @param version
+	 */
+	private void onRosterChange(String userName, boolean isLogin, long version) {
+		if(presenceBatcher == null) {
+			//通知所有用户有人上下线了，单线程保持版本顺序
+			String status = isLogin ? MsgConst.USER_STATUS_LOGIN : MsgConst.USER_STATUS_LOGOUT;
+			try {
+				presenceNotifier.execute(() -> notifyRefreshUserOnlineList(userName, status, version));
+			}catch (RejectedExecutionException e) {
+				//服务器已停止
+			}
+			return;
+		}
+		
+		//窗口结束时统一通知，新用户自己也会收到，由客户端忽略
+		presenceBatcher.add(userName, isLogin, version);
+	}
+	
+	/**
+	 * 通知所有客户端更新在线用户列表，不通知上线的用户自己
+	 * @param userName
+	 * @param status
+	 * @param version 名单版本
+	 */
+	private void notifyRefreshUserOnlineList(String userName, String status, long version) {
+		//每种格式只编码一次，所有客户端共用同一份数据
+		ChatCmd refreshCmd = buildUserStatusCmd(userName, status);
+		refreshCmd.setRosterVersion(roster.formatVersion(version));
+		SharedFrame frame = new SharedFrame(refreshCmd);
+		sessions.forEach(clientSocket -> {
+			if(userName.equals(clientSocket.getUserName())) {
+				return;
+			}
+			
+			try {
+				writePresence(clientSocket, version, version, () -> writeFrame(clientSocket, frame));
+			}catch (Exception e) {
+			}
+		});
+	}
+	
+	/**
+	 * 批量通知所有客户端更新在线用户列表
+	 * 支持批量的客户端收到一帧，老客户端逐个事件收到
+	 * @param loginUsers
+	 * @param logoutUsers
+	 * @param fromVersion 合并的第一个版本
+	 * @param version 名单版本
+	 */
+	private void notifyRefreshUserOnlineList(List<String> loginUsers, List<String> logoutUsers, long fromVersion, long version) {
+		ChatCmd batchCmd = new ChatCmd(MsgConst.CMD_UPDATE_ONLINE_USER_LIST);
+		batchCmd.setLoginUserList(loginUsers);
+		batchCmd.setLogoutUserList(logoutUsers);
+		batchCmd.setRosterVersion(roster.formatVersion(version));
+		SharedFrame batchFrame = new SharedFrame(batchCmd);
+		
+		//老客户端用的单个事件帧，有老客户端时才编码
+		SharedFrame[] loginFrames = new SharedFrame[loginUsers.size()];
+		SharedFrame[] logoutFrames = new SharedFrame[logoutUsers.size()];
+		
+		sessions.forEach(clientSocket -> {
+			try {
+				writePresence(clientSocket, fromVersion, version, () -> {
+					if(clientSocket.getClientVersion() >= MsgConst.CLIENT_VERSION_PRESENCE_BATCH) {
+						writeFrame(clientSocket, batchFrame);
+						return;
+					}
+					
+					writeUserStatusFrames(clientSocket, loginUsers, MsgConst.USER_STATUS_LOGIN, loginFrames);
+					writeUserStatusFrames(clientSocket, logoutUsers, MsgConst.USER_STATUS_LOGOUT, logoutFrames);
+				});
+			}catch (Exception e) {
+			}
+		});
+	}
+	
+	/**
+	 * 在客户端的上下线状态锁内发送一次通知
+	 * 已经补发过的版本跳过；发送队列拥塞时不发，记下后等拥塞解除按名单版本补发，
+	 * 补发之前的通知也都跳过，客户端收到的版本始终是连续的
+	 * @param clientSocket
+	 * @param fromVersion 通知包含的第一个版本
+	 * @param version 通知包含的最后一个版本
+	 * @param writer
+	 */
+	private void writePresence(ChatClientSocket clientSocket, long fromVersion, long version, Runnable writer) {
+		boolean resync = false;
+		synchronized(clientSocket.getPresenceLock()) {
+			long sentVersion = clientSocket.getPresenceVersion();
+			if(version <= sentVersion) {
+				return;
+			}
+			
+			if(clientSocket.isPresenceStale() || clientSocket.getOutboundQueue().isCongested()) {
+				clientSocket.setPresenceStale(true);
+				metrics.presenceSkipped();
+				return;
+			}
+			
+			if(fromVersion <= sentVersion) {
+				//合并的通知有一部分已经发过，改为补发之后的变化
+				clientSocket.setPresenceStale(true);
+				resync = true;
+			}else {
+				writer.run();
+				clientSocket.setPresenceVersion(version);
+			}
+		}
+		
+		if(resync) {
+			resyncPresence(clientSocket);
+		}
+	}
+	
+	/**
+	 * 补发拥塞期间跳过的上下线通知，只发名单从上次发出的版本到现在的变化
+	 * 变化已经不在名单日志里时断开连接，客户端重新登录时拿全量名单
+	 * 先取名单的锁再取客户端的锁，与名单变化时的顺序一致
+	 * @param clientSocket
+	 */
+	private void resyncPresence(ChatClientSocket clientSocket) {
+		resyncPresence(clientSocket, true);
+	}
+	
+	/**
+	 * 补发上下线通知
+	 * @param clientSocket
+	 * @param skipped 是否是补发拥塞时跳过的通知，登录后接着名单补发时不计入统计
+	 */
+	private void resyncPresence(ChatClientSocket clientSocket, boolean skipped) {
+		long knownVersion;
+		synchronized(clientSocket.getPresenceLock()) {
+			if(!clientSocket.isPresenceStale()) {
+				return;
+			}
+			knownVersion = clientSocket.getPresenceVersion();
+		}
+		
+		roster.resync(knownVersion, sync -> {
+			synchronized(clientSocket.getPresenceLock()) {
+				//期间重新登录过或者已经补发过
+				if(!clientSocket.isPresenceStale() || clientSocket.getPresenceVersion() != knownVersion
+						|| clientSocket.getOutboundQueue().isCongested()) {
+					return;
+				}
+				
+				if(sync.snapshot != null) {
+					printClientInfoLog(clientSocket.getRemoteAddress(), "跳过的上下线通知太多，断开连接。");
+					clientSocket.disconnect();
+					return;
+				}
+				
+				writeRosterDelta(clientSocket, sync);
+				clientSocket.setPresenceVersion(sync.rawVersion);
+				clientSocket.setPresenceStale(false);
+				if(skipped) {
+					metrics.presenceResynced();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * 发送名单的增量，支持批量的客户端一帧，老客户端逐个事件
+	 * @param clientSocket
+	 * @param sync
+	 */
+	private void writeRosterDelta(ChatClientSocket clientSocket, Roster.RosterSync sync) {
+		if(sync.loginUsers.isEmpty() && sync.logoutUsers.isEmpty()) {
+			return;
+		}
+		
+		if(clientSocket.getClientVersion() >= MsgConst.CLIENT_VERSION_PRESENCE_BATCH) {
+			ChatCmd batchCmd = new ChatCmd(MsgConst.CMD_UPDATE_ONLINE_USER_LIST);
+			batchCmd.setLoginUserList(sync.loginUsers);
+			batchCmd.setLogoutUserList(sync.logoutUsers);
+			batchCmd.setRosterVersion(sync.version);
+			writeMsg(clientSocket, batchCmd);
+			return;
+		}
+		
+		writeUserStatusFrames(clientSocket, sync.loginUsers, MsgConst.USER_STATUS_LOGIN, new SharedFrame[sync.loginUsers.size()]);
+		writeUserStatusFrames(clientSocket, sync.logoutUsers, MsgConst.USER_STATUS_LOGOUT, new SharedFrame[sync.logoutUsers.size()]);
+	}
+	
+	/**
+	 * 给老客户端逐个发送用户状态，不发它自己的
+	 * @param clientSocket
+	 * @param userNames
+	 * @param status
+	 * @param frames 已编码的帧，按需填充
+	 */
+	private void writeUserStatusFrames(ChatClientSocket clientSocket, List<String> userNames, String status, SharedFrame[] frames) {
+		for(int i = 0; i < frames.length; ++i) {
+			String userName = userNames.get(i);
+			if(userName.equals(clientSocket.getUserName())) {
+				continue;
+			}
+			
+			if(frames[i] == null) {
+				frames[i] = new SharedFrame(buildUserStatusCmd(userName, status));
+			}
+			writeFrame(clientSocket, frames[i]);
+		}
+	}
+	
+	/**
+	 * 通知单个客户端有用户下线，只是提示，发送队列拥塞时直接丢弃
+	 * @param tarUser
+	 * @param userStatusLogout
+	 * @param clientSocket
+	 */
+	private void notifyRefreshUserOnlineList(String userName, String status, ChatClientSocket clientSocket) {
+		try {
+			ByteBuffer frame = SharedFrame.encode(buildUserStatusCmd(userName, status), clientSocket.isBinary());
+			if(!clientSocket.getOutboundQueue().offerLowPriority(frame)) {
+				metrics.presenceSkipped();
+			}
+		} catch (Exception e) {
+		}
+	}
+	
+	private ChatCmd buildUserStatusCmd(String userName, String status) {
+		ChatCmd refreshCmd = new ChatCmd(MsgConst.CMD_UPDATE_ONLINE_USER_LIST);
+		refreshCmd.setUserName(userName);
+		refreshCmd.setUserStatus(status);
+		return refreshCmd;
+	}
+	
+	
+	/**
+	 * 发送消息，只是放入目标的发送队列，不会阻塞当前线程
+	 * @param clientSocket
+	 * @param cmd
+	 */
+	private void writeMsg(ChatClientSocket clientSocket, ChatCmd cmd) {
+		writeFrame(clientSocket, SharedFrame.encode(cmd, clientSocket.isBinary()));
+	}
+	
+	/**
+	 * 发送共享的帧，按客户端的协议取对应格式
+	 * @param clientSocket
+	 * @param frame
+	 */
+	private void writeFrame(ChatClientSocket clientSocket, SharedFrame frame) {
+		writeFrame(clientSocket, frame.get(clientSocket.isBinary()));
+	}
+	
+	/**
+	 * 发送已编码的帧，每个接收方拿到的是共享数据的独立视图
+	 * @param clientSocket
+	 * @param frame
+	 */
+	private void writeFrame(ChatClientSocket clientSocket, ByteBuffer frame) {
+		if(!clientSocket.send(frame.duplicate()) && !clientSocket.getOutboundQueue().isClosed()) {
+			metrics.frameDropped();
+			printClientInfoLog(clientSocket.getRemoteAddress(), "发送队列已满，丢弃消息。");
+		}
+	}
+	
+	ServerMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * 打印客户端的日志，异步输出，不阻塞当前线程
+	 * @param address
+	 * @param msg
+	 */
+	private void printClientInfoLog(SocketAddress address, String msg) {
+		AsyncLogger.info(address, msg);
+	}
+	
+	
+	/**
+	 * 启动参数: [模式 bio|virtual|nio] [事件循环线程数]
+	 * 端口由系统属性chat.port指定，默认9999，同一台机器上启动多个集群节点时各用不同的端口
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		ServerMode mode = args.length > 0 ? ServerMode.fromName(args[0]) : ServerMode.BIO;
+		int ioThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		//默认绑定到9999端口
+		ChatServer server = new ChatServer(Integer.getInteger("chat.port", 9999), mode, ioThreads);
+		//启动服务器
+		server.start();
+	}
+}
@@ -0,0 +1,547 @@
+package server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import base.AsyncLogger;
+import base.ChatCmd;
+import base.FrameReader;
+import base.MsgConst;
+
+/**
+ * 集群节点
+ * 每个节点只持有自己的连接，其他节点的在线用户记在目录里；节点两两之间用TCP连接传二进制帧，
+ * 连上时先发本节点的全部在线用户，之后发上下线事件，发往其他节点用户的聊天直接转发给所在节点，只经过一跳
+ * 同一个用户名同时在两个节点登录时，节点id小的保留，另一个节点让自己的用户下线
+ *
+ * 只在配置的地址上接收连接，连上后先用共享密钥双向握手：接收方发随机数，连接方回复节点id、自己的随机数和
+ * HMAC(密钥, 对方随机数+节点id)，接收方校验后回复对连接方随机数的HMAC。
+ * 节点id不在配置的节点列表中、来源地址与列表不符或校验失败的连接直接关闭，之后的帧只认握手时的节点id
+ */
+class ClusterNode {
+	
+	/**
+	 * 到每个节点的发送队列最大帧数
+	 */
+	private static final int LINK_QUEUE_CAPACITY = 64 * 1024;
+	
+	/**
+	 * 连接其他节点失败后的重试间隔
+	 */
+	private static final long RECONNECT_MS = 1000;
+	
+	/**
+	 * 用户名锁的分段数
+	 */
+	private static final int NAME_LOCK_STRIPES = 64;
+	
+	/**
+	 * 握手的超时，握手完成前不会一直占着线程
+	 */
+	private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+	
+	private static final int NONCE_SIZE = 16;
+	
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+	
+	private static final int HMAC_SIZE = 32;
+	
+	private final ChatServer server;
+	
+	private final int nodeId;
+	
+	/**
+	 * 接收其他节点连接的地址和端口
+	 */
+	private final String bindHost;
+	private final int port;
+	
+	/**
+	 * 握手用的共享密钥
+	 */
+	private final byte[] secret;
+	
+	private final SecureRandom random = new SecureRandom();
+	
+	/**
+	 * 其他节点的地址
+	 */
+	private final Map<Integer, InetSocketAddress> peers;
+	
+	/**
+	 * 其他节点上的在线用户，用户名到节点id
+	 */
+	private final ConcurrentHashMap<String, Integer> remoteUsers = new ConcurrentHashMap<>();
+	
+	/**
+	 * 到其他节点的发送队列，连上后才有
+	 */
+	private final ConcurrentHashMap<Integer, OutboundQueue> links = new ConcurrentHashMap<>();
+	
+	/**
+	 * 其他节点连过来的当前连接，节点重连后旧连接断开时不清理新同步的用户
+	 */
+	private final ConcurrentHashMap<Integer, Socket> inbound = new ConcurrentHashMap<>();
+	
+	/**
+	 * 同一用户名的本节点登录和其他节点上线互斥，按名字分段，不同名字不互相等待
+	 */
+	private final Lock[] nameLocks = new Lock[NAME_LOCK_STRIPES];
+	
+	/**
+	 * 发送全部在线用户和发送上下线事件互斥，对方先收到名单再收到之后的变化
+	 */
+	private final Object publishLock = new Object();
+	
+	private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "cluster-link");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	private ServerSocket serverSocket;
+	
+	private volatile boolean run = true;
+	
+	/**
+	 * @param server
+	 * @param nodeId 本节点id
+	 * @param bindHost 接收其他节点连接的地址，为空时用节点列表中本节点的地址，没有时用本机回环地址
+	 * @param port 接收其他节点连接的端口
+	 * @param peers 所有节点，格式为id@host:port，逗号分隔，可以包括本节点
+	 * @param secret 共享密钥
+	 */
+	ClusterNode(ChatServer server, int nodeId, String bindHost, int port, String peers, String secret) {
+		this.server = server;
+		this.nodeId = nodeId;
+		this.port = port;
+		this.secret = secret.getBytes(StandardCharsets.UTF_8);
+		Map<Integer, InetSocketAddress> all = parsePeers(peers);
+		InetSocketAddress self = all.remove(nodeId);
+		this.peers = all;
+		if(!bindHost.isEmpty()) {
+			this.bindHost = bindHost;
+		}else {
+			this.bindHost = self != null ? self.getHostString() : InetAddress.getLoopbackAddress().getHostAddress();
+		}
+		for(int i = 0; i < nameLocks.length; ++i) {
+			nameLocks[i] = new ReentrantLock();
+		}
+	}
+	
+	private static Map<Integer, InetSocketAddress> parsePeers(String peers) {
+		Map<Integer, InetSocketAddress> result = new LinkedHashMap<>();
+		for(String peer : peers.split(",")) {
+			peer = peer.trim();
+			if(peer.isEmpty()) {
+				continue;
+			}
+			
+			int at = peer.indexOf('@');
+			int colon = peer.lastIndexOf(':');
+			if(at <= 0 || colon < at) {
+				throw new IllegalArgumentException("集群节点格式错误: " + peer);
+			}
+			
+			int id = Integer.parseInt(peer.substring(0, at));
+			result.put(id, new InetSocketAddress(peer.substring(at + 1, colon), Integer.parseInt(peer.substring(colon + 1))));
+		}
+		return result;
+	}
+	
+	void start() throws IOException {
+		if(secret.length == 0) {
+			throw new IOException("组成集群需要配置共享密钥chat.clusterSecret");
+		}
+		
+		serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(bindHost, port));
+		executor.execute(this::acceptPeers);
+		for(Map.Entry<Integer, InetSocketAddress> peer : peers.entrySet()) {
+			executor.execute(() -> connectPeer(peer.getKey(), peer.getValue()));
+		}
+		AsyncLogger.info("集群节点" + nodeId + "启动，地址" + serverSocket.getLocalSocketAddress() + "，其他节点" + peers.keySet() + "。");
+	}
+	
+	void stop() {
+		run = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+		}
+		for(Socket socket : inbound.values()) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+		executor.shutdownNow();
+	}
+	
+	/**
+	 * 用户名对应的锁，本节点登录时在锁内检查目录并占用用户名
+	 * @param userName
+	 * @return
+	 */
+	Lock nameLock(String userName) {
+		return nameLocks[(userName.hashCode() & 0x7fffffff) % NAME_LOCK_STRIPES];
+	}
+	
+	/**
+	 * 用户是否在其他节点上线
+	 * @param userName
+	 * @return
+	 */
+	boolean isRemoteUser(String userName) {
+		return remoteUsers.containsKey(userName);
+	}
+	
+	/**
+	 * 把聊天转发给目标用户所在的节点
+	 * @param srcUser
+	 * @param tarUser
+	 * @param chatMsg
+	 * @return 目标不在其他节点上或到该节点的连接不通时返回false
+	 */
+	boolean forwardChat(String srcUser, String tarUser, String chatMsg) {
+		Integer tarNode = remoteUsers.get(tarUser);
+		OutboundQueue link = tarNode == null ? null : links.get(tarNode);
+		if(link == null) {
+			return false;
+		}
+		
+		ChatCmd chatCmd = new ChatCmd(MsgConst.CMD_CHAT_TO);
+		chatCmd.setUserName(srcUser);
+		chatCmd.setTargetUserName(tarUser);
+		chatCmd.setChatMsg(chatMsg);
+		return send(link, SharedFrame.encode(chatCmd, true));
+	}
+	
+	/**
+	 * 通知其他节点本节点有用户上下线
+	 * @param userName
+	 * @param isLogin
+	 */
+	void publish(String userName, boolean isLogin) {
+		synchronized (publishLock) {
+			if(links.isEmpty()) {
+				return;
+			}
+			
+			ChatCmd statusCmd = new ChatCmd(MsgConst.CMD_UPDATE_ONLINE_USER_LIST);
+			statusCmd.setUserName(userName);
+			statusCmd.setUserStatus(isLogin ? MsgConst.USER_STATUS_LOGIN : MsgConst.USER_STATUS_LOGOUT);
+			SharedFrame frame = new SharedFrame(statusCmd);
+			for(OutboundQueue link : links.values()) {
+				send(link, frame.get(true).duplicate());
+			}
+		}
+	}
+	
+	private boolean send(OutboundQueue link, ByteBuffer frame) {
+		if(link.offer(frame)) {
+			return true;
+		}
+		
+		if(!link.isClosed()) {
+			server.getMetrics().frameDropped();
+			AsyncLogger.warn("到集群节点的发送队列已满，丢弃消息。");
+		}
+		return false;
+	}
+	
+	/**
+	 * 连接其他节点，只用来发送，断开后定时重连
+	 * @param peerId
+	 * @param address
+	 */
+	private void connectPeer(int peerId, InetSocketAddress address) {
+		while(run) {
+			OutboundQueue link = null;
+			try(Socket socket = new Socket()) {
+				socket.connect(address, (int) RECONNECT_MS);
+				socket.setTcpNoDelay(true);
+				if(!authenticateToPeer(socket)) {
+					AsyncLogger.warn("集群节点" + peerId + "(" + address + ")握手失败。");
+					throw new IOException("握手失败");
+				}
+				
+				link = new OutboundQueue(LINK_QUEUE_CAPACITY, server.getMetrics());
+				BlockingWriter writer = new BlockingWriter(link, socket.getOutputStream(), executor);
+				link.setFlushTrigger(writer::schedule);
+				
+				ChatCmd syncCmd = new ChatCmd(MsgConst.CMD_NODE_SYNC);
+				syncCmd.setUserName(String.valueOf(nodeId));
+				synchronized (publishLock) {
+					syncCmd.setUserNameList(server.getLocalUserNames());
+					link.offer(SharedFrame.encode(syncCmd, true));
+					links.put(peerId, link);
+				}
+				AsyncLogger.info(address, "连接集群节点" + peerId + "成功。");
+				
+				//对方不在这个连接上发数据，读到结束说明已断开
+				InputStream in = socket.getInputStream();
+				while(in.read() >= 0) {
+				}
+			}catch (IOException e) {
+			}finally {
+				if(link != null) {
+					links.remove(peerId, link);
+					link.close();
+					AsyncLogger.warn("与集群节点" + peerId + "(" + address + ")的连接断开。");
+				}
+			}
+			
+			try {
+				Thread.sleep(RECONNECT_MS);
+			}catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * 接收其他节点的连接
+	 */
+	private void acceptPeers() {
+		while(run) {
+			try {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				executor.execute(() -> readPeer(socket));
+			}catch (IOException e) {
+				if(run) {
+					AsyncLogger.error("接收集群节点连接失败。", e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * 读取其他节点发来的帧，握手通过后第一帧是该节点的全部在线用户
+	 * @param socket
+	 */
+	private void readPeer(Socket socket) {
+		int peerId = 0;
+		try(InputStream in = socket.getInputStream()) {
+			int authenticatedId = authenticatePeer(socket);
+			if(authenticatedId <= 0) {
+				AsyncLogger.warn(socket.getRemoteSocketAddress() + " 集群节点握手失败，断开连接。");
+				return;
+			}
+			
+			FrameReader reader = new FrameReader(in);
+			reader.setBinary(true);
+			ChatCmd cmd = new ChatCmd();
+			while(run && reader.read(cmd)) {
+				if(MsgConst.CMD_NODE_SYNC.equals(cmd.getCmd())) {
+					if(!String.valueOf(authenticatedId).equals(cmd.getUserName())) {
+						AsyncLogger.warn(socket.getRemoteSocketAddress() + " 集群节点" + authenticatedId + "冒充其他节点，断开连接。");
+						return;
+					}
+					peerId = authenticatedId;
+					inbound.put(peerId, socket);
+					onSync(peerId, cmd.getUserNameList());
+				}else if(peerId > 0) {
+					dealWithPeerCmd(peerId, cmd);
+				}
+			}
+		}catch (Exception e) {
+			if(run) {
+				AsyncLogger.error(socket.getRemoteSocketAddress(), "集群节点连接异常。", e);
+			}
+		}finally {
+			if(peerId > 0 && inbound.remove(peerId, socket)) {
+				//节点断开，它上面的用户都视为下线
+				onSync(peerId, new ArrayList<>());
+			}
+		}
+	}
+	
+	/**
+	 * 接收方的握手：发随机数，校验对方的节点id、来源地址和HMAC，通过后回复对对方随机数的HMAC
+	 * @param socket
+	 * @return 对方的节点id，不通过时返回0
+	 * @throws IOException
+	 */
+	private int authenticatePeer(Socket socket) throws IOException {
+		socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		byte[] nonce = newNonce();
+		out.write(nonce);
+		out.flush();
+		
+		int peerId = in.readInt();
+		byte[] peerNonce = new byte[NONCE_SIZE];
+		in.readFully(peerNonce);
+		byte[] proof = new byte[HMAC_SIZE];
+		in.readFully(proof);
+		
+		InetSocketAddress configured = peers.get(peerId);
+		if(configured == null || !MessageDigest.isEqual(proof, hmac('C', nonce, peerId))) {
+			return 0;
+		}
+		//配置的地址能解析时，来源地址必须一致
+		if(configured.getAddress() != null && !configured.getAddress().equals(socket.getInetAddress())) {
+			return 0;
+		}
+		
+		out.write(hmac('A', peerNonce, peerId));
+		out.flush();
+		socket.setSoTimeout(0);
+		return peerId;
+	}
+	
+	/**
+	 * 连接方的握手：收到对方的随机数后发送本节点id、自己的随机数和HMAC，再校验对方的回复
+	 * @param socket
+	 * @return 对方持有同一密钥时返回true
+	 * @throws IOException
+	 */
+	private boolean authenticateToPeer(Socket socket) throws IOException {
+		socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		byte[] peerNonce = new byte[NONCE_SIZE];
+		in.readFully(peerNonce);
+		
+		byte[] nonce = newNonce();
+		out.writeInt(nodeId);
+		out.write(nonce);
+		out.write(hmac('C', peerNonce, nodeId));
+		out.flush();
+		
+		byte[] proof = new byte[HMAC_SIZE];
+		in.readFully(proof);
+		socket.setSoTimeout(0);
+		return MessageDigest.isEqual(proof, hmac('A', nonce, nodeId));
+	}
+	
+	private byte[] newNonce() {
+		byte[] nonce = new byte[NONCE_SIZE];
+		random.nextBytes(nonce);
+		return nonce;
+	}
+	
+	/**
+	 * HMAC(密钥, 方向+随机数+连接方节点id)，方向区分两边的证明，不能把对方的回复原样发回去
+	 * @param direction
+	 * @param nonce
+	 * @param connectorId
+	 * @return
+	 */
+	private byte[] hmac(char direction, byte[] nonce, int connectorId) {
+		try {
+			Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+			mac.init(new SecretKeySpec(secret, HMAC_ALGORITHM));
+			mac.update((byte) direction);
+			mac.update(nonce);
+			mac.update(ByteBuffer.allocate(4).putInt(0, connectorId));
+			return mac.doFinal();
+		}catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private void dealWithPeerCmd(int peerId, ChatCmd cmd) {
+		switch (cmd.getCmd()) {
+		case MsgConst.CMD_UPDATE_ONLINE_USER_LIST:
+			if(MsgConst.USER_STATUS_LOGIN.equals(cmd.getUserStatus())) {
+				onRemoteLogin(peerId, cmd.getUserName());
+			}else {
+				onRemoteLogout(peerId, cmd.getUserName());
+			}
+			break;
+		case MsgConst.CMD_CHAT_TO:
+			server.deliverChat(cmd.getUserName(), cmd.getTargetUserName(), cmd.getChatMsg());
+			break;
+		default:
+			break;
+		}
+	}
+	
+	/**
+	 * 收到节点的全部在线用户，不在其中的视为下线
+	 * @param peerId
+	 * @param userNames
+	 */
+	private void onSync(int peerId, List<String> userNames) {
+		Set<String> current = new HashSet<>(userNames);
+		for(Map.Entry<String, Integer> entry : remoteUsers.entrySet()) {
+			if(entry.getValue() == peerId && !current.contains(entry.getKey())) {
+				onRemoteLogout(peerId, entry.getKey());
+			}
+		}
+		for(String userName : userNames) {
+			onRemoteLogin(peerId, userName);
+		}
+	}
+	
+	private void onRemoteLogin(int peerId, String userName) {
+		Lock lock = nameLock(userName);
+		lock.lock();
+		try {
+			Integer holder = remoteUsers.get(userName);
+			if(holder != null && holder <= peerId) {
+				//已经记录或者在id更小的节点上
+				return;
+			}
+			
+			if(holder == null) {
+				ChatClientSocket local = server.findClaimedSession(userName);
+				if(local != null) {
+					if(nodeId < peerId) {
+						//本节点保留，对方收到本节点的上线后会让它的用户下线
+						return;
+					}
+					server.evictLocalUser(local);
+				}
+			}
+			
+			remoteUsers.put(userName, peerId);
+			if(holder == null) {
+				server.remoteJoin(userName);
+			}
+		}finally {
+			lock.unlock();
+		}
+	}
+	
+	private void onRemoteLogout(int peerId, String userName) {
+		Lock lock = nameLock(userName);
+		lock.lock();
+		try {
+			if(remoteUsers.remove(userName, peerId)) {
+				server.remoteLeave(userName);
+			}
+		}finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,757 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import base.AsyncLogger;
+
+/**
+ * 服务端保存的聊天记录
+ * 每个会话(两个用户，按名字排序)一个数据文件和一个索引文件，索引每条16字节(数据位置、时间)，
+ * 按序号直接算出位置，一页只需读一段连续的索引和数据，与记录总长度无关；按时间定位时在索引上二分查找
+ * 最近访问的会话缓存在内存中，保留最新的若干条。新消息只放进队列，由写线程加到会话里，定时批量写入文件，
+ * 转发聊天的线程不碰文件也不等锁；打开和关闭会话文件都不在缓存的锁内
+ * 会话只由写线程创建、放进缓存和关闭，查询不在缓存中的会话时只读地打开文件，文件不存在时为空，
+ * 不创建文件、不占缓存，也不会在查询的线程上关闭被挤出的会话
+ *
+ * 数据记录: 长度(int) 序号(int) 时间(long) 发送人 内容，字符串为长度(int)+UTF-8；
+ * 客户端压缩发来的内容按原样保存压缩的数据，长度写成-1-长度，查询时才解压
+ */
+class HistoryStore {
+	
+	private static final int INDEX_ENTRY_SIZE = 16;
+	
+	private static final int RECORD_HEADER_SIZE = 16;
+	
+	/**
+	 * 每个会话在内存中保留的最新消息数，也是未写入文件的消息数上限
+	 */
+	private static final int RECENT_SIZE = 128;
+	
+	/**
+	 * 每页最多条数
+	 */
+	static final int MAX_PAGE_SIZE = 200;
+	
+	/**
+	 * 等待写线程处理的消息数上限，满时丢弃新消息，不阻塞转发聊天的线程
+	 */
+	private static final int QUEUE_CAPACITY = 64 * 1024;
+	
+	private final File dir;
+	
+	/**
+	 * 缓存的会话数
+	 */
+	private final int cacheSize;
+	
+	/**
+	 * 写入文件的间隔(毫秒)
+	 */
+	private final long flushMs;
+	
+	/**
+	 * 最近访问的会话，按访问顺序，超过cacheSize时写入并关闭最久没访问的
+	 */
+	private final LinkedHashMap<String, Conversation> cache = new LinkedHashMap<>(16, 0.75f, true);
+	
+	/**
+	 * 移出缓存、还没关闭的会话，同一会话重新打开前要等它写完
+	 */
+	private final Map<String, Conversation> closing = new HashMap<>();
+	
+	/**
+	 * 等待写线程处理的新消息
+	 */
+	private final BlockingQueue<PendingMessage> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	
+	/**
+	 * 队列满时丢弃的消息数，写线程定时记录日志后清零
+	 */
+	private final AtomicLong dropped = new AtomicLong();
+	
+	private Thread writer;
+	
+	private volatile boolean run;
+	
+	HistoryStore(File dir, int cacheSize, long flushMs) {
+		this.dir = dir;
+		this.cacheSize = cacheSize;
+		this.flushMs = flushMs;
+	}
+	
+	void open() throws IOException {
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("无法创建目录: " + dir);
+		}
+		
+		run = true;
+		writer = new Thread(this::runWriter, "history-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	/**
+	 * 关闭，等写线程处理完队列，写入并刷盘所有缓存的会话
+	 */
+	void close() {
+		run = false;
+		if(writer != null) {
+			try {
+				writer.join();
+			}catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		List<Conversation> conversations;
+		synchronized (cache) {
+			conversations = new ArrayList<>(cache.values());
+			cache.clear();
+		}
+		for(Conversation conversation : conversations) {
+			synchronized (conversation) {
+				conversation.close();
+			}
+		}
+	}
+	
+	/**
+	 * 记录一条消息，只放进队列，由写线程保存
+	 * 刚记录的消息要等写线程处理后才能查到
+	 * @param sender
+	 * @param receiver
+	 * @param chatMsg
+	 * @param compressedMsg 压缩的内容，不为空时只保存它
+	 */
+	void append(String sender, String receiver, String chatMsg, byte[] compressedMsg) {
+		HistoryMessage message = new HistoryMessage();
+		message.sender = sender;
+		if(compressedMsg != null) {
+			message.compressedMsg = compressedMsg;
+		}else {
+			message.chatMsg = chatMsg == null ? "" : chatMsg;
+		}
+		message.time = System.currentTimeMillis();
+		if(!queue.offer(new PendingMessage(receiver, message))) {
+			dropped.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * 写线程：把队列中的消息加到会话里，定时写入文件；关闭时处理完队列再退出
+	 */
+	private void runWriter() {
+		List<PendingMessage> batch = new ArrayList<>();
+		long flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMs);
+		long nextFlush = System.nanoTime() + flushNanos;
+		while(true) {
+			boolean running = run;
+			try {
+				PendingMessage first = queue.poll(Math.max(0, nextFlush - System.nanoTime()), TimeUnit.NANOSECONDS);
+				if(first != null) {
+					batch.add(first);
+					queue.drainTo(batch);
+					for(PendingMessage pending : batch) {
+						appendNow(pending.message.sender, pending.receiver, pending.message);
+					}
+					batch.clear();
+				}
+				
+				if(System.nanoTime() - nextFlush >= 0) {
+					flushAll();
+					nextFlush = System.nanoTime() + flushNanos;
+					long count = dropped.getAndSet(0);
+					if(count > 0) {
+						AsyncLogger.warn("聊天记录队列已满，丢弃" + count + "条。");
+					}
+				}
+			}catch (InterruptedException e) {
+				running = false;
+			}catch (Exception e) {
+				AsyncLogger.error("保存聊天记录失败。", e);
+			}
+			
+			//关闭前先处理完队列
+			if(!running && queue.isEmpty()) {
+				return;
+			}
+		}
+	}
+	
+	private void appendNow(String sender, String receiver, HistoryMessage message) {
+		while(true) {
+			Conversation conversation = conversation(sender, receiver);
+			synchronized (conversation) {
+				if(conversation.closed) {
+					//刚被移出缓存
+					continue;
+				}
+				conversation.append(message);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * 查询一页
+	 * @param user
+	 * @param peer
+	 * @param seq 游标，不包括游标本身，0表示按时间定位
+	 * @param time 时间游标，seq和time都为0时从最新(before)或最早(after)开始
+	 * @param before 是否查询游标之前的
+	 * @param limit
+	 * @return 按序号从小到大
+	 */
+	List<HistoryMessage> page(String user, String peer, int seq, long time, boolean before, int limit) {
+		limit = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+		String key = key(user, peer);
+		Conversation conversation;
+		synchronized (cache) {
+			conversation = cache.get(key);
+			if(conversation == null) {
+				conversation = closing.get(key);
+			}
+		}
+		
+		try {
+			//缓存中的对象还没打开时，最新的记录可能还在之前的、没关闭的对象里
+			while(conversation != null) {
+				Conversation predecessor;
+				synchronized (conversation) {
+					if(conversation.opened && !conversation.closed) {
+						return conversation.page(seq, time, before, limit);
+					}
+					predecessor = conversation.opened || conversation.closed ? null : conversation.predecessor;
+					if(predecessor == null) {
+						//已经写完，持有锁读文件，写线程这时不会打开并改动文件
+						return Conversation.pageFromFiles(fileBase(key), seq, time, before, limit);
+					}
+				}
+				conversation = predecessor;
+			}
+			return Conversation.pageFromFiles(fileBase(key), seq, time, before, limit);
+		}catch (IOException e) {
+			AsyncLogger.error("读取聊天记录失败。", e);
+			return new ArrayList<>();
+		}
+	}
+	
+	private static String key(String userA, String userB) {
+		return userA.compareTo(userB) <= 0 ? userA + '\0' + userB : userB + '\0' + userA;
+	}
+	
+	/**
+	 * 取会话，不在缓存中时创建，缓存满时关闭最久没访问的；返回的会话已经打开，只在写线程调用
+	 * 缓存的锁内只改缓存，打开和关闭文件都在会话自己的锁内。同一会话关闭写完之前不会再被打开：
+	 * 新的会话打开前先取旧会话的锁，关闭还没开始时替它关闭
+	 * @param userA
+	 * @param userB
+	 * @return
+	 */
+	private Conversation conversation(String userA, String userB) {
+		String key = key(userA, userB);
+		Conversation conversation;
+		Conversation evicted = null;
+		synchronized (cache) {
+			conversation = cache.get(key);
+			if(conversation == null) {
+				if(cache.size() >= cacheSize) {
+					Iterator<Map.Entry<String, Conversation>> eldest = cache.entrySet().iterator();
+					Map.Entry<String, Conversation> entry = eldest.next();
+					eldest.remove();
+					evicted = entry.getValue();
+					closing.put(entry.getKey(), evicted);
+				}
+				
+				conversation = new Conversation(key, fileBase(key), closing.get(key));
+				cache.put(key, conversation);
+			}
+		}
+		
+		if(evicted != null) {
+			synchronized (evicted) {
+				evicted.close();
+			}
+			synchronized (cache) {
+				closing.remove(evicted.key, evicted);
+			}
+		}
+		
+		synchronized (conversation) {
+			conversation.open();
+		}
+		return conversation;
+	}
+	
+	/**
+	 * 会话的文件名，按名字的摘要分目录
+	 * @param key
+	 * @return
+	 */
+	private File fileBase(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for(byte b : digest) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return new File(new File(dir, hex.substring(0, 2)), hex.toString());
+		}catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * 定时任务：把新消息写入文件
+	 */
+	private void flushAll() {
+		List<Conversation> conversations;
+		synchronized (cache) {
+			conversations = new ArrayList<>(cache.values());
+		}
+		
+		for(Conversation conversation : conversations) {
+			synchronized (conversation) {
+				if(!conversation.closed) {
+					conversation.flush();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * 队列中等待保存的消息
+	 */
+	private static class PendingMessage {
+		
+		final String receiver;
+		
+		final HistoryMessage message;
+		
+		PendingMessage(String receiver, HistoryMessage message) {
+			this.receiver = receiver;
+			this.message = message;
+		}
+	}
+	
+	/**
+	 * 聊天记录中的一条消息
+	 */
+	static class HistoryMessage {
+		
+		int seq;
+		
+		long time;
+		
+		String sender;
+		
+		String chatMsg;
+		
+		/**
+		 * 压缩的内容，不为空时chatMsg为空
+		 */
+		byte[] compressedMsg;
+	}
+	
+	/**
+	 * 一个会话，方法都在该对象的锁内调用
+	 */
+	private static class Conversation {
+		
+		final String key;
+		
+		private final File dataFile;
+		
+		private final File indexFile;
+		
+		private FileChannel data;
+		
+		private FileChannel index;
+		
+		/**
+		 * 数据文件长度
+		 */
+		private long dataSize;
+		
+		/**
+		 * 消息总数，序号为1到count
+		 */
+		private int count;
+		
+		/**
+		 * 已写入文件的消息数
+		 */
+		private int flushed;
+		
+		/**
+		 * 最新的消息，序号seq的消息在seq % RECENT_SIZE的位置
+		 */
+		private final HistoryMessage[] recent = new HistoryMessage[RECENT_SIZE];
+		
+		/**
+		 * recent中最早的序号
+		 */
+		private int recentStart = 1;
+		
+		private boolean closed;
+		
+		/**
+		 * 打开或写入失败时只保存在内存中，文件中的记录不再读取
+		 */
+		private boolean failed;
+		
+		/**
+		 * 同一会话之前的、还在关闭的对象，打开前要等它写完
+		 */
+		private Conversation predecessor;
+		
+		private boolean opened;
+		
+		Conversation(String key, File fileBase, Conversation predecessor) {
+			this.key = key;
+			this.dataFile = new File(fileBase.getPath() + ".dat");
+			this.indexFile = new File(fileBase.getPath() + ".idx");
+			this.predecessor = predecessor;
+		}
+		
+		/**
+		 * 第一次使用时打开文件
+		 */
+		void open() {
+			if(opened) {
+				return;
+			}
+			opened = true;
+			
+			closePredecessor();
+			try {
+				load();
+			}catch (IOException e) {
+				failed = true;
+				AsyncLogger.error("打开聊天记录失败: " + dataFile, e);
+			}
+		}
+		
+		/**
+		 * 打开文件，读入最新的消息
+		 * @throws IOException
+		 */
+		private void load() throws IOException {
+			dataFile.getParentFile().mkdirs();
+			data = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			index = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			//写到一半的索引项作废，没有索引的数据留在文件里不再使用
+			count = (int) (index.size() / INDEX_ENTRY_SIZE);
+			index.truncate((long) count * INDEX_ENTRY_SIZE);
+			dataSize = data.size();
+			flushed = count;
+			
+			recentStart = Math.max(1, count - RECENT_SIZE + 1);
+			if(count > 0) {
+				for(HistoryMessage message : readFromFile(recentStart, count)) {
+					recent[message.seq % RECENT_SIZE] = message;
+				}
+			}
+		}
+		
+		/**
+		 * 只读地从文件查询一页，用于不在内存中的会话，文件不存在时为空
+		 * @param fileBase
+		 * @param seq
+		 * @param time
+		 * @param before
+		 * @param limit
+		 * @return
+		 * @throws IOException
+		 */
+		static List<HistoryMessage> pageFromFiles(File fileBase, int seq, long time, boolean before, int limit) throws IOException {
+			Conversation snapshot = new Conversation(null, fileBase, null);
+			if(!snapshot.dataFile.isFile() || !snapshot.indexFile.isFile()) {
+				return new ArrayList<>();
+			}
+			
+			try {
+				snapshot.data = FileChannel.open(snapshot.dataFile.toPath(), StandardOpenOption.READ);
+				snapshot.index = FileChannel.open(snapshot.indexFile.toPath(), StandardOpenOption.READ);
+				//写到一半的索引项不算
+				snapshot.count = (int) (snapshot.index.size() / INDEX_ENTRY_SIZE);
+				snapshot.flushed = snapshot.count;
+				snapshot.dataSize = snapshot.data.size();
+				//内存中没有消息，都从文件读
+				snapshot.recentStart = snapshot.count + 1;
+				return snapshot.page(seq, time, before, limit);
+			}finally {
+				if(snapshot.data != null) {
+					snapshot.data.close();
+				}
+				if(snapshot.index != null) {
+					snapshot.index.close();
+				}
+			}
+		}
+		
+		void append(HistoryMessage message) {
+			//内存中放不下未写入的消息时先写入
+			if(count - flushed >= RECENT_SIZE) {
+				flush();
+			}
+			
+			HistoryMessage last = count >= recentStart && count > 0 ? recent[count % RECENT_SIZE] : null;
+			//时间不倒退，按时间二分查找才成立
+			message.time = Math.max(message.time, last == null ? 0 : last.time);
+			message.seq = ++count;
+			recent[message.seq % RECENT_SIZE] = message;
+			recentStart = Math.max(recentStart, count - RECENT_SIZE + 1);
+		}
+		
+		List<HistoryMessage> page(int seq, long time, boolean before, int limit) throws IOException {
+			int cursor = seq;
+			if(cursor <= 0) {
+				if(time > 0) {
+					//before: time之前的，游标为第一条不早于time的；after: time之后的，游标为最后一条不晚于time的
+					cursor = before ? firstAtOrAfter(time) : firstAtOrAfter(time + 1) - 1;
+				}else {
+					cursor = before ? count + 1 : 0;
+				}
+			}
+			
+			int from;
+			int to;
+			if(before) {
+				to = Math.min(cursor - 1, count);
+				from = Math.max(1, to - limit + 1);
+			}else {
+				from = Math.max(1, cursor + 1);
+				to = Math.min(count, from + limit - 1);
+			}
+			
+			if(failed) {
+				from = Math.max(from, recentStart);
+			}
+			List<HistoryMessage> messages = new ArrayList<>(Math.max(0, to - from + 1));
+			if(from > to) {
+				return messages;
+			}
+			
+			//早于内存中的部分从文件读
+			if(from < recentStart) {
+				messages.addAll(readFromFile(from, Math.min(to, recentStart - 1)));
+			}
+			for(int s = Math.max(from, recentStart); s <= to; ++s) {
+				messages.add(recent[s % RECENT_SIZE]);
+			}
+			return messages;
+		}
+		
+		/**
+		 * 第一条时间不早于time的序号，没有时为count + 1
+		 * @param time
+		 * @return
+		 * @throws IOException
+		 */
+		private int firstAtOrAfter(long time) throws IOException {
+			//失败后文件中的记录不可用，只在内存中找
+			int low = failed ? recentStart : 1;
+			int high = count + 1;
+			ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+			while(low < high) {
+				int mid = (low + high) >>> 1;
+				long midTime;
+				if(mid >= recentStart) {
+					midTime = recent[mid % RECENT_SIZE].time;
+				}else {
+					entry.clear();
+					readFully(index, entry, (long) (mid - 1) * INDEX_ENTRY_SIZE);
+					midTime = entry.getLong(8);
+				}
+				
+				if(midTime < time) {
+					low = mid + 1;
+				}else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+		
+		/**
+		 * 从文件读取一段连续的消息，先读索引再一次读出数据
+		 * @param from
+		 * @param to 包括，不超过flushed
+		 * @return
+		 * @throws IOException
+		 */
+		private List<HistoryMessage> readFromFile(int from, int to) throws IOException {
+			List<HistoryMessage> messages = new ArrayList<>(to - from + 1);
+			if(failed) {
+				return messages;
+			}
+			
+			ByteBuffer entries = ByteBuffer.allocate((to - from + 1) * INDEX_ENTRY_SIZE);
+			readFully(index, entries, (long) (from - 1) * INDEX_ENTRY_SIZE);
+			long start = entries.getLong(0);
+			long end;
+			if(to < flushed) {
+				ByteBuffer next = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+				readFully(index, next, (long) to * INDEX_ENTRY_SIZE);
+				end = next.getLong(0);
+			}else {
+				end = dataSize;
+			}
+			
+			ByteBuffer records = ByteBuffer.allocate((int) (end - start));
+			readFully(data, records, start);
+			for(int i = 0; i <= to - from; ++i) {
+				records.position((int) (entries.getLong(i * INDEX_ENTRY_SIZE) - start));
+				records.getInt();
+				HistoryMessage message = new HistoryMessage();
+				message.seq = records.getInt();
+				message.time = records.getLong();
+				message.sender = readString(records);
+				int len = records.getInt();
+				if(len < 0) {
+					message.compressedMsg = new byte[-1 - len];
+					records.get(message.compressedMsg);
+				}else {
+					byte[] bytes = new byte[len];
+					records.get(bytes);
+					message.chatMsg = new String(bytes, StandardCharsets.UTF_8);
+				}
+				messages.add(message);
+			}
+			return messages;
+		}
+		
+		/**
+		 * 把未写入的消息写入文件，先写数据再写索引
+		 */
+		void flush() {
+			if(flushed == count) {
+				return;
+			}
+			if(failed) {
+				//只保留在内存中
+				flushed = count;
+				return;
+			}
+			
+			int n = count - flushed;
+			List<byte[]> bodies = new ArrayList<>(n * 2);
+			int dataLen = 0;
+			for(int s = flushed + 1; s <= count; ++s) {
+				HistoryMessage message = recent[s % RECENT_SIZE];
+				byte[] sender = message.sender.getBytes(StandardCharsets.UTF_8);
+				byte[] chatMsg = message.compressedMsg != null ? message.compressedMsg : message.chatMsg.getBytes(StandardCharsets.UTF_8);
+				bodies.add(sender);
+				bodies.add(chatMsg);
+				dataLen += RECORD_HEADER_SIZE + 4 + sender.length + 4 + chatMsg.length;
+			}
+			
+			ByteBuffer records = ByteBuffer.allocate(dataLen);
+			ByteBuffer entries = ByteBuffer.allocate(n * INDEX_ENTRY_SIZE);
+			for(int i = 0; i < n; ++i) {
+				HistoryMessage message = recent[(flushed + 1 + i) % RECENT_SIZE];
+				byte[] sender = bodies.get(i * 2);
+				byte[] chatMsg = bodies.get(i * 2 + 1);
+				entries.putLong(dataSize + records.position());
+				entries.putLong(message.time);
+				records.putInt(RECORD_HEADER_SIZE + 4 + sender.length + 4 + chatMsg.length);
+				records.putInt(message.seq);
+				records.putLong(message.time);
+				records.putInt(sender.length).put(sender);
+				records.putInt(message.compressedMsg != null ? -1 - chatMsg.length : chatMsg.length).put(chatMsg);
+			}
+			records.flip();
+			entries.flip();
+			
+			try {
+				writeFully(data, records, dataSize);
+				writeFully(index, entries, (long) flushed * INDEX_ENTRY_SIZE);
+				dataSize += dataLen;
+				flushed = count;
+			}catch (IOException e) {
+				failed = true;
+				flushed = count;
+				AsyncLogger.error("写入聊天记录失败: " + dataFile, e);
+			}
+		}
+		
+		/**
+		 * 写入剩余的消息，刷盘后关闭文件
+		 */
+		void close() {
+			if(closed) {
+				return;
+			}
+			//没打开过就被移出缓存时，之前的对象可能还没关闭
+			closePredecessor();
+			flush();
+			closed = true;
+			
+			try {
+				if(!failed && data != null) {
+					data.force(false);
+					index.force(false);
+				}
+				if(data != null) {
+					data.close();
+				}
+				if(index != null) {
+					index.close();
+				}
+			}catch (IOException e) {
+				AsyncLogger.error("关闭聊天记录失败: " + dataFile, e);
+			}
+		}
+		
+		/**
+		 * 等同一会话之前的对象写完，它的关闭还没开始时替它关闭
+		 */
+		private void closePredecessor() {
+			if(predecessor != null) {
+				synchronized (predecessor) {
+					predecessor.close();
+				}
+				predecessor = null;
+			}
+		}
+		
+		private static String readString(ByteBuffer buffer) {
+			byte[] bytes = new byte[buffer.getInt()];
+			buffer.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+		
+		private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+			while(buffer.hasRemaining()) {
+				if(channel.read(buffer, position + buffer.position()) < 0) {
+					throw new IOException("聊天记录文件不完整");
+				}
+			}
+			buffer.flip();
+		}
+		
+		private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+			while(buffer.hasRemaining()) {
+				channel.write(buffer, position + buffer.position());
+			}
+		}
+	}
+}
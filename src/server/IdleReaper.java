@@ -0,0 +1,174 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import base.AsyncLogger;
+
+/**
+ * 空闲连接检查，所有连接共用一个哈希时间轮
+ * 时间轮每格一个刻度，连接只挂在到期的那一格上；读到数据时连接只记下当前刻度，不操作时间轮，
+ * 到期时才由检查线程比较最后读取的刻度，决定重新挂上、发心跳还是断开。
+ * 每个连接每个超时周期只被访问一次，连接数很多时开销也很小。
+ * 另外每格检查一次拥塞的发送队列，拥塞太久的慢连接即使没有新帧入队也会断开
+ */
+class IdleReaper {
+	
+	private final long tickMs;
+	
+	/**
+	 * 时间轮，格数是2的幂，不小于最长的超时刻度数，大部分连接转一圈之内到期
+	 */
+	private final Bucket[] wheel;
+	
+	private final int mask;
+	
+	/**
+	 * 新连接，由检查线程挂到时间轮上
+	 */
+	private final Queue<ChatClientSocket> pendingSockets = new ConcurrentLinkedQueue<>();
+	
+	/**
+	 * 拥塞中的发送队列，只有拥塞时才在这里，数量很少
+	 */
+	private final Queue<OutboundQueue> congestedQueues = new ConcurrentLinkedQueue<>();
+	
+	private final Checker checker;
+	
+	/**
+	 * 当前刻度
+	 */
+	private volatile long tick;
+	
+	private ScheduledExecutorService scheduler;
+	
+	/**
+	 * 创建时间轮，调用start后开始推进
+	 * @param tickMs 每格的时间(毫秒)
+	 * @param maxTimeoutMs 最长的超时时间(毫秒)
+	 * @param checker
+	 */
+	IdleReaper(long tickMs, long maxTimeoutMs, Checker checker) {
+		this.tickMs = tickMs;
+		this.checker = checker;
+		
+		int size = Integer.highestOneBit((int) Math.max(1, maxTimeoutMs / tickMs) * 2);
+		wheel = new Bucket[size];
+		for(int i = 0; i < size; ++i) {
+			wheel[i] = new Bucket();
+		}
+		mask = size - 1;
+	}
+	
+	void start() {
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "idle-reaper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleAtFixedRate(this::advance, tickMs, tickMs, TimeUnit.MILLISECONDS);
+	}
+	
+	void shutdown() {
+		if(scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+	
+	/**
+	 * 当前刻度，读到数据时记到连接上
+	 * @return
+	 */
+	long currentTick() {
+		return tick;
+	}
+	
+	/**
+	 * 开始检查新连接，可以在任意线程调用
+	 * @param clientSocket
+	 */
+	void register(ChatClientSocket clientSocket) {
+		clientSocket.setLastReadTick(tick);
+		pendingSockets.add(clientSocket);
+	}
+	
+	/**
+	 * 发送队列进入拥塞，开始每格检查拥塞时长，可以在任意线程调用
+	 * @param queue
+	 */
+	void watchCongested(OutboundQueue queue) {
+		congestedQueues.add(queue);
+	}
+	
+	/**
+	 * 推进一格，检查拥塞的发送队列和这一格上到期的连接
+	 */
+	private void advance() {
+		try {
+			long nanos = System.nanoTime();
+			for(Iterator<OutboundQueue> it = congestedQueues.iterator(); it.hasNext(); ) {
+				if(!it.next().checkSlowConsumer(nanos)) {
+					it.remove();
+				}
+			}
+			
+			long now = ++tick;
+			ChatClientSocket clientSocket;
+			while((clientSocket = pendingSockets.poll()) != null) {
+				check(clientSocket, now);
+			}
+			
+			//重新挂回同一格的连接排在后面，这一轮不会再取到
+			Bucket bucket = wheel[(int) (now & mask)];
+			for(int n = bucket.size(); n > 0; --n) {
+				clientSocket = bucket.poll();
+				if(clientSocket.getIdleDeadline() > now) {
+					//还要再转几圈
+					bucket.add(clientSocket);
+				}else {
+					check(clientSocket, now);
+				}
+			}
+		}catch (Exception e) {
+			AsyncLogger.error("检查空闲连接失败。", e);
+		}
+	}
+	
+	private void check(ChatClientSocket clientSocket, long now) {
+		long deadline = checker.check(clientSocket, now);
+		if(deadline < 0) {
+			return;
+		}
+		
+		deadline = Math.max(deadline, now + 1);
+		clientSocket.setIdleDeadline(deadline);
+		wheel[(int) (deadline & mask)].add(clientSocket);
+	}
+	
+	/**
+	 * 时间轮的一格，具体类型的数组不用泛型数组，没有unchecked转换
+	 */
+	private static final class Bucket extends ArrayDeque<ChatClientSocket> {
+		
+		private static final long serialVersionUID = 1L;
+	}
+	
+	/**
+	 * 到期检查，在检查线程上调用
+	 */
+	interface Checker {
+		
+		/**
+		 * 检查一个到期的连接
+		 * @param clientSocket
+		 * @param now 当前刻度
+		 * @return 下次检查的刻度，小于0时不再检查
+		 */
+		long check(ChatClientSocket clientSocket, long now);
+	}
+}
@@ -0,0 +1,48 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import base.AsyncLogger;
+
+/**
+ * 本机的指标文本接口，GET /metrics 返回ServerMetrics的快照
+ * 只监听回环地址，不对外暴露
+ */
+class MetricsEndpoint {
+	
+	private final HttpServer httpServer;
+	
+	private final Supplier<String> snapshot;
+	
+	MetricsEndpoint(int port, Supplier<String> snapshot) throws IOException {
+		this.snapshot = snapshot;
+		httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		httpServer.createContext("/metrics", this::handle);
+	}
+	
+	void start() {
+		httpServer.start();
+		AsyncLogger.info("指标接口: http://" + httpServer.getAddress().getHostString() + ":" + httpServer.getAddress().getPort() + "/metrics");
+	}
+	
+	void stop() {
+		httpServer.stop(0);
+	}
+	
+	private void handle(HttpExchange exchange) throws IOException {
+		byte[] body = snapshot.get().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try(OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import base.AsyncLogger;
+import base.BinaryCodec;
+import base.ChatCmd;
+import base.JsonCodec;
+
+/**
+ * 非阻塞模式下单个连接的读写状态
+ * 通道只在所属的事件循环线程上读写，其他线程只往客户端的发送队列里放数据
+ */
+class NioConnection {
+	
+	private static final byte[] EMPTY = new byte[0];
+	
+	/**
+	 * 半条命令的缓冲区超过该大小时，剩下的数据不多后缩回，收过一条大命令的连接不一直占着大数组
+	 */
+	private static final int MAX_RETAINED_PARTIAL_SIZE = 64 * 1024;
+	
+	/**
+	 * 每次聚集写出的最大帧数
+	 */
+	private static final int WRITE_BATCH_SIZE = 64;
+	
+	private final SocketChannel channel;
+	
+	/**
+	 * 所属的事件循环
+	 */
+	private final NioEventLoop eventLoop;
+	
+	private final InetSocketAddress remoteAddress;
+	
+	private SelectionKey key;
+	
+	private ChatClientSocket clientSocket;
+	
+	/**
+	 * 还没收完的半条命令
+	 */
+	private byte[] partialLine = EMPTY;
+	private int partialLen;
+	
+	/**
+	 * 解码用的命令对象，处理完一条再解码下一条，可以重复使用
+	 */
+	private final ChatCmd cmd = new ChatCmd();
+	
+	/**
+	 * 从发送队列取出、正在写出的帧，[batchOffset, batchCount)还没写完
+	 */
+	private final ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH_SIZE];
+	private int batchOffset;
+	private int batchCount;
+	
+	private volatile boolean closed;
+	
+	/**
+	 * 其他线程要求关闭，由事件循环线程关闭
+	 */
+	private volatile boolean closeRequested;
+	
+	NioConnection(SocketChannel channel, NioEventLoop eventLoop) throws IOException {
+		this.channel = channel;
+		this.eventLoop = eventLoop;
+		this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+	}
+	
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+	
+	SocketChannel getChannel() {
+		return channel;
+	}
+	
+	InetSocketAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+	
+	ChatClientSocket getClientSocket() {
+		return clientSocket;
+	}
+	
+	void setClientSocket(ChatClientSocket clientSocket) {
+		this.clientSocket = clientSocket;
+	}
+	
+	boolean isClosed() {
+		return closed;
+	}
+	
+	boolean isCloseRequested() {
+		return closeRequested;
+	}
+	
+	/**
+	 * 请求事件循环关闭连接，可以在任意线程调用
+	 */
+	void requestClose() {
+		closeRequested = true;
+		eventLoop.requestFlush(this);
+	}
+	
+	/**
+	 * 请求事件循环写出，发送队列有新帧时调用
+	 */
+	void requestFlush() {
+		eventLoop.requestFlush(this);
+	}
+	
+	/**
+	 * 把发送队列里的帧聚集写到通道，只在事件循环线程调用
+	 * @return 是否全部写完
+	 * @throws IOException
+	 */
+	boolean flush() throws IOException {
+		OutboundQueue queue = clientSocket.getOutboundQueue();
+		while(true) {
+			if(batchOffset == batchCount) {
+				batchOffset = 0;
+				batchCount = queue.poll(writeBatch);
+				if(batchCount == 0) {
+					break;
+				}
+			}
+			
+			channel.write(writeBatch, batchOffset, batchCount - batchOffset);
+			while(batchOffset < batchCount && !writeBatch[batchOffset].hasRemaining()) {
+				queue.written(writeBatch[batchOffset]);
+				writeBatch[batchOffset++] = null;
+			}
+			
+			if(batchOffset < batchCount) {
+				//发送缓冲区满了，等可写时再写
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				return false;
+			}
+		}
+		
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		queue.flushed();
+		return true;
+	}
+	
+	/**
+	 * 从读到的数据中切分出命令，半条命令留到下次
+	 * @param data 读缓冲区
+	 * @param len 读到的长度
+	 * @param cmdHandler
+	 * @throws IOException 二进制帧长度非法
+	 */
+	void onRead(byte[] data, int len, Consumer<ChatCmd> cmdHandler) throws IOException {
+		if(partialLen == 0) {
+			int consumed = decodeCmds(data, len, cmdHandler);
+			if(consumed < len) {
+				appendPartial(data, consumed, len - consumed);
+			}
+			checkPartialLine();
+			return;
+		}
+		
+		appendPartial(data, 0, len);
+		//半行的JSON只有在新数据里有换行时才可能完整，不重复扫描已有的部分
+		if(!clientSocket.isBinary() && indexOf(data, 0, len, (byte) '\n') < 0) {
+			checkPartialLine();
+			return;
+		}
+		int consumed = decodeCmds(partialLine, partialLen, cmdHandler);
+		partialLen -= consumed;
+		if(partialLine.length > MAX_RETAINED_PARTIAL_SIZE && partialLen <= MAX_RETAINED_PARTIAL_SIZE) {
+			partialLine = partialLen == 0 ? EMPTY : Arrays.copyOfRange(partialLine, consumed, consumed + partialLen);
+		}else {
+			System.arraycopy(partialLine, consumed, partialLine, 0, partialLen);
+		}
+		checkPartialLine();
+	}
+	
+	/**
+	 * JSON行与二进制帧一样限制长度，一直不发换行的连接不能无限占用内存
+	 * @throws IOException 半行超过帧的最大长度
+	 */
+	private void checkPartialLine() throws IOException {
+		if(!clientSocket.isBinary() && partialLen > BinaryCodec.MAX_FRAME_LENGTH) {
+			throw new IOException("行长度超过上限: " + partialLen);
+		}
+	}
+	
+	/**
+	 * 解码完整的命令，每条命令都重新检查协议，登录协商后同一批数据里的后续命令按新格式解码
+	 * @param buf
+	 * @param end
+	 * @param cmdHandler
+	 * @return 已解码的字节数
+	 * @throws IOException
+	 */
+	private int decodeCmds(byte[] buf, int end, Consumer<ChatCmd> cmdHandler) throws IOException {
+		int pos = 0;
+		while(pos < end) {
+			if(clientSocket.isBinary()) {
+				if(end - pos < BinaryCodec.LENGTH_FIELD_SIZE) {
+					break;
+				}
+				
+				int frameLen = BinaryCodec.readLength(buf, pos);
+				if(frameLen <= 0 || frameLen > BinaryCodec.MAX_FRAME_LENGTH) {
+					throw new IOException("帧长度错误: " + frameLen);
+				}
+				
+				int frameEnd = pos + BinaryCodec.LENGTH_FIELD_SIZE + frameLen;
+				if(frameEnd > end) {
+					break;
+				}
+				
+				try {
+					BinaryCodec.decode(buf, pos + BinaryCodec.LENGTH_FIELD_SIZE, frameLen, cmd);
+				}catch (Exception e) {
+					AsyncLogger.error(remoteAddress, "二进制帧格式错误。", e);
+					cmd.reset();
+				}
+				pos = frameEnd;
+			}else {
+				int lineEnd = indexOf(buf, pos, end, (byte) '\n');
+				if(lineEnd < 0) {
+					break;
+				}
+				
+				int lineLen = lineEnd - pos;
+				//兼容\r\n
+				if(lineLen > 0 && buf[lineEnd - 1] == '\r') {
+					--lineLen;
+				}
+				JsonCodec.local().decode(buf, pos, lineLen, cmd);
+				pos = lineEnd + 1;
+			}
+			cmdHandler.accept(cmd);
+		}
+		return pos;
+	}
+	
+	private static int indexOf(byte[] buf, int from, int end, byte b) {
+		for(int i = from; i < end; ++i) {
+			if(buf[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	private void appendPartial(byte[] data, int off, int len) {
+		if(partialLen + len > partialLine.length) {
+			partialLine = Arrays.copyOf(partialLine, Math.max(partialLen + len, partialLine.length * 2));
+		}
+		System.arraycopy(data, off, partialLine, partialLen, len);
+		partialLen += len;
+	}
+	
+	/**
+	 * 关闭连接
+	 */
+	void close() {
+		if(closed) {
+			return;
+		}
+		
+		closed = true;
+		if(key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+		if(clientSocket != null) {
+			clientSocket.getOutboundQueue().close();
+		}
+	}
+}
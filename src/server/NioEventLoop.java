@@ -0,0 +1,199 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import base.AsyncLogger;
+
+/**
+ * 非阻塞模式的事件循环，一个线程通过Selector处理分配给它的所有连接
+ */
+class NioEventLoop implements Runnable {
+	
+	/**
+	 * 读缓冲区大小
+	 */
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	
+	private final ChatServer server;
+	
+	private final Selector selector;
+	
+	private final Thread thread;
+	
+	/**
+	 * 等待注册的新连接
+	 */
+	private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+	
+	/**
+	 * 等待写出的连接
+	 */
+	private final Queue<NioConnection> pendingFlushes = new ConcurrentLinkedQueue<>();
+	
+	/**
+	 * 同一个事件循环的所有连接共用一个读缓冲区，连接本身只保存半行数据
+	 */
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	
+	private volatile boolean run;
+	
+	NioEventLoop(ChatServer server, int index) throws IOException {
+		this.server = server;
+		this.selector = Selector.open();
+		this.thread = new Thread(this, "nio-event-loop-" + index);
+		run = true;
+	}
+	
+	void start() {
+		thread.start();
+	}
+	
+	/**
+	 * 注册新连接，由接收连接的线程调用
+	 * @param channel
+	 */
+	void register(SocketChannel channel) {
+		pendingChannels.add(channel);
+		selector.wakeup();
+	}
+	
+	/**
+	 * 请求写出连接的待写数据
+	 * @param connection
+	 */
+	void requestFlush(NioConnection connection) {
+		pendingFlushes.add(connection);
+		//事件循环线程自己会在本轮结束时处理
+		if(Thread.currentThread() != thread) {
+			selector.wakeup();
+		}
+	}
+	
+	void shutdown() {
+		run = false;
+		selector.wakeup();
+	}
+	
+	@Override
+	public void run() {
+		while(run) {
+			try {
+				selector.select();
+				registerPendingChannels();
+				
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					handleKey(key);
+				}
+				
+				flushPendingConnections();
+			} catch (ClosedSelectorException e) {
+				break;
+			} catch (Exception e) {
+				AsyncLogger.error("事件循环出错。", e);
+			}
+		}
+		
+		closeAll();
+	}
+	
+	private void registerPendingChannels() {
+		SocketChannel channel;
+		while((channel = pendingChannels.poll()) != null) {
+			try {
+				NioConnection connection = new NioConnection(channel, this);
+				connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+				ChatClientSocket clientSocket = new ChatClientSocket(connection, server.getMetrics());
+				connection.setClientSocket(clientSocket);
+				server.onClientOpened(clientSocket);
+			} catch (IOException e) {
+				AsyncLogger.error("注册连接失败。", e);
+				try {
+					channel.close();
+				} catch (IOException e1) {
+				}
+			}
+		}
+	}
+	
+	private void handleKey(SelectionKey key) {
+		NioConnection connection = (NioConnection) key.attachment();
+		try {
+			if(key.isReadable()) {
+				read(connection);
+			}
+			
+			if(key.isValid() && key.isWritable()) {
+				connection.flush();
+			}
+		} catch (IOException e) {
+			closeConnection(connection);
+		}
+	}
+	
+	private void read(NioConnection connection) throws IOException {
+		readBuffer.clear();
+		int len = connection.getChannel().read(readBuffer);
+		if(len < 0) {
+			// 客户端已断开
+			closeConnection(connection);
+			return;
+		}
+		
+		server.getMetrics().bytesIn(len);
+		ChatClientSocket clientSocket = connection.getClientSocket();
+		connection.onRead(readBuffer.array(), len, cmd -> server.dealWithCmd(clientSocket, cmd));
+	}
+	
+	private void flushPendingConnections() {
+		NioConnection connection;
+		while((connection = pendingFlushes.poll()) != null) {
+			if(connection.isClosed()) {
+				continue;
+			}
+			if(connection.isCloseRequested()) {
+				closeConnection(connection);
+				continue;
+			}
+			
+			try {
+				connection.flush();
+			} catch (IOException e) {
+				closeConnection(connection);
+			}
+		}
+	}
+	
+	private void closeConnection(NioConnection connection) {
+		if(connection.isClosed()) {
+			return;
+		}
+		
+		connection.close();
+		server.onClientClosed(connection.getClientSocket());
+	}
+	
+	private void closeAll() {
+		for(SelectionKey key : selector.keys()) {
+			if(key.attachment() instanceof NioConnection) {
+				((NioConnection) key.attachment()).close();
+			}
+		}
+		
+		try {
+			selector.close();
+		} catch (IOException e) {
+			AsyncLogger.error("关闭Selector失败。", e);
+		}
+	}
+}
@@ -0,0 +1,705 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import base.AsyncLogger;
+
+/**
+ * 离线消息存储
+ * 消息追加写到内存映射的分段文件里，内存中按接收人保存消息的位置；用户登录时按顺序分批取出，
+ * 确认写出到连接后才在原位置标记为已送达。写入不做fsync，由后台线程定时批量刷盘，同时把已送达的消息多的分段压缩掉。
+ * 每个接收人和整个存储都有空间上限，超过时不再保存。
+ * 记录的时间在存储内严格递增，压缩会把消息搬到后面的分段，重启时按时间恢复每个接收人的顺序。
+ * 压缩时新位置落盘后把旧位置标记为已送达并落盘，再解除映射删除旧分段；删除失败的分段里没有未送达的消息，
+ * 下次打开时再删。两次落盘之间崩溃时同一条消息有两份，按时间去重
+ *
+ * 记录格式: 长度(int) CRC32(int) 标记(byte) 接收人 发送人 时间(long) 内容，字符串为长度(int)+UTF-8，
+ * 长度和CRC只算标记之后的部分，长度为0表示分段结束
+ */
+class OfflineStore {
+	
+	private static final int HEADER_SIZE = 9;
+	
+	private static final byte FLAG_PENDING = 0;
+	private static final byte FLAG_DELIVERED = 1;
+	
+	/**
+	 * 非当前分段中未送达的消息少于这个比例时，搬到当前分段后删除
+	 */
+	private static final int COMPACT_RATIO = 4;
+	
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	
+	private final File dir;
+	
+	/**
+	 * 分段文件大小
+	 */
+	private final int segmentSize;
+	
+	/**
+	 * 刷盘间隔(毫秒)
+	 */
+	private final long syncMs;
+	
+	/**
+	 * 每个用户最多保存的离线消息数，超过时不再保存
+	 */
+	private final int maxPerUser;
+	
+	/**
+	 * 每个用户的离线消息最多占用的字节数
+	 */
+	private final long maxUserBytes;
+	
+	/**
+	 * 最多的分段数，由总的空间上限算出；压缩时可以临时多一个
+	 */
+	private final int maxSegments;
+	
+	/**
+	 * 上一条记录的时间，新记录的时间比它大
+	 */
+	private long lastTime;
+	
+	/**
+	 * 所有分段，按id排序，最后一个是当前写入的
+	 */
+	private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+	
+	private Segment active;
+	
+	/**
+	 * 每个接收人未送达消息的位置，按写入顺序
+	 */
+	private final Map<String, Addresses> index = new HashMap<>();
+	
+	private final CRC32 crc = new CRC32();
+	
+	private ScheduledExecutorService scheduler;
+	
+	OfflineStore(File dir, int segmentSize, long syncMs, int maxPerUser, long maxUserBytes, long maxBytes) {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.syncMs = syncMs;
+		this.maxPerUser = maxPerUser;
+		this.maxUserBytes = maxUserBytes;
+		this.maxSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxBytes / segmentSize));
+	}
+	
+	/**
+	 * 打开存储，扫描已有的分段重建索引
+	 * @throws IOException
+	 */
+	synchronized void open() throws IOException {
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("无法创建目录: " + dir);
+		}
+		
+		File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+		Arrays.sort(files);
+		int pending = 0;
+		for(File file : files) {
+			String name = file.getName();
+			int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+			Segment segment = new Segment(id, file, segmentSize);
+			segments.put(id, segment);
+			pending += recover(segment);
+		}
+		//压缩搬动过的消息在后面的分段里，按时间排回写入顺序
+		for(Addresses addresses : index.values()) {
+			sortByTime(addresses);
+			pending -= dropDuplicates(addresses);
+		}
+		//上次没删掉的分段
+		if(!segments.isEmpty()) {
+			for(Segment segment : new ArrayList<>(segments.headMap(segments.lastKey()).values())) {
+				if(segment.live == 0) {
+					segments.remove(segment.id);
+					discard(segment);
+				}
+			}
+		}
+		
+		active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+		if(active == null || active.writePos + HEADER_SIZE >= active.buffer.capacity()) {
+			roll();
+		}
+		
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "offline-store-sync");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::sync, syncMs, syncMs, TimeUnit.MILLISECONDS);
+		AsyncLogger.info("离线消息存储打开，" + segments.size() + "个分段，" + pending + "条未送达。");
+	}
+	
+	/**
+	 * 扫描一个分段，未送达的消息加入索引，遇到不完整的记录时截断
+	 * @param segment
+	 * @return 未送达的消息数
+	 */
+	private int recover(Segment segment) {
+		MappedByteBuffer buffer = segment.buffer;
+		int limit = buffer.capacity();
+		int pos = 0;
+		while(pos + HEADER_SIZE <= limit) {
+			int len = buffer.getInt(pos);
+			if(len <= 0 || pos + HEADER_SIZE + len > limit || buffer.getInt(pos + 4) != checksum(buffer, pos + HEADER_SIZE, len)) {
+				//写到一半时停止，后面的数据作废
+				if(len != 0) {
+					AsyncLogger.warn("离线消息分段" + segment.file.getName() + "在" + pos + "处不完整，已截断。");
+					buffer.putInt(pos, 0);
+					segment.dirty = true;
+				}
+				break;
+			}
+			
+			++segment.total;
+			if(buffer.get(pos + 8) == FLAG_PENDING) {
+				String recipient = readString(buffer, pos + HEADER_SIZE);
+				Addresses addresses = addresses(recipient);
+				addresses.add(address(segment.id, pos));
+				addresses.bytes += HEADER_SIZE + len;
+				++segment.live;
+			}
+			lastTime = Math.max(lastTime, time(segment, pos));
+			pos += HEADER_SIZE + len;
+		}
+		segment.writePos = pos;
+		return segment.live;
+	}
+	
+	/**
+	 * 保存一条离线消息
+	 * @param recipient
+	 * @param sender
+	 * @param chatMsg
+	 * @return 消息太大、接收人的离线消息太多或存储已满时返回false
+	 */
+	synchronized boolean append(String recipient, String sender, String chatMsg) {
+		Addresses existing = index.get(recipient);
+		if(existing != null && existing.size >= maxPerUser) {
+			return false;
+		}
+		
+		byte[] recipientBytes = recipient.getBytes(StandardCharsets.UTF_8);
+		byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+		byte[] msgBytes = (chatMsg == null ? "" : chatMsg).getBytes(StandardCharsets.UTF_8);
+		int len = 4 + recipientBytes.length + 4 + senderBytes.length + 8 + 4 + msgBytes.length;
+		//结尾留出长度0的结束标记
+		if(HEADER_SIZE + len + 4 > segmentSize || (existing != null && existing.bytes + HEADER_SIZE + len > maxUserBytes)) {
+			return false;
+		}
+		
+		try {
+			if(active.writePos + HEADER_SIZE + len + 4 > active.buffer.capacity()) {
+				if(segments.size() >= maxSegments) {
+					AsyncLogger.warn("离线消息存储已满，不再保存。");
+					return false;
+				}
+				roll();
+			}
+		}catch (IOException e) {
+			AsyncLogger.error("创建离线消息分段失败。", e);
+			return false;
+		}
+		
+		int pos = active.writePos;
+		MappedByteBuffer buffer = active.buffer;
+		buffer.position(pos + HEADER_SIZE);
+		putBytes(buffer, recipientBytes);
+		putBytes(buffer, senderBytes);
+		lastTime = Math.max(System.currentTimeMillis(), lastTime + 1);
+		buffer.putLong(lastTime);
+		putBytes(buffer, msgBytes);
+		buffer.putInt(pos + 4, checksum(buffer, pos + HEADER_SIZE, len));
+		buffer.put(pos + 8, FLAG_PENDING);
+		//最后写长度，之前崩溃时这条记录不会被扫描到
+		buffer.putInt(pos, len);
+		
+		active.writePos = pos + HEADER_SIZE + len;
+		++active.total;
+		++active.live;
+		active.dirty = true;
+		Addresses addresses = addresses(recipient);
+		addresses.add(address(active.id, pos));
+		addresses.bytes += HEADER_SIZE + len;
+		return true;
+	}
+	
+	/**
+	 * 按写入顺序取出接收人最前面的一批离线消息，发出并确认写出后调用ack标记为已送达
+	 * 同一个owner的上一批还没确认时返回空，保证一个连接上只有一批在发；
+	 * 换了owner(重新登录)时从头取，之前的owner的确认不再生效，没确认的消息会重发
+	 * @param recipient
+	 * @param owner 发送的连接
+	 * @param max 最多取出的条数
+	 * @return 没有离线消息或上一批还没确认时返回空
+	 */
+	synchronized List<OfflineMessage> take(String recipient, Object owner, int max) {
+		Addresses addresses = index.get(recipient);
+		if(addresses == null || (addresses.owner == owner && addresses.inflight > 0)) {
+			return Collections.emptyList();
+		}
+		
+		addresses.owner = owner;
+		addresses.inflight = Math.min(max, addresses.size);
+		List<OfflineMessage> messages = new ArrayList<>(addresses.inflight);
+		for(int i = 0; i < addresses.inflight; ++i) {
+			messages.add(read(addresses.values[i]));
+		}
+		return messages;
+	}
+	
+	/**
+	 * 确认take取出的一批中前count条已写出，标记为已送达，其余的留给下一次take
+	 * @param recipient
+	 * @param owner 发送的连接，不是最后一次take的owner时忽略
+	 * @param count 已写出的条数，为0时只结束这一批
+	 * @return 标记为已送达的条数
+	 */
+	synchronized int ack(String recipient, Object owner, int count) {
+		Addresses addresses = index.get(recipient);
+		if(addresses == null || addresses.owner != owner) {
+			return 0;
+		}
+		
+		int delivered = Math.min(count, addresses.inflight);
+		for(int i = 0; i < delivered; ++i) {
+			addresses.bytes -= markDelivered(addresses.values[i]);
+		}
+		
+		addresses.inflight = 0;
+		addresses.removeFirst(delivered);
+		if(addresses.size == 0) {
+			index.remove(recipient);
+		}
+		return delivered;
+	}
+	
+	/**
+	 * 在原位置标记为已送达
+	 * @param address
+	 * @return 记录占用的字节数
+	 */
+	private int markDelivered(long address) {
+		Segment segment = segments.get(segmentId(address));
+		int pos = position(address);
+		segment.buffer.put(pos + 8, FLAG_DELIVERED);
+		segment.dirty = true;
+		--segment.live;
+		return HEADER_SIZE + segment.buffer.getInt(pos);
+	}
+	
+	private OfflineMessage read(long address) {
+		Segment segment = segments.get(segmentId(address));
+		OfflineMessage message = new OfflineMessage();
+		int offset = position(address) + HEADER_SIZE;
+		offset += 4 + segment.buffer.getInt(offset);
+		message.sender = readString(segment.buffer, offset);
+		offset += 4 + segment.buffer.getInt(offset);
+		message.time = segment.buffer.getLong(offset);
+		message.chatMsg = readString(segment.buffer, offset + 8);
+		return message;
+	}
+	
+	/**
+	 * 关闭存储，刷盘
+	 */
+	void close() {
+		if(scheduler != null) {
+			scheduler.shutdown();
+			try {
+				//等正在进行的刷盘和压缩结束，不和下面的刷盘同时进行
+				scheduler.awaitTermination(10, TimeUnit.SECONDS);
+			}catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		sync();
+	}
+	
+	/**
+	 * 定时任务：刷盘，然后压缩一个分段
+	 */
+	private void sync() {
+		List<Segment> dirty = new ArrayList<>();
+		synchronized (this) {
+			for(Segment segment : segments.values()) {
+				if(segment.dirty) {
+					segment.dirty = false;
+					dirty.add(segment);
+				}
+			}
+		}
+		
+		//刷盘不在锁内，不阻塞写入
+		for(Segment segment : dirty) {
+			segment.buffer.force();
+		}
+		
+		try {
+			compact();
+		}catch (Exception e) {
+			AsyncLogger.error("压缩离线消息分段失败。", e);
+		}
+	}
+	
+	/**
+	 * 删除消息全部送达的分段，把未送达消息少的分段中的消息搬到当前分段后删除；
+	 * 分段数到了上限时，只要有已送达的消息就压缩，腾出空间
+	 * 搬动和替换位置在锁内，中间的刷盘和删除在锁外；刷盘期间送达的消息，替换时在新位置也标记为已送达
+	 * @throws IOException
+	 */
+	private void compact() throws IOException {
+		Segment candidate;
+		Map<Long, Long> moved = new HashMap<>();
+		List<Segment> targets = new ArrayList<>();
+		List<Segment> removed = new ArrayList<>();
+		synchronized (this) {
+			candidate = selectCandidate(removed);
+		}
+		for(Segment segment : removed) {
+			discard(segment);
+		}
+		if(candidate == null) {
+			return;
+		}
+		
+		synchronized (this) {			
+			//搬动时保持每个接收人的消息顺序，只替换位置
+			int pos = 0;
+			while(pos < candidate.writePos) {
+				int len = candidate.buffer.getInt(pos);
+				if(candidate.buffer.get(pos + 8) == FLAG_PENDING) {
+					if(active.writePos + HEADER_SIZE + len + 4 > active.buffer.capacity()) {
+						roll();
+					}
+					if(!targets.contains(active)) {
+						targets.add(active);
+					}
+					
+					ByteBuffer record = candidate.buffer.duplicate();
+					record.position(pos + 4).limit(pos + HEADER_SIZE + len);
+					active.buffer.position(active.writePos + 4);
+					active.buffer.put(record);
+					active.buffer.putInt(active.writePos, len);
+					moved.put(address(candidate.id, pos), address(active.id, active.writePos));
+					active.writePos += HEADER_SIZE + len;
+					++active.total;
+					++active.live;
+					active.dirty = true;
+				}
+				pos += HEADER_SIZE + len;
+			}
+		}
+		
+		//新位置落盘后才在旧位置标记为已送达，中途崩溃时两份都在，打开时按时间去重
+		for(Segment target : targets) {
+			target.buffer.force();
+		}
+		
+		synchronized (this) {
+			for(Map.Entry<Long, Long> entry : moved.entrySet()) {
+				int from = position(entry.getKey());
+				if(candidate.buffer.get(from + 8) == FLAG_DELIVERED) {
+					markDelivered(entry.getValue());
+				}else {
+					candidate.buffer.put(from + 8, FLAG_DELIVERED);
+				}
+			}
+			for(Addresses addresses : index.values()) {
+				for(int i = 0; i < addresses.size; ++i) {
+					Long to = moved.get(addresses.values[i]);
+					if(to != null) {
+						addresses.values[i] = to;
+					}
+				}
+			}
+			segments.remove(candidate.id);
+		}
+		discard(candidate);
+		AsyncLogger.info("压缩离线消息分段" + candidate.file.getName() + "，搬动" + moved.size() + "条。");
+	}
+	
+	/**
+	 * 移除消息全部送达的分段，选出要压缩的分段
+	 * @param removed 移除的分段，由调用方在锁外删除
+	 * @return 没有需要压缩的分段时返回null
+	 */
+	private Segment selectCandidate(List<Segment> removed) {
+		boolean full = segments.size() >= maxSegments;
+		Segment candidate = null;
+		for(Segment segment : new ArrayList<>(segments.values())) {
+			if(segment == active) {
+				continue;
+			}
+			
+			if(segment.live == 0) {
+				segments.remove(segment.id);
+				removed.add(segment);
+			}else if(candidate == null && (segment.live * COMPACT_RATIO < segment.total || (full && segment.live < segment.total))) {
+				candidate = segment;
+			}
+		}
+		return candidate;
+	}
+	
+	/**
+	 * 删除已经从segments中移除的分段：已送达的标记先落盘，解除映射后删除文件
+	 * 删除失败时文件里没有未送达的消息，下次打开时再删
+	 * @param segment
+	 */
+	private static void discard(Segment segment) {
+		segment.buffer.force();
+		unmap(segment.buffer);
+		if(!segment.file.delete()) {
+			AsyncLogger.warn("删除离线消息分段失败，下次打开时重试: " + segment.file);
+		}
+	}
+	
+	/**
+	 * 马上解除映射，不等GC回收；Windows上映射着的文件不能删除。之后不能再访问该buffer
+	 * JDK9以上用Unsafe.invokeCleaner，JDK8用DirectBuffer的cleaner，都不可用时只能等GC
+	 * @param buffer
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			try {
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				invokeCleaner.invoke(theUnsafe.get(null), buffer);
+			}catch (NoSuchMethodException e) {
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if(cleaner != null) {
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			}
+		}catch (ReflectiveOperationException | RuntimeException e) {
+			AsyncLogger.warn("解除离线消息分段的映射失败: " + e);
+		}
+	}
+	
+	/**
+	 * 创建新的分段作为当前分段
+	 * @throws IOException
+	 */
+	private void roll() throws IOException {
+		int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		File file = new File(dir, String.format("%s%010d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+		Segment segment = new Segment(id, file, segmentSize);
+		segments.put(id, segment);
+		if(active != null) {
+			active.dirty = true;
+		}
+		active = segment;
+	}
+	
+	/**
+	 * 按记录的时间排序，时间相同时保持原来的顺序
+	 * @param addresses
+	 */
+	private void sortByTime(Addresses addresses) {
+		Long[] sorted = new Long[addresses.size];
+		for(int i = 0; i < sorted.length; ++i) {
+			sorted[i] = addresses.values[i];
+		}
+		Arrays.sort(sorted, Comparator.comparingLong(address -> time(segments.get(segmentId(address)), position(address))));
+		for(int i = 0; i < sorted.length; ++i) {
+			addresses.values[i] = sorted[i];
+		}
+	}
+	
+	/**
+	 * 去掉重复的消息：压缩时新位置落盘后、旧位置标记为已送达前崩溃，同一条消息在两个分段里都未送达。
+	 * 记录的时间在存储内唯一，按时间排序后相同的相邻两条是同一条，把前面(旧分段)的标记为已送达
+	 * @param addresses 已按时间排序
+	 * @return 去掉的条数
+	 */
+	private int dropDuplicates(Addresses addresses) {
+		int n = 0;
+		long previousTime = -1;
+		for(int i = 0; i < addresses.size; ++i) {
+			long address = addresses.values[i];
+			long time = time(segments.get(segmentId(address)), position(address));
+			if(n > 0 && time == previousTime) {
+				addresses.bytes -= markDelivered(addresses.values[n - 1]);
+				addresses.values[n - 1] = address;
+			}else {
+				addresses.values[n++] = address;
+			}
+			previousTime = time;
+		}
+		int dropped = addresses.size - n;
+		addresses.size = n;
+		return dropped;
+	}
+	
+	/**
+	 * 读取记录的时间
+	 * @param segment
+	 * @param pos 记录的位置
+	 * @return
+	 */
+	private static long time(Segment segment, int pos) {
+		int offset = pos + HEADER_SIZE;
+		offset += 4 + segment.buffer.getInt(offset);
+		offset += 4 + segment.buffer.getInt(offset);
+		return segment.buffer.getLong(offset);
+	}
+	
+	private Addresses addresses(String recipient) {
+		Addresses addresses = index.get(recipient);
+		if(addresses == null) {
+			addresses = new Addresses();
+			index.put(recipient, addresses);
+		}
+		return addresses;
+	}
+	
+	private int checksum(MappedByteBuffer buffer, int pos, int len) {
+		ByteBuffer data = buffer.duplicate();
+		data.position(pos).limit(pos + len);
+		crc.reset();
+		crc.update(data);
+		return (int) crc.getValue();
+	}
+	
+	private static void putBytes(MappedByteBuffer buffer, byte[] data) {
+		buffer.putInt(data.length);
+		buffer.put(data);
+	}
+	
+	private static String readString(MappedByteBuffer buffer, int pos) {
+		byte[] data = new byte[buffer.getInt(pos)];
+		ByteBuffer src = buffer.duplicate();
+		src.position(pos + 4);
+		src.get(data);
+		return new String(data, StandardCharsets.UTF_8);
+	}
+	
+	private static long address(int segmentId, int pos) {
+		return ((long) segmentId << 32) | pos;
+	}
+	
+	private static int segmentId(long address) {
+		return (int) (address >>> 32);
+	}
+	
+	private static int position(long address) {
+		return (int) address;
+	}
+	
+	/**
+	 * 一条离线消息
+	 */
+	static class OfflineMessage {
+		
+		String sender;
+		
+		/**
+		 * 发送时间
+		 */
+		long time;
+		
+		String chatMsg;
+	}
+	
+	/**
+	 * 一个分段文件
+	 */
+	private static class Segment {
+		
+		final int id;
+		
+		final File file;
+		
+		final MappedByteBuffer buffer;
+		
+		/**
+		 * 下一条记录的位置
+		 */
+		int writePos;
+		
+		/**
+		 * 记录总数和未送达的记录数
+		 */
+		int total;
+		int live;
+		
+		/**
+		 * 上次刷盘后是否有修改
+		 */
+		boolean dirty;
+		
+		Segment(int id, File file, int size) throws IOException {
+			this.id = id;
+			this.file = file;
+			try(RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				FileChannel channel = raf.getChannel()){
+				//已有的文件按实际大小映射；映射在通道关闭后仍然有效
+				this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, raf.length()));
+			}
+		}
+	}
+	
+	/**
+	 * 按顺序保存的位置列表
+	 */
+	private static class Addresses {
+		
+		long[] values = new long[4];
+		
+		int size;
+		
+		/**
+		 * 正在发送、等待确认的前几条，和发送它们的连接
+		 */
+		int inflight;
+		Object owner;
+		
+		/**
+		 * 这些消息占用的字节数
+		 */
+		long bytes;
+		
+		void add(long address) {
+			if(size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = address;
+		}
+		
+		void removeFirst(int count) {
+			System.arraycopy(values, count, values, 0, size - count);
+			size -= count;
+		}
+	}
+}
@@ -0,0 +1,389 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 客户端的发送队列
+ * 有界，入队不会阻塞发送线程；由写出阶段(事件循环或写线程)取出，多帧合并后一次写出
+ * 按排队的字节数分高低水位：超过高水位后拥塞，低优先级的帧不再入队；
+ * 降到低水位以下时解除拥塞并通知补发；超过上限或拥塞持续太久时通知断开。
+ * 入队只表示接受，需要确认写出的调用方在帧后面放一个写出标记，写出者写到标记时回调；
+ * 关闭时丢弃的帧和标记都不会回调
+ */
+class OutboundQueue {
+	
+	private final Queue<ByteBuffer> frames = new ConcurrentLinkedQueue<>();
+	
+	/**
+	 * 队列中的帧数
+	 */
+	private final AtomicInteger size = new AtomicInteger();
+	
+	/**
+	 * 队列中的字节数
+	 */
+	private final AtomicLong bytes = new AtomicLong();
+	
+	/**
+	 * 最大帧数
+	 */
+	private final int capacity;
+	
+	/**
+	 * 是否已经安排了写出，保证同一时刻只有一个写出者
+	 */
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	
+	/**
+	 * 安排写出的动作
+	 */
+	private Runnable flushTrigger;
+	
+	/**
+	 * 安排写出的时间，写空时计算写出耗时
+	 */
+	private long flushScheduledAt;
+	
+	private final ServerMetrics metrics;
+	
+	private volatile boolean closed;
+	
+	/**
+	 * 低水位、高水位、字节数上限，不设置时不限制
+	 */
+	private long lowWater = Long.MAX_VALUE;
+	private long highWater = Long.MAX_VALUE;
+	private long maxBytes = Long.MAX_VALUE;
+	
+	/**
+	 * 拥塞持续超过该时间(纳秒)的连接断开
+	 */
+	private long slowConsumerNanos = Long.MAX_VALUE;
+	
+	private PressureListener pressureListener;
+	
+	/**
+	 * 进入拥塞的时间(System.nanoTime()，为0时记为1)，0表示不拥塞；超过高水位时进入，降到低水位以下时解除
+	 * 拥塞状态和时间在同一个变量里，没抢到进入拥塞的入队线程读到的一定是已经记下的时间
+	 */
+	private final AtomicLong congestedSince = new AtomicLong();
+	
+	/**
+	 * 是否已通知断开
+	 */
+	private final AtomicBoolean overflowed = new AtomicBoolean();
+	
+	/**
+	 * 进入拥塞时交给检查线程定时检查拥塞时长，没有新帧入队的慢连接也能断开
+	 */
+	private volatile Consumer<OutboundQueue> congestionWatcher;
+	
+	/**
+	 * 是否在检查线程的拥塞检查中
+	 */
+	private final AtomicBoolean watched = new AtomicBoolean();
+	
+	/**
+	 * 还没写出的写出标记
+	 */
+	private final Queue<WriteMarker> markers = new ConcurrentLinkedQueue<>();
+	
+	OutboundQueue(int capacity, ServerMetrics metrics) {
+		this.capacity = capacity;
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * 设置按字节数的背压，在开始入队之前调用
+	 * @param lowWater
+	 * @param highWater
+	 * @param maxBytes
+	 * @param slowConsumerMs
+	 * @param pressureListener
+	 */
+	void setBackpressure(long lowWater, long highWater, long maxBytes, long slowConsumerMs, PressureListener pressureListener) {
+		this.lowWater = lowWater;
+		this.highWater = highWater;
+		this.maxBytes = maxBytes;
+		this.slowConsumerNanos = TimeUnit.MILLISECONDS.toNanos(slowConsumerMs);
+		this.pressureListener = pressureListener;
+	}
+	
+	void setFlushTrigger(Runnable flushTrigger) {
+		this.flushTrigger = flushTrigger;
+	}
+	
+	void setCongestionWatcher(Consumer<OutboundQueue> congestionWatcher) {
+		this.congestionWatcher = congestionWatcher;
+	}
+	
+	/**
+	 * 入队一帧
+	 * 超过上限，或拥塞持续太久时，丢弃该帧并通知断开；单帧就超过字节数上限时只丢弃该帧，
+	 * 是发送方的内容太大，不断开接收方
+	 * @param frame
+	 * @return 帧太大、队列已满或已关闭时返回false，帧被丢弃
+	 */
+	boolean offer(ByteBuffer frame) {
+		if(closed) {
+			return false;
+		}
+		
+		int frameBytes = frame.remaining();
+		if(frameBytes > maxBytes) {
+			return false;
+		}
+		
+		long total = bytes.addAndGet(frameBytes);
+		if(size.incrementAndGet() > capacity || total > maxBytes) {
+			size.decrementAndGet();
+			bytes.addAndGet(-frameBytes);
+			//没有设置背压的队列只丢弃
+			if(pressureListener != null) {
+				overflow();
+			}
+			return false;
+		}
+		
+		if(total > highWater) {
+			long now = System.nanoTime();
+			long since = congestedSince.get();
+			if(since == 0) {
+				//同时入队的线程只有一个进入拥塞，其他的刚拥塞，不算太久
+				if(congestedSince.compareAndSet(0, now == 0 ? 1 : now)) {
+					metrics.outboundCongested();
+					watch();
+				}
+			}else if(now - since > slowConsumerNanos) {
+				size.decrementAndGet();
+				bytes.addAndGet(-frameBytes);
+				overflow();
+				return false;
+			}
+		}
+		
+		frames.add(frame);
+		scheduleFlush();
+		return true;
+	}
+	
+	/**
+	 * 有空间时入队，拥塞或放不下时不入队，也不会断开连接
+	 * 用于可以稍后再发的内容，调用方在拥塞解除或写出标记回调后继续
+	 * @param frame
+	 * @return 拥塞、放不下或已关闭时返回false
+	 */
+	boolean offerIfRoom(ByteBuffer frame) {
+		int frameBytes = frame.remaining();
+		if(closed || congestedSince.get() != 0 || size.get() >= capacity || frameBytes > highWater - bytes.get()) {
+			return false;
+		}
+		return offer(frame);
+	}
+	
+	/**
+	 * 在已入队的帧后面放一个写出标记，写出者写到它时在写出的线程上回调，说明之前的帧都已写出
+	 * 标记没有内容，不受字节数和帧数限制；队列关闭时不回调
+	 * @param onWritten
+	 * @return 已关闭时返回false
+	 */
+	boolean offerMarker(Runnable onWritten) {
+		if(closed) {
+			return false;
+		}
+		
+		size.incrementAndGet();
+		ByteBuffer frame = ByteBuffer.allocate(0);
+		markers.add(new WriteMarker(frame, onWritten));
+		frames.add(frame);
+		scheduleFlush();
+		return true;
+	}
+	
+	/**
+	 * 写出者写完一帧后检查是否是写出标记，是时回调
+	 * 普通的帧至少有长度前缀，只有标记的容量为0
+	 * @param frame
+	 */
+	void written(ByteBuffer frame) {
+		if(frame.capacity() != 0) {
+			return;
+		}
+		
+		for(Iterator<WriteMarker> it = markers.iterator(); it.hasNext(); ) {
+			WriteMarker marker = it.next();
+			if(marker.frame == frame) {
+				it.remove();
+				if(!closed) {
+					marker.onWritten.run();
+				}
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * 入队一个低优先级的帧，拥塞时直接丢弃，由调用方记下需要补发
+	 * @param frame
+	 * @return 拥塞、队列已满或已关闭时返回false
+	 */
+	boolean offerLowPriority(ByteBuffer frame) {
+		if(congestedSince.get() != 0) {
+			return false;
+		}
+		return offer(frame);
+	}
+	
+	/**
+	 * 是否拥塞
+	 * @return
+	 */
+	boolean isCongested() {
+		return congestedSince.get() != 0;
+	}
+	
+	/**
+	 * 由检查线程定时调用，拥塞持续太久时通知断开
+	 * 慢连接不再有新帧入队时，入队时的检查不会发生，要靠这里
+	 * @param now System.nanoTime()
+	 * @return 仍然拥塞、需要继续检查时返回true
+	 */
+	boolean checkSlowConsumer(long now) {
+		long since = congestedSince.get();
+		if(!closed && since != 0) {
+			if(now - since <= slowConsumerNanos) {
+				return true;
+			}
+			overflow();
+			return false;
+		}
+		
+		//先清除标记再检查一次，期间重新拥塞时不会漏掉
+		watched.set(false);
+		return !closed && congestedSince.get() != 0 && watched.compareAndSet(false, true);
+	}
+	
+	private void watch() {
+		Consumer<OutboundQueue> watcher = congestionWatcher;
+		if(watcher != null && watched.compareAndSet(false, true)) {
+			watcher.accept(this);
+		}
+	}
+	
+	/**
+	 * 超过上限，关闭队列并通知断开，只通知一次
+	 */
+	private void overflow() {
+		if(closed || !overflowed.compareAndSet(false, true)) {
+			return;
+		}
+		
+		close();
+		metrics.slowConsumerDisconnected();
+		if(pressureListener != null) {
+			pressureListener.onOverflow();
+		}
+	}
+	
+	/**
+	 * 取出最多batch.length帧
+	 * @param batch
+	 * @return 取出的帧数
+	 */
+	int poll(ByteBuffer[] batch) {
+		int count = 0;
+		long bytes = 0;
+		ByteBuffer frame;
+		while(count < batch.length && (frame = frames.poll()) != null) {
+			batch[count++] = frame;
+			bytes += frame.remaining();
+		}
+		
+		if(count > 0) {
+			size.addAndGet(-count);
+			metrics.bytesOut(bytes);
+			long remaining = this.bytes.addAndGet(-bytes);
+			//降到低水位以下，解除拥塞
+			if(remaining <= lowWater && congestedSince.get() != 0 && congestedSince.getAndSet(0) != 0 && !closed) {
+				pressureListener.onDrained();
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * 写出者写完后调用，期间又有新帧入队时重新安排写出
+	 */
+	void flushed() {
+		metrics.recordWrite(System.nanoTime() - flushScheduledAt);
+		flushScheduled.set(false);
+		if(!frames.isEmpty()) {
+			scheduleFlush();
+		}
+	}
+	
+	private void scheduleFlush() {
+		if(!closed && flushScheduled.compareAndSet(false, true)) {
+			flushScheduledAt = System.nanoTime();
+			flushTrigger.run();
+		}
+	}
+	
+	int size() {
+		return size.get();
+	}
+	
+	boolean isClosed() {
+		return closed;
+	}
+	
+	/**
+	 * 关闭队列，丢弃未写出的帧，未写出的标记不再回调
+	 */
+	void close() {
+		closed = true;
+		frames.clear();
+		markers.clear();
+		size.set(0);
+		bytes.set(0);
+	}
+	
+	/**
+	 * 写出标记和写出后的回调
+	 */
+	private static class WriteMarker {
+		
+		final ByteBuffer frame;
+		
+		final Runnable onWritten;
+		
+		WriteMarker(ByteBuffer frame, Runnable onWritten) {
+			this.frame = frame;
+			this.onWritten = onWritten;
+		}
+	}
+	
+	/**
+	 * 背压的通知，在入队或写出的线程上调用
+	 */
+	interface PressureListener {
+		
+		/**
+		 * 拥塞解除，被丢弃的低优先级内容可以补发了
+		 */
+		void onDrained();
+		
+		/**
+		 * 超过上限或拥塞太久，队列已关闭，连接需要断开
+		 */
+		void onOverflow();
+	}
+}
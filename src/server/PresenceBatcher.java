@@ -0,0 +1,122 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import base.AsyncLogger;
+
+/**
+ * 合并一段时间内的用户上下线事件
+ * 登录风暴时每个客户端只收到一帧批量更新，而不是每个事件一帧
+ */
+class PresenceBatcher {
+	
+	/**
+	 * 合并的时间窗口(毫秒)
+	 */
+	private final long windowMs;
+	
+	/**
+	 * 批量发送
+	 */
+	private final Flusher flusher;
+	
+	/**
+	 * 未发送的事件
+	 */
+	private final Queue<PresenceEvent> events = new ConcurrentLinkedQueue<>();
+	
+	/**
+	 * 是否已安排发送
+	 */
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	
+	private final ScheduledExecutorService scheduler;
+	
+	PresenceBatcher(long windowMs, Flusher flusher) {
+		this.windowMs = windowMs;
+		this.flusher = flusher;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "presence-batcher");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	/**
+	 * 添加一个上下线事件，窗口结束时统一发送
+	 * @param userName
+	 * @param isLogin
+	 * @param version 名单变化后的版本，需按版本顺序添加
+	 */
+	void add(String userName, boolean isLogin, long version) {
+		events.add(new PresenceEvent(userName, isLogin, version));
+		if(flushScheduled.compareAndSet(false, true)) {
+			scheduler.schedule(this::flush, windowMs, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	private void flush() {
+		flushScheduled.set(false);
+		
+		//同一个用户只保留最后的状态，先上线再下线只发下线
+		Map<String, Boolean> lastStatus = new LinkedHashMap<>();
+		long fromVersion = 0;
+		long version = 0;
+		PresenceEvent event;
+		while((event = events.poll()) != null) {
+			if(fromVersion == 0) {
+				fromVersion = event.version;
+			}
+			lastStatus.remove(event.userName);
+			lastStatus.put(event.userName, event.isLogin);
+			version = event.version;
+		}
+		if(lastStatus.isEmpty()) {
+			return;
+		}
+		
+		List<String> loginUsers = new ArrayList<>();
+		List<String> logoutUsers = new ArrayList<>();
+		for(Map.Entry<String, Boolean> entry : lastStatus.entrySet()) {
+			(entry.getValue() ? loginUsers : logoutUsers).add(entry.getKey());
+		}
+		
+		try {
+			flusher.flush(loginUsers, logoutUsers, fromVersion, version);
+		}catch (Exception e) {
+			AsyncLogger.error("发送上下线通知失败。", e);
+		}
+	}
+	
+	void shutdown() {
+		scheduler.shutdownNow();
+	}
+	
+	/**
+	 * 批量发送，参数为上线和下线的用户以及合并的第一个和最后一个版本
+	 */
+	interface Flusher {
+		void flush(List<String> loginUsers, List<String> logoutUsers, long fromVersion, long version);
+	}
+	
+	private static class PresenceEvent {
+		final String userName;
+		final boolean isLogin;
+		final long version;
+		
+		PresenceEvent(String userName, boolean isLogin, long version) {
+			this.userName = userName;
+			this.isLogin = isLogin;
+			this.version = version;
+		}
+	}
+}
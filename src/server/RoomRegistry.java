@@ -0,0 +1,121 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 所有群聊房间
+ * 房间按名字查找，成员按会话id记在房间的位图里，每个连接另外记录自己加入的房间，下线时逐个退出
+ */
+class RoomRegistry {
+	
+	private final ConcurrentHashMap<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+	
+	/**
+	 * 创建房间并加入
+	 * @param roomName
+	 * @param clientSocket
+	 * @return 错误信息，成功时为空
+	 */
+	String create(String roomName, ChatClientSocket clientSocket) {
+		ChatRoom room = new ChatRoom(roomName);
+		if(rooms.putIfAbsent(roomName, room) != null) {
+			return "该房间已存在！";
+		}
+		return join(room, clientSocket);
+	}
+	
+	/**
+	 * 加入已有的房间
+	 * @param roomName
+	 * @param clientSocket
+	 * @return 错误信息，成功时为空
+	 */
+	String join(String roomName, ChatClientSocket clientSocket) {
+		ChatRoom room = rooms.get(roomName);
+		if(room == null) {
+			return "该房间不存在！";
+		}
+		return join(room, clientSocket);
+	}
+	
+	private String join(ChatRoom room, ChatClientSocket clientSocket) {
+		int sessionId = clientSocket.getSessionId();
+		if(sessionId < 0) {
+			return "未登录！";
+		}
+		
+		//先记到连接上，发消息时两边都有才算成员
+		clientSocket.getRooms().add(room);
+		int result = room.join(sessionId);
+		if(result == ChatRoom.JOIN_CLOSED) {
+			//最后一个成员刚退出
+			clientSocket.getRooms().remove(room);
+			return "该房间不存在！";
+		}
+		
+		//加入的同时被挤下线，会话id可能已经给了别人，已经有的位属于拿到这个id的新会话，只撤销这次设置的
+		if(clientSocket.getSessionId() != sessionId) {
+			if(result == ChatRoom.JOIN_ADDED) {
+				leave(room, clientSocket, sessionId);
+			}else {
+				clientSocket.getRooms().remove(room);
+			}
+			return "未登录！";
+		}
+		return null;
+	}
+	
+	/**
+	 * 退出房间
+	 * @param roomName
+	 * @param clientSocket
+	 * @return 错误信息，成功时为空
+	 */
+	String leave(String roomName, ChatClientSocket clientSocket) {
+		ChatRoom room = rooms.get(roomName);
+		if(room == null || !clientSocket.getRooms().contains(room)) {
+			return "未加入该房间！";
+		}
+		
+		leave(room, clientSocket, clientSocket.getSessionId());
+		return null;
+	}
+	
+	/**
+	 * 退出所有房间，在释放会话id之前调用
+	 * @param clientSocket
+	 */
+	void leaveAll(ChatClientSocket clientSocket) {
+		int sessionId = clientSocket.getSessionId();
+		for(ChatRoom room : clientSocket.getRooms()) {
+			leave(room, clientSocket, sessionId);
+		}
+	}
+	
+	private void leave(ChatRoom room, ChatClientSocket clientSocket, int sessionId) {
+		if(!clientSocket.getRooms().remove(room)) {
+			return;
+		}
+		
+		if(sessionId >= 0 && room.leave(sessionId)) {
+			rooms.remove(room.getName(), room);
+		}
+	}
+	
+	/**
+	 * 按名字取房间
+	 * @param roomName
+	 * @return 不存在时为空
+	 */
+	ChatRoom get(String roomName) {
+		return rooms.get(roomName);
+	}
+	
+	/**
+	 * 房间数
+	 * @return
+	 */
+	int size() {
+		return rooms.size();
+	}
+}
@@ -0,0 +1,222 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * 带版本号的在线用户名单
+ * 每次上下线版本号加一，最近的变化保存在有界的环形日志里，
+ * 客户端带着上次的版本号重新登录时只需发送这之后的变化
+ */
+class Roster {
+	
+	/**
+	 * 服务启动时间，版本号带上它，服务重启后客户端的旧版本号自然失效
+	 */
+	private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+	
+	private final Lock lock = new ReentrantLock();
+	
+	/**
+	 * 在线用户
+	 */
+	private final Set<String> names = new HashSet<>();
+	
+	/**
+	 * 当前版本
+	 */
+	private long version;
+	
+	/**
+	 * 变化日志，版本v的变化保存在v % 容量的位置
+	 */
+	private final String[] logNames;
+	private final boolean[] logIsLogin;
+	
+	/**
+	 * 变化监听，在锁内按版本顺序调用，参数为用户名、是否上线、版本；只应把通知排进队列，不应在锁内发送
+	 */
+	private final ChangeListener listener;
+	
+	Roster(int logCapacity, ChangeListener listener) {
+		this.logNames = new String[logCapacity];
+		this.logIsLogin = new boolean[logCapacity];
+		this.listener = listener;
+	}
+	
+	/**
+	 * 用户上线
+	 * 锁内只取出上线前的名单(全量或增量)和版本，再记录上线；名单的发送在锁外，
+	 * 之后的变化由调用方按版本从这里接着补发，不会遗漏或乱序
+	 * @param userName
+	 * @param knownVersion 客户端已知的版本，可以为空
+	 * @return 上线前的名单
+	 */
+	RosterSync join(String userName, String knownVersion) {
+		lock.lock();
+		try {
+			RosterSync sync = sync(parseVersion(knownVersion));
+			if(names.add(userName)) {
+				record(userName, true);
+			}
+			return sync;
+		}finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * 在锁内把某个版本之后的变化(或全量名单)交给回调，用于补发被跳过的通知
+	 * @param knownVersion 客户端已经收到的版本
+	 * @param callback
+	 */
+	void resync(long knownVersion, Consumer<RosterSync> callback) {
+		lock.lock();
+		try {
+			callback.accept(sync(knownVersion));
+		}finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * 其他节点的用户上线，不需要名单
+	 * @param userName
+	 */
+	void join(String userName) {
+		lock.lock();
+		try {
+			if(names.add(userName)) {
+				record(userName, true);
+			}
+		}finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * 用户下线
+	 * @param userName
+	 */
+	void leave(String userName) {
+		lock.lock();
+		try {
+			if(names.remove(userName)) {
+				record(userName, false);
+			}
+		}finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * 版本号的字符串形式，客户端只保存不解析
+	 * @param version
+	 * @return
+	 */
+	String formatVersion(long version) {
+		return epoch + ":" + version;
+	}
+	
+	private void record(String userName, boolean isLogin) {
+		++version;
+		int index = (int) (version % logNames.length);
+		logNames[index] = userName;
+		logIsLogin[index] = isLogin;
+		listener.onChange(userName, isLogin, version);
+	}
+	
+	/**
+	 * 计算客户端需要的名单
+	 * @param known 客户端已知的版本，不认识时为-1
+	 * @return
+	 */
+	private RosterSync sync(long known) {
+		RosterSync sync = new RosterSync();
+		sync.version = formatVersion(version);
+		sync.rawVersion = version;
+		
+		if(known < 0 || known > version || version - known > logNames.length) {
+			//版本不认识或已经不在日志里，发全量
+			sync.snapshot = new ArrayList<>(names);
+			return sync;
+		}
+		
+		//同一个用户只保留最后的状态
+		Map<String, Boolean> lastStatus = new LinkedHashMap<>();
+		for(long v = known + 1; v <= version; ++v) {
+			int index = (int) (v % logNames.length);
+			lastStatus.remove(logNames[index]);
+			lastStatus.put(logNames[index], logIsLogin[index]);
+		}
+		
+		sync.loginUsers = new ArrayList<>();
+		sync.logoutUsers = new ArrayList<>();
+		for(Map.Entry<String, Boolean> entry : lastStatus.entrySet()) {
+			(entry.getValue() ? sync.loginUsers : sync.logoutUsers).add(entry.getKey());
+		}
+		return sync;
+	}
+	
+	/**
+	 * 解析客户端带来的版本号，不是本次启动的返回-1
+	 * @param knownVersion
+	 * @return
+	 */
+	private long parseVersion(String knownVersion) {
+		if(knownVersion == null || !knownVersion.startsWith(epoch + ":")) {
+			return -1;
+		}
+		
+		try {
+			return Long.parseLong(knownVersion.substring(epoch.length() + 1));
+		}catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * 名单变化监听
+	 */
+	interface ChangeListener {
+		void onChange(String userName, boolean isLogin, long version);
+	}
+	
+	/**
+	 * 客户端登录时需要的名单，全量和增量二选一
+	 */
+	static class RosterSync {
+		
+		/**
+		 * 名单的版本
+		 */
+		String version;
+		
+		/**
+		 * 名单的版本号，不带启动时间
+		 */
+		long rawVersion;
+		
+		/**
+		 * 全量名单
+		 */
+		List<String> snapshot;
+		
+		/**
+		 * 增量-上线的用户
+		 */
+		List<String> loginUsers;
+		
+		/**
+		 * 增量-下线的用户
+		 */
+		List<String> logoutUsers;
+	}
+}
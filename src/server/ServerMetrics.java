@@ -0,0 +1,309 @@
+package server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import base.LatencyHistogram;
+import base.MsgConst;
+
+/**
+ * 服务端运行指标
+ * 计数用分段计数器，耗时用无锁直方图，记录时不加锁，多个线程同时记录也只有很小的开销
+ */
+class ServerMetrics {
+	
+	/**
+	 * 按命令统计，包括协议中的所有命令，不认识的命令都算在最后的other里
+	 */
+	private static final String[] COMMANDS = {MsgConst.CMD_LOGIN, MsgConst.CMD_LOGOUT, MsgConst.CMD_CHAT_TO,
+			MsgConst.CMD_UPDATE_ONLINE_USER_LIST, MsgConst.CMD_ROSTER, MsgConst.CMD_NODE_SYNC, MsgConst.CMD_HISTORY,
+			MsgConst.CMD_ROOM_CREATE, MsgConst.CMD_ROOM_JOIN, MsgConst.CMD_ROOM_LEAVE, MsgConst.CMD_ROOM_MSG,
+			MsgConst.CMD_PING, MsgConst.CMD_PONG, "other"};
+	
+	/**
+	 * 命令在COMMANDS中的下标，启动时建好，之后只读
+	 */
+	private static final Map<String, Integer> COMMAND_INDEXES = new HashMap<>();
+	
+	static {
+		for(int i = 0; i < COMMANDS.length - 1; ++i) {
+			COMMAND_INDEXES.put(COMMANDS[i], i);
+		}
+	}
+	
+	private final LongAdder[] commandCounts = new LongAdder[COMMANDS.length];
+	
+	private final LatencyHistogram[] commandLatencies = new LatencyHistogram[COMMANDS.length];
+	
+	private final LongAdder bytesIn = new LongAdder();
+	
+	private final LongAdder bytesOut = new LongAdder();
+	
+	/**
+	 * 发送队列满时丢弃的帧数
+	 */
+	private final LongAdder framesDropped = new LongAdder();
+	
+	/**
+	 * 保存和送达的离线消息数
+	 */
+	private final LongAdder offlineStored = new LongAdder();
+	
+	private final LongAdder offlineDelivered = new LongAdder();
+	
+	/**
+	 * 群聊消息发出的帧数，每个接收方算一帧
+	 */
+	private final LongAdder roomDelivered = new LongAdder();
+	
+	/**
+	 * 原样转发的压缩帧数和服务端解压的次数
+	 */
+	private final LongAdder compressedRelayed = new LongAdder();
+	
+	private final LongAdder decompressed = new LongAdder();
+	
+	/**
+	 * 发送队列进入拥塞的次数和因接收太慢断开的连接数
+	 */
+	private final LongAdder outboundCongested = new LongAdder();
+	
+	private final LongAdder slowConsumerDisconnected = new LongAdder();
+	
+	/**
+	 * 拥塞时跳过的上下线通知数和拥塞解除后的补发次数
+	 */
+	private final LongAdder presenceSkipped = new LongAdder();
+	
+	private final LongAdder presenceResynced = new LongAdder();
+	
+	/**
+	 * 空闲连接发出的心跳数和因空闲断开的连接数
+	 */
+	private final LongAdder heartbeatSent = new LongAdder();
+	
+	private final LongAdder idleReaped = new LongAdder();
+	
+	private final AtomicLong connections = new AtomicLong();
+	
+	private final AtomicLong peakConnections = new AtomicLong();
+	
+	/**
+	 * 从帧进入空的发送队列到队列写空的耗时
+	 */
+	private final LatencyHistogram writeLatency = new LatencyHistogram();
+	
+	private final long startTime = System.currentTimeMillis();
+	
+	ServerMetrics() {
+		for(int i = 0; i < COMMANDS.length; ++i) {
+			commandCounts[i] = new LongAdder();
+			commandLatencies[i] = new LatencyHistogram();
+		}
+	}
+	
+	/**
+	 * 记录处理一条命令
+	 * @param cmd
+	 * @param nanos 处理耗时
+	 */
+	void recordCommand(String cmd, long nanos) {
+		int index = commandIndex(cmd);
+		commandCounts[index].increment();
+		commandLatencies[index].record(nanos);
+	}
+	
+	private static int commandIndex(String cmd) {
+		Integer index = COMMAND_INDEXES.get(cmd);
+		return index != null ? index : COMMANDS.length - 1;
+	}
+	
+	void recordWrite(long nanos) {
+		writeLatency.record(nanos);
+	}
+	
+	void bytesIn(long bytes) {
+		bytesIn.add(bytes);
+	}
+	
+	void bytesOut(long bytes) {
+		bytesOut.add(bytes);
+	}
+	
+	void frameDropped() {
+		framesDropped.increment();
+	}
+	
+	void offlineStored() {
+		offlineStored.increment();
+	}
+	
+	void offlineDelivered(int count) {
+		offlineDelivered.add(count);
+	}
+	
+	void roomDelivered(int count) {
+		roomDelivered.add(count);
+	}
+	
+	void compressedRelayed(int count) {
+		compressedRelayed.add(count);
+	}
+	
+	void decompressed() {
+		decompressed.increment();
+	}
+	
+	void outboundCongested() {
+		outboundCongested.increment();
+	}
+	
+	void slowConsumerDisconnected() {
+		slowConsumerDisconnected.increment();
+	}
+	
+	void presenceSkipped() {
+		presenceSkipped.increment();
+	}
+	
+	void presenceResynced() {
+		presenceResynced.increment();
+	}
+	
+	void heartbeatSent() {
+		heartbeatSent.increment();
+	}
+	
+	void idleReaped() {
+		idleReaped.increment();
+	}
+	
+	void connectionOpened() {
+		long current = connections.incrementAndGet();
+		long peak;
+		while(current > (peak = peakConnections.get()) && !peakConnections.compareAndSet(peak, current)) {
+		}
+	}
+	
+	void connectionClosed() {
+		connections.decrementAndGet();
+	}
+	
+	/**
+	 * 统计读取的字节数
+	 * @param inputStream
+	 * @return
+	 */
+	InputStream countBytesIn(InputStream inputStream) {
+		return new FilterInputStream(inputStream) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if(b >= 0) {
+					bytesIn.increment();
+				}
+				return b;
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if(n > 0) {
+					bytesIn.add(n);
+				}
+				return n;
+			}
+		};
+	}
+	
+	/**
+	 * 文本格式的快照，每行一个指标
+	 * @param sessions 在线会话，用于统计发送队列
+	 * @param rooms
+	 * @return
+	 */
+	String snapshot(SessionRegistry sessions, RoomRegistry rooms) {
+		long[] queued = new long[2];
+		sessions.forEach(clientSocket -> {
+			int size = clientSocket.getOutboundQueue().size();
+			queued[0] += size;
+			queued[1] = Math.max(queued[1], size);
+		});
+		
+		StringBuilder out = new StringBuilder(2048);
+		line(out, "uptime_seconds", (System.currentTimeMillis() - startTime) / 1000);
+		line(out, "connections_current", connections.get());
+		line(out, "connections_peak", peakConnections.get());
+		line(out, "online_users", sessions.size());
+		line(out, "bytes_in_total", bytesIn.sum());
+		line(out, "bytes_out_total", bytesOut.sum());
+		line(out, "frames_dropped_total", framesDropped.sum());
+		line(out, "offline_messages_stored_total", offlineStored.sum());
+		line(out, "offline_messages_delivered_total", offlineDelivered.sum());
+		line(out, "rooms", rooms.size());
+		line(out, "room_frames_delivered_total", roomDelivered.sum());
+		line(out, "compressed_frames_relayed_total", compressedRelayed.sum());
+		line(out, "server_decompressions_total", decompressed.sum());
+		line(out, "outbound_congested_total", outboundCongested.sum());
+		line(out, "slow_consumer_disconnects_total", slowConsumerDisconnected.sum());
+		line(out, "presence_frames_skipped_total", presenceSkipped.sum());
+		line(out, "presence_resyncs_total", presenceResynced.sum());
+		line(out, "heartbeats_sent_total", heartbeatSent.sum());
+		line(out, "idle_connections_reaped_total", idleReaped.sum());
+		line(out, "outbound_queue_frames_total", queued[0]);
+		line(out, "outbound_queue_frames_max", queued[1]);
+		//平台线程数，虚拟线程不算在内，用于比较bio和virtual模式
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		line(out, "threads_current", threads.getThreadCount());
+		line(out, "threads_peak", threads.getPeakThreadCount());
+		line(out, "resident_memory_bytes", residentMemory());
+		for(int i = 0; i < COMMANDS.length; ++i) {
+			String label = "{cmd=\"" + COMMANDS[i] + "\"}";
+			line(out, "command_count" + label, commandCounts[i].sum());
+			latency(out, "command_latency_us", "cmd=\"" + COMMANDS[i] + "\",", commandLatencies[i]);
+		}
+		latency(out, "outbound_write_latency_us", "", writeLatency);
+		return out.toString();
+	}
+	
+	/**
+	 * 进程的常驻内存，读/proc/self/status的VmRSS，不是Linux或读取失败时为-1
+	 * @return 字节数
+	 */
+	private static long residentMemory() {
+		try {
+			for(String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.UTF_8)) {
+				if(line.startsWith("VmRSS:")) {
+					//VmRSS:	  123456 kB
+					String value = line.substring("VmRSS:".length()).trim();
+					int space = value.indexOf(' ');
+					return Long.parseLong(space < 0 ? value : value.substring(0, space)) * 1024;
+				}
+			}
+		}catch (IOException | RuntimeException e) {
+		}
+		return -1;
+	}
+	
+	private static void latency(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+		line(out, name + "{" + labels + "quantile=\"0.5\"}", histogram.getPercentile(50) / 1000);
+		line(out, name + "{" + labels + "quantile=\"0.9\"}", histogram.getPercentile(90) / 1000);
+		line(out, name + "{" + labels + "quantile=\"0.99\"}", histogram.getPercentile(99) / 1000);
+		line(out, name + "{" + labels + "quantile=\"0.999\"}", histogram.getPercentile(99.9) / 1000);
+		line(out, name + "{" + labels + "quantile=\"1\"}", histogram.getMax() / 1000);
+	}
+	
+	private static void line(StringBuilder out, String name, long value) {
+		out.append(name).append(' ').append(value).append('\n');
+	}
+}
@@ -0,0 +1,36 @@
+package server;
+
+/**
+ * 服务端连接处理模式
+ */
+public enum ServerMode {
+	
+	/**
+	 * 阻塞IO，每个连接一个线程
+	 */
+	BIO,
+	
+	/**
+	 * 阻塞IO，每个连接一个虚拟线程(需要JDK21及以上，否则退回BIO)
+	 */
+	VIRTUAL,
+	
+	/**
+	 * 非阻塞IO，少量事件循环线程处理所有连接
+	 */
+	NIO;
+	
+	/**
+	 * 根据启动参数获取模式，不识别时使用BIO
+	 * @param name
+	 * @return
+	 */
+	public static ServerMode fromName(String name) {
+		for(ServerMode mode : values()) {
+			if(mode.name().equalsIgnoreCase(name)) {
+				return mode;
+			}
+		}
+		return BIO;
+	}
+}
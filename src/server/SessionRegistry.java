@@ -0,0 +1,177 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * 在线会话表
+ * 用户名通过putIfAbsent原子占用，不需要全局锁；每个会话分配一个紧凑的整数id，
+ * 发送和遍历按数组下标进行，只有登录和解析聊天目标时才按名字查找
+ */
+class SessionRegistry {
+	
+	/**
+	 * 每段的会话数
+	 */
+	private static final int SEGMENT_BITS = 10;
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+	
+	/**
+	 * 最多的段数，会话id不超过MAX_SEGMENTS * SEGMENT_SIZE
+	 */
+	private static final int MAX_SEGMENTS = 1 << 12;
+	
+	/**
+	 * 名字到会话，包括已占用名字但还没上线的
+	 */
+	private final ConcurrentHashMap<String, ChatClientSocket> byName = new ConcurrentHashMap<>();
+	
+	/**
+	 * 按id分段存放已上线的会话，段在第一次用到时创建
+	 */
+	private final AtomicReferenceArray<AtomicReferenceArray<ChatClientSocket>> segments = new AtomicReferenceArray<>(MAX_SEGMENTS);
+	
+	/**
+	 * 下一个没用过的id
+	 */
+	private final AtomicInteger nextId = new AtomicInteger();
+	
+	/**
+	 * 释放的id，优先重复使用，保持id紧凑
+	 */
+	private final Queue<Integer> freeIds = new ConcurrentLinkedQueue<>();
+	
+	/**
+	 * 已上线的会话数
+	 */
+	private final AtomicInteger size = new AtomicInteger();
+	
+	/**
+	 * 占用用户名并分配会话id，此时还不能收到消息，需再调用activate
+	 * @param userName
+	 * @param clientSocket
+	 * @return 用户名已被占用时返回false
+	 */
+	boolean claim(String userName, ChatClientSocket clientSocket) {
+		if(byName.putIfAbsent(userName, clientSocket) != null) {
+			return false;
+		}
+		
+		Integer freeId = freeIds.poll();
+		int id = freeId != null ? freeId : nextId.getAndIncrement();
+		if(id >= MAX_SEGMENTS * SEGMENT_SIZE) {
+			byName.remove(userName, clientSocket);
+			throw new IllegalStateException("会话数超过上限");
+		}
+		clientSocket.setSessionId(id);
+		return true;
+	}
+	
+	/**
+	 * 会话上线，之后可以按名字或id找到，遍历时也会包括
+	 * @param clientSocket
+	 */
+	void activate(ChatClientSocket clientSocket) {
+		int id = clientSocket.getSessionId();
+		segment(id).set(id & (SEGMENT_SIZE - 1), clientSocket);
+		size.incrementAndGet();
+	}
+	
+	/**
+	 * 释放会话的用户名和id
+	 * @param clientSocket
+	 * @return 会话原来的用户名，没有登录时为空
+	 */
+	String release(ChatClientSocket clientSocket) {
+		//登出和被其他节点挤下线可能同时发生，只有一方拿到id
+		int id = clientSocket.clearSessionId();
+		if(id < 0) {
+			return null;
+		}
+		
+		if(segment(id).compareAndSet(id & (SEGMENT_SIZE - 1), clientSocket, null)) {
+			size.decrementAndGet();
+		}
+		String userName = clientSocket.getUserName();
+		byName.remove(userName, clientSocket);
+		freeIds.add(id);
+		return userName;
+	}
+	
+	/**
+	 * 按id取已上线的会话
+	 * @param id
+	 * @return 不在线时为空
+	 */
+	ChatClientSocket get(int id) {
+		AtomicReferenceArray<ChatClientSocket> segment = segments.get(id >>> SEGMENT_BITS);
+		return segment == null ? null : segment.get(id & (SEGMENT_SIZE - 1));
+	}
+	
+	/**
+	 * 按名字取已上线的会话
+	 * @param userName
+	 * @return 不在线时为空
+	 */
+	ChatClientSocket find(String userName) {
+		ChatClientSocket clientSocket = byName.get(userName);
+		if(clientSocket == null) {
+			return null;
+		}
+		
+		int id = clientSocket.getSessionId();
+		return id >= 0 && get(id) == clientSocket ? clientSocket : null;
+	}
+	
+	/**
+	 * 按名字取会话，包括已占用名字但还没上线的
+	 * @param userName
+	 * @return
+	 */
+	ChatClientSocket claimed(String userName) {
+		return byName.get(userName);
+	}
+	
+	/**
+	 * 按id顺序遍历已上线的会话
+	 * @param action
+	 */
+	void forEach(Consumer<ChatClientSocket> action) {
+		int maxId = nextId.get();
+		for(int s = 0; s <= (maxId - 1) >>> SEGMENT_BITS && s < MAX_SEGMENTS; ++s) {
+			AtomicReferenceArray<ChatClientSocket> segment = segments.get(s);
+			if(segment == null) {
+				continue;
+			}
+			
+			for(int i = 0; i < SEGMENT_SIZE; ++i) {
+				ChatClientSocket clientSocket = segment.get(i);
+				if(clientSocket != null) {
+					action.accept(clientSocket);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * 已上线的会话数
+	 * @return
+	 */
+	int size() {
+		return size.get();
+	}
+	
+	private AtomicReferenceArray<ChatClientSocket> segment(int id) {
+		int index = id >>> SEGMENT_BITS;
+		AtomicReferenceArray<ChatClientSocket> segment = segments.get(index);
+		if(segment == null) {
+			segments.compareAndSet(index, null, new AtomicReferenceArray<>(SEGMENT_SIZE));
+			segment = segments.get(index);
+		}
+		return segment;
+	}
+}
@@ -0,0 +1,54 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+import base.BinaryCodec;
+import base.ChatCmd;
+import base.JsonCodec;
+
+/**
+ * 要发给多个客户端的帧
+ * JSON和二进制两种格式各自最多编码一次，编码结果只读，所有接收方共享
+ */
+class SharedFrame {
+	
+	private final ChatCmd cmd;
+	
+	private ByteBuffer jsonFrame;
+	
+	private ByteBuffer binaryFrame;
+	
+	SharedFrame(ChatCmd cmd) {
+		this.cmd = cmd;
+	}
+	
+	/**
+	 * 获取指定格式的帧
+	 * @param binary
+	 * @return
+	 */
+	ByteBuffer get(boolean binary) {
+		if(binary) {
+			if(binaryFrame == null) {
+				binaryFrame = encode(cmd, true);
+			}
+			return binaryFrame;
+		}
+		
+		if(jsonFrame == null) {
+			jsonFrame = encode(cmd, false);
+		}
+		return jsonFrame;
+	}
+	
+	/**
+	 * 把命令编码成一帧，返回只读的数据
+	 * @param cmd
+	 * @param binary
+	 * @return
+	 */
+	static ByteBuffer encode(ChatCmd cmd, boolean binary) {
+		byte[] data = binary ? BinaryCodec.encode(cmd) : JsonCodec.local().encodeLine(cmd);
+		return ByteBuffer.wrap(data).asReadOnlyBuffer();
+	}
+}